@@ -0,0 +1,24 @@
+package com.mycompany.app.benchmark;
+
+import com.mycompany.app.model.EmailMessage;
+
+/**
+ * Test data shared by the benchmarks.
+ */
+public final class BenchmarkMessages {
+
+    private BenchmarkMessages() {
+    }
+
+    /**
+     * Returns a valid email whose body is {@code bodySize} characters of repeated plain text.
+     */
+    public static EmailMessage emailMessage(int bodySize) {
+        String paragraph = "Your order has been shipped and will arrive within three business days. ";
+        StringBuilder body = new StringBuilder(bodySize);
+        while (body.length() < bodySize) {
+            body.append(paragraph, 0, Math.min(paragraph.length(), bodySize - body.length()));
+        }
+        return new EmailMessage("recipient@example.com", "Your order has shipped", body.toString());
+    }
+}
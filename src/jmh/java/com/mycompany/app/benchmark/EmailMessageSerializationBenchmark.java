@@ -0,0 +1,78 @@
+package com.mycompany.app.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.gson.Gson;
+import com.google.protobuf.ByteString;
+import com.google.pubsub.v1.PubsubMessage;
+import com.mycompany.app.model.EmailMessage;
+import com.mycompany.app.service.EmailMessageCodec;
+
+/**
+ * Encoding and decoding of {@link EmailMessage} payloads: the original Gson/String round trip and the
+ * {@link EmailMessageCodec} JSON and binary formats used by the publisher and the consumer.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class EmailMessageSerializationBenchmark {
+
+    @Param({"256", "16384", "262144"})
+    public int bodySize;
+
+    private final Gson gson = new Gson();
+    private final EmailMessageCodec jsonCodec = new EmailMessageCodec("json", 0);
+    private final EmailMessageCodec binaryCodec = new EmailMessageCodec("binary", 0);
+    private EmailMessage emailMessage;
+    private ByteString jsonData;
+    private PubsubMessage jsonMessage;
+    private PubsubMessage binaryMessage;
+
+    @Setup
+    public void setUp() {
+        emailMessage = BenchmarkMessages.emailMessage(bodySize);
+        jsonData = ByteString.copyFromUtf8(gson.toJson(emailMessage));
+        jsonMessage = jsonCodec.toPubsubMessage(emailMessage);
+        binaryMessage = binaryCodec.toPubsubMessage(emailMessage);
+    }
+
+    @Benchmark
+    public ByteString publisherToJson() {
+        return ByteString.copyFromUtf8(gson.toJson(emailMessage));
+    }
+
+    @Benchmark
+    public EmailMessage consumerFromJson() {
+        return gson.fromJson(jsonData.toStringUtf8(), EmailMessage.class);
+    }
+
+    @Benchmark
+    public EmailMessage codecFromJson() {
+        return jsonCodec.fromPubsubMessage(jsonMessage);
+    }
+
+    @Benchmark
+    public PubsubMessage codecToBinary() {
+        return binaryCodec.toPubsubMessage(emailMessage);
+    }
+
+    @Benchmark
+    public EmailMessage codecFromBinary() {
+        return binaryCodec.fromPubsubMessage(binaryMessage);
+    }
+}
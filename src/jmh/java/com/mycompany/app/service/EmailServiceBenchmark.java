@@ -0,0 +1,95 @@
+package com.mycompany.app.service;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.core.io.DefaultResourceLoader;
+import org.springframework.mail.javamail.JavaMailSenderImpl;
+
+import com.mycompany.app.benchmark.BenchmarkMessages;
+import com.mycompany.app.model.EmailMessage;
+import com.mycompany.app.support.FakeSmtpServer;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import jakarta.mail.MessagingException;
+import jakarta.mail.internet.MimeMessage;
+
+/**
+ * MIME construction and end-to-end {@link EmailService#sendEmail} against an in-process SMTP server, with and
+ * without the SMTP connection pool.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class EmailServiceBenchmark {
+
+    @Param({"true", "false"})
+    public boolean pooled;
+
+    @Param({"256", "16384"})
+    public int bodySize;
+
+    private FakeSmtpServer smtpServer;
+    private SmtpTransportPool transportPool;
+    private EmailService emailService;
+    private EmailMessage emailMessage;
+
+    @Setup
+    public void setUp() throws IOException {
+        smtpServer = new FakeSmtpServer();
+        smtpServer.setRecordMessages(false);
+        JavaMailSenderImpl mailSender = new JavaMailSenderImpl();
+        mailSender.setHost(smtpServer.getHost());
+        mailSender.setPort(smtpServer.getPort());
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        transportPool = new SmtpTransportPool(mailSender, meterRegistry, pooled, 4, 60_000, 1_000_000, 30_000, 5_000);
+        SmtpRelayGroup relayGroup = new SmtpRelayGroup(transportPool, meterRegistry, "", "", "weighted", 3, 30_000);
+        // The health state is only updated from send outcomes here; the background refresh is never scheduled.
+        MailHealthState mailHealthState = new MailHealthState(new EmailServiceChecker(null), relayGroup);
+        EmailTemplateRenderer templateRenderer = new EmailTemplateRenderer(new DefaultResourceLoader(),
+                "classpath:/templates/email/", ".txt", 16, 0, meterRegistry);
+        emailService = new EmailService(mailSender, relayGroup, mailHealthState, templateRenderer, meterRegistry,
+                new HotPathEvents("aggregated", 0, meterRegistry), 100);
+        emailMessage = BenchmarkMessages.emailMessage(bodySize);
+    }
+
+    @TearDown
+    public void tearDown() {
+        transportPool.tearDown();
+        smtpServer.close();
+    }
+
+    @Benchmark
+    public MimeMessage createMimeMessage() {
+        return emailService.createMimeMessage(emailMessage);
+    }
+
+    @Benchmark
+    public MimeMessage createAndWriteMimeMessage() throws IOException, MessagingException {
+        MimeMessage message = emailService.createMimeMessage(emailMessage);
+        message.saveChanges();
+        message.writeTo(OutputStream.nullOutputStream());
+        return message;
+    }
+
+    @Benchmark
+    public void sendEmail() {
+        emailService.sendEmail(emailMessage);
+    }
+}
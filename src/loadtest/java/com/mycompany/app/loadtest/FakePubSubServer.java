@@ -0,0 +1,415 @@
+package com.mycompany.app.loadtest;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.protobuf.Empty;
+import com.google.protobuf.Timestamp;
+import com.google.pubsub.v1.AcknowledgeRequest;
+import com.google.pubsub.v1.ModifyAckDeadlineRequest;
+import com.google.pubsub.v1.PublishRequest;
+import com.google.pubsub.v1.PublishResponse;
+import com.google.pubsub.v1.PublisherGrpc;
+import com.google.pubsub.v1.PubsubMessage;
+import com.google.pubsub.v1.PullRequest;
+import com.google.pubsub.v1.PullResponse;
+import com.google.pubsub.v1.ReceivedMessage;
+import com.google.pubsub.v1.StreamingPullRequest;
+import com.google.pubsub.v1.StreamingPullResponse;
+import com.google.pubsub.v1.SubscriberGrpc;
+import com.google.pubsub.v1.Subscription;
+import com.google.pubsub.v1.UpdateSubscriptionRequest;
+
+import io.grpc.Server;
+import io.grpc.ServerBuilder;
+import io.grpc.Status;
+import io.grpc.stub.StreamObserver;
+
+/**
+ * An in-process Pub/Sub server speaking the real gRPC API, for load tests against the unmodified client library.
+ * <p>
+ * It keeps topics and subscriptions in memory and implements what the application uses: {@code Publish},
+ * {@code StreamingPull} (honouring the stream's max outstanding messages), {@code Pull}, {@code Acknowledge},
+ * {@code ModifyAckDeadline} and the dead letter policy set through {@code UpdateSubscription}. Messages whose
+ * lease runs out, or that are nacked, are redelivered; once a subscription with a dead letter policy has
+ * delivered a message {@code maxDeliveryAttempts} times it is published to the dead letter topic instead.
+ * Point the application at it with {@code gcp.pubsub.emulator-host=}{@link #getHost()}.
+ */
+public class FakePubSubServer implements Closeable {
+
+    private static final int MAX_MESSAGES_PER_RESPONSE = 1000;
+    private static final int DEFAULT_ACK_DEADLINE_SECONDS = 60;
+
+    private final Server server;
+    private final Map<String, List<FakeSubscription>> subscriptionsByTopic = new ConcurrentHashMap<>();
+    private final Map<String, FakeSubscription> subscriptions = new ConcurrentHashMap<>();
+    private final AtomicLong nextMessageId = new AtomicLong();
+    private final AtomicLong nextAckId = new AtomicLong();
+    private final AtomicLong publishedCount = new AtomicLong();
+    private final AtomicLong redeliveredCount = new AtomicLong();
+    private final AtomicLong deadLetteredCount = new AtomicLong();
+    private final ScheduledExecutorService leaseExpiry = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "fake-pubsub-leases");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public FakePubSubServer() throws IOException {
+        this.server = ServerBuilder.forPort(0)
+                .addService(new PublisherService())
+                .addService(new SubscriberService())
+                .build()
+                .start();
+        leaseExpiry.scheduleWithFixedDelay(this::expireLeases, 1, 1, TimeUnit.SECONDS);
+    }
+
+    public String getHost() {
+        return "localhost:" + server.getPort();
+    }
+
+    /**
+     * Creates a subscription, and its topic if needed. Both are given as full resource names.
+     */
+    public void createSubscription(String topic, String subscription) {
+        FakeSubscription fakeSubscription = new FakeSubscription(subscription);
+        subscriptions.put(subscription, fakeSubscription);
+        subscriptionsByTopic.computeIfAbsent(topic, key -> new CopyOnWriteArrayList<>()).add(fakeSubscription);
+    }
+
+    public long getPublishedCount() {
+        return publishedCount.get();
+    }
+
+    public long getRedeliveredCount() {
+        return redeliveredCount.get();
+    }
+
+    public long getDeadLetteredCount() {
+        return deadLetteredCount.get();
+    }
+
+    /**
+     * Messages of a subscription that were not acked yet, delivered or not.
+     */
+    public long getBacklog(String subscription) {
+        FakeSubscription fakeSubscription = subscriptions.get(subscription);
+        return fakeSubscription == null ? 0 : fakeSubscription.ready.size() + fakeSubscription.leases.size();
+    }
+
+    @Override
+    public void close() {
+        leaseExpiry.shutdownNow();
+        server.shutdownNow();
+    }
+
+    private boolean publish(String topic, PubsubMessage message) {
+        List<FakeSubscription> targets = subscriptionsByTopic.get(topic);
+        if (targets == null) {
+            return false;
+        }
+        publishedCount.incrementAndGet();
+        for (FakeSubscription subscription : targets) {
+            subscription.ready.add(new Delivery(message, 0));
+        }
+        return true;
+    }
+
+    private void expireLeases() {
+        long now = System.nanoTime();
+        for (FakeSubscription subscription : subscriptions.values()) {
+            for (Map.Entry<String, Lease> entry : subscription.leases.entrySet()) {
+                if (entry.getValue().deadlineNanos - now <= 0) {
+                    subscription.release(entry.getKey(), true);
+                }
+            }
+        }
+    }
+
+    private static Timestamp now() {
+        long millis = System.currentTimeMillis();
+        return Timestamp.newBuilder().setSeconds(millis / 1000).setNanos((int) (millis % 1000) * 1_000_000).build();
+    }
+
+    private record Delivery(PubsubMessage message, int attempts) {
+    }
+
+    private static final class Lease {
+
+        private final Delivery delivery;
+        private final StreamingPull stream;
+        private volatile long deadlineNanos;
+
+        private Lease(Delivery delivery, StreamingPull stream, int ackDeadlineSeconds) {
+            this.delivery = delivery;
+            this.stream = stream;
+            this.deadlineNanos = System.nanoTime() + TimeUnit.SECONDS.toNanos(ackDeadlineSeconds);
+        }
+    }
+
+    private final class FakeSubscription {
+
+        private final String name;
+        private final BlockingQueue<Delivery> ready = new LinkedBlockingQueue<>();
+        private final Map<String, Lease> leases = new ConcurrentHashMap<>();
+        private volatile String deadLetterTopic = "";
+        private volatile int maxDeliveryAttempts;
+
+        private FakeSubscription(String name) {
+            this.name = name;
+        }
+
+        private ReceivedMessage lease(Delivery delivery, StreamingPull stream, int ackDeadlineSeconds) {
+            Delivery attempt = new Delivery(delivery.message, delivery.attempts + 1);
+            String ackId = Long.toString(nextAckId.incrementAndGet());
+            leases.put(ackId, new Lease(attempt, stream, ackDeadlineSeconds));
+            if (stream != null) {
+                stream.outstanding.incrementAndGet();
+            }
+            return ReceivedMessage.newBuilder()
+                    .setAckId(ackId)
+                    .setMessage(attempt.message)
+                    .setDeliveryAttempt(attempt.attempts)
+                    .build();
+        }
+
+        private void modifyDeadline(String ackId, int seconds) {
+            if (seconds <= 0) {
+                release(ackId, true);
+                return;
+            }
+            Lease lease = leases.get(ackId);
+            if (lease != null) {
+                lease.deadlineNanos = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+            }
+        }
+
+        /**
+         * Ends a lease, on ack or, with {@code redeliver}, on nack or expiry.
+         */
+        private void release(String ackId, boolean redeliver) {
+            Lease lease = leases.remove(ackId);
+            if (lease == null) {
+                return;
+            }
+            if (lease.stream != null) {
+                lease.stream.outstanding.decrementAndGet();
+            }
+            if (!redeliver) {
+                return;
+            }
+            if (!deadLetterTopic.isEmpty() && lease.delivery.attempts >= maxDeliveryAttempts) {
+                deadLetteredCount.incrementAndGet();
+                publish(deadLetterTopic, lease.delivery.message.toBuilder()
+                        .putAttributes("CloudPubSubDeadLetterSourceSubscription", name)
+                        .putAttributes("CloudPubSubDeadLetterSourceDeliveryCount", Integer.toString(lease.delivery.attempts))
+                        .build());
+            } else {
+                redeliveredCount.incrementAndGet();
+                ready.add(lease.delivery);
+            }
+        }
+    }
+
+    private final class PublisherService extends PublisherGrpc.PublisherImplBase {
+
+        @Override
+        public void publish(PublishRequest request, StreamObserver<PublishResponse> responseObserver) {
+            PublishResponse.Builder response = PublishResponse.newBuilder();
+            for (PubsubMessage message : request.getMessagesList()) {
+                String messageId = Long.toString(nextMessageId.incrementAndGet());
+                PubsubMessage published = message.toBuilder().setMessageId(messageId).setPublishTime(now()).build();
+                if (!FakePubSubServer.this.publish(request.getTopic(), published)) {
+                    responseObserver.onError(Status.NOT_FOUND.withDescription("Topic not found: " + request.getTopic())
+                            .asRuntimeException());
+                    return;
+                }
+                response.addMessageIds(messageId);
+            }
+            responseObserver.onNext(response.build());
+            responseObserver.onCompleted();
+        }
+    }
+
+    private final class SubscriberService extends SubscriberGrpc.SubscriberImplBase {
+
+        @Override
+        public StreamObserver<StreamingPullRequest> streamingPull(StreamObserver<StreamingPullResponse> responseObserver) {
+            return new StreamingPull(responseObserver);
+        }
+
+        @Override
+        public void pull(PullRequest request, StreamObserver<PullResponse> responseObserver) {
+            FakeSubscription subscription = subscriptions.get(request.getSubscription());
+            if (subscription == null) {
+                responseObserver.onError(notFound(request.getSubscription()));
+                return;
+            }
+            List<Delivery> deliveries = new ArrayList<>();
+            try {
+                Delivery first = subscription.ready.poll(100, TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    deliveries.add(first);
+                    subscription.ready.drainTo(deliveries, Math.max(1, request.getMaxMessages()) - 1);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            PullResponse.Builder response = PullResponse.newBuilder();
+            for (Delivery delivery : deliveries) {
+                response.addReceivedMessages(subscription.lease(delivery, null, DEFAULT_ACK_DEADLINE_SECONDS));
+            }
+            responseObserver.onNext(response.build());
+            responseObserver.onCompleted();
+        }
+
+        @Override
+        public void acknowledge(AcknowledgeRequest request, StreamObserver<Empty> responseObserver) {
+            FakeSubscription subscription = subscriptions.get(request.getSubscription());
+            if (subscription != null) {
+                for (String ackId : request.getAckIdsList()) {
+                    subscription.release(ackId, false);
+                }
+            }
+            responseObserver.onNext(Empty.getDefaultInstance());
+            responseObserver.onCompleted();
+        }
+
+        @Override
+        public void modifyAckDeadline(ModifyAckDeadlineRequest request, StreamObserver<Empty> responseObserver) {
+            FakeSubscription subscription = subscriptions.get(request.getSubscription());
+            if (subscription != null) {
+                for (String ackId : request.getAckIdsList()) {
+                    subscription.modifyDeadline(ackId, request.getAckDeadlineSeconds());
+                }
+            }
+            responseObserver.onNext(Empty.getDefaultInstance());
+            responseObserver.onCompleted();
+        }
+
+        @Override
+        public void updateSubscription(UpdateSubscriptionRequest request, StreamObserver<Subscription> responseObserver) {
+            Subscription update = request.getSubscription();
+            FakeSubscription subscription = subscriptions.get(update.getName());
+            if (subscription == null) {
+                responseObserver.onError(notFound(update.getName()));
+                return;
+            }
+            if (request.getUpdateMask().getPathsList().contains("dead_letter_policy")) {
+                subscription.deadLetterTopic = update.getDeadLetterPolicy().getDeadLetterTopic();
+                subscription.maxDeliveryAttempts = update.getDeadLetterPolicy().getMaxDeliveryAttempts();
+            }
+            responseObserver.onNext(update);
+            responseObserver.onCompleted();
+        }
+    }
+
+    private static RuntimeException notFound(String subscription) {
+        return Status.NOT_FOUND.withDescription("Subscription not found: " + subscription).asRuntimeException();
+    }
+
+    /**
+     * One StreamingPull stream. The first request names the subscription; later ones carry acks and deadline
+     * changes. A thread per stream sends messages while fewer than the stream's max outstanding are leased.
+     */
+    private final class StreamingPull implements StreamObserver<StreamingPullRequest> {
+
+        private final StreamObserver<StreamingPullResponse> responseObserver;
+        private final AtomicInteger outstanding = new AtomicInteger();
+        private volatile FakeSubscription subscription;
+        private volatile int ackDeadlineSeconds;
+        private volatile long maxOutstanding;
+        private volatile boolean open = true;
+
+        private StreamingPull(StreamObserver<StreamingPullResponse> responseObserver) {
+            this.responseObserver = responseObserver;
+        }
+
+        @Override
+        public void onNext(StreamingPullRequest request) {
+            if (subscription == null) {
+                FakeSubscription requested = subscriptions.get(request.getSubscription());
+                if (requested == null) {
+                    open = false;
+                    synchronized (responseObserver) {
+                        responseObserver.onError(notFound(request.getSubscription()));
+                    }
+                    return;
+                }
+                ackDeadlineSeconds = request.getStreamAckDeadlineSeconds() > 0
+                        ? request.getStreamAckDeadlineSeconds() : DEFAULT_ACK_DEADLINE_SECONDS;
+                maxOutstanding = request.getMaxOutstandingMessages() > 0
+                        ? request.getMaxOutstandingMessages() : Long.MAX_VALUE;
+                subscription = requested;
+                Thread sender = new Thread(this::sendMessages, "fake-pubsub-stream");
+                sender.setDaemon(true);
+                sender.start();
+            }
+            for (String ackId : request.getAckIdsList()) {
+                subscription.release(ackId, false);
+            }
+            for (int i = 0; i < request.getModifyDeadlineAckIdsCount(); i++) {
+                subscription.modifyDeadline(request.getModifyDeadlineAckIds(i), request.getModifyDeadlineSeconds(i));
+            }
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            open = false;
+        }
+
+        @Override
+        public void onCompleted() {
+            open = false;
+            synchronized (responseObserver) {
+                responseObserver.onCompleted();
+            }
+        }
+
+        private void sendMessages() {
+            List<Delivery> deliveries = new ArrayList<>();
+            try {
+                while (open) {
+                    long capacity = Math.min(MAX_MESSAGES_PER_RESPONSE, maxOutstanding - outstanding.get());
+                    if (capacity <= 0) {
+                        Thread.sleep(1);
+                        continue;
+                    }
+                    Delivery first = subscription.ready.poll(100, TimeUnit.MILLISECONDS);
+                    if (first == null) {
+                        continue;
+                    }
+                    deliveries.clear();
+                    deliveries.add(first);
+                    subscription.ready.drainTo(deliveries, (int) capacity - 1);
+                    StreamingPullResponse.Builder response = StreamingPullResponse.newBuilder();
+                    for (Delivery delivery : deliveries) {
+                        response.addReceivedMessages(subscription.lease(delivery, this, ackDeadlineSeconds));
+                    }
+                    synchronized (responseObserver) {
+                        if (!open) {
+                            break;
+                        }
+                        responseObserver.onNext(response.build());
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (RuntimeException e) {
+                // The client went away; the leases expire and the messages are redelivered.
+                open = false;
+            }
+        }
+    }
+}
@@ -0,0 +1,298 @@
+package com.mycompany.app.loadtest;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import com.mycompany.app.Application;
+import com.mycompany.app.support.FakeSmtpServer;
+
+/**
+ * Runs the whole application against in-process stand-ins for Pub/Sub ({@link FakePubSubServer}) and the SMTP
+ * relay ({@link FakeSmtpServer}) and drives it through {@code POST /api/notifications/publish} at a fixed rate.
+ * <p>
+ * Every email carries its sequence number and send time in the subject, so the fake relay can tell the
+ * end-to-end latency (HTTP request to SMTP {@code DATA}) and count emails that arrived more than once. Every
+ * {@code load.report-interval-seconds} and at the end it prints the publish and delivery rates, latency
+ * percentiles, duplicates, redeliveries and dead letters, and heap and GC use of the JVM, which runs both the
+ * application and the stand-ins.
+ * <p>
+ * Run with {@code mvn -Ploadtest test-compile exec:exec}, setting the load with {@code -Dload.*} properties:
+ * <ul>
+ * <li>{@code load.rate} - emails per second offered (default 500)</li>
+ * <li>{@code load.duration-seconds} - how long to publish (default 60); use hours for a soak test</li>
+ * <li>{@code load.report-interval-seconds} - default 10</li>
+ * <li>{@code load.concurrency} - HTTP requests in flight at most (default 64)</li>
+ * <li>{@code load.domains} - number of recipient domains the emails are spread over (default 20)</li>
+ * <li>{@code load.smtp.latency-ms} - delay of the fake relay before it accepts a message (default 20)</li>
+ * <li>{@code load.smtp.error-rate} - fraction of messages the fake relay rejects with 451 (default 0)</li>
+ * </ul>
+ * Application settings are passed as arguments, e.g. {@code -Dload.args="--gcp.pubsub.consumer.consumer-mode=batch-pull"}.
+ */
+public final class LoadTestDriver {
+
+    private static final Pattern SUBJECT = Pattern.compile("^Subject: load (\\d+) (\\d+)", Pattern.MULTILINE);
+    private static final String PROJECT_ID = "loadtest";
+
+    private final long rate = Long.getLong("load.rate", 500);
+    private final long durationSeconds = Long.getLong("load.duration-seconds", 60);
+    private final long reportIntervalSeconds = Long.getLong("load.report-interval-seconds", 10);
+    private final int concurrency = Integer.getInteger("load.concurrency", 64);
+    private final int domains = Integer.getInteger("load.domains", 20);
+
+    private final Recorder latencies = new Recorder(3);
+    private final Histogram totalLatencies = new Histogram(3);
+    // Sequence numbers of the emails that arrived, to count duplicates.
+    private final BitSet delivered = new BitSet();
+    private final AtomicLong deliveredCount = new AtomicLong();
+    private final AtomicLong duplicateCount = new AtomicLong();
+    private final AtomicLong acceptedCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+
+    private FakeSmtpServer smtpServer;
+    private FakePubSubServer pubSubServer;
+    private String subscription;
+
+    public static void main(String[] args) throws Exception {
+        System.exit(new LoadTestDriver().run(args));
+    }
+
+    private int run(String[] args) throws Exception {
+        smtpServer = new FakeSmtpServer();
+        smtpServer.setRecordMessages(false);
+        smtpServer.setResponseDelayMs(Long.getLong("load.smtp.latency-ms", 20));
+        smtpServer.setErrorRate(Double.parseDouble(System.getProperty("load.smtp.error-rate", "0")));
+        smtpServer.setListener(this::onDelivered);
+        pubSubServer = new FakePubSubServer();
+
+        Map<String, String> properties = applicationProperties(args);
+        String topic = "projects/" + PROJECT_ID + "/topics/";
+        String subscriptions = "projects/" + PROJECT_ID + "/subscriptions/";
+        subscription = subscriptions + properties.get("gcp.pubsub.email-subscription-id");
+        pubSubServer.createSubscription(topic + properties.get("gcp.pubsub.email-topic-id"), subscription);
+        pubSubServer.createSubscription(topic + properties.get("gcp.pubsub.bulk-lane.topic-id"),
+                subscriptions + properties.get("gcp.pubsub.bulk-lane.subscription-id"));
+        pubSubServer.createSubscription(topic + properties.get("gcp.pubsub.email-dlt-topic-id"),
+                subscriptions + properties.get("gcp.pubsub.email-dlt-subscription-id"));
+
+        List<String> applicationArgs = new ArrayList<>();
+        properties.forEach((key, value) -> applicationArgs.add("--" + key + "=" + value));
+        ConfigurableApplicationContext context = SpringApplication.run(Application.class, applicationArgs.toArray(String[]::new));
+        try {
+            int port = ((WebServerApplicationContext) context).getWebServer().getPort();
+            drive(URI.create("http://localhost:" + port + "/api/notifications/publish"));
+        } finally {
+            SpringApplication.exit(context);
+            pubSubServer.close();
+            smtpServer.close();
+        }
+        // Fails the run if an accepted email was lost or one was sent twice.
+        long settled = deliveredCount.get() + pubSubServer.getDeadLetteredCount();
+        return duplicateCount.get() == 0 && settled >= acceptedCount.get() ? 0 : 1;
+    }
+
+    /**
+     * The settings the application runs with: the stand-ins' addresses, then the {@code load.args} and the
+     * program arguments, which override them.
+     */
+    private Map<String, String> applicationProperties(String[] args) {
+        Map<String, String> properties = new LinkedHashMap<>();
+        properties.put("server.port", "0");
+        properties.put("gcp.project-id", PROJECT_ID);
+        properties.put("gcp.pubsub.emulator-host", pubSubServer.getHost());
+        properties.put("gcp.pubsub.email-topic-id", "app-integration-mails");
+        properties.put("gcp.pubsub.email-subscription-id", "app-integration-mails-sub");
+        properties.put("gcp.pubsub.bulk-lane.topic-id", "app-integration-mails-bulk");
+        properties.put("gcp.pubsub.bulk-lane.subscription-id", "app-integration-mails-bulk-sub");
+        properties.put("gcp.pubsub.email-dlt-topic-id", "app-integration-mails-dead");
+        properties.put("gcp.pubsub.email-dlt-subscription-id", "app-integration-mails-dead-sub");
+        properties.put("spring.mail.host", smtpServer.getHost());
+        properties.put("spring.mail.port", Integer.toString(smtpServer.getPort()));
+        properties.put("spring.mail.username", "");
+        properties.put("spring.mail.password", "");
+        properties.put("spring.mail.properties.mail.smtp.auth", "false");
+        properties.put("spring.cloud.gcp.project-id", PROJECT_ID);
+        properties.put("spring.cloud.gcp.trace.enabled", "false");
+        properties.put("spring.cloud.gcp.storage.enabled", "false");
+        List<String> overrides = new ArrayList<>(List.of(System.getProperty("load.args", "").trim().split("\\s+")));
+        overrides.addAll(List.of(args));
+        for (String arg : overrides) {
+            int separator = arg.indexOf('=');
+            if (arg.startsWith("--") && separator > 2) {
+                properties.put(arg.substring(2, separator), arg.substring(separator + 1));
+            }
+        }
+        return properties;
+    }
+
+    private void drive(URI publishUri) throws InterruptedException {
+        HttpClient client = HttpClient.newBuilder().build();
+        Semaphore inFlight = new Semaphore(concurrency);
+        System.out.printf("Offering %d emails/s for %d s over %d recipient domains.%n", rate, durationSeconds, domains);
+        printHeader();
+
+        long startNanos = System.nanoTime();
+        long endNanos = startNanos + TimeUnit.SECONDS.toNanos(durationSeconds);
+        long intervalNanos = TimeUnit.SECONDS.toNanos(1) / Math.max(1, rate);
+        Interval interval = new Interval(startNanos);
+        long sequence = 0;
+        while (System.nanoTime() < endNanos) {
+            long dueNanos = startNanos + sequence * intervalNanos;
+            long waitNanos = dueNanos - System.nanoTime();
+            if (waitNanos > 0) {
+                LockSupport.parkNanos(waitNanos);
+            }
+            inFlight.acquire();
+            HttpRequest request = HttpRequest.newBuilder(publishUri)
+                    .header("Content-Type", "application/json")
+                    .POST(HttpRequest.BodyPublishers.ofString(email(sequence)))
+                    .build();
+            client.sendAsync(request, HttpResponse.BodyHandlers.discarding()).whenComplete((response, error) -> {
+                inFlight.release();
+                if (error == null && response.statusCode() / 100 == 2) {
+                    acceptedCount.incrementAndGet();
+                } else {
+                    failedCount.incrementAndGet();
+                }
+            });
+            sequence++;
+            interval = interval.reportIfDue(false);
+        }
+
+        // Whatever was accepted should still arrive; give it as long as the dead letter policy might take.
+        inFlight.acquire(concurrency);
+        long drainDeadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(Long.getLong("load.drain-seconds", 120));
+        while (deliveredCount.get() + pubSubServer.getDeadLetteredCount() < acceptedCount.get()
+                && System.nanoTime() < drainDeadline) {
+            Thread.sleep(100);
+            interval = interval.reportIfDue(false);
+        }
+        interval.reportIfDue(true);
+        printSummary(System.nanoTime() - startNanos);
+    }
+
+    private String email(long sequence) {
+        // Subject and key are plain ASCII, so the subject is not MIME-encoded on the way to the relay.
+        return "{\"to\":\"load" + sequence + "@domain" + (sequence % domains) + ".example\","
+                + "\"subject\":\"load " + sequence + " " + System.nanoTime() + "\","
+                + "\"body\":\"Load test email " + sequence + ".\","
+                + "\"idempotencyKey\":\"load-" + sequence + "\"}";
+    }
+
+    private void onDelivered(FakeSmtpServer.ReceivedMessage message) {
+        Matcher matcher = SUBJECT.matcher(message.data());
+        if (!matcher.find()) {
+            return;
+        }
+        int sequence = Integer.parseInt(matcher.group(1));
+        long latencyNanos = System.nanoTime() - Long.parseLong(matcher.group(2));
+        boolean duplicate;
+        synchronized (delivered) {
+            duplicate = delivered.get(sequence);
+            delivered.set(sequence);
+        }
+        if (duplicate) {
+            duplicateCount.incrementAndGet();
+            return;
+        }
+        deliveredCount.incrementAndGet();
+        latencies.recordValue(Math.max(1, TimeUnit.NANOSECONDS.toMicros(latencyNanos)));
+    }
+
+    private static void printHeader() {
+        System.out.printf("%8s %9s %9s %8s %8s %8s %8s %8s %6s %8s %6s %9s %9s %7s %8s%n",
+                "time s", "publish/s", "deliver/s", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms",
+                "dupes", "redeliv", "dead", "backlog", "heap MB", "gc", "gc ms");
+    }
+
+    private void printSummary(long elapsedNanos) {
+        double seconds = elapsedNanos / 1e9;
+        System.out.printf("%nAccepted %d emails (%d failed requests), delivered %d in %.0f s: %.1f emails/s.%n",
+                acceptedCount.get(), failedCount.get(), deliveredCount.get(), seconds, deliveredCount.get() / seconds);
+        System.out.printf("End-to-end latency ms: p50 %.1f, p90 %.1f, p99 %.1f, p99.9 %.1f, max %.1f.%n",
+                percentile(totalLatencies, 50), percentile(totalLatencies, 90), percentile(totalLatencies, 99),
+                percentile(totalLatencies, 99.9), totalLatencies.getMaxValue() / 1000.0);
+        System.out.printf("Duplicates %d, redeliveries %d, dead letters %d, relay rejections %d.%n",
+                duplicateCount.get(), pubSubServer.getRedeliveredCount(), pubSubServer.getDeadLetteredCount(),
+                smtpServer.getRejectedCount());
+    }
+
+    private static double percentile(Histogram histogram, double percentile) {
+        return histogram.getValueAtPercentile(percentile) / 1000.0;
+    }
+
+    /**
+     * Counters at the start of a report interval.
+     */
+    private final class Interval {
+
+        private final long startNanos;
+        private final long runStartNanos;
+        private final long accepted;
+        private final long delivered;
+        private final long gcCount;
+        private final long gcMillis;
+
+        private Interval(long runStartNanos) {
+            this(runStartNanos, System.nanoTime());
+        }
+
+        private Interval(long runStartNanos, long startNanos) {
+            this.runStartNanos = runStartNanos;
+            this.startNanos = startNanos;
+            this.accepted = acceptedCount.get();
+            this.delivered = deliveredCount.get();
+            long count = 0;
+            long millis = 0;
+            for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+                count += Math.max(0, collector.getCollectionCount());
+                millis += Math.max(0, collector.getCollectionTime());
+            }
+            this.gcCount = count;
+            this.gcMillis = millis;
+        }
+
+        private Interval reportIfDue(boolean force) {
+            long now = System.nanoTime();
+            if (!force && now - startNanos < TimeUnit.SECONDS.toNanos(reportIntervalSeconds)) {
+                return this;
+            }
+            Interval next = new Interval(runStartNanos, now);
+            double seconds = Math.max(1e-3, (now - startNanos) / 1e9);
+            Histogram histogram = latencies.getIntervalHistogram();
+            totalLatencies.add(histogram);
+            MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+            System.out.printf("%8.0f %9.0f %9.0f %8.1f %8.1f %8.1f %8.1f %8.1f %6d %8d %6d %9d %9d %7d %8d%n",
+                    (now - runStartNanos) / 1e9,
+                    (next.accepted - accepted) / seconds,
+                    (next.delivered - delivered) / seconds,
+                    percentile(histogram, 50), percentile(histogram, 90), percentile(histogram, 99),
+                    percentile(histogram, 99.9), histogram.getMaxValue() / 1000.0,
+                    duplicateCount.get(), pubSubServer.getRedeliveredCount(), pubSubServer.getDeadLetteredCount(),
+                    pubSubServer.getBacklog(subscription), heap.getUsed() >> 20,
+                    next.gcCount - gcCount, next.gcMillis - gcMillis);
+            return next;
+        }
+    }
+}
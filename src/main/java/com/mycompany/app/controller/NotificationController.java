@@ -1,27 +1,39 @@
 package com.mycompany.app.controller;
 
+import java.io.IOException;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.server.ResponseStatusException;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.mycompany.app.model.BulkPublishResult;
+import com.mycompany.app.model.DeadLetterReplayRequest;
 import com.mycompany.app.model.EmailMessage;
+import com.mycompany.app.service.BulkPublishService;
 import com.mycompany.app.service.PubSubConsumerService;
 import com.mycompany.app.service.PubSubDltConsumerService;
 import com.mycompany.app.service.PubSubPublisherService;
+import com.mycompany.app.service.PubSubPublisherService.PublishReceipt;
 
 import io.swagger.v3.oas.annotations.Operation;
+import io.swagger.v3.oas.annotations.media.ArraySchema;
 import io.swagger.v3.oas.annotations.media.Content;
 import io.swagger.v3.oas.annotations.media.Schema;
 import io.swagger.v3.oas.annotations.responses.ApiResponse;
 import io.swagger.v3.oas.annotations.tags.Tag;
+import jakarta.servlet.http.HttpServletRequest;
 import jakarta.validation.Valid;
 
 @RestController
@@ -33,27 +45,59 @@ public class NotificationController {
     private final PubSubPublisherService publisherService;
     private final PubSubConsumerService consumerService;
     private final PubSubDltConsumerService dltConsumerService;
+    private final BulkPublishService bulkPublishService;
 
-    public NotificationController(PubSubPublisherService publisherService, PubSubConsumerService consumerService, PubSubDltConsumerService dltConsumerService) {
+    public NotificationController(PubSubPublisherService publisherService, PubSubConsumerService consumerService, PubSubDltConsumerService dltConsumerService,
+            BulkPublishService bulkPublishService) {
         this.publisherService = publisherService;
         this.consumerService = consumerService;
         this.dltConsumerService = dltConsumerService;
+        this.bulkPublishService = bulkPublishService;
     }
 
     @PostMapping("/publish")
     @Operation(summary = "publish email message to messaging service (Google Pub/Sub)",
             description = "Accepts an email JSON object and publishes it to a Google Cloud Pub/Sub topic for asynchronous processing.",
             responses = {
-                    @ApiResponse(responseCode = "202", description = "Email queued successfully. The message ID is returned.", content = @Content(mediaType = "application/json", schema = @Schema(example = "{\"messageId\": \"123456789\"}"))),
+                    @ApiResponse(responseCode = "202", description = "Email queued successfully. The Pub/Sub message ID is returned, and the email's idempotency key if it has one. With the publish outbox enabled, the message ID is not known yet and only the idempotency key is returned; emails without a key are given one.", content = @Content(mediaType = "application/json", schema = @Schema(example = "{\"messageId\": \"123456789\"}"))),
                     @ApiResponse(responseCode = "500", description = "Internal server error while trying to queue the email.")
             })
-    public ResponseEntity<Map<String, String>> queueEmailForSending(@Valid @RequestBody EmailMessage emailMessage) {
+    public CompletableFuture<ResponseEntity<Map<String, String>>> queueEmailForSending(@Valid @RequestBody EmailMessage emailMessage) {
+        // The servlet thread is released while Pub/Sub acknowledges the publish; the response is written on completion.
+        return publisherService.publishEmailMessageAsync(emailMessage)
+                .thenApply(receipt -> ResponseEntity.status(HttpStatus.ACCEPTED).body(toResponse(receipt)))
+                .exceptionally(e -> {
+                    logger.error("Failed to publish email message to messaging service", e);
+                    return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(Map.of("error", "Failed to queue email for sending."));
+                });
+    }
+
+    private static Map<String, String> toResponse(PublishReceipt receipt) {
+        Map<String, String> response = new LinkedHashMap<>();
+        if (receipt.getMessageId() != null) {
+            response.put("messageId", receipt.getMessageId());
+        }
+        if (receipt.getIdempotencyKey() != null) {
+            response.put("idempotencyKey", receipt.getIdempotencyKey());
+        }
+        return response;
+    }
+
+    @PostMapping(value = "/publish/bulk", consumes = {MediaType.APPLICATION_JSON_VALUE, MediaType.APPLICATION_NDJSON_VALUE})
+    @Operation(summary = "publish many email messages to messaging service (Google Pub/Sub) in one request",
+            description = "Accepts a JSON array or a newline-delimited JSON stream (application/x-ndjson) of email objects. The body is read as a stream, every email is validated on its own and valid ones are published in parallel. The response lists the message ID or the error of every email, in request order.",
+            requestBody = @io.swagger.v3.oas.annotations.parameters.RequestBody(content = @Content(mediaType = "application/json", array = @ArraySchema(schema = @Schema(implementation = EmailMessage.class)))),
+            responses = {
+                    @ApiResponse(responseCode = "202", description = "The request was processed. Check the per-item results for emails that were not queued, and the error for a body that turned out to be malformed after some emails were queued.", content = @Content(mediaType = "application/json", schema = @Schema(implementation = BulkPublishResult.class))),
+                    @ApiResponse(responseCode = "400", description = "The body is not a JSON array of email objects, or is malformed before its first email.")
+            })
+    public CompletableFuture<ResponseEntity<BulkPublishResult>> queueEmailsForSending(HttpServletRequest request) throws IOException {
+        boolean ndjson = MediaType.APPLICATION_NDJSON.isCompatibleWith(MediaType.parseMediaType(request.getContentType()));
         try {
-            String messageId = publisherService.publishEmailMessage(emailMessage);
-            return ResponseEntity.status(HttpStatus.ACCEPTED).body(Map.of("messageId", messageId));
-        } catch (Exception e) {
-            logger.error("Failed to publish email message to messaging service", e);
-            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(Map.of("error", "Failed to queue email for sending."));
+            return bulkPublishService.publish(request.getInputStream(), ndjson)
+                    .thenApply(result -> ResponseEntity.status(HttpStatus.ACCEPTED).body(result));
+        } catch (JsonProcessingException e) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Malformed bulk request body: " + e.getOriginalMessage(), e);
         }
     }
 
@@ -79,15 +123,60 @@ public class NotificationController {
         return ResponseEntity.ok(Map.of("status", result));
     }
 
+    @PostMapping("/consumer/pause")
+    @Operation(summary = "Pauses the email consumer",
+            description = "Stops sending emails without disconnecting from Pub/Sub. Received messages are held unacked and their leases are extended until the consumer is resumed. Does nothing if the consumer is not running or already paused.",
+            responses = {
+                    @ApiResponse(responseCode = "200", description = "Provides the status of the pause operation.", content = @Content(mediaType = "application/json", schema = @Schema(example = "{\"status\": \"Consumer paused successfully.\"}")))
+            })
+    public ResponseEntity<Map<String, String>> pauseConsumer() {
+        String result = consumerService.pause();
+        return ResponseEntity.ok(Map.of("status", result));
+    }
+
+    @PostMapping("/consumer/resume")
+    @Operation(summary = "Resumes the paused email consumer",
+            description = "Sends the messages held while paused and new messages again. Does nothing if the consumer is not paused.",
+            responses = {
+                    @ApiResponse(responseCode = "200", description = "Provides the status of the resume operation.", content = @Content(mediaType = "application/json", schema = @Schema(example = "{\"status\": \"Consumer resumed successfully.\"}")))
+            })
+    public ResponseEntity<Map<String, String>> resumeConsumer() {
+        String result = consumerService.resume();
+        return ResponseEntity.ok(Map.of("status", result));
+    }
+
+    @PostMapping("/consumer/drain")
+    @Operation(summary = "Drains and stops the email consumer",
+            description = "Stops pulling new messages, finishes the sends that can complete within the drain timeout, nacks the rest so they are redelivered right away, and closes the pooled SMTP connections. Call it before stopping the instance during a rolling restart. The drain runs in the background; follow it with GET /consumer/drain.",
+            responses = {
+                    @ApiResponse(responseCode = "200", description = "Provides the status of the drain operation.", content = @Content(mediaType = "application/json", schema = @Schema(example = "{\"status\": \"Consumer drain started.\"}")))
+            })
+    public ResponseEntity<Map<String, String>> drainConsumer() {
+        String result = consumerService.drain();
+        return ResponseEntity.ok(Map.of("status", result));
+    }
+
+    @GetMapping("/consumer/drain")
+    @Operation(summary = "Gets the progress of the consumer drain",
+            description = "Returns the progress of the running drain (messages still in flight, time left, messages nacked for lack of time), or the outcome of the last drain.",
+            responses = {
+                    @ApiResponse(responseCode = "200", description = "Progress of the drain.", content = @Content(mediaType = "application/json", schema = @Schema(example = "{\"state\": \"draining\", \"startedAt\": \"2024-01-01T12:00:00Z\", \"elapsedMs\": 1200, \"remainingMs\": 23800, \"inFlight\": 3, \"waitingForRateLimit\": 0, \"fastNacked\": 0}")))
+            })
+    public ResponseEntity<Map<String, Object>> getDrainStatus() {
+        return ResponseEntity.ok(consumerService.getDrainStatus());
+    }
+
     @GetMapping("/consumer/status")
     @Operation(summary = "Gets the status of the email consumer",
-            description = "Returns the current running status of the email consumer service.",
+            description = "Returns the current status of the email consumer service: running, paused, draining or stopped.",
             responses = {
                     @ApiResponse(responseCode = "200", description = "Current status of the consumer.", content = @Content(mediaType = "application/json", schema = @Schema(example = "{\"status\": \"running\"}")))
             })
     public ResponseEntity<Map<String, String>> getConsumerStatus() {
-        boolean isRunning = consumerService.isRunning();
-        return ResponseEntity.ok(Map.of("status", isRunning ? "running" : "stopped"));
+        String status = consumerService.isDraining() ? "draining"
+                : !consumerService.isRunning() ? "stopped"
+                : consumerService.isPaused() ? "paused" : "running";
+        return ResponseEntity.ok(Map.of("status", status));
     }
 
     @PostMapping("/dlt-consumer/start")
@@ -122,4 +211,34 @@ public class NotificationController {
         boolean isRunning = dltConsumerService.isRunning();
         return ResponseEntity.ok(Map.of("status", isRunning ? "running" : "stopped"));
     }
+
+    @GetMapping("/dlt/summary")
+    @Operation(summary = "Summarizes the stored dead letters",
+            description = "Returns the number of dead letters kept for replay, counted by cause (undeliverable or malformed), recipient domain and the subscription they were dead-lettered from.",
+            responses = {
+                    @ApiResponse(responseCode = "200", description = "Counts of the stored dead letters.", content = @Content(mediaType = "application/json", schema = @Schema(example = "{\"total\": 12000, \"byCause\": {\"undeliverable\": 12000}, \"byDomain\": {\"example.com\": 12000}, \"bySourceSubscription\": {\"projects/my-project/subscriptions/app-integration-mails-sub\": 12000}}")))
+            })
+    public ResponseEntity<Map<String, Object>> getDeadLetterSummary() {
+        return ResponseEntity.ok(dltConsumerService.getSummary());
+    }
+
+    @PostMapping("/dlt/replay")
+    @Operation(summary = "Replays stored dead letters",
+            description = "Starts publishing the selected dead letters to the email topic again, oldest first, in rate-limited batches. Replayed dead letters are removed from the store. Returns right away; use GET /dlt/replay for the progress.",
+            responses = {
+                    @ApiResponse(responseCode = "202", description = "The replay was started, or the status of the replay that is already running.", content = @Content(mediaType = "application/json", schema = @Schema(example = "{\"state\": \"running\", \"startedAt\": \"2024-01-01T12:00:00Z\", \"selected\": 12000, \"replayed\": 0, \"failed\": 0, \"skippedMalformed\": 0}")))
+            })
+    public ResponseEntity<Map<String, Object>> replayDeadLetters(@Valid @RequestBody DeadLetterReplayRequest request) {
+        return ResponseEntity.status(HttpStatus.ACCEPTED).body(dltConsumerService.replay(request));
+    }
+
+    @GetMapping("/dlt/replay")
+    @Operation(summary = "Gets the progress of the dead letter replay",
+            description = "Returns the progress of the running replay, or the outcome of the last one.",
+            responses = {
+                    @ApiResponse(responseCode = "200", description = "Progress of the replay.", content = @Content(mediaType = "application/json", schema = @Schema(example = "{\"state\": \"finished\", \"startedAt\": \"2024-01-01T12:00:00Z\", \"selected\": 12000, \"replayed\": 11990, \"failed\": 10, \"skippedMalformed\": 0}")))
+            })
+    public ResponseEntity<Map<String, Object>> getReplayStatus() {
+        return ResponseEntity.ok(dltConsumerService.getReplayStatus());
+    }
 }
@@ -0,0 +1,19 @@
+package com.mycompany.app.exception;
+
+/**
+ * Thrown when a Pub/Sub message payload cannot be decoded into an email. Retrying such a message can never
+ * succeed, so consumers acknowledge it instead of sending it to the dead-letter topic.
+ */
+public class MalformedMessageException extends RuntimeException {
+
+	private static final long serialVersionUID = 1L;
+
+	public MalformedMessageException(String message) {
+		super(message);
+	}
+
+	public MalformedMessageException(String message, Throwable cause) {
+		super(message, cause);
+	}
+
+}
@@ -0,0 +1,39 @@
+package com.mycompany.app.exception;
+
+import java.util.List;
+
+import org.springframework.mail.MailSendException;
+
+/**
+ * Thrown when an email with many recipients reached some of them, but could not be delivered to others for a
+ * reason that may pass, such as a lost connection or an SMTP 4xx reply. Sending the whole email again would send
+ * it twice to the recipients it reached, so only the recipients in {@link #getRetryRecipients()} are to be retried.
+ */
+public class PartialDeliveryException extends MailSendException {
+
+	private static final long serialVersionUID = 1L;
+
+	private final List<String> undelivered;
+	private final List<String> retryRecipients;
+
+	public PartialDeliveryException(List<String> undelivered, List<String> retryRecipients) {
+		super("Email could not be delivered to " + retryRecipients.size() + " of its recipients for now.");
+		this.undelivered = List.copyOf(undelivered);
+		this.retryRecipients = List.copyOf(retryRecipients);
+	}
+
+	/**
+	 * The recipients that refused the email for good.
+	 */
+	public List<String> getUndelivered() {
+		return undelivered;
+	}
+
+	/**
+	 * The recipients the email may still be delivered to by sending it again.
+	 */
+	public List<String> getRetryRecipients() {
+		return retryRecipients;
+	}
+
+}
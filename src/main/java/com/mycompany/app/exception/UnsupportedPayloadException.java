@@ -0,0 +1,16 @@
+package com.mycompany.app.exception;
+
+/**
+ * Thrown when a Pub/Sub message uses a payload format or content encoding this version does not know, most likely
+ * because it was published by a newer producer. Unlike other malformed messages it is not acknowledged: it is left
+ * for redelivery, so that an upgraded consumer can still read it, or it ends up on the dead-letter topic.
+ */
+public class UnsupportedPayloadException extends MalformedMessageException {
+
+	private static final long serialVersionUID = 1L;
+
+	public UnsupportedPayloadException(String message) {
+		super(message);
+	}
+
+}
@@ -0,0 +1,62 @@
+package com.mycompany.app.model;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+import io.swagger.v3.oas.annotations.media.Schema;
+
+@Schema(description = "Outcome of publishing a single email of a bulk request.")
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class BulkPublishItemResult {
+
+    @Schema(description = "Zero-based position of the email in the request body.", example = "0")
+    private int index;
+
+    @Schema(description = "Pub/Sub message ID, present when the email was queued, unless it was written to the publish outbox.", example = "123456789")
+    private String messageId;
+
+    @Schema(description = "Idempotency key the email was queued with, present when the email has one. With the publish outbox enabled, "
+            + "emails without a key are given one.", example = "5f0c6f1e-4c1a-4b5e-9a57-1d8e3c0f2a61")
+    private String idempotencyKey;
+
+    @Schema(description = "Reason the email was not queued, present when it was rejected or publishing failed.", example = "to: Recipient must be a valid email address.")
+    private String error;
+
+    public BulkPublishItemResult() {
+    }
+
+    public BulkPublishItemResult(int index) {
+        this.index = index;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public void setIndex(int index) {
+        this.index = index;
+    }
+
+    public String getMessageId() {
+        return messageId;
+    }
+
+    public void setMessageId(String messageId) {
+        this.messageId = messageId;
+    }
+
+    public String getIdempotencyKey() {
+        return idempotencyKey;
+    }
+
+    public void setIdempotencyKey(String idempotencyKey) {
+        this.idempotencyKey = idempotencyKey;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    public void setError(String error) {
+        this.error = error;
+    }
+}
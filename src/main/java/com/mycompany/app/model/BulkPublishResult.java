@@ -0,0 +1,101 @@
+package com.mycompany.app.model;
+
+import java.util.List;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+import io.swagger.v3.oas.annotations.media.Schema;
+
+@Schema(description = "Summary and per-item outcome of a bulk publish request.")
+public class BulkPublishResult {
+
+    @Schema(description = "Number of emails read from the request body.", example = "3")
+    private int total;
+
+    @Schema(description = "Number of emails queued for sending.", example = "2")
+    private int published;
+
+    @Schema(description = "Number of emails rejected by validation or that failed to publish.", example = "1")
+    private int failed;
+
+    @Schema(description = "True when the request held more emails than allowed and the rest of the body was not read.", example = "false")
+    private boolean truncated;
+
+    @Schema(description = "Why the rest of the body was not read, present when it turned out to be malformed after some emails "
+            + "were already queued. The emails before the error are listed in the results.",
+            example = "Unexpected character ('}' (code 125)): expected a value")
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private String error;
+
+    @Schema(description = "Outcome of every email, in request order.")
+    private List<BulkPublishItemResult> results;
+
+    public BulkPublishResult() {
+    }
+
+    public BulkPublishResult(List<BulkPublishItemResult> results, boolean truncated) {
+        this(results, truncated, null);
+    }
+
+    public BulkPublishResult(List<BulkPublishItemResult> results, boolean truncated, String error) {
+        this.results = results;
+        this.truncated = truncated;
+        this.error = error;
+        this.total = results.size();
+        for (BulkPublishItemResult result : results) {
+            if (result.getMessageId() != null || result.getIdempotencyKey() != null) {
+                published++;
+            } else {
+                failed++;
+            }
+        }
+    }
+
+    public int getTotal() {
+        return total;
+    }
+
+    public void setTotal(int total) {
+        this.total = total;
+    }
+
+    public int getPublished() {
+        return published;
+    }
+
+    public void setPublished(int published) {
+        this.published = published;
+    }
+
+    public int getFailed() {
+        return failed;
+    }
+
+    public void setFailed(int failed) {
+        this.failed = failed;
+    }
+
+    public boolean isTruncated() {
+        return truncated;
+    }
+
+    public void setTruncated(boolean truncated) {
+        this.truncated = truncated;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    public void setError(String error) {
+        this.error = error;
+    }
+
+    public List<BulkPublishItemResult> getResults() {
+        return results;
+    }
+
+    public void setResults(List<BulkPublishItemResult> results) {
+        this.results = results;
+    }
+}
@@ -0,0 +1,53 @@
+package com.mycompany.app.model;
+
+import io.swagger.v3.oas.annotations.media.Schema;
+import jakarta.validation.constraints.Min;
+
+@Schema(description = "Selects the dead letters to publish again. Filters that are not set match every dead letter.")
+public class DeadLetterReplayRequest {
+
+    @Schema(description = "Cause the dead letters were classified with: undeliverable (malformed ones cannot be replayed).", example = "undeliverable")
+    private String cause;
+
+    @Schema(description = "Recipient domain.", example = "example.com")
+    private String domain;
+
+    @Schema(description = "Subscription the messages were dead-lettered from (the full name or its last part).", example = "app-integration-mails-sub")
+    private String sourceSubscription;
+
+    @Schema(description = "Maximum number of dead letters to replay, oldest first. Defaults to all matching ones.", example = "10000")
+    @Min(1)
+    private Integer limit;
+
+    public String getCause() {
+        return cause;
+    }
+
+    public void setCause(String cause) {
+        this.cause = cause;
+    }
+
+    public String getDomain() {
+        return domain;
+    }
+
+    public void setDomain(String domain) {
+        this.domain = domain;
+    }
+
+    public String getSourceSubscription() {
+        return sourceSubscription;
+    }
+
+    public void setSourceSubscription(String sourceSubscription) {
+        this.sourceSubscription = sourceSubscription;
+    }
+
+    public Integer getLimit() {
+        return limit;
+    }
+
+    public void setLimit(Integer limit) {
+        this.limit = limit;
+    }
+}
@@ -1,9 +1,18 @@
 package com.mycompany.app.model;
 
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
 import io.swagger.v3.oas.annotations.media.Schema;
+import jakarta.validation.constraints.AssertTrue;
 import jakarta.validation.constraints.Email;
 import jakarta.validation.constraints.NotEmpty;
+import jakarta.validation.constraints.Pattern;
+import jakarta.validation.constraints.Size;
 
 @Schema(description = "Represents an email to be sent.")
 public class EmailMessage {
@@ -13,14 +22,50 @@ public class EmailMessage {
     @Email(message = "Recipient must be a valid email address.")
     private String to;
 
+    @Schema(description = "Further recipients, shown in the Cc header.", example = "[\"team@example.com\"]")
+    private List<@Email(message = "Cc recipients must be valid email addresses.") String> cc;
+
+    @Schema(description = "Further recipients that are not shown to the others, e.g. the members of an internal broadcast. "
+            + "The email is sent once to all recipients, in SMTP transactions of up to email.smtp.max-recipients-per-transaction.",
+            example = "[\"jane@example.com\", \"john@example.com\"]")
+    private List<@Email(message = "Bcc recipients must be valid email addresses.") String> bcc;
+
     @Schema(description = "Subject of the email.", example = "Hello from the application!")
     @NotEmpty(message = "Email subject cannot be empty.")
     private String subject;
 
-    @Schema(description = "Body content of the email.", example = "This is the body of the email.")
-    @NotEmpty(message = "Email body cannot be empty.")
+    @Schema(description = "Body content of the email. Required unless a template is given.", example = "This is the body of the email.")
     private String body;
 
+    @Schema(description = "ID of a template to render the body from, instead of sending the body.", example = "order-shipped")
+    @Pattern(regexp = "[A-Za-z0-9_-]+(/[A-Za-z0-9_-]+)*", message = "Template ID may only contain letters, digits, '_', '-' and '/'.")
+    private String templateId;
+
+    @Schema(description = "Values for the {{name}} placeholders of the template.", example = "{\"name\": \"Jane\"}")
+    private Map<String, String> templateVariables;
+
+    @Schema(description = "Key identifying this email across retries by the producer. An email is sent at most once per key; "
+            + "without a key, redeliveries of the same Pub/Sub message are detected.", example = "order-42-shipped")
+    @Size(max = 256, message = "Idempotency key cannot be longer than 256 characters.")
+    @Pattern(regexp = "[\\x21-\\x7E]+", message = "Idempotency key may only contain printable ASCII characters without spaces.")
+    private String idempotencyKey;
+
+    @Schema(description = "Delivery lane of the email. Defaults to TRANSACTIONAL.", example = "TRANSACTIONAL")
+    private EmailPriority priority;
+
+    @Schema(description = "Key of a stream of related notifications, such as the status changes of one order. When coalescing is "
+            + "enabled, emails with the same recipient and key that arrive within the coalescing window are sent as one digest.",
+            example = "order-42-status")
+    @Size(max = 256, message = "Coalesce key cannot be longer than 256 characters.")
+    private String coalesceKey;
+
+    // Recipients out of To, Cc and Bcc to deliver the email to, when not all of them should get it. Only set by the
+    // consumer, on the copy of an email that is published again for the recipients its delivery could not reach for
+    // now, so it is neither accepted from nor shown to API clients. The Pub/Sub payload still carries it.
+    @JsonIgnore
+    @Schema(hidden = true)
+    private List<@Email(message = "Recipients to deliver to must be valid email addresses.") String> deliverTo;
+
     public EmailMessage() {
     }
 
@@ -30,6 +75,23 @@ public class EmailMessage {
         this.body = body;
     }
 
+    /**
+     * A shallow copy of the email, sharing its lists and template variables.
+     */
+    public EmailMessage(EmailMessage other) {
+        this.to = other.to;
+        this.cc = other.cc;
+        this.bcc = other.bcc;
+        this.subject = other.subject;
+        this.body = other.body;
+        this.templateId = other.templateId;
+        this.templateVariables = other.templateVariables;
+        this.idempotencyKey = other.idempotencyKey;
+        this.priority = other.priority;
+        this.coalesceKey = other.coalesceKey;
+        this.deliverTo = other.deliverTo;
+    }
+
     public String getTo() {
         return to;
     }
@@ -38,6 +100,22 @@ public class EmailMessage {
         this.to = to;
     }
 
+    public List<String> getCc() {
+        return cc;
+    }
+
+    public void setCc(List<String> cc) {
+        this.cc = cc;
+    }
+
+    public List<String> getBcc() {
+        return bcc;
+    }
+
+    public void setBcc(List<String> bcc) {
+        this.bcc = bcc;
+    }
+
     public String getSubject() {
         return subject;
     }
@@ -53,4 +131,79 @@ public class EmailMessage {
     public void setBody(String body) {
         this.body = body;
     }
-}
\ No newline at end of file
+
+    public String getTemplateId() {
+        return templateId;
+    }
+
+    public void setTemplateId(String templateId) {
+        this.templateId = templateId;
+    }
+
+    public Map<String, String> getTemplateVariables() {
+        return templateVariables;
+    }
+
+    public void setTemplateVariables(Map<String, String> templateVariables) {
+        this.templateVariables = templateVariables;
+    }
+
+    public String getIdempotencyKey() {
+        return idempotencyKey;
+    }
+
+    public void setIdempotencyKey(String idempotencyKey) {
+        this.idempotencyKey = idempotencyKey;
+    }
+
+    public EmailPriority getPriority() {
+        return priority;
+    }
+
+    public void setPriority(EmailPriority priority) {
+        this.priority = priority;
+    }
+
+    public String getCoalesceKey() {
+        return coalesceKey;
+    }
+
+    public void setCoalesceKey(String coalesceKey) {
+        this.coalesceKey = coalesceKey;
+    }
+
+    public List<String> getDeliverTo() {
+        return deliverTo;
+    }
+
+    public void setDeliverTo(List<String> deliverTo) {
+        this.deliverTo = deliverTo;
+    }
+
+    /**
+     * The To, Cc and Bcc recipients, in that order.
+     */
+    @JsonIgnore
+    public List<String> getAllRecipients() {
+        List<String> recipients = new ArrayList<>(1 + (cc == null ? 0 : cc.size()) + (bcc == null ? 0 : bcc.size()));
+        recipients.add(to);
+        if (cc != null) {
+            recipients.addAll(cc);
+        }
+        if (bcc != null) {
+            recipients.addAll(bcc);
+        }
+        return recipients;
+    }
+
+    @JsonIgnore
+    public boolean isTemplated() {
+        return templateId != null && !templateId.isEmpty();
+    }
+
+    @JsonIgnore
+    @AssertTrue(message = "Email body cannot be empty.")
+    public boolean isBodyOrTemplatePresent() {
+        return isTemplated() || (body != null && !body.isEmpty());
+    }
+}
@@ -0,0 +1,10 @@
+package com.mycompany.app.model;
+
+import io.swagger.v3.oas.annotations.media.Schema;
+
+@Schema(description = "Delivery lane of an email. TRANSACTIONAL is for mail a user is waiting for, such as password resets "
+        + "and one-time passwords; BULK is for newsletters and campaigns.")
+public enum EmailPriority {
+    TRANSACTIONAL,
+    BULK
+}
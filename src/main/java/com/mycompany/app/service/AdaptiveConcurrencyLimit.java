@@ -0,0 +1,226 @@
+package com.mycompany.app.service;
+
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A limit on concurrent SMTP sends that adapts to how the relay responds.
+ * <p>
+ * Send latencies are collected in windows. At the end of each window the average latency (short RTT) is compared
+ * with a slowly moving long-term average (long RTT), the way gradient concurrency limiters do:
+ * <pre>
+ * gradient = clamp(tolerance * longRtt / shortRtt, 0.5, 1)
+ * limit    = (1 - smoothing) * limit + smoothing * (limit * gradient + sqrt(limit))
+ * </pre>
+ * While latency stays within {@code tolerance} times the long-term latency the limit grows by about its square root
+ * per window; once queueing at the relay shows up as higher latency it shrinks. A window where more than
+ * {@code ERROR_RATE_THRESHOLD} of the sends failed multiplies the limit by {@code BACKOFF_RATIO} instead. The limit
+ * is not raised while less than half of it is in use, so an idle consumer does not drift to the maximum.
+ * <p>
+ * When adaptation is disabled this is a fixed limit, equivalent to a semaphore.
+ */
+public class AdaptiveConcurrencyLimit {
+
+    private static final Logger logger = LoggerFactory.getLogger(AdaptiveConcurrencyLimit.class);
+
+    private static final double ERROR_RATE_THRESHOLD = 0.1;
+    private static final double BACKOFF_RATIO = 0.9;
+    private static final int MIN_WINDOW_SAMPLES = 10;
+    // The long RTT follows the short RTT over roughly this many windows.
+    private static final int LONG_RTT_WINDOWS = 100;
+    private static final int MAX_DECISIONS = 20;
+
+    private final String name;
+    private final boolean adaptive;
+    private final int minLimit;
+    private final int maxLimit;
+    private final double tolerance;
+    private final double smoothing;
+    private final long windowNanos;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition permitReleased = lock.newCondition();
+    private double estimatedLimit;
+    private volatile int limit;
+    private int inFlight;
+    private int maxInFlightInWindow;
+
+    private long windowStartNanos = System.nanoTime();
+    private int windowSamples;
+    private int windowErrors;
+    private long windowLatencySumNanos;
+    private double longRttNanos;
+    private double lastShortRttNanos;
+    private final Deque<Map<String, Object>> decisions = new ArrayDeque<>();
+
+    public AdaptiveConcurrencyLimit(String name, boolean adaptive, int initialLimit, int minLimit, int maxLimit,
+            double tolerance, double smoothing, long windowMs) {
+        this.name = name;
+        this.adaptive = adaptive;
+        this.minLimit = Math.max(1, minLimit);
+        this.maxLimit = Math.max(this.minLimit, maxLimit);
+        this.tolerance = Math.max(1, tolerance);
+        this.smoothing = Math.min(1, Math.max(0.01, smoothing));
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, windowMs));
+        this.estimatedLimit = Math.min(this.maxLimit, Math.max(this.minLimit, initialLimit));
+        this.limit = (int) estimatedLimit;
+    }
+
+    /**
+     * Waits until fewer sends than the current limit are running.
+     */
+    public void acquire() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (inFlight >= limit) {
+                permitReleased.await();
+            }
+            inFlight++;
+            maxInFlightInWindow = Math.max(maxInFlightInWindow, inFlight);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void release() {
+        lock.lock();
+        try {
+            inFlight--;
+            permitReleased.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Records the outcome of one send.
+     *
+     * @param latencyNanos how long the send took
+     * @param failed       whether the send failed in a way that suggests the relay is struggling
+     */
+    public void recordSend(long latencyNanos, boolean failed) {
+        if (!adaptive) {
+            return;
+        }
+        lock.lock();
+        try {
+            windowSamples++;
+            windowLatencySumNanos += latencyNanos;
+            if (failed) {
+                windowErrors++;
+            }
+            long now = System.nanoTime();
+            if (now - windowStartNanos >= windowNanos && windowSamples >= MIN_WINDOW_SAMPLES) {
+                adjust();
+                windowStartNanos = now;
+                windowSamples = 0;
+                windowErrors = 0;
+                windowLatencySumNanos = 0;
+                maxInFlightInWindow = inFlight;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void adjust() {
+        double shortRtt = (double) windowLatencySumNanos / windowSamples;
+        double errorRate = (double) windowErrors / windowSamples;
+        lastShortRttNanos = shortRtt;
+        if (longRttNanos == 0) {
+            longRttNanos = shortRtt;
+        } else {
+            longRttNanos += (shortRtt - longRttNanos) / LONG_RTT_WINDOWS;
+            // A relay that got much faster should not have to wait for the long average to catch up.
+            if (longRttNanos > 2 * shortRtt) {
+                longRttNanos = 2 * shortRtt;
+            }
+        }
+
+        double previous = estimatedLimit;
+        String reason;
+        if (errorRate > ERROR_RATE_THRESHOLD) {
+            estimatedLimit = previous * BACKOFF_RATIO;
+            reason = String.format(Locale.ROOT, "error rate %.0f%%", errorRate * 100);
+        } else {
+            double gradient = Math.max(0.5, Math.min(1.0, tolerance * longRttNanos / shortRtt));
+            // Compared with the limit in force, not the estimate: the fraction the estimate has grown by is not
+            // usable yet, and would otherwise keep a lane that uses exactly half of its limit from ever growing.
+            if (gradient >= 1.0 && maxInFlightInWindow < limit / 2.0) {
+                // Not enough load to tell whether a higher limit would be used.
+                return;
+            }
+            double target = previous * gradient + Math.sqrt(previous);
+            estimatedLimit = (1 - smoothing) * previous + smoothing * target;
+            reason = String.format(Locale.ROOT, "gradient %.2f (latency %.1f ms, long-term %.1f ms)",
+                    gradient, shortRtt / 1e6, longRttNanos / 1e6);
+        }
+        estimatedLimit = Math.min(maxLimit, Math.max(minLimit, estimatedLimit));
+        int newLimit = (int) estimatedLimit;
+        if (newLimit == limit) {
+            return;
+        }
+        int oldLimit = limit;
+        limit = newLimit;
+        if (newLimit > oldLimit) {
+            permitReleased.signalAll();
+        }
+        Map<String, Object> decision = new LinkedHashMap<>();
+        decision.put("time", Instant.now().toString());
+        decision.put("from", oldLimit);
+        decision.put("to", newLimit);
+        decision.put("reason", reason);
+        decisions.addFirst(decision);
+        if (decisions.size() > MAX_DECISIONS) {
+            decisions.removeLast();
+        }
+        logger.info("Concurrency limit of the {} lane changed from {} to {}: {}.", name, oldLimit, newLimit, reason);
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public int getInFlight() {
+        lock.lock();
+        try {
+            return inFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Current state and the most recent limit changes, newest first.
+     */
+    public Map<String, Object> snapshot() {
+        lock.lock();
+        try {
+            Map<String, Object> snapshot = new LinkedHashMap<>();
+            snapshot.put("adaptive", adaptive);
+            snapshot.put("limit", limit);
+            snapshot.put("inFlight", inFlight);
+            snapshot.put("minLimit", minLimit);
+            snapshot.put("maxLimit", maxLimit);
+            snapshot.put("latencyMs", lastShortRttNanos / 1e6);
+            snapshot.put("longTermLatencyMs", longRttNanos / 1e6);
+            List<Map<String, Object>> recentDecisions = new ArrayList<>(decisions);
+            snapshot.put("decisions", recentDecisions);
+            return snapshot;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,367 @@
+package com.mycompany.app.service;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.api.core.AbstractApiService;
+import com.google.api.core.ApiFuture;
+import com.google.cloud.pubsub.v1.AckReplyConsumer;
+import com.google.cloud.pubsub.v1.MessageReceiver;
+import com.google.cloud.pubsub.v1.stub.GrpcSubscriberStub;
+import com.google.cloud.pubsub.v1.stub.SubscriberStub;
+import com.google.cloud.pubsub.v1.stub.SubscriberStubSettings;
+import com.google.pubsub.v1.AcknowledgeRequest;
+import com.google.pubsub.v1.ModifyAckDeadlineRequest;
+import com.google.pubsub.v1.ProjectSubscriptionName;
+import com.google.pubsub.v1.PubsubMessage;
+import com.google.pubsub.v1.PullRequest;
+import com.google.pubsub.v1.PullResponse;
+import com.google.pubsub.v1.ReceivedMessage;
+
+/**
+ * A subscriber that reads with synchronous {@code Pull} calls in large batches instead of StreamingPull.
+ * <p>
+ * One thread pulls up to {@code maxMessages} messages at a time, as long as fewer than {@code maxOutstanding}
+ * messages are outstanding, and hands every message to the receiver like the streaming {@code Subscriber} does.
+ * Acks and nacks are not sent one by one: they are collected and sent as one {@code Acknowledge} and one
+ * {@code ModifyAckDeadline} request every {@code ackFlushMs}. Like the streaming subscriber, the deadline of every
+ * pulled batch is set to {@code ackDeadlineSeconds} right away, before it is dispatched, and then extended in one
+ * {@code ModifyAckDeadline} request per round. Messages outstanding for longer than the maximum lease are no
+ * longer extended and are released, so they stop holding flow control capacity; Pub/Sub redelivers them.
+ * <p>
+ * Stopping ends the pulling, then waits until every outstanding message was acked or nacked and the last acks
+ * were sent, like the streaming subscriber.
+ */
+class BatchPullSubscriber extends AbstractApiService {
+
+    private static final Logger logger = LoggerFactory.getLogger(BatchPullSubscriber.class);
+
+    // Pub/Sub accepts at most this many ack IDs per request.
+    private static final int MAX_ACK_IDS_PER_REQUEST = 2500;
+    // Large batches exceed gRPC's default 4 MB inbound message limit.
+    private static final int MAX_INBOUND_MESSAGE_BYTES = 20 * 1024 * 1024;
+    // Like the streaming subscriber, a message is leased for at most an hour.
+    private static final long MAX_LEASE_MS = TimeUnit.HOURS.toMillis(1);
+
+    private final ProjectSubscriptionName subscriptionName;
+    private final MessageReceiver receiver;
+    private final int maxMessages;
+    private final long maxOutstanding;
+    private final int ackDeadlineSeconds;
+    private final long ackFlushMs;
+    private final long idleBackoffMs;
+    private final long maxLeaseNanos;
+    private final PubSubClientSettings clientSettings;
+
+    // Outstanding messages by ack ID, with the time they were received.
+    private final Map<String, Long> outstanding = new ConcurrentHashMap<>();
+    private final Queue<String> pendingAcks = new ConcurrentLinkedQueue<>();
+    private final Queue<String> pendingNacks = new ConcurrentLinkedQueue<>();
+    private final Object outstandingChanged = new Object();
+
+    private SubscriberStub stub;
+    private ScheduledExecutorService ackScheduler;
+    private Thread pullThread;
+    private volatile boolean pulling;
+    private volatile ApiFuture<PullResponse> currentPull;
+
+    BatchPullSubscriber(ProjectSubscriptionName subscriptionName, MessageReceiver receiver, int maxMessages,
+            long maxOutstanding, int ackDeadlineSeconds, long ackFlushMs, long idleBackoffMs,
+            PubSubClientSettings clientSettings) {
+        this(subscriptionName, receiver, maxMessages, maxOutstanding, ackDeadlineSeconds, ackFlushMs, idleBackoffMs,
+                MAX_LEASE_MS, clientSettings);
+    }
+
+    BatchPullSubscriber(ProjectSubscriptionName subscriptionName, MessageReceiver receiver, int maxMessages,
+            long maxOutstanding, int ackDeadlineSeconds, long ackFlushMs, long idleBackoffMs, long maxLeaseMs,
+            PubSubClientSettings clientSettings) {
+        this.subscriptionName = subscriptionName;
+        this.receiver = receiver;
+        this.maxMessages = Math.max(1, maxMessages);
+        this.maxOutstanding = Math.max(1, maxOutstanding);
+        this.ackDeadlineSeconds = Math.min(600, Math.max(10, ackDeadlineSeconds));
+        this.ackFlushMs = Math.max(1, ackFlushMs);
+        this.idleBackoffMs = Math.max(0, idleBackoffMs);
+        this.maxLeaseNanos = TimeUnit.MILLISECONDS.toNanos(maxLeaseMs);
+        this.clientSettings = clientSettings;
+    }
+
+    @Override
+    protected void doStart() {
+        try {
+            stub = createStub();
+        } catch (IOException e) {
+            notifyFailed(e);
+            return;
+        }
+        ackScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "email-batch-pull-acks");
+            thread.setDaemon(true);
+            return thread;
+        });
+        ackScheduler.scheduleWithFixedDelay(this::flushAcks, ackFlushMs, ackFlushMs, TimeUnit.MILLISECONDS);
+        // Extended well before the deadline runs out, so one slow request does not let messages expire.
+        long extendEverySeconds = Math.max(1, ackDeadlineSeconds / 2);
+        ackScheduler.scheduleWithFixedDelay(this::extendLeases, extendEverySeconds, extendEverySeconds, TimeUnit.SECONDS);
+        pulling = true;
+        pullThread = new Thread(this::pullLoop, "email-batch-pull");
+        pullThread.setDaemon(true);
+        pullThread.start();
+        logger.info("Batch pull consumer started on subscription {} (up to {} messages per pull, {} outstanding).",
+                subscriptionName, maxMessages, maxOutstanding);
+        notifyStarted();
+    }
+
+    @Override
+    protected void doStop() {
+        pulling = false;
+        ApiFuture<PullResponse> pull = currentPull;
+        if (pull != null) {
+            pull.cancel(true);
+        }
+        Thread stopThread = new Thread(this::finishStop, "email-batch-pull-stop");
+        stopThread.setDaemon(true);
+        stopThread.start();
+    }
+
+    SubscriberStub createStub() throws IOException {
+        SubscriberStubSettings settings = clientSettings.configure(SubscriberStubSettings.newBuilder()
+                .setTransportChannelProvider(SubscriberStubSettings.defaultGrpcTransportProviderBuilder()
+                        .setMaxInboundMessageSize(MAX_INBOUND_MESSAGE_BYTES)
+                        .build()))
+                .build();
+        return GrpcSubscriberStub.create(settings);
+    }
+
+    private void finishStop() {
+        try {
+            pullThread.join();
+            synchronized (outstandingChanged) {
+                while (!outstanding.isEmpty()) {
+                    outstandingChanged.wait(ackFlushMs);
+                }
+            }
+            ackScheduler.shutdown();
+            ackScheduler.awaitTermination(1, TimeUnit.MINUTES);
+            flushAcks();
+            stub.close();
+            logger.info("Batch pull consumer on subscription {} stopped.", subscriptionName);
+            notifyStopped();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            notifyFailed(e);
+        } catch (RuntimeException e) {
+            notifyFailed(e);
+        }
+    }
+
+    private void pullLoop() {
+        while (pulling) {
+            try {
+                int capacity = waitForCapacity();
+                if (capacity == 0) {
+                    continue;
+                }
+                PullRequest request = PullRequest.newBuilder()
+                        .setSubscription(subscriptionName.toString())
+                        .setMaxMessages(capacity)
+                        .build();
+                currentPull = stub.pullCallable().futureCall(request);
+                List<ReceivedMessage> messages = currentPull.get().getReceivedMessagesList();
+                currentPull = null;
+                if (messages.isEmpty()) {
+                    Thread.sleep(idleBackoffMs);
+                    continue;
+                }
+                long receivedAt = System.nanoTime();
+                List<String> ackIds = new ArrayList<>(messages.size());
+                for (ReceivedMessage received : messages) {
+                    outstanding.put(received.getAckId(), receivedAt);
+                    ackIds.add(received.getAckId());
+                }
+                // The pulled messages only have the subscription's ack deadline (10 s by default), which a large
+                // batch can take longer than to send.
+                extend(ackIds);
+                // The receiver hands the sends to the lane's executor, so the whole batch is processed in parallel.
+                for (ReceivedMessage received : messages) {
+                    dispatch(received);
+                }
+            } catch (InterruptedException e) {
+                if (pulling) {
+                    Thread.currentThread().interrupt();
+                    notifyFailed(e);
+                }
+                return;
+            } catch (ExecutionException | RuntimeException e) {
+                if (!pulling) {
+                    return;
+                }
+                logger.warn("Pull from subscription {} failed. Retrying in {} ms.", subscriptionName, idleBackoffMs, e);
+                try {
+                    Thread.sleep(Math.max(1000, idleBackoffMs));
+                } catch (InterruptedException interrupted) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Waits until more messages may be outstanding, and returns how many may be pulled.
+     */
+    private int waitForCapacity() throws InterruptedException {
+        synchronized (outstandingChanged) {
+            while (pulling && outstanding.size() >= maxOutstanding) {
+                outstandingChanged.wait(ackFlushMs);
+            }
+        }
+        return pulling ? (int) Math.min(maxMessages, maxOutstanding - outstanding.size()) : 0;
+    }
+
+    private void dispatch(ReceivedMessage received) {
+        PubsubMessage message = received.getMessage();
+        if (received.getDeliveryAttempt() > 0) {
+            // Where the streaming subscriber puts it, so Subscriber.getDeliveryAttempt works for both modes.
+            message = message.toBuilder()
+                    .putAttributes("googclient_deliveryattempt", Integer.toString(received.getDeliveryAttempt()))
+                    .build();
+        }
+        AckReplyConsumer consumer = new BatchAckReplyConsumer(received.getAckId());
+        try {
+            receiver.receiveMessage(message, consumer);
+        } catch (RuntimeException e) {
+            logger.error("Receiver failed for message {}. nack message to allow redelivery.", message.getMessageId(), e);
+            consumer.nack();
+        }
+    }
+
+    private void complete(String ackId, Queue<String> queue) {
+        // Also sent for a message whose lease was released: Pub/Sub still accepts it unless it was redelivered.
+        queue.add(ackId);
+        if (outstanding.remove(ackId) != null) {
+            notifyOutstandingChanged();
+        }
+    }
+
+    private void notifyOutstandingChanged() {
+        synchronized (outstandingChanged) {
+            outstandingChanged.notifyAll();
+        }
+    }
+
+    /**
+     * Sends the collected acks as one {@code Acknowledge} request and the collected nacks as one
+     * {@code ModifyAckDeadline} request with a deadline of zero, which makes them available for redelivery.
+     */
+    private void flushAcks() {
+        releaseExpiredLeases();
+        try {
+            List<String> acks = drainQueue(pendingAcks);
+            for (List<String> chunk : chunks(acks)) {
+                stub.acknowledgeCallable().call(AcknowledgeRequest.newBuilder()
+                        .setSubscription(subscriptionName.toString())
+                        .addAllAckIds(chunk)
+                        .build());
+            }
+            modifyAckDeadline(drainQueue(pendingNacks), 0);
+        } catch (RuntimeException e) {
+            // Unacked messages are redelivered after their deadline; the dedup index keeps them from being sent twice.
+            logger.warn("Failed to send acks for subscription {}.", subscriptionName, e);
+        }
+    }
+
+    private void extendLeases() {
+        extend(new ArrayList<>(outstanding.keySet()));
+    }
+
+    private void extend(List<String> ackIds) {
+        try {
+            modifyAckDeadline(ackIds, ackDeadlineSeconds);
+        } catch (RuntimeException e) {
+            logger.warn("Failed to extend ack deadlines for subscription {}.", subscriptionName, e);
+        }
+    }
+
+    /**
+     * Stops tracking messages that were outstanding for longer than the maximum lease, so that they no longer hold
+     * flow control capacity or keep the subscriber from stopping. Their leases run out and Pub/Sub redelivers them.
+     */
+    private void releaseExpiredLeases() {
+        long now = System.nanoTime();
+        int released = 0;
+        for (Map.Entry<String, Long> entry : outstanding.entrySet()) {
+            if (now - entry.getValue() >= maxLeaseNanos && outstanding.remove(entry.getKey(), entry.getValue())) {
+                released++;
+            }
+        }
+        if (released > 0) {
+            logger.warn("Released {} messages of subscription {} that were not acked within the maximum lease.",
+                    released, subscriptionName);
+            notifyOutstandingChanged();
+        }
+    }
+
+    private void modifyAckDeadline(List<String> ackIds, int seconds) {
+        for (List<String> chunk : chunks(ackIds)) {
+            stub.modifyAckDeadlineCallable().call(ModifyAckDeadlineRequest.newBuilder()
+                    .setSubscription(subscriptionName.toString())
+                    .addAllAckIds(chunk)
+                    .setAckDeadlineSeconds(seconds)
+                    .build());
+        }
+    }
+
+    private static List<String> drainQueue(Queue<String> queue) {
+        List<String> ackIds = new ArrayList<>();
+        String ackId;
+        while ((ackId = queue.poll()) != null) {
+            ackIds.add(ackId);
+        }
+        return ackIds;
+    }
+
+    private static List<List<String>> chunks(List<String> ackIds) {
+        List<List<String>> chunks = new ArrayList<>();
+        for (int from = 0; from < ackIds.size(); from += MAX_ACK_IDS_PER_REQUEST) {
+            chunks.add(ackIds.subList(from, Math.min(ackIds.size(), from + MAX_ACK_IDS_PER_REQUEST)));
+        }
+        return chunks;
+    }
+
+    private final class BatchAckReplyConsumer implements AckReplyConsumer {
+
+        private final String ackId;
+        private final AtomicBoolean completed = new AtomicBoolean(false);
+
+        private BatchAckReplyConsumer(String ackId) {
+            this.ackId = ackId;
+        }
+
+        @Override
+        public void ack() {
+            if (completed.compareAndSet(false, true)) {
+                complete(ackId, pendingAcks);
+            }
+        }
+
+        @Override
+        public void nack() {
+            if (completed.compareAndSet(false, true)) {
+                complete(ackId, pendingNacks);
+            }
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package com.mycompany.app.service;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import com.mycompany.app.service.PubSubConsumerProperties.FlowControl;
+
+/**
+ * The {@code gcp.pubsub.bulk-lane.*} settings of the consumer's bulk lane. The settings are documented in
+ * application.properties.
+ */
+@ConfigurationProperties(prefix = "gcp.pubsub.bulk-lane")
+public class BulkLaneProperties {
+
+    private boolean enabled;
+    private String subscriptionId = "app-integration-mails-bulk-sub";
+    private FlowControl flowControl = new FlowControl(100L);
+    private Integer maxConcurrentSends = 2;
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public String getSubscriptionId() {
+        return subscriptionId;
+    }
+
+    public void setSubscriptionId(String subscriptionId) {
+        this.subscriptionId = subscriptionId;
+    }
+
+    public FlowControl getFlowControl() {
+        return flowControl;
+    }
+
+    public void setFlowControl(FlowControl flowControl) {
+        this.flowControl = flowControl;
+    }
+
+    public Integer getMaxConcurrentSends() {
+        return maxConcurrentSends;
+    }
+
+    public void setMaxConcurrentSends(Integer maxConcurrentSends) {
+        this.maxConcurrentSends = maxConcurrentSends;
+    }
+}
@@ -0,0 +1,181 @@
+package com.mycompany.app.service;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mycompany.app.model.BulkPublishItemResult;
+import com.mycompany.app.model.BulkPublishResult;
+import com.mycompany.app.model.EmailMessage;
+
+import jakarta.validation.ConstraintViolation;
+import jakarta.validation.Validator;
+
+/**
+ * Publishes a stream of emails, read one at a time from a JSON array or NDJSON body, without holding the whole
+ * request in memory. Every email is validated on its own and published without waiting for the previous one;
+ * publisher flow control bounds how many are in flight.
+ * <p>
+ * Emails are published while the body is still being read, so a JSON array that turns out to be malformed after
+ * some of its emails were published cannot be rejected as a whole anymore. The result then lists the emails that
+ * were read before the error, with their message IDs, and the parse error.
+ */
+@Service
+public class BulkPublishService {
+
+    private static final Logger logger = LoggerFactory.getLogger(BulkPublishService.class);
+
+    private final PubSubPublisherService publisherService;
+    private final Validator validator;
+    private final ObjectMapper objectMapper;
+    private final int maxItems;
+
+    public BulkPublishService(
+            PubSubPublisherService publisherService,
+            Validator validator,
+            ObjectMapper objectMapper,
+            @Value("${gcp.pubsub.publisher.bulk.max-items:100000}") int maxItems) {
+        this.publisherService = publisherService;
+        this.validator = validator;
+        this.objectMapper = objectMapper;
+        this.maxItems = maxItems;
+    }
+
+    /**
+     * Reads and publishes every email in the body.
+     *
+     * @param body   the request body
+     * @param ndjson true for newline-delimited JSON, false for a JSON array
+     * @return a future completing once every email was published or failed
+     * @throws JsonProcessingException if the body is not a JSON array, or is malformed before its first email
+     *         (NDJSON lines are parsed independently)
+     */
+    public CompletableFuture<BulkPublishResult> publish(InputStream body, boolean ndjson) throws IOException {
+        BulkPublish bulkPublish = new BulkPublish();
+        if (ndjson) {
+            readNdjson(body, bulkPublish);
+        } else {
+            readJsonArray(body, bulkPublish);
+        }
+        logger.info("Read {} emails from bulk publish request{}.", bulkPublish.results.size(),
+                bulkPublish.truncated ? " (truncated at the item limit)" : "");
+        return CompletableFuture.allOf(bulkPublish.publishes.toArray(new CompletableFuture<?>[0]))
+                .thenApply(ignored -> new BulkPublishResult(bulkPublish.results, bulkPublish.truncated, bulkPublish.error));
+    }
+
+    private void readJsonArray(InputStream body, BulkPublish bulkPublish) throws IOException {
+        try (JsonParser parser = objectMapper.getFactory().createParser(body)) {
+            if (parser.nextToken() != JsonToken.START_ARRAY) {
+                throw new JsonParseException(parser, "Expected a JSON array of email messages.");
+            }
+            JsonToken token;
+            while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+                if (token == null) {
+                    throw new JsonParseException(parser, "Unexpected end of the JSON array.");
+                }
+                if (!bulkPublish.hasCapacity()) {
+                    return;
+                }
+                // Each element is read as a tree first, so a badly typed field only fails this element.
+                JsonNode node = objectMapper.readTree(parser);
+                BulkPublishItemResult result = bulkPublish.next();
+                try {
+                    publish(objectMapper.treeToValue(node, EmailMessage.class), result, bulkPublish);
+                } catch (JsonProcessingException e) {
+                    result.setError("Invalid email message: " + e.getOriginalMessage());
+                }
+            }
+        } catch (JsonProcessingException e) {
+            if (bulkPublish.results.isEmpty()) {
+                throw e;
+            }
+            // The emails before the error may already be published, so they are reported instead of failing the request.
+            logger.warn("Bulk publish request is malformed after {} emails. The rest of the body is ignored.",
+                    bulkPublish.results.size(), e);
+            bulkPublish.error = "Malformed bulk request body after " + bulkPublish.results.size() + " emails: "
+                    + e.getOriginalMessage();
+        }
+    }
+
+    private void readNdjson(InputStream body, BulkPublish bulkPublish) throws IOException {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(body, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isBlank()) {
+                    continue;
+                }
+                if (!bulkPublish.hasCapacity()) {
+                    return;
+                }
+                BulkPublishItemResult result = bulkPublish.next();
+                try {
+                    publish(objectMapper.readValue(line, EmailMessage.class), result, bulkPublish);
+                } catch (JsonProcessingException e) {
+                    result.setError("Invalid email message: " + e.getOriginalMessage());
+                }
+            }
+        }
+    }
+
+    private void publish(EmailMessage emailMessage, BulkPublishItemResult result, BulkPublish bulkPublish) {
+        Set<ConstraintViolation<EmailMessage>> violations = validator.validate(emailMessage);
+        if (!violations.isEmpty()) {
+            result.setError(violations.stream()
+                    .map(violation -> violation.getPropertyPath() + ": " + violation.getMessage())
+                    .sorted()
+                    .collect(Collectors.joining("; ")));
+            return;
+        }
+        bulkPublish.publishes.add(publisherService.publishEmailMessageAsync(emailMessage)
+                .handle((receipt, failure) -> {
+                    if (failure == null) {
+                        result.setMessageId(receipt.getMessageId());
+                        result.setIdempotencyKey(receipt.getIdempotencyKey());
+                    } else {
+                        logger.warn("Failed to publish email {} of bulk request.", result.getIndex(), failure);
+                        result.setError("Failed to queue email for sending.");
+                    }
+                    return null;
+                }));
+    }
+
+    private final class BulkPublish {
+
+        private final List<BulkPublishItemResult> results = new ArrayList<>();
+        private final List<CompletableFuture<?>> publishes = new ArrayList<>();
+        private boolean truncated = false;
+        private String error;
+
+        private boolean hasCapacity() {
+            if (results.size() >= maxItems) {
+                truncated = true;
+                return false;
+            }
+            return true;
+        }
+
+        private BulkPublishItemResult next() {
+            BulkPublishItemResult result = new BulkPublishItemResult(results.size());
+            results.add(result);
+            return result;
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package com.mycompany.app.service;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Creates the concurrency limit of each consumer lane from the {@code gcp.pubsub.consumer.adaptive-concurrency.*}
+ * settings and keeps track of them for metrics and the {@code concurrencylimits} actuator endpoint.
+ */
+@Service
+public class ConcurrencyLimits {
+
+    private final boolean adaptive;
+    private final int minLimit;
+    private final double tolerance;
+    private final double smoothing;
+    private final long windowMs;
+    private final MeterRegistry meterRegistry;
+    private final Map<String, AdaptiveConcurrencyLimit> limits = Collections.synchronizedMap(new LinkedHashMap<>());
+
+    public ConcurrencyLimits(
+            @Value("${gcp.pubsub.consumer.adaptive-concurrency.enabled:false}") boolean adaptive,
+            @Value("${gcp.pubsub.consumer.adaptive-concurrency.min-limit:1}") int minLimit,
+            @Value("${gcp.pubsub.consumer.adaptive-concurrency.tolerance:2.0}") double tolerance,
+            @Value("${gcp.pubsub.consumer.adaptive-concurrency.smoothing:0.2}") double smoothing,
+            @Value("${gcp.pubsub.consumer.adaptive-concurrency.window-ms:1000}") long windowMs,
+            MeterRegistry meterRegistry) {
+        this.adaptive = adaptive;
+        this.minLimit = minLimit;
+        this.tolerance = tolerance;
+        this.smoothing = smoothing;
+        this.windowMs = windowMs;
+        this.meterRegistry = meterRegistry;
+    }
+
+    public boolean isAdaptive() {
+        return adaptive;
+    }
+
+    /**
+     * Creates the limit of a lane. It starts at {@code initialLimit} and, when adaptive, moves between the
+     * configured minimum and {@code maxLimit}.
+     */
+    public AdaptiveConcurrencyLimit create(String lane, int initialLimit, int maxLimit) {
+        AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(lane, adaptive, initialLimit,
+                Math.min(minLimit, initialLimit), maxLimit, tolerance, smoothing, windowMs);
+        limits.put(lane, limit);
+        Gauge.builder("email.consume.concurrency.limit", limit, AdaptiveConcurrencyLimit::getLimit)
+                .description("Current limit of concurrent sends of a consumer lane")
+                .tag("lane", lane)
+                .register(meterRegistry);
+        Gauge.builder("email.consume.concurrency.in.flight", limit, AdaptiveConcurrencyLimit::getInFlight)
+                .description("Sends of a consumer lane running right now")
+                .tag("lane", lane)
+                .register(meterRegistry);
+        return limit;
+    }
+
+    public Map<String, Object> snapshot() {
+        Map<String, Object> snapshot = new LinkedHashMap<>();
+        synchronized (limits) {
+            limits.forEach((lane, limit) -> snapshot.put(lane, limit.snapshot()));
+        }
+        return snapshot;
+    }
+}
@@ -0,0 +1,26 @@
+package com.mycompany.app.service;
+
+import java.util.Map;
+
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.stereotype.Component;
+
+/**
+ * Actuator endpoint showing the current concurrency limit of each consumer lane and its recent changes.
+ */
+@Component
+@Endpoint(id = "concurrencylimits")
+public class ConcurrencyLimitsEndpoint {
+
+    private final ConcurrencyLimits concurrencyLimits;
+
+    public ConcurrencyLimitsEndpoint(ConcurrencyLimits concurrencyLimits) {
+        this.concurrencyLimits = concurrencyLimits;
+    }
+
+    @ReadOperation
+    public Map<String, Object> concurrencyLimits() {
+        return concurrencyLimits.snapshot();
+    }
+}
@@ -13,37 +13,42 @@ public class ConsumerHealthMonitor {
     private static final Logger logger = LoggerFactory.getLogger(ConsumerHealthMonitor.class);
 
     private final PubSubConsumerService consumerService;
-    private final EmailServiceChecker emailChecker;
+    private final MailHealthState mailHealthState;
 
-    // This flag tracks if the consumer was stopped by this monitor.
-    // It prevents the monitor from starting a consumer that was stopped manually via the API.
-    private volatile boolean stoppedByMonitor = false;
+    // This flag tracks if the consumer was paused by this monitor.
+    // It prevents the monitor from resuming a consumer that was paused manually via the API.
+    private volatile boolean pausedByMonitor = false;
 
-    public ConsumerHealthMonitor(PubSubConsumerService consumerService, EmailServiceChecker emailChecker) {
+    public ConsumerHealthMonitor(PubSubConsumerService consumerService, MailHealthState mailHealthState) {
         this.consumerService = consumerService;
-        this.emailChecker = emailChecker;
+        this.mailHealthState = mailHealthState;
         logger.info("ConsumerHealthMonitor is active. It will automatically manage the Pub/Sub consumer based on mail server health.");
     }
 
+    /**
+     * Pauses the consumer instead of stopping it, so the subscribers and their connections stay up during an
+     * outage and resuming does not have to reconnect.
+     */
     @Scheduled(fixedDelayString = "${gcp.pubsub.consumer.health-check-delay-ms:30000}")
     public void checkMailServiceAndControlConsumer() {
-        boolean isMailHealthy = emailChecker.isMailServiceHealthy();
-        boolean isConsumerRunning = consumerService.isRunning();
+        boolean isMailHealthy = mailHealthState.isUp();
 
         if (isMailHealthy) {
-            // If mail service is healthy and the consumer was previously stopped by this monitor, restart it.
-            if (stoppedByMonitor && !isConsumerRunning) {
-                logger.info("Mail service is back online. Restarting Pub/Sub consumer.");
-                consumerService.start();
-                stoppedByMonitor = false; // Reset the flag
+            // If mail service is healthy and the consumer was previously paused by this monitor, resume it.
+            if (pausedByMonitor) {
+                if (consumerService.isPaused()) {
+                    logger.info("Mail service is back online. Resuming Pub/Sub consumer.");
+                    consumerService.resume();
+                }
+                pausedByMonitor = false; // Reset the flag
             }
         } else {
-            // If mail service is down and the consumer is running, stop it.
-            if (isConsumerRunning) {
-                logger.warn("Mail service is down. Stopping Pub/Sub consumer to pause message processing.");
-                consumerService.stop();
-                stoppedByMonitor = true; // Set the flag
+            // If mail service is down and the consumer is running, pause it.
+            if (consumerService.isRunning() && !consumerService.isPaused()) {
+                logger.warn("Mail service is down. Pausing Pub/Sub consumer to hold messages until it is back.");
+                consumerService.pause();
+                pausedByMonitor = true; // Set the flag
             }
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,106 @@
+package com.mycompany.app.service;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.springframework.stereotype.Service;
+
+import com.google.cloud.pubsub.v1.AckReplyConsumer;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Meters for the Pub/Sub consumer: time from receiving a message to acking or nacking it per lane, the number of
+ * malformed messages and the number of messages received but not yet acked or nacked.
+ */
+@Service
+public class ConsumerMetrics {
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final MeterRegistry meterRegistry;
+    // Ack and nack timers per lane.
+    private final Map<String, Timer[]> latencyTimers = new ConcurrentHashMap<>();
+    private final Counter malformedCounter;
+
+    public ConsumerMetrics(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+        this.malformedCounter = Counter.builder("email.consume.malformed")
+                .description("Pub/Sub messages that could not be parsed and were acked without sending")
+                .register(meterRegistry);
+        Gauge.builder("email.consume.in.flight", inFlight, AtomicInteger::get)
+                .description("Pub/Sub messages received but not yet acked or nacked")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Starts tracking a message received on the given lane. The returned consumer records the outcome the first
+     * time the message is acked or nacked and then delegates to the original consumer.
+     */
+    public AckReplyConsumer track(AckReplyConsumer consumer, String lane) {
+        Timer[] timers = latencyTimers.computeIfAbsent(lane, this::registerLatencyTimers);
+        inFlight.incrementAndGet();
+        return new TrackedAckReplyConsumer(consumer, timers[0], timers[1], System.nanoTime());
+    }
+
+    private Timer[] registerLatencyTimers(String lane) {
+        return new Timer[] { latencyTimer(lane, "ack"), latencyTimer(lane, "nack") };
+    }
+
+    private Timer latencyTimer(String lane, String result) {
+        return Timer.builder("email.consume.latency")
+                .description("Time from receiving a Pub/Sub message to acking or nacking it")
+                .tag("lane", lane)
+                .tag("result", result)
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+    }
+
+    public void recordMalformed() {
+        malformedCounter.increment();
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    private final class TrackedAckReplyConsumer implements AckReplyConsumer {
+
+        private final AckReplyConsumer delegate;
+        private final Timer ackTimer;
+        private final Timer nackTimer;
+        private final long receivedAtNanos;
+        private final AtomicBoolean completed = new AtomicBoolean(false);
+
+        private TrackedAckReplyConsumer(AckReplyConsumer delegate, Timer ackTimer, Timer nackTimer, long receivedAtNanos) {
+            this.delegate = delegate;
+            this.ackTimer = ackTimer;
+            this.nackTimer = nackTimer;
+            this.receivedAtNanos = receivedAtNanos;
+        }
+
+        @Override
+        public void ack() {
+            complete(ackTimer);
+            delegate.ack();
+        }
+
+        @Override
+        public void nack() {
+            complete(nackTimer);
+            delegate.nack();
+        }
+
+        private void complete(Timer timer) {
+            if (completed.compareAndSet(false, true)) {
+                inFlight.decrementAndGet();
+                timer.record(System.nanoTime() - receivedAtNanos, TimeUnit.NANOSECONDS);
+            }
+        }
+    }
+}
@@ -0,0 +1,348 @@
+package com.mycompany.app.service;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.pubsub.v1.PubsubMessage;
+import com.mycompany.app.exception.MalformedMessageException;
+import com.mycompany.app.model.EmailMessage;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+
+/**
+ * Keeps the dead letters received from the DLT subscription, classified, until they are replayed.
+ * <p>
+ * Every dead letter is kept as its serialized Pub/Sub message plus the fields it is selected by: the cause
+ * ({@code malformed} if the payload cannot be decoded, {@code undeliverable} otherwise), the recipient domain and
+ * the subscription it was dead-lettered from. Additions and removals are appended to the local file
+ * {@code store.path}, which is read back on startup, so acking a dead letter does not lose it. The file is
+ * rewritten once it holds more removed entries than live ones. Without a usable file the store is not durable
+ * (see {@link #isDurable()}) and only keeps the dead letters until restart.
+ */
+@Service
+public class DeadLetterStore {
+
+    private static final Logger logger = LoggerFactory.getLogger(DeadLetterStore.class);
+
+    static final String CAUSE_MALFORMED = "malformed";
+    static final String CAUSE_UNDELIVERABLE = "undeliverable";
+    static final String SOURCE_SUBSCRIPTION_ATTRIBUTE = "CloudPubSubDeadLetterSourceSubscription";
+    static final String DELIVERY_COUNT_ATTRIBUTE = "CloudPubSubDeadLetterSourceDeliveryCount";
+
+    private static final byte RECORD_ADDED = 'A';
+    private static final byte RECORD_REMOVED = 'R';
+
+    private final int maxEntries;
+    private final String storePath;
+    private final EmailMessageCodec codec;
+
+    // Ordered by ID, which is the order the dead letters arrived in.
+    private final TreeMap<Long, DeadLetter> entries = new TreeMap<>();
+    private long nextId = 1;
+    private DataOutputStream store;
+    private int removedInStore;
+
+    public DeadLetterStore(
+            @Value("${gcp.pubsub.dlt-consumer.store.max-entries:100000}") int maxEntries,
+            @Value("${gcp.pubsub.dlt-consumer.store.path:dead-letters/dead-letters.bin}") String storePath,
+            EmailMessageCodec codec,
+            MeterRegistry meterRegistry) {
+        this.maxEntries = Math.max(1, maxEntries);
+        this.storePath = storePath;
+        this.codec = codec;
+        Gauge.builder("email.dlt.stored", this, DeadLetterStore::size)
+                .description("Dead letters kept for replay")
+                .register(meterRegistry);
+    }
+
+    @PostConstruct
+    public synchronized void init() {
+        if (storePath == null || storePath.isBlank()) {
+            return;
+        }
+        Path path = Path.of(storePath);
+        try {
+            if (Files.exists(path)) {
+                load(path);
+                logger.info("Loaded {} dead letters from {}.", entries.size(), path);
+            } else if (path.getParent() != null) {
+                Files.createDirectories(path.getParent());
+            }
+            if (store == null) {
+                store = open(path);
+            }
+        } catch (IOException e) {
+            logger.warn("Cannot use dead letter store {}. Dead letters are only kept until restart.", path, e);
+            closeStore();
+        }
+    }
+
+    /**
+     * Whether stored dead letters survive a restart.
+     */
+    public synchronized boolean isDurable() {
+        return store != null;
+    }
+
+    /**
+     * Classifies and keeps a dead letter.
+     *
+     * @return the stored entry, or {@code null} if the store is full
+     */
+    public synchronized DeadLetter add(PubsubMessage message, long receivedAt) throws IOException {
+        if (entries.size() >= maxEntries) {
+            return null;
+        }
+        DeadLetter deadLetter = classify(nextId++, receivedAt, message);
+        if (store != null) {
+            byte[] payload = message.toByteArray();
+            store.writeByte(RECORD_ADDED);
+            store.writeLong(deadLetter.id);
+            store.writeLong(receivedAt);
+            store.writeInt(payload.length);
+            store.write(payload);
+            // Flushed before the dead letter is acked, so a crash of the application does not lose it.
+            store.flush();
+        }
+        entries.put(deadLetter.id, deadLetter);
+        return deadLetter;
+    }
+
+    /**
+     * Returns up to {@code limit} entries, oldest first, matching every filter that is not {@code null}.
+     */
+    public synchronized List<DeadLetter> select(String cause, String domain, String sourceSubscription, int limit) {
+        List<DeadLetter> selected = new ArrayList<>();
+        for (DeadLetter deadLetter : entries.values()) {
+            if (selected.size() >= limit) {
+                break;
+            }
+            if ((cause == null || cause.equals(deadLetter.cause))
+                    && (domain == null || domain.equalsIgnoreCase(deadLetter.domain))
+                    && (sourceSubscription == null || deadLetter.sourceSubscription.endsWith(sourceSubscription))) {
+                selected.add(deadLetter);
+            }
+        }
+        return selected;
+    }
+
+    /**
+     * Decodes the email of a dead letter.
+     *
+     * @throws MalformedMessageException if the dead letter is malformed
+     */
+    public EmailMessage decode(DeadLetter deadLetter) {
+        return codec.fromPubsubMessage(deadLetter.message);
+    }
+
+    public synchronized void remove(long id) {
+        if (entries.remove(id) == null || store == null) {
+            return;
+        }
+        try {
+            store.writeByte(RECORD_REMOVED);
+            store.writeLong(id);
+            store.flush();
+            if (++removedInStore > Math.max(1000, entries.size())) {
+                compact(Path.of(storePath));
+            }
+        } catch (IOException e) {
+            logger.warn("Failed to write to dead letter store {}. Dead letters are only kept until restart.", storePath, e);
+            closeStore();
+        }
+    }
+
+    /**
+     * Counts the stored dead letters by cause, recipient domain and source subscription.
+     */
+    public synchronized Map<String, Object> summary() {
+        Map<String, Integer> byCause = new TreeMap<>();
+        Map<String, Integer> byDomain = new TreeMap<>();
+        Map<String, Integer> bySubscription = new TreeMap<>();
+        for (DeadLetter deadLetter : entries.values()) {
+            byCause.merge(deadLetter.cause, 1, Integer::sum);
+            byDomain.merge(deadLetter.domain, 1, Integer::sum);
+            bySubscription.merge(deadLetter.sourceSubscription, 1, Integer::sum);
+        }
+        Map<String, Object> summary = new LinkedHashMap<>();
+        summary.put("total", entries.size());
+        summary.put("byCause", byCause);
+        summary.put("byDomain", byDomain);
+        summary.put("bySourceSubscription", bySubscription);
+        return summary;
+    }
+
+    /**
+     * Counts dead letters by cause and recipient domain, for log lines such as {@code {undeliverable/example.com=12}}.
+     */
+    static String describe(Collection<DeadLetter> deadLetters) {
+        Map<String, Integer> counts = new TreeMap<>();
+        for (DeadLetter deadLetter : deadLetters) {
+            counts.merge(deadLetter.cause + "/" + (deadLetter.domain.isEmpty() ? "-" : deadLetter.domain), 1, Integer::sum);
+        }
+        return counts.toString();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    private DeadLetter classify(long id, long receivedAt, PubsubMessage message) {
+        String sourceSubscription = message.getAttributesOrDefault(SOURCE_SUBSCRIPTION_ATTRIBUTE, "");
+        int deliveryCount;
+        try {
+            deliveryCount = Integer.parseInt(message.getAttributesOrDefault(DELIVERY_COUNT_ATTRIBUTE, "0"));
+        } catch (NumberFormatException e) {
+            deliveryCount = 0;
+        }
+        EmailMessage emailMessage = null;
+        try {
+            emailMessage = codec.fromPubsubMessage(message);
+        } catch (MalformedMessageException e) {
+            // Kept, so that it can be inspected; it cannot be replayed.
+        }
+        String domain = emailMessage == null ? "" : DomainRateLimiter.domainOf(emailMessage.getTo());
+        return new DeadLetter(id, receivedAt, message, emailMessage == null ? CAUSE_MALFORMED : CAUSE_UNDELIVERABLE,
+                domain, sourceSubscription, deliveryCount);
+    }
+
+    private void load(Path path) throws IOException {
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            while (true) {
+                byte type;
+                try {
+                    type = input.readByte();
+                } catch (EOFException e) {
+                    break;
+                }
+                long id = input.readLong();
+                nextId = Math.max(nextId, id + 1);
+                if (type == RECORD_REMOVED) {
+                    entries.remove(id);
+                    removedInStore++;
+                    continue;
+                }
+                long receivedAt = input.readLong();
+                byte[] payload = new byte[input.readInt()];
+                input.readFully(payload);
+                entries.put(id, classify(id, receivedAt, PubsubMessage.parseFrom(payload)));
+            }
+        } catch (EOFException | InvalidProtocolBufferException e) {
+            // A record torn by a crash; everything before it was read.
+            logger.warn("Dead letter store {} ends with an incomplete record, which is dropped.", path);
+            compact(path);
+        }
+    }
+
+    /**
+     * Rewrites the store with the entries that were not removed, replacing the old file atomically.
+     */
+    private void compact(Path path) throws IOException {
+        closeStore();
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            for (DeadLetter deadLetter : entries.values()) {
+                byte[] payload = deadLetter.message.toByteArray();
+                output.writeByte(RECORD_ADDED);
+                output.writeLong(deadLetter.id);
+                output.writeLong(deadLetter.receivedAt);
+                output.writeInt(payload.length);
+                output.write(payload);
+            }
+        }
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        removedInStore = 0;
+        store = open(path);
+    }
+
+    private static DataOutputStream open(Path path) throws IOException {
+        OutputStream output = Files.newOutputStream(path, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        return new DataOutputStream(new BufferedOutputStream(output));
+    }
+
+    private void closeStore() {
+        if (store != null) {
+            try {
+                store.close();
+            } catch (IOException e) {
+                logger.warn("Failed to close dead letter store {}.", storePath, e);
+            }
+            store = null;
+        }
+    }
+
+    @PreDestroy
+    public synchronized void tearDown() {
+        closeStore();
+    }
+
+    public static final class DeadLetter {
+
+        private final long id;
+        private final long receivedAt;
+        private final PubsubMessage message;
+        private final String cause;
+        private final String domain;
+        private final String sourceSubscription;
+        private final int deliveryCount;
+
+        private DeadLetter(long id, long receivedAt, PubsubMessage message, String cause, String domain,
+                String sourceSubscription, int deliveryCount) {
+            this.id = id;
+            this.receivedAt = receivedAt;
+            this.message = message;
+            this.cause = cause;
+            this.domain = domain;
+            this.sourceSubscription = sourceSubscription;
+            this.deliveryCount = deliveryCount;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public PubsubMessage getMessage() {
+            return message;
+        }
+
+        public String getCause() {
+            return cause;
+        }
+
+        public String getDomain() {
+            return domain;
+        }
+
+        public String getSourceSubscription() {
+            return sourceSubscription;
+        }
+
+        public int getDeliveryCount() {
+            return deliveryCount;
+        }
+    }
+}
@@ -0,0 +1,380 @@
+package com.mycompany.app.service;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import com.google.cloud.pubsub.v1.AckReplyConsumer;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+
+/**
+ * Remembers which emails were sent, so that a redelivered Pub/Sub message (after a lost ack or an expired ack
+ * deadline) does not send the same email twice.
+ * <p>
+ * Emails are identified by the producer's idempotency key, or by the Pub/Sub message ID when there is none.
+ * The index holds the last {@code capacity} keys in an LRU map. A Bloom filter in front of it answers the common
+ * case, a key that was never seen, without taking the LRU lock. Bloom filters cannot forget keys, so two
+ * generations are kept and the older one is dropped each time the newer one has taken {@code capacity} new keys.
+ * <p>
+ * With {@code email.dedup.store-path} set, every sent key is also appended to a local file that is read back on
+ * startup, so the index survives a restart. Keys are written by a background thread every {@code store-flush-ms},
+ * so acking never waits for the file. The file is rewritten from the LRU once it holds twice as many keys.
+ */
+@Service
+public class DeliveryDedupIndex {
+
+    private static final Logger logger = LoggerFactory.getLogger(DeliveryDedupIndex.class);
+
+    public enum Claim {
+        /** The email was not sent yet; the caller sends it and acks or nacks the tracked consumer. */
+        CLAIMED,
+        /** The email was already sent; the message can be acked without sending. */
+        SENT,
+        /** Another delivery of the same email is being sent right now. */
+        IN_PROGRESS
+    }
+
+    private final boolean enabled;
+    private final int capacity;
+    private final double falsePositiveRate;
+    private final String storePath;
+    private final long storeFlushMs;
+
+    private final Map<String, Boolean> sent;
+    private final Set<String> inProgress = ConcurrentHashMap.newKeySet();
+    private volatile BloomFilter currentFilter;
+    private volatile BloomFilter previousFilter;
+    private final Counter duplicateCounter;
+
+    private BufferedWriter store;
+    private int storedKeys;
+    // Sent keys not written to the store yet; only filled while the store writer runs.
+    private final Queue<String> unstoredKeys = new ConcurrentLinkedQueue<>();
+    private volatile ScheduledExecutorService storeWriter;
+
+    public DeliveryDedupIndex(
+            @Value("${email.dedup.enabled:true}") boolean enabled,
+            @Value("${email.dedup.capacity:100000}") int capacity,
+            @Value("${email.dedup.false-positive-rate:0.01}") double falsePositiveRate,
+            @Value("${email.dedup.store-path:}") String storePath,
+            @Value("${email.dedup.store-flush-ms:100}") long storeFlushMs,
+            MeterRegistry meterRegistry) {
+        this.enabled = enabled;
+        this.capacity = Math.max(1, capacity);
+        this.falsePositiveRate = Math.min(0.5, Math.max(1e-6, falsePositiveRate));
+        this.storePath = storePath;
+        this.storeFlushMs = Math.max(1, storeFlushMs);
+        this.sent = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                return size() > DeliveryDedupIndex.this.capacity;
+            }
+        };
+        this.currentFilter = new BloomFilter(this.capacity, this.falsePositiveRate);
+        this.previousFilter = new BloomFilter(1, this.falsePositiveRate);
+        this.duplicateCounter = Counter.builder("email.dedup.duplicates")
+                .description("Redelivered emails that were already sent and were acked without sending")
+                .register(meterRegistry);
+        Gauge.builder("email.dedup.entries", this, DeliveryDedupIndex::size)
+                .description("Sent emails remembered by the dedup index")
+                .register(meterRegistry);
+    }
+
+    @PostConstruct
+    public synchronized void init() {
+        if (!enabled || storePath == null || storePath.isBlank()) {
+            return;
+        }
+        Path path = Path.of(storePath);
+        try {
+            if (Files.exists(path)) {
+                List<String> keys = Files.readAllLines(path, StandardCharsets.UTF_8);
+                for (String key : keys) {
+                    if (!key.isEmpty()) {
+                        remember(key);
+                    }
+                }
+                logger.info("Loaded {} sent email keys from {}.", size(), path);
+                storedKeys = keys.size();
+            } else if (path.getParent() != null) {
+                Files.createDirectories(path.getParent());
+            }
+            if (storedKeys > capacity) {
+                compact(path);
+            } else {
+                store = Files.newBufferedWriter(path, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            }
+        } catch (IOException e) {
+            logger.warn("Cannot use dedup store {}. Sent emails are only remembered until restart.", path, e);
+            closeStore();
+            return;
+        }
+        storeWriter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "email-dedup-store");
+            thread.setDaemon(true);
+            return thread;
+        });
+        storeWriter.scheduleWithFixedDelay(this::flushStore, storeFlushMs, storeFlushMs, TimeUnit.MILLISECONDS);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Returns the key identifying the email: the producer's idempotency key if it set one, else the message ID.
+     */
+    public static String keyOf(String messageId, String idempotencyKey) {
+        return idempotencyKey != null && !idempotencyKey.isEmpty() ? "k:" + idempotencyKey : "m:" + messageId;
+    }
+
+    /**
+     * Claims the email for sending unless it was already sent or is being sent.
+     */
+    public Claim claim(String key) {
+        if (!enabled) {
+            return Claim.CLAIMED;
+        }
+        if (isSent(key)) {
+            duplicateCounter.increment();
+            return Claim.SENT;
+        }
+        if (!inProgress.add(key)) {
+            return Claim.IN_PROGRESS;
+        }
+        // Sent by a delivery that finished between the check above and the claim.
+        if (isSent(key)) {
+            inProgress.remove(key);
+            duplicateCounter.increment();
+            return Claim.SENT;
+        }
+        return Claim.CLAIMED;
+    }
+
+    /**
+     * Wraps the consumer of a claimed message: acking it records the email as sent, nacking it releases the
+     * claim so that the redelivery can send it.
+     */
+    public AckReplyConsumer track(String key, AckReplyConsumer consumer) {
+        return enabled ? new DedupAckReplyConsumer(key, consumer) : consumer;
+    }
+
+    boolean isSent(String key) {
+        if (!currentFilter.mightContain(key) && !previousFilter.mightContain(key)) {
+            return false;
+        }
+        synchronized (sent) {
+            return sent.containsKey(key);
+        }
+    }
+
+    void markSent(String key) {
+        remember(key);
+        inProgress.remove(key);
+        if (storeWriter != null) {
+            unstoredKeys.add(key);
+        }
+    }
+
+    int size() {
+        synchronized (sent) {
+            return sent.size();
+        }
+    }
+
+    private void remember(String key) {
+        synchronized (sent) {
+            sent.put(key, Boolean.TRUE);
+            BloomFilter filter = currentFilter;
+            // Keys the filter already holds, such as those of redelivered emails, do not count towards its capacity.
+            if (filter.add(key) && filter.insertions.incrementAndGet() >= capacity) {
+                // The LRU only holds the last `capacity` keys, which are all in these two filters.
+                previousFilter = filter;
+                currentFilter = new BloomFilter(capacity, falsePositiveRate);
+            }
+        }
+    }
+
+    /**
+     * Appends the keys sent since the last run to the store and flushes them to the OS, so a crash of the
+     * application loses at most the keys of one {@code store-flush-ms}.
+     */
+    private synchronized void flushStore() {
+        if (store == null) {
+            unstoredKeys.clear();
+            return;
+        }
+        try {
+            String key;
+            while ((key = unstoredKeys.poll()) != null) {
+                if (key.indexOf('\n') >= 0 || key.indexOf('\r') >= 0) {
+                    continue;
+                }
+                store.write(key);
+                store.newLine();
+                if (++storedKeys >= 2 * capacity) {
+                    compact(Path.of(storePath));
+                }
+            }
+            store.flush();
+        } catch (IOException e) {
+            logger.warn("Failed to write to dedup store {}. Sent emails are only remembered until restart.", storePath, e);
+            closeStore();
+        }
+    }
+
+    /**
+     * Rewrites the store with the keys in the LRU, replacing the old file atomically.
+     */
+    private void compact(Path path) throws IOException {
+        closeStore();
+        List<String> keys;
+        synchronized (sent) {
+            keys = new ArrayList<>(sent.keySet());
+        }
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        Files.write(temp, keys, StandardCharsets.UTF_8);
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        storedKeys = keys.size();
+        store = Files.newBufferedWriter(path, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        logger.info("Compacted dedup store {} to {} keys.", path, keys.size());
+    }
+
+    private void closeStore() {
+        if (store != null) {
+            try {
+                store.close();
+            } catch (IOException e) {
+                logger.warn("Failed to close dedup store {}.", storePath, e);
+            }
+            store = null;
+        }
+    }
+
+    @PreDestroy
+    public synchronized void tearDown() {
+        ScheduledExecutorService writer = storeWriter;
+        if (writer != null) {
+            storeWriter = null;
+            writer.shutdown();
+        }
+        flushStore();
+        closeStore();
+    }
+
+    private final class DedupAckReplyConsumer implements AckReplyConsumer {
+
+        private final String key;
+        private final AckReplyConsumer delegate;
+        private final AtomicBoolean completed = new AtomicBoolean(false);
+
+        private DedupAckReplyConsumer(String key, AckReplyConsumer delegate) {
+            this.key = key;
+            this.delegate = delegate;
+        }
+
+        @Override
+        public void ack() {
+            if (completed.compareAndSet(false, true)) {
+                markSent(key);
+            }
+            delegate.ack();
+        }
+
+        @Override
+        public void nack() {
+            if (completed.compareAndSet(false, true)) {
+                inProgress.remove(key);
+            }
+            delegate.nack();
+        }
+    }
+
+    /**
+     * A Bloom filter over a lock-free bit array, using double hashing of a 64-bit hash of the key.
+     */
+    static final class BloomFilter {
+
+        private final AtomicLongArray bits;
+        private final long bitCount;
+        private final int hashCount;
+        private final AtomicInteger insertions = new AtomicInteger();
+
+        BloomFilter(int expectedInsertions, double falsePositiveRate) {
+            long optimalBits = (long) Math.ceil(-expectedInsertions * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+            this.bitCount = Math.max(64, (optimalBits + 63) / 64 * 64);
+            this.bits = new AtomicLongArray((int) (bitCount / 64));
+            this.hashCount = Math.max(1, (int) Math.round((double) bitCount / expectedInsertions * Math.log(2)));
+        }
+
+        /**
+         * Returns whether any bit changed, that is, whether the filter did not already (seem to) contain the key.
+         */
+        boolean add(String key) {
+            long hash = hash(key);
+            int h1 = (int) hash;
+            int h2 = (int) (hash >>> 32);
+            boolean changed = false;
+            for (int i = 1; i <= hashCount; i++) {
+                long bit = Math.floorMod(h1 + (long) i * h2, bitCount);
+                long mask = 1L << bit;
+                long word = bits.getAndAccumulate((int) (bit >>> 6), mask, (current, added) -> current | added);
+                changed |= (word & mask) == 0;
+            }
+            return changed;
+        }
+
+        boolean mightContain(String key) {
+            long hash = hash(key);
+            int h1 = (int) hash;
+            int h2 = (int) (hash >>> 32);
+            for (int i = 1; i <= hashCount; i++) {
+                long bit = Math.floorMod(h1 + (long) i * h2, bitCount);
+                if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        // FNV-1a over the chars, finished with the SplitMix64 mixer so both 32-bit halves are well distributed.
+        private static long hash(String key) {
+            long hash = 0xcbf29ce484222325L;
+            for (int i = 0; i < key.length(); i++) {
+                hash ^= key.charAt(i);
+                hash *= 0x100000001b3L;
+            }
+            hash = (hash ^ (hash >>> 30)) * 0xbf58476d1ce4e5b9L;
+            hash = (hash ^ (hash >>> 27)) * 0x94d049bb133111ebL;
+            return hash ^ (hash >>> 31);
+        }
+    }
+}
@@ -0,0 +1,320 @@
+package com.mycompany.app.service;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.angus.mail.smtp.SMTPAddressFailedException;
+import org.eclipse.angus.mail.smtp.SMTPSendFailedException;
+import org.eclipse.angus.mail.smtp.SMTPSenderFailedException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.mail.MailSendException;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Limits the send rate per recipient domain and adapts each limit to how the receiving servers respond.
+ * <p>
+ * Every domain has its own token bucket, kept as a single theoretical arrival time that is advanced with a
+ * compare-and-set (the GCRA form of a token bucket), so sends to different domains never contend and sends to
+ * the same domain never block. A send reserves the next free slot and is told how long to wait for it.
+ * <p>
+ * The rate of a domain follows AIMD: every successful send raises it a little (by {@code increase-per-second}
+ * per second of successful sending) and an SMTP 4xx deferral cuts it by {@code decrease-factor}, at most once per
+ * second, so that one burst of deferrals does not collapse the rate to the minimum.
+ */
+@Service
+public class DomainRateLimiter {
+
+    private static final Logger logger = LoggerFactory.getLogger(DomainRateLimiter.class);
+    private static final long DECREASE_COOLDOWN_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final boolean enabled;
+    private final double initialRate;
+    private final double minRate;
+    private final double maxRate;
+    private final int burst;
+    private final double increasePerSecond;
+    private final double decreaseFactor;
+    private final long maxDelayNanos;
+    private final long idleNanos;
+
+    private final Map<String, DomainLimit> limits = new ConcurrentHashMap<>();
+    private final Counter deferredCounter;
+    private final Counter rejectedCounter;
+    private final Counter throttledCounter;
+
+    public DomainRateLimiter(
+            @Value("${email.rate-limit.enabled:true}") boolean enabled,
+            @Value("${email.rate-limit.initial-rate:20}") double initialRate,
+            @Value("${email.rate-limit.min-rate:1}") double minRate,
+            @Value("${email.rate-limit.max-rate:200}") double maxRate,
+            @Value("${email.rate-limit.burst:10}") int burst,
+            @Value("${email.rate-limit.increase-per-second:2}") double increasePerSecond,
+            @Value("${email.rate-limit.decrease-factor:0.5}") double decreaseFactor,
+            @Value("${email.rate-limit.max-delay-ms:30000}") long maxDelayMs,
+            @Value("${email.rate-limit.idle-ms:600000}") long idleMs,
+            MeterRegistry meterRegistry) {
+        this.enabled = enabled;
+        this.minRate = Math.max(0.01, minRate);
+        this.maxRate = Math.max(this.minRate, maxRate);
+        this.initialRate = Math.min(this.maxRate, Math.max(this.minRate, initialRate));
+        this.burst = Math.max(1, burst);
+        this.increasePerSecond = increasePerSecond;
+        this.decreaseFactor = Math.min(1, Math.max(0.01, decreaseFactor));
+        this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelayMs);
+        this.idleNanos = TimeUnit.MILLISECONDS.toNanos(idleMs);
+        this.deferredCounter = Counter.builder("email.rate.limit.deferred")
+                .description("Sends delayed to stay within the rate limit of the recipient domain")
+                .register(meterRegistry);
+        this.rejectedCounter = Counter.builder("email.rate.limit.rejected")
+                .description("Sends rejected because the recipient domain was booked out beyond the maximum delay")
+                .register(meterRegistry);
+        this.throttledCounter = Counter.builder("email.rate.limit.throttled")
+                .description("SMTP 4xx deferrals that lowered the rate limit of the recipient domain")
+                .register(meterRegistry);
+        Gauge.builder("email.rate.limit.domains", limits, Map::size)
+                .description("Recipient domains with a tracked rate limit")
+                .register(meterRegistry);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Reserves a send slot for the domain of the recipient.
+     *
+     * @return {@code 0} to send right away, the number of nanoseconds to wait before sending, or {@code -1} if
+     *         the next free slot is further away than the maximum delay (nothing is reserved in that case)
+     */
+    public long reserve(String recipient) {
+        return reserve(Collections.singletonList(recipient));
+    }
+
+    /**
+     * Reserves a send slot for every domain among the recipients, since an email with Cc or Bcc recipients is
+     * delivered to each of their domains. The email waits for the latest of the slots.
+     *
+     * @return {@code 0} to send right away, the number of nanoseconds to wait before sending, or {@code -1} if
+     *         the next free slot of any domain is further away than the maximum delay (nothing is reserved in that
+     *         case)
+     */
+    public long reserve(Collection<String> recipients) {
+        if (!enabled) {
+            return 0;
+        }
+        long now = System.nanoTime();
+        List<DomainLimit> reserved = new ArrayList<>();
+        long delayNanos = 0;
+        for (String domain : domainsOf(recipients)) {
+            DomainLimit limit = limit(domain, now);
+            long domainDelayNanos = limit.reserve(now);
+            if (domainDelayNanos < 0) {
+                reserved.forEach(DomainLimit::release);
+                rejectedCounter.increment();
+                return -1;
+            }
+            reserved.add(limit);
+            delayNanos = Math.max(delayNanos, domainDelayNanos);
+        }
+        if (delayNanos > 0) {
+            deferredCounter.increment();
+        }
+        return delayNanos;
+    }
+
+    public void recordSuccess(String recipient) {
+        recordSuccess(Collections.singletonList(recipient));
+    }
+
+    public void recordSuccess(Collection<String> recipients) {
+        if (!enabled) {
+            return;
+        }
+        long now = System.nanoTime();
+        for (String domain : domainsOf(recipients)) {
+            limit(domain, now).increase();
+        }
+    }
+
+    /**
+     * Lowers the rate of the recipient's domain if the failure is an SMTP 4xx deferral. Other failures say
+     * nothing about the receiving domain and are ignored.
+     */
+    public void recordFailure(String recipient, Throwable failure) {
+        recordFailure(Collections.singletonList(recipient), failure);
+    }
+
+    /**
+     * Lowers the rate of the domains of all recipients if the failure is an SMTP 4xx deferral, as the deferral of
+     * a transaction with many recipients does not tell which of their domains asked to slow down.
+     */
+    public void recordFailure(Collection<String> recipients, Throwable failure) {
+        if (!enabled || !isDeferral(failure)) {
+            return;
+        }
+        long now = System.nanoTime();
+        for (String domain : domainsOf(recipients)) {
+            double rate = limit(domain, now).decrease(now);
+            if (rate > 0) {
+                throttledCounter.increment();
+                logger.warn("Domain {} deferred a send ({}). Lowered its rate limit to {} emails/s.",
+                        domain, failure.getMessage(), String.format(Locale.ROOT, "%.2f", rate));
+            }
+        }
+    }
+
+    /**
+     * Returns the current rate limit of the recipient's domain in emails per second.
+     */
+    public double getRate(String recipient) {
+        DomainLimit limit = limits.get(domainOf(recipient));
+        return limit == null ? initialRate : limit.rate();
+    }
+
+    /**
+     * Forgets domains that were not sent to for {@code idle-ms}, so the map does not grow with every domain
+     * ever seen. A domain that is seen again starts over at the initial rate.
+     */
+    @Scheduled(fixedDelayString = "${email.rate-limit.eviction-interval-ms:60000}")
+    public void evictIdleDomains() {
+        long now = System.nanoTime();
+        limits.entrySet().removeIf(entry -> now - entry.getValue().lastUsedNanos > idleNanos);
+    }
+
+    private DomainLimit limit(String domain, long now) {
+        DomainLimit limit = limits.computeIfAbsent(domain, ignored -> new DomainLimit(now));
+        limit.lastUsedNanos = now;
+        return limit;
+    }
+
+    private static Set<String> domainsOf(Collection<String> recipients) {
+        Set<String> domains = new LinkedHashSet<>();
+        for (String recipient : recipients) {
+            domains.add(domainOf(recipient));
+        }
+        return domains;
+    }
+
+    static String domainOf(String recipient) {
+        if (recipient == null) {
+            return "";
+        }
+        int at = recipient.lastIndexOf('@');
+        String domain = at < 0 ? recipient : recipient.substring(at + 1);
+        // Strip the closing bracket of "Name <user@example.com>" style addresses.
+        int end = domain.indexOf('>');
+        return (end < 0 ? domain : domain.substring(0, end)).trim().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Whether the failure is a temporary rejection by the receiving server (SMTP 4xx), which is how large
+     * providers ask senders to slow down.
+     */
+    static boolean isDeferral(Throwable failure) {
+        int returnCode = smtpReturnCode(failure);
+        return returnCode >= 400 && returnCode < 500;
+    }
+
+    static int smtpReturnCode(Throwable failure) {
+        Throwable current = failure;
+        for (int depth = 0; current != null && depth < 10; depth++) {
+            if (current instanceof SMTPSendFailedException e) {
+                return e.getReturnCode();
+            }
+            if (current instanceof SMTPAddressFailedException e) {
+                return e.getReturnCode();
+            }
+            if (current instanceof SMTPSenderFailedException e) {
+                return e.getReturnCode();
+            }
+            if (current instanceof MailSendException e && current.getCause() == null
+                    && !e.getFailedMessages().isEmpty()) {
+                current = e.getFailedMessages().values().iterator().next();
+                continue;
+            }
+            // For MessagingException the cause is the next exception, which holds the per-recipient failures.
+            current = current.getCause();
+        }
+        return -1;
+    }
+
+    private final class DomainLimit {
+
+        // Theoretical arrival time of the next send in System.nanoTime() terms.
+        private final AtomicLong nextSlotNanos;
+        private final AtomicLong rateBits = new AtomicLong(Double.doubleToLongBits(initialRate));
+        private final AtomicLong lastDecreaseNanos;
+        private volatile long lastUsedNanos;
+
+        private DomainLimit(long now) {
+            this.nextSlotNanos = new AtomicLong(now);
+            this.lastDecreaseNanos = new AtomicLong(now - DECREASE_COOLDOWN_NANOS);
+            this.lastUsedNanos = now;
+        }
+
+        private double rate() {
+            return Double.longBitsToDouble(rateBits.get());
+        }
+
+        private long reserve(long now) {
+            long intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / rate());
+            // Up to `burst` sends may go out back to back before the interval applies.
+            long toleranceNanos = intervalNanos * (burst - 1);
+            while (true) {
+                long nextSlot = nextSlotNanos.get();
+                long delayNanos = Math.max(0, nextSlot - toleranceNanos - now);
+                if (delayNanos > maxDelayNanos) {
+                    return -1;
+                }
+                if (nextSlotNanos.compareAndSet(nextSlot, Math.max(nextSlot, now) + intervalNanos)) {
+                    return delayNanos;
+                }
+            }
+        }
+
+        /**
+         * Gives back a slot reserved for an email that is not sent after all.
+         */
+        private void release() {
+            long intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / rate());
+            nextSlotNanos.addAndGet(-intervalNanos);
+        }
+
+        private void increase() {
+            rateBits.getAndUpdate(bits -> {
+                double rate = Double.longBitsToDouble(bits);
+                // One success takes 1/rate seconds at the current rate, so this adds increasePerSecond per second.
+                return Double.doubleToLongBits(Math.min(maxRate, rate + increasePerSecond / rate));
+            });
+        }
+
+        /**
+         * @return the new rate, or {@code 0} if the rate was lowered less than a second ago and was left alone
+         */
+        private double decrease(long now) {
+            long lastDecrease = lastDecreaseNanos.get();
+            if (now - lastDecrease < DECREASE_COOLDOWN_NANOS || !lastDecreaseNanos.compareAndSet(lastDecrease, now)) {
+                return 0;
+            }
+            long bits = rateBits.updateAndGet(current ->
+                    Double.doubleToLongBits(Math.max(minRate, Double.longBitsToDouble(current) * decreaseFactor)));
+            return Double.longBitsToDouble(bits);
+        }
+    }
+}
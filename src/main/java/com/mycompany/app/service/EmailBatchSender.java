@@ -0,0 +1,190 @@
+package com.mycompany.app.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.mail.MailException;
+import org.springframework.mail.MailSendException;
+import org.springframework.stereotype.Service;
+
+import com.mycompany.app.model.EmailMessage;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+
+/**
+ * Groups emails submitted by the Pub/Sub consumer into batches and sends each batch over one SMTP connection.
+ * <p>
+ * A batch is sent once it holds {@code max-size} emails or when the first email in it has waited
+ * {@code linger-ms}, whichever comes first. Every submitted email gets its own future, so the caller can still
+ * ack or nack each Pub/Sub message individually.
+ */
+@Service
+public class EmailBatchSender {
+
+    private static final Logger logger = LoggerFactory.getLogger(EmailBatchSender.class);
+
+    private final EmailService emailService;
+    private final boolean enabled;
+    private final int maxBatchSize;
+    private final long lingerNanos;
+    private final int senderThreads;
+
+    private final BlockingQueue<PendingEmail> queue = new LinkedBlockingQueue<>();
+    private final List<Thread> senders = new ArrayList<>();
+    private volatile boolean running = false;
+
+    public EmailBatchSender(
+            EmailService emailService,
+            @Value("${gcp.pubsub.consumer.batch.enabled:false}") boolean enabled,
+            @Value("${gcp.pubsub.consumer.batch.max-size:20}") int maxBatchSize,
+            @Value("${gcp.pubsub.consumer.batch.linger-ms:50}") long lingerMs,
+            @Value("${gcp.pubsub.consumer.batch.sender-threads:2}") int senderThreads) {
+        this.emailService = emailService;
+        this.enabled = enabled;
+        this.maxBatchSize = Math.max(1, maxBatchSize);
+        this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(lingerMs);
+        this.senderThreads = Math.max(1, senderThreads);
+    }
+
+    @PostConstruct
+    public synchronized void init() {
+        if (!enabled) {
+            return;
+        }
+        running = true;
+        for (int i = 0; i < senderThreads; i++) {
+            Thread sender = new Thread(this::sendLoop, "email-batch-sender-" + i);
+            sender.setDaemon(true);
+            sender.start();
+            senders.add(sender);
+        }
+        logger.info("Email batching enabled with max batch size {} and linger {} ms on {} sender threads.",
+                maxBatchSize, TimeUnit.NANOSECONDS.toMillis(lingerNanos), senderThreads);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Queues the email for the next batch.
+     *
+     * @return a future that completes when the email was sent, or exceptionally with the {@link MailException}
+     *         that prevented it from being sent.
+     */
+    public CompletableFuture<Void> submit(EmailMessage emailMessage) {
+        PendingEmail pending = new PendingEmail(emailMessage, System.nanoTime());
+        if (!running) {
+            pending.future.completeExceptionally(new MailSendException("Email batch sender is not running."));
+            return pending.future;
+        }
+        queue.add(pending);
+        return pending.future;
+    }
+
+    public int getQueuedCount() {
+        return queue.size();
+    }
+
+    private void sendLoop() {
+        List<PendingEmail> batch = new ArrayList<>(maxBatchSize);
+        while (running || !queue.isEmpty()) {
+            try {
+                PendingEmail first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, maxBatchSize - batch.size());
+                long deadline = first.enqueuedAtNanos + lingerNanos;
+                while (batch.size() < maxBatchSize) {
+                    long remaining = deadline - System.nanoTime();
+                    PendingEmail next = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : queue.poll();
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+                send(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                fail(batch, new MailSendException("Email batch sender was interrupted."));
+                return;
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void send(List<PendingEmail> batch) {
+        List<EmailMessage> emailMessages = new ArrayList<>(batch.size());
+        for (PendingEmail pending : batch) {
+            emailMessages.add(pending.emailMessage);
+        }
+        Map<EmailMessage, MailException> failures;
+        try {
+            failures = emailService.sendEmails(emailMessages);
+        } catch (RuntimeException e) {
+            logger.error("Unexpected error sending batch of {} emails.", batch.size(), e);
+            fail(batch, e);
+            return;
+        }
+        for (PendingEmail pending : batch) {
+            MailException failure = failures.get(pending.emailMessage);
+            if (failure == null) {
+                pending.future.complete(null);
+            } else {
+                pending.future.completeExceptionally(failure);
+            }
+        }
+    }
+
+    private static void fail(List<PendingEmail> batch, Exception cause) {
+        for (PendingEmail pending : batch) {
+            pending.future.completeExceptionally(cause);
+        }
+    }
+
+    @PreDestroy
+    public synchronized void tearDown() {
+        if (!running) {
+            return;
+        }
+        // Let the sender threads finish what is already queued, then fail anything left so it can be nacked.
+        running = false;
+        for (Thread sender : senders) {
+            try {
+                sender.join(TimeUnit.SECONDS.toMillis(30));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        senders.clear();
+        List<PendingEmail> remaining = new ArrayList<>();
+        queue.drainTo(remaining);
+        fail(remaining, new MailSendException("Email batch sender stopped."));
+        logger.info("Email batch sender shut down.");
+    }
+
+    private static final class PendingEmail {
+
+        private final EmailMessage emailMessage;
+        private final long enqueuedAtNanos;
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        private PendingEmail(EmailMessage emailMessage, long enqueuedAtNanos) {
+            this.emailMessage = emailMessage;
+            this.enqueuedAtNanos = enqueuedAtNanos;
+        }
+    }
+}
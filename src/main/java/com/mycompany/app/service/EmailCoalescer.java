@@ -0,0 +1,341 @@
+package com.mycompany.app.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.mail.MailException;
+import org.springframework.mail.MailSendException;
+import org.springframework.stereotype.Service;
+
+import com.mycompany.app.model.EmailMessage;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+
+/**
+ * Merges bursts of notifications to the same recipient into one digest email.
+ * <p>
+ * Emails with a coalesce key and a single recipient are held per recipient and key. The first email opens a
+ * digest, which is sent {@code window-ms} later with every email that arrived in the meantime, or as soon as it
+ * holds {@code max-messages} emails. A digest with a single email is sent as that email.
+ * <p>
+ * At most {@code max-open-digests} digests are open at a time; once that many recipients are waiting, further
+ * emails are not held but sent on their own right away, so memory stays bounded however many distinct recipients
+ * there are. Every held email gets its own future, so the caller can still ack or nack each Pub/Sub message
+ * individually. The messages stay outstanding while held, so they also count against the consumer's flow control.
+ */
+@Service
+public class EmailCoalescer {
+
+    private static final Logger logger = LoggerFactory.getLogger(EmailCoalescer.class);
+    private static final String PART_SEPARATOR = "\n\n----------------------------------------\n\n";
+
+    private final EmailService emailService;
+    private final EmailTemplateRenderer templateRenderer;
+    private final boolean enabled;
+    private final long windowNanos;
+    private final int maxMessages;
+    private final int maxOpenDigests;
+    private final int senderThreads;
+
+    private final ConcurrentHashMap<String, Digest> openDigests = new ConcurrentHashMap<>();
+    // Holds one entry per digest for the end of its window, and one more for a digest that filled up early.
+    private final DelayQueue<Flush> flushes = new DelayQueue<>();
+    private final Counter coalescedCounter;
+    private final Counter bypassedCounter;
+    private final DistributionSummary digestSize;
+    private volatile boolean running = false;
+    private Thread flusher;
+    private ExecutorService senders;
+
+    public EmailCoalescer(
+            EmailService emailService,
+            EmailTemplateRenderer templateRenderer,
+            MeterRegistry meterRegistry,
+            @Value("${gcp.pubsub.consumer.coalesce.enabled:false}") boolean enabled,
+            @Value("${gcp.pubsub.consumer.coalesce.window-ms:10000}") long windowMs,
+            @Value("${gcp.pubsub.consumer.coalesce.max-messages:50}") int maxMessages,
+            @Value("${gcp.pubsub.consumer.coalesce.max-open-digests:10000}") int maxOpenDigests,
+            @Value("${gcp.pubsub.consumer.coalesce.sender-threads:2}") int senderThreads) {
+        this.emailService = emailService;
+        this.templateRenderer = templateRenderer;
+        this.enabled = enabled;
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, windowMs));
+        this.maxMessages = Math.max(1, maxMessages);
+        this.maxOpenDigests = Math.max(1, maxOpenDigests);
+        this.senderThreads = Math.max(1, senderThreads);
+        this.coalescedCounter = Counter.builder("email.coalesce.messages")
+                .description("Emails offered for coalescing")
+                .tag("outcome", "held")
+                .register(meterRegistry);
+        this.bypassedCounter = Counter.builder("email.coalesce.messages")
+                .description("Emails offered for coalescing")
+                .tag("outcome", "bypassed")
+                .register(meterRegistry);
+        this.digestSize = DistributionSummary.builder("email.coalesce.digest.size")
+                .description("Number of emails merged into one sent digest")
+                .register(meterRegistry);
+        Gauge.builder("email.coalesce.open", openDigests, ConcurrentHashMap::size)
+                .description("Digests waiting for the end of their coalescing window")
+                .register(meterRegistry);
+    }
+
+    @PostConstruct
+    public synchronized void init() {
+        if (!enabled) {
+            return;
+        }
+        AtomicInteger threadCount = new AtomicInteger();
+        senders = Executors.newFixedThreadPool(senderThreads, runnable -> {
+            Thread thread = new Thread(runnable, "email-coalesce-sender-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        running = true;
+        flusher = new Thread(this::flushLoop, "email-coalesce-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+        logger.info("Email coalescing enabled with a window of {} ms, at most {} emails per digest and {} open digests.",
+                TimeUnit.NANOSECONDS.toMillis(windowNanos), maxMessages, maxOpenDigests);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Holds the email for the digest of its recipient and coalesce key.
+     *
+     * @return a future that completes when the digest holding the email was sent, or exceptionally with the
+     *         {@link MailException} that prevented it from being sent; {@code null} if the email is not held and
+     *         the caller has to send it itself
+     */
+    public CompletableFuture<Void> offer(EmailMessage emailMessage) {
+        if (!running || !isCoalescible(emailMessage)) {
+            return null;
+        }
+        PendingEmail pending = new PendingEmail(emailMessage);
+        boolean[] held = new boolean[1];
+        Digest[] filled = new Digest[1];
+        // Emails are only added to a digest while it is mapped, so a digest's list no longer changes once it is
+        // removed from the map.
+        openDigests.compute(keyOf(emailMessage), (key, digest) -> {
+            if (digest == null) {
+                if (openDigests.size() >= maxOpenDigests) {
+                    return null;
+                }
+                digest = new Digest(key);
+                flushes.add(new Flush(digest, System.nanoTime() + windowNanos));
+            }
+            digest.emails.add(pending);
+            held[0] = true;
+            if (digest.emails.size() >= maxMessages) {
+                filled[0] = digest;
+                return null;
+            }
+            return digest;
+        });
+        if (!held[0]) {
+            bypassedCounter.increment();
+            return null;
+        }
+        coalescedCounter.increment();
+        if (filled[0] != null) {
+            flushes.add(new Flush(filled[0], System.nanoTime()));
+        }
+        return pending.future;
+    }
+
+    /**
+     * Sends every open digest now instead of at the end of its window, e.g. before the consumer stops.
+     */
+    public void flushAll() {
+        long now = System.nanoTime();
+        for (Digest digest : openDigests.values()) {
+            flushes.add(new Flush(digest, now));
+        }
+    }
+
+    private static boolean isCoalescible(EmailMessage emailMessage) {
+        String coalesceKey = emailMessage.getCoalesceKey();
+        return coalesceKey != null && !coalesceKey.isEmpty()
+                && (emailMessage.getCc() == null || emailMessage.getCc().isEmpty())
+                && (emailMessage.getBcc() == null || emailMessage.getBcc().isEmpty());
+    }
+
+    private static String keyOf(EmailMessage emailMessage) {
+        return emailMessage.getTo() + '\n' + emailMessage.getCoalesceKey();
+    }
+
+    private void flushLoop() {
+        while (running) {
+            try {
+                Flush flush = flushes.poll(100, TimeUnit.MILLISECONDS);
+                if (flush != null) {
+                    flush(flush.digest);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private void flush(Digest digest) {
+        openDigests.remove(digest.key, digest);
+        if (!digest.flushed.compareAndSet(false, true)) {
+            // The entry for the end of the window of a digest that filled up early.
+            return;
+        }
+        try {
+            senders.execute(() -> send(digest.emails));
+        } catch (RejectedExecutionException e) {
+            fail(digest.emails, new MailSendException("Email coalescer stopped."));
+        }
+    }
+
+    private void send(List<PendingEmail> emails) {
+        List<PendingEmail> parts = new ArrayList<>(emails.size());
+        List<String> bodies = new ArrayList<>(emails.size());
+        for (PendingEmail pending : emails) {
+            try {
+                bodies.add(bodyOf(pending.emailMessage));
+                parts.add(pending);
+            } catch (MailException e) {
+                // Only this email is nacked; the others are still sent.
+                pending.future.completeExceptionally(e);
+            }
+        }
+        if (parts.isEmpty()) {
+            return;
+        }
+        try {
+            emailService.sendEmail(parts.size() == 1 ? parts.get(0).emailMessage : digestOf(parts, bodies));
+        } catch (RuntimeException e) {
+            fail(parts, e);
+            return;
+        }
+        digestSize.record(parts.size());
+        for (PendingEmail pending : parts) {
+            pending.future.complete(null);
+        }
+    }
+
+    private String bodyOf(EmailMessage emailMessage) throws MailException {
+        return emailMessage.isTemplated()
+                ? templateRenderer.render(emailMessage.getTemplateId(), emailMessage.getTemplateVariables())
+                : emailMessage.getBody();
+    }
+
+    /**
+     * One email with the subject of the first email and, in order of arrival, the subject and body of each.
+     */
+    private static EmailMessage digestOf(List<PendingEmail> parts, List<String> bodies) {
+        EmailMessage first = parts.get(0).emailMessage;
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; i < parts.size(); i++) {
+            if (i > 0) {
+                body.append(PART_SEPARATOR);
+            }
+            body.append(parts.get(i).emailMessage.getSubject()).append("\n\n").append(bodies.get(i));
+        }
+        EmailMessage digest = new EmailMessage(first.getTo(),
+                first.getSubject() + " (and " + (parts.size() - 1) + " more)", body.toString());
+        digest.setPriority(first.getPriority());
+        return digest;
+    }
+
+    private static void fail(List<PendingEmail> emails, Exception cause) {
+        for (PendingEmail pending : emails) {
+            pending.future.completeExceptionally(cause);
+        }
+    }
+
+    @PreDestroy
+    public synchronized void tearDown() {
+        if (!running) {
+            return;
+        }
+        // Stop holding new emails, then send what is held instead of waiting for the windows to end.
+        running = false;
+        try {
+            flusher.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (Flush flush : new ArrayList<>(flushes)) {
+            flush(flush.digest);
+        }
+        flushes.clear();
+        senders.shutdown();
+        try {
+            if (!senders.awaitTermination(30, TimeUnit.SECONDS)) {
+                logger.warn("Timeout waiting for coalesced digests to be sent.");
+                senders.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            senders.shutdownNow();
+        }
+        logger.info("Email coalescer shut down.");
+    }
+
+    private static final class Digest {
+
+        private final String key;
+        private final List<PendingEmail> emails = new ArrayList<>();
+        private final AtomicBoolean flushed = new AtomicBoolean();
+
+        private Digest(String key) {
+            this.key = key;
+        }
+    }
+
+    private static final class Flush implements Delayed {
+
+        private final Digest digest;
+        private final long dueNanos;
+
+        private Flush(Digest digest, long dueNanos) {
+            this.digest = digest;
+            this.dueNanos = dueNanos;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(dueNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            return Long.signum(dueNanos - ((Flush) other).dueNanos);
+        }
+    }
+
+    private static final class PendingEmail {
+
+        private final EmailMessage emailMessage;
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        private PendingEmail(EmailMessage emailMessage) {
+            this.emailMessage = emailMessage;
+        }
+    }
+}
@@ -0,0 +1,459 @@
+package com.mycompany.app.service;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.UnsafeByteOperations;
+import com.google.protobuf.WireFormat;
+import com.google.pubsub.v1.PubsubMessage;
+import com.mycompany.app.exception.MalformedMessageException;
+import com.mycompany.app.exception.UnsupportedPayloadException;
+import com.mycompany.app.model.EmailMessage;
+import com.mycompany.app.model.EmailPriority;
+
+/**
+ * Converts between {@link EmailMessage} and Pub/Sub message payloads.
+ * <p>
+ * Two payload formats are supported, identified by the {@value #FORMAT_ATTRIBUTE} message attribute:
+ * <ul>
+ * <li>{@value #FORMAT_JSON} - the original Gson JSON encoding. Messages without the attribute are JSON, so
+ * messages from older producers keep working.</li>
+ * <li>{@value #FORMAT_BINARY} - a compact encoding using the protobuf wire format (field number, wire type,
+ * length-prefixed UTF-8 strings, template variables as map entries) written and read with protobuf's coded
+ * streams. Unknown fields are skipped, so fields can be added without breaking older consumers.</li>
+ * </ul>
+ * Payloads of at least the configured threshold are gzip compressed, which is marked with the
+ * {@value #ENCODING_ATTRIBUTE} attribute. Large HTML bodies compress well and Pub/Sub throughput and cost are
+ * bound by bytes, not messages. Compression is off by default: consumers older than the attribute cannot read
+ * compressed payloads, so it may only be enabled once every consumer understands it. Decompressed payloads are
+ * limited to {@code max-decompressed-bytes}, so that a small message cannot expand into gigabytes.
+ * <p>
+ * A message with a format or encoding this version does not know is rejected with an
+ * {@link UnsupportedPayloadException}, which consumers nack instead of acknowledging it as malformed.
+ * <p>
+ * Both formats are decoded straight from the payload {@link ByteString}, decompressing on the fly, without first
+ * copying it into a {@code String} or an uncompressed buffer.
+ */
+@Service
+public class EmailMessageCodec {
+
+    private static final Logger logger = LoggerFactory.getLogger(EmailMessageCodec.class);
+
+    public static final String FORMAT_ATTRIBUTE = "payload-format";
+    public static final String FORMAT_JSON = "json";
+    public static final String FORMAT_BINARY = "binary-v1";
+    public static final String ENCODING_ATTRIBUTE = "content-encoding";
+    public static final String ENCODING_GZIP = "gzip";
+
+    private static final int FIELD_TO = 1;
+    private static final int FIELD_SUBJECT = 2;
+    private static final int FIELD_BODY = 3;
+    private static final int FIELD_TEMPLATE_ID = 4;
+    // Repeated entry messages, the way protobuf encodes map fields.
+    private static final int FIELD_TEMPLATE_VARIABLE = 5;
+    private static final int FIELD_IDEMPOTENCY_KEY = 6;
+    // Varint: 0 when not set, else the ordinal of the priority plus one.
+    private static final int FIELD_PRIORITY = 7;
+    // Repeated strings, one field per recipient.
+    private static final int FIELD_CC = 8;
+    private static final int FIELD_BCC = 9;
+    private static final int FIELD_COALESCE_KEY = 10;
+    // Repeated strings like Cc and Bcc.
+    private static final int FIELD_DELIVER_TO = 11;
+    private static final int FIELD_ENTRY_KEY = 1;
+    private static final int FIELD_ENTRY_VALUE = 2;
+
+    private static final long DEFAULT_MAX_DECOMPRESSED_BYTES = 32L * 1024 * 1024;
+
+    private final Gson gson = new Gson();
+    private final boolean publishBinary;
+    private final int compressionThreshold;
+    private final long maxDecompressedBytes;
+
+    public EmailMessageCodec(String payloadFormat, int compressionThreshold) {
+        this(payloadFormat, compressionThreshold, DEFAULT_MAX_DECOMPRESSED_BYTES);
+    }
+
+    /**
+     * @param payloadFormat        the format published messages are encoded in
+     * @param compressionThreshold the encoded payload size in bytes from which payloads are compressed, 0 or less
+     *                             to never compress
+     * @param maxDecompressedBytes the size a compressed payload may expand to when decoded
+     */
+    @Autowired
+    public EmailMessageCodec(
+            @Value("${gcp.pubsub.publisher.payload-format:json}") String payloadFormat,
+            @Value("${gcp.pubsub.publisher.compression.threshold-bytes:0}") int compressionThreshold,
+            @Value("${gcp.pubsub.consumer.max-decompressed-bytes:33554432}") long maxDecompressedBytes) {
+        this.publishBinary = "binary".equalsIgnoreCase(payloadFormat) || FORMAT_BINARY.equalsIgnoreCase(payloadFormat);
+        this.compressionThreshold = compressionThreshold;
+        this.maxDecompressedBytes = maxDecompressedBytes;
+        logger.info("Publishing email messages as {}{}.", publishBinary ? FORMAT_BINARY : FORMAT_JSON,
+                compressionThreshold > 0 ? ", gzip compressed from " + compressionThreshold + " bytes" : "");
+    }
+
+    /**
+     * Encodes the email in the configured publish format, compressing it if it is large enough.
+     */
+    public PubsubMessage toPubsubMessage(EmailMessage emailMessage) {
+        PubsubMessage.Builder builder = PubsubMessage.newBuilder();
+        ByteString data;
+        if (publishBinary) {
+            data = encodeBinary(emailMessage);
+            builder.putAttributes(FORMAT_ATTRIBUTE, FORMAT_BINARY);
+        } else {
+            data = ByteString.copyFromUtf8(gson.toJson(emailMessage));
+        }
+        if (compressionThreshold > 0 && data.size() >= compressionThreshold) {
+            ByteString compressed = gzip(data);
+            // Already compressed content (or random data) can grow; keep whichever is smaller.
+            if (compressed.size() < data.size()) {
+                data = compressed;
+                builder.putAttributes(ENCODING_ATTRIBUTE, ENCODING_GZIP);
+            }
+        }
+        return builder.setData(data).build();
+    }
+
+    /**
+     * Decodes the email from a message in any supported format.
+     *
+     * @throws UnsupportedPayloadException if the payload uses a format or encoding this version does not know
+     * @throws MalformedMessageException    if the payload cannot be decoded
+     */
+    public EmailMessage fromPubsubMessage(PubsubMessage message) {
+        String format = message.getAttributesOrDefault(FORMAT_ATTRIBUTE, FORMAT_JSON);
+        if (!FORMAT_JSON.equals(format) && !FORMAT_BINARY.equals(format)) {
+            throw new UnsupportedPayloadException("Unsupported payload format: " + format);
+        }
+        String encoding = message.getAttributesOrDefault(ENCODING_ATTRIBUTE, "");
+        InputStream input;
+        if (encoding.isEmpty()) {
+            input = message.getData().newInput();
+        } else if (ENCODING_GZIP.equals(encoding)) {
+            try {
+                input = new LimitedInputStream(new GZIPInputStream(message.getData().newInput(), 8192),
+                        maxDecompressedBytes);
+            } catch (IOException e) {
+                throw new MalformedMessageException("Invalid gzip email message: " + e.getMessage(), e);
+            }
+        } else {
+            throw new UnsupportedPayloadException("Unsupported content encoding: " + encoding);
+        }
+        return FORMAT_BINARY.equals(format) ? decodeBinary(input) : decodeJson(input);
+    }
+
+    EmailMessage decodeJson(ByteString data) {
+        return decodeJson(data.newInput());
+    }
+
+    EmailMessage decodeJson(InputStream data) {
+        EmailMessage emailMessage;
+        try (Reader reader = new InputStreamReader(data, StandardCharsets.UTF_8)) {
+            emailMessage = gson.fromJson(reader, EmailMessage.class);
+        } catch (JsonParseException | IOException e) {
+            throw new MalformedMessageException("Invalid JSON email message: " + e.getMessage(), e);
+        }
+        if (emailMessage == null) {
+            throw new MalformedMessageException("Empty JSON email message.");
+        }
+        return emailMessage;
+    }
+
+    ByteString encodeBinary(EmailMessage emailMessage) {
+        int size = stringSize(FIELD_TO, emailMessage.getTo())
+                + stringSize(FIELD_SUBJECT, emailMessage.getSubject())
+                + stringSize(FIELD_BODY, emailMessage.getBody())
+                + stringSize(FIELD_TEMPLATE_ID, emailMessage.getTemplateId())
+                + stringSize(FIELD_IDEMPOTENCY_KEY, emailMessage.getIdempotencyKey())
+                + (emailMessage.getPriority() == null ? 0
+                        : CodedOutputStream.computeUInt32Size(FIELD_PRIORITY, emailMessage.getPriority().ordinal() + 1))
+                + stringsSize(FIELD_CC, emailMessage.getCc())
+                + stringsSize(FIELD_BCC, emailMessage.getBcc())
+                + stringSize(FIELD_COALESCE_KEY, emailMessage.getCoalesceKey())
+                + stringsSize(FIELD_DELIVER_TO, emailMessage.getDeliverTo());
+        Map<String, String> variables = emailMessage.getTemplateVariables();
+        if (variables != null) {
+            for (Map.Entry<String, String> variable : variables.entrySet()) {
+                int entrySize = entrySize(variable);
+                size += CodedOutputStream.computeTagSize(FIELD_TEMPLATE_VARIABLE)
+                        + CodedOutputStream.computeUInt32SizeNoTag(entrySize) + entrySize;
+            }
+        }
+        byte[] buffer = new byte[size];
+        CodedOutputStream output = CodedOutputStream.newInstance(buffer);
+        try {
+            writeString(output, FIELD_TO, emailMessage.getTo());
+            writeString(output, FIELD_SUBJECT, emailMessage.getSubject());
+            writeString(output, FIELD_BODY, emailMessage.getBody());
+            writeString(output, FIELD_TEMPLATE_ID, emailMessage.getTemplateId());
+            if (variables != null) {
+                for (Map.Entry<String, String> variable : variables.entrySet()) {
+                    output.writeTag(FIELD_TEMPLATE_VARIABLE, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+                    output.writeUInt32NoTag(entrySize(variable));
+                    writeString(output, FIELD_ENTRY_KEY, variable.getKey());
+                    writeString(output, FIELD_ENTRY_VALUE, variable.getValue());
+                }
+            }
+            writeString(output, FIELD_IDEMPOTENCY_KEY, emailMessage.getIdempotencyKey());
+            if (emailMessage.getPriority() != null) {
+                output.writeUInt32(FIELD_PRIORITY, emailMessage.getPriority().ordinal() + 1);
+            }
+            writeStrings(output, FIELD_CC, emailMessage.getCc());
+            writeStrings(output, FIELD_BCC, emailMessage.getBcc());
+            writeString(output, FIELD_COALESCE_KEY, emailMessage.getCoalesceKey());
+            writeStrings(output, FIELD_DELIVER_TO, emailMessage.getDeliverTo());
+            output.checkNoSpaceLeft();
+        } catch (IOException e) {
+            // Cannot happen when writing to an array of the computed size.
+            throw new IllegalStateException("Failed to encode email message.", e);
+        }
+        // The buffer is not touched after this point, so it can be wrapped instead of copied.
+        return UnsafeByteOperations.unsafeWrap(buffer);
+    }
+
+    EmailMessage decodeBinary(ByteString data) {
+        return decodeBinary(data.newCodedInput());
+    }
+
+    EmailMessage decodeBinary(InputStream data) {
+        CodedInputStream input = CodedInputStream.newInstance(data);
+        try {
+            return decodeBinary(input);
+        } finally {
+            closeQuietly(data);
+        }
+    }
+
+    private EmailMessage decodeBinary(CodedInputStream input) {
+        EmailMessage emailMessage = new EmailMessage();
+        try {
+            int tag;
+            while ((tag = input.readTag()) != 0) {
+                int fieldNumber = WireFormat.getTagFieldNumber(tag);
+                if (WireFormat.getTagWireType(tag) != wireTypeOf(fieldNumber)) {
+                    // Like protobuf, unknown fields and known fields with an unexpected wire type are skipped.
+                    input.skipField(tag);
+                    continue;
+                }
+                switch (fieldNumber) {
+                    case FIELD_TO:
+                        emailMessage.setTo(input.readStringRequireUtf8());
+                        break;
+                    case FIELD_SUBJECT:
+                        emailMessage.setSubject(input.readStringRequireUtf8());
+                        break;
+                    case FIELD_BODY:
+                        emailMessage.setBody(input.readStringRequireUtf8());
+                        break;
+                    case FIELD_TEMPLATE_ID:
+                        emailMessage.setTemplateId(input.readStringRequireUtf8());
+                        break;
+                    case FIELD_TEMPLATE_VARIABLE:
+                        if (emailMessage.getTemplateVariables() == null) {
+                            emailMessage.setTemplateVariables(new HashMap<>());
+                        }
+                        readEntry(input, emailMessage.getTemplateVariables());
+                        break;
+                    case FIELD_IDEMPOTENCY_KEY:
+                        emailMessage.setIdempotencyKey(input.readStringRequireUtf8());
+                        break;
+                    case FIELD_PRIORITY:
+                        int priority = input.readUInt32();
+                        // Priorities added by newer producers are left unset rather than failing the message.
+                        if (priority > 0 && priority <= EmailPriority.values().length) {
+                            emailMessage.setPriority(EmailPriority.values()[priority - 1]);
+                        }
+                        break;
+                    case FIELD_CC:
+                        if (emailMessage.getCc() == null) {
+                            emailMessage.setCc(new ArrayList<>());
+                        }
+                        emailMessage.getCc().add(input.readStringRequireUtf8());
+                        break;
+                    case FIELD_BCC:
+                        if (emailMessage.getBcc() == null) {
+                            emailMessage.setBcc(new ArrayList<>());
+                        }
+                        emailMessage.getBcc().add(input.readStringRequireUtf8());
+                        break;
+                    case FIELD_COALESCE_KEY:
+                        emailMessage.setCoalesceKey(input.readStringRequireUtf8());
+                        break;
+                    case FIELD_DELIVER_TO:
+                        if (emailMessage.getDeliverTo() == null) {
+                            emailMessage.setDeliverTo(new ArrayList<>());
+                        }
+                        emailMessage.getDeliverTo().add(input.readStringRequireUtf8());
+                        break;
+                    default:
+                        input.skipField(tag);
+                }
+            }
+        } catch (IOException e) {
+            throw new MalformedMessageException("Invalid binary email message: " + e.getMessage(), e);
+        }
+        return emailMessage;
+    }
+
+    /**
+     * The wire type each known field is written with, or -1 for fields this version does not know.
+     */
+    private static int wireTypeOf(int fieldNumber) {
+        switch (fieldNumber) {
+            case FIELD_PRIORITY:
+                return WireFormat.WIRETYPE_VARINT;
+            case FIELD_TO:
+            case FIELD_SUBJECT:
+            case FIELD_BODY:
+            case FIELD_TEMPLATE_ID:
+            case FIELD_TEMPLATE_VARIABLE:
+            case FIELD_IDEMPOTENCY_KEY:
+            case FIELD_CC:
+            case FIELD_BCC:
+            case FIELD_COALESCE_KEY:
+            case FIELD_DELIVER_TO:
+                return WireFormat.WIRETYPE_LENGTH_DELIMITED;
+            default:
+                return -1;
+        }
+    }
+
+    static ByteString gzip(ByteString data) {
+        ByteString.Output output = ByteString.newOutput(Math.max(data.size() / 4, 256));
+        try (OutputStream gzip = new GZIPOutputStream(output, 8192)) {
+            data.writeTo(gzip);
+        } catch (IOException e) {
+            // Cannot happen when writing to memory.
+            throw new IllegalStateException("Failed to compress email message.", e);
+        }
+        return output.toByteString();
+    }
+
+    private static void closeQuietly(InputStream input) {
+        try {
+            input.close();
+        } catch (IOException e) {
+            // Nothing to release for in-memory streams.
+        }
+    }
+
+    /**
+     * Fails reading once more than the limit was read, instead of silently truncating the payload.
+     */
+    private static final class LimitedInputStream extends FilterInputStream {
+
+        private final long limit;
+        private long remaining;
+
+        private LimitedInputStream(InputStream input, long limit) {
+            super(input);
+            this.limit = limit;
+            this.remaining = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                consumed(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int read = super.read(buffer, offset, length);
+            if (read > 0) {
+                consumed(read);
+            }
+            return read;
+        }
+
+        private void consumed(int count) throws IOException {
+            remaining -= count;
+            if (remaining < 0) {
+                throw new IOException("Decompressed payload exceeds " + limit + " bytes.");
+            }
+        }
+    }
+
+    private static void readEntry(CodedInputStream input, Map<String, String> map) throws IOException {
+        int oldLimit = input.pushLimit(input.readRawVarint32());
+        String key = "";
+        String value = "";
+        int tag;
+        while ((tag = input.readTag()) != 0) {
+            if (WireFormat.getTagWireType(tag) != WireFormat.WIRETYPE_LENGTH_DELIMITED) {
+                input.skipField(tag);
+                continue;
+            }
+            switch (WireFormat.getTagFieldNumber(tag)) {
+                case FIELD_ENTRY_KEY:
+                    key = input.readStringRequireUtf8();
+                    break;
+                case FIELD_ENTRY_VALUE:
+                    value = input.readStringRequireUtf8();
+                    break;
+                default:
+                    input.skipField(tag);
+            }
+        }
+        input.popLimit(oldLimit);
+        map.put(key, value);
+    }
+
+    private static int entrySize(Map.Entry<String, String> entry) {
+        return stringSize(FIELD_ENTRY_KEY, entry.getKey()) + stringSize(FIELD_ENTRY_VALUE, entry.getValue());
+    }
+
+    private static int stringSize(int fieldNumber, String value) {
+        return value == null ? 0 : CodedOutputStream.computeStringSize(fieldNumber, value);
+    }
+
+    private static int stringsSize(int fieldNumber, List<String> values) {
+        int size = 0;
+        if (values != null) {
+            for (String value : values) {
+                size += stringSize(fieldNumber, value);
+            }
+        }
+        return size;
+    }
+
+    private static void writeString(CodedOutputStream output, int fieldNumber, String value) throws IOException {
+        if (value != null) {
+            output.writeString(fieldNumber, value);
+        }
+    }
+
+    private static void writeStrings(CodedOutputStream output, int fieldNumber, List<String> values) throws IOException {
+        if (values != null) {
+            for (String value : values) {
+                writeString(output, fieldNumber, value);
+            }
+        }
+    }
+}
@@ -1,44 +1,368 @@
 package com.mycompany.app.service;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.mail.MailAuthenticationException;
 import org.springframework.mail.MailException;
-import org.springframework.mail.SimpleMailMessage;
+import org.springframework.mail.MailPreparationException;
+import org.springframework.mail.MailSendException;
 import org.springframework.mail.javamail.JavaMailSender;
+import org.springframework.mail.javamail.MimeMessageHelper;
 import org.springframework.stereotype.Service;
 
+import com.mycompany.app.exception.PartialDeliveryException;
 import com.mycompany.app.model.EmailMessage;
+import com.mycompany.app.service.HotPathEvents.Event;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.mail.Address;
+import jakarta.mail.AuthenticationFailedException;
+import jakarta.mail.MessagingException;
+import jakarta.mail.SendFailedException;
+import jakarta.mail.internet.AddressException;
+import jakarta.mail.internet.InternetAddress;
+import jakarta.mail.internet.MimeMessage;
 
 @Service
 public class EmailService {
 
     private static final Logger logger = LoggerFactory.getLogger(EmailService.class);
+    private static final String FROM_ADDRESS = "notification@mycompany.com";
 
     private final JavaMailSender mailSender;
+    private final SmtpRelayGroup relayGroup;
+    private final MailHealthState mailHealthState;
+    private final EmailTemplateRenderer templateRenderer;
+    private final HotPathEvents events;
+    private final int maxRecipientsPerTransaction;
+    private final Timer sendSuccessTimer;
+    private final Timer sendFailureTimer;
+    private final Timer batchSendTimer;
+    private final DistributionSummary batchSize;
+    private final Counter recipientsRejected;
 
     @Autowired
-    public EmailService(JavaMailSender mailSender) {
+    public EmailService(JavaMailSender mailSender, SmtpRelayGroup relayGroup, MailHealthState mailHealthState,
+            EmailTemplateRenderer templateRenderer, MeterRegistry meterRegistry, HotPathEvents events,
+            @Value("${email.smtp.max-recipients-per-transaction:100}") int maxRecipientsPerTransaction) {
         this.mailSender = mailSender;
+        this.relayGroup = relayGroup;
+        this.mailHealthState = mailHealthState;
+        this.templateRenderer = templateRenderer;
+        this.events = events;
+        this.maxRecipientsPerTransaction = Math.max(1, maxRecipientsPerTransaction);
+        this.sendSuccessTimer = sendTimer(meterRegistry, "single", "success");
+        this.sendFailureTimer = sendTimer(meterRegistry, "single", "failure");
+        this.batchSendTimer = sendTimer(meterRegistry, "batch", "completed");
+        this.batchSize = DistributionSummary.builder("email.smtp.batch.size")
+                .description("Number of emails sent per SMTP batch")
+                .register(meterRegistry);
+        this.recipientsRejected = Counter.builder("email.smtp.recipients.rejected")
+                .description("Recipients of multi-recipient emails the email was not delivered to")
+                .register(meterRegistry);
     }
 
-    public void sendEmail(EmailMessage emailMessage) throws MailException {
-        logger.info("Attempting to send email to: {}", emailMessage.getTo());
+    private static Timer sendTimer(MeterRegistry meterRegistry, String type, String outcome) {
+        return Timer.builder("email.smtp.send")
+                .description("Time to build and send an email, or a whole batch of emails, over SMTP")
+                .tag("type", type)
+                .tag("outcome", outcome)
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+    }
 
+    /**
+     * Sends the email to all of its recipients, or only to its {@code deliverTo} recipients if it has any.
+     * <p>
+     * An email with Cc or Bcc recipients is transferred once per {@code max-recipients-per-transaction}
+     * recipients, as one SMTP transaction with many {@code RCPT TO}s, over a pooled connection. Recipients the
+     * relay refuses for good (SMTP 5xx) are left out and returned. Recipients that could not be reached for now,
+     * because a transaction failed as a whole or the relay deferred them, are not given up on: if the email
+     * reached anyone else, a {@link PartialDeliveryException} names them, so that only they are sent to again. The
+     * send only fails outright if the email reached no recipient at all, so retrying it cannot send it twice to
+     * anyone. Without the connection pool all recipients are sent to in one transaction, which fails as a whole.
+     *
+     * @return the recipients the email was not delivered to, empty when it reached every recipient
+     * @throws PartialDeliveryException if the email reached some recipients and may still reach others
+     */
+    public List<String> sendEmail(EmailMessage emailMessage) throws MailException {
+        long startNanos = System.nanoTime();
+        List<String> undelivered = List.of();
+        List<String> retryRecipients = new ArrayList<>();
         try {
-            SimpleMailMessage message = new SimpleMailMessage();
-            message.setTo(emailMessage.getTo());
-            message.setSubject(emailMessage.getSubject());
-            message.setFrom("notification@mycompany.com");
-            // Assuming EmailMessage has a getBody() method for the email content.
-            message.setText(emailMessage.getBody());
-
-            mailSender.send(message);
-
-            logger.info("Successfully sent email to: {}", emailMessage.getTo());
+            MimeMessage message = createMimeMessage(emailMessage);
+            if (relayGroup.isEnabled() && isSentPerRecipient(emailMessage)) {
+                undelivered = sendToRecipients(message, recipientsOf(emailMessage, message), retryRecipients);
+            } else if (emailMessage.getDeliverTo() != null) {
+                // Sending the message as a whole would send it again to the recipients it already reached.
+                throw new MailPreparationException("Sending to only some of the recipients of an email needs the SMTP connection pool.");
+            } else if (relayGroup.isEnabled()) {
+                relayGroup.send(message);
+            } else {
+                mailSender.send(message);
+            }
+            sendSuccessTimer.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+            mailHealthState.recordSendSuccess();
+            events.record(Event.SENT, emailMessage.getTo());
+            if (!undelivered.isEmpty()) {
+                recipientsRejected.increment(undelivered.size());
+                logger.warn("Email to {} was not delivered to {} of its {} recipients: {}", emailMessage.getTo(),
+                        undelivered.size(), emailMessage.getAllRecipients().size(), undelivered);
+            }
+        } catch (MessagingException e) {
+            sendFailureTimer.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+            MailException mailException = translate(e);
+            mailHealthState.recordSendFailure(mailException);
+            logger.error("Failed to send email to: {}", emailMessage.getTo(), mailException);
+            throw mailException;
         } catch (MailException e) {
+            sendFailureTimer.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+            mailHealthState.recordSendFailure(e);
             logger.error("Failed to send email to: {}", emailMessage.getTo(), e);
             throw e;
         }
+        if (!retryRecipients.isEmpty()) {
+            logger.warn("Email to {} could not be delivered to {} of its recipients for now: {}", emailMessage.getTo(),
+                    retryRecipients.size(), retryRecipients);
+            throw new PartialDeliveryException(undelivered, retryRecipients);
+        }
+        return undelivered;
+    }
+
+    /**
+     * Emails to more than one recipient, or to only some of their recipients, are sent to chunks of recipients.
+     */
+    private static boolean isSentPerRecipient(EmailMessage emailMessage) {
+        return emailMessage.getDeliverTo() != null || emailMessage.getAllRecipients().size() > 1;
+    }
+
+    private static Address[] recipientsOf(EmailMessage emailMessage, MimeMessage message) throws MessagingException {
+        if (emailMessage.getDeliverTo() == null) {
+            return message.getAllRecipients();
+        }
+        Set<String> allRecipients = new HashSet<>();
+        for (String recipient : emailMessage.getAllRecipients()) {
+            allRecipients.add(recipient.trim().toLowerCase(Locale.ROOT));
+        }
+        List<Address> recipients = new ArrayList<>(emailMessage.getDeliverTo().size());
+        for (String recipient : emailMessage.getDeliverTo()) {
+            // Only ever a subset of the email's own recipients, so the payload cannot address anyone else.
+            if (recipient == null || !allRecipients.contains(recipient.trim().toLowerCase(Locale.ROOT))) {
+                throw new MailPreparationException("Recipient to deliver to is not a recipient of the email: " + recipient);
+            }
+            try {
+                recipients.add(new InternetAddress(recipient));
+            } catch (AddressException e) {
+                throw new MailPreparationException("Invalid recipient to deliver to: " + recipient, e);
+            }
+        }
+        return recipients.toArray(new Address[0]);
+    }
+
+    /**
+     * Sends the message in chunks of recipients. Chunks that were refused only because of some recipients, without
+     * anything being sent, are sent again once to their other recipients.
+     *
+     * @param retryRecipients receives the recipients the message may still be delivered to later
+     * @return the recipients the message was not delivered to for good
+     * @throws MessagingException the first failure, if the message was not delivered to any recipient
+     */
+    private List<String> sendToRecipients(MimeMessage message, Address[] recipients, List<String> retryRecipients)
+            throws MessagingException {
+        List<Address[]> chunks = chunk(Arrays.asList(recipients));
+        MessagingException[] failures = relayGroup.sendToRecipients(message, chunks);
+        List<String> undelivered = new ArrayList<>();
+        List<Address> retry = new ArrayList<>();
+        MessagingException firstFailure = null;
+        boolean delivered = false;
+        for (int i = 0; i < chunks.size(); i++) {
+            if (failures[i] == null) {
+                delivered = true;
+            } else {
+                firstFailure = firstFailure == null ? failures[i] : firstFailure;
+                delivered |= collectUndelivered(failures[i], chunks.get(i), undelivered, retryRecipients, retry);
+            }
+        }
+        if (!retry.isEmpty()) {
+            List<Address[]> retryChunks = chunk(retry);
+            MessagingException[] retryFailures = relayGroup.sendToRecipients(message, retryChunks);
+            for (int i = 0; i < retryChunks.size(); i++) {
+                if (retryFailures[i] == null) {
+                    delivered = true;
+                } else {
+                    delivered |= collectUndelivered(retryFailures[i], retryChunks.get(i), undelivered, retryRecipients, null);
+                }
+            }
+        }
+        if (!delivered) {
+            throw firstFailure;
+        }
+        return undelivered;
+    }
+
+    private List<Address[]> chunk(List<Address> recipients) {
+        List<Address[]> chunks = new ArrayList<>();
+        for (int from = 0; from < recipients.size(); from += maxRecipientsPerTransaction) {
+            chunks.add(recipients.subList(from, Math.min(recipients.size(), from + maxRecipientsPerTransaction))
+                    .toArray(new Address[0]));
+        }
+        return chunks;
+    }
+
+    /**
+     * Adds the recipients a chunk was not delivered to. Recipients the relay refused for good are reported as
+     * invalid and are undelivered. Recipients it deferred with a 4xx reply are reported as valid but unsent, and go
+     * to {@code retryRecipients} like all recipients of a chunk whose transaction failed as a whole without a 5xx
+     * reply, e.g. because the connection was lost or {@code DATA} was deferred. When the relay refused some
+     * recipients and, because {@code mail.smtp.sendpartial} is off, sent nothing, the others are added to
+     * {@code retry}, if given, to be sent to again right away.
+     *
+     * @return whether the chunk was delivered to any recipient
+     */
+    private static boolean collectUndelivered(MessagingException failure, Address[] chunk, List<String> undelivered,
+            List<String> retryRecipients, List<Address> retry) {
+        if (failure instanceof SendFailedException sendFailed
+                && (!isEmpty(sendFailed.getInvalidAddresses()) || !isEmpty(sendFailed.getValidSentAddresses()))) {
+            addAll(undelivered, sendFailed.getInvalidAddresses());
+            if (!isEmpty(sendFailed.getValidSentAddresses())) {
+                addAll(retryRecipients, sendFailed.getValidUnsentAddresses());
+                return true;
+            }
+            if (retry != null && !isEmpty(sendFailed.getValidUnsentAddresses())) {
+                retry.addAll(Arrays.asList(sendFailed.getValidUnsentAddresses()));
+            } else {
+                addAll(retryRecipients, sendFailed.getValidUnsentAddresses());
+            }
+            return false;
+        }
+        int returnCode = DomainRateLimiter.smtpReturnCode(failure);
+        addAll(returnCode >= 500 && returnCode < 600 ? undelivered : retryRecipients, chunk);
+        return false;
+    }
+
+    private static boolean isEmpty(Address[] addresses) {
+        return addresses == null || addresses.length == 0;
+    }
+
+    private static void addAll(List<String> target, Address[] addresses) {
+        if (addresses != null) {
+            for (Address address : addresses) {
+                target.add(address.toString());
+            }
+        }
+    }
+
+    /**
+     * Sends the emails as one batch over a single SMTP connection. A failure of one email does not prevent
+     * the others from being sent. Emails with more than one recipient are sent on their own, so that the
+     * recipients they could not be delivered to are reported rather than failing the email.
+     *
+     * @return the emails that could not be sent, mapped to the failure. Empty when all were sent.
+     */
+    public Map<EmailMessage, MailException> sendEmails(List<EmailMessage> emailMessages) {
+        long startNanos = System.nanoTime();
+        Map<EmailMessage, MailException> failures = new IdentityHashMap<>();
+        List<EmailMessage> prepared = new ArrayList<>(emailMessages.size());
+        List<MimeMessage> messages = new ArrayList<>(emailMessages.size());
+        for (EmailMessage emailMessage : emailMessages) {
+            try {
+                if (isSentPerRecipient(emailMessage)) {
+                    sendEmail(emailMessage);
+                    continue;
+                }
+                messages.add(createMimeMessage(emailMessage));
+                prepared.add(emailMessage);
+            } catch (MailException e) {
+                failures.put(emailMessage, e);
+            }
+        }
+        if (messages.isEmpty()) {
+            return failures;
+        }
+
+        if (relayGroup.isEnabled()) {
+            Map<MimeMessage, MessagingException> sendFailures = relayGroup.sendBatch(messages);
+            for (int i = 0; i < messages.size(); i++) {
+                MessagingException failure = sendFailures.get(messages.get(i));
+                if (failure != null) {
+                    failures.put(prepared.get(i), translate(failure));
+                }
+            }
+        } else {
+            try {
+                mailSender.send(messages.toArray(new MimeMessage[0]));
+            } catch (MailSendException e) {
+                Map<Object, Exception> failedMessages = e.getFailedMessages();
+                for (int i = 0; i < messages.size(); i++) {
+                    Exception failure = failedMessages.isEmpty() ? e : failedMessages.get(messages.get(i));
+                    if (failure != null) {
+                        failures.put(prepared.get(i), failure instanceof MessagingException messagingException
+                                ? translate(messagingException) : e);
+                    }
+                }
+            } catch (MailException e) {
+                prepared.forEach(emailMessage -> failures.put(emailMessage, e));
+            }
+        }
+
+        batchSendTimer.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+        batchSize.record(emailMessages.size());
+        if (failures.size() < emailMessages.size()) {
+            mailHealthState.recordSendSuccess();
+        }
+        // Reported after the successes, so a connection lost late in the batch still marks the server DOWN.
+        failures.values().forEach(mailHealthState::recordSendFailure);
+
+        logger.info("Sent batch of {} emails, {} failed.", emailMessages.size(), failures.size());
+        return failures;
+    }
+
+    MimeMessage createMimeMessage(EmailMessage emailMessage) throws MailException {
+        try {
+            MimeMessage message = mailSender.createMimeMessage();
+            MimeMessageHelper helper = new MimeMessageHelper(message, "UTF-8");
+            helper.setTo(emailMessage.getTo());
+            if (emailMessage.getCc() != null && !emailMessage.getCc().isEmpty()) {
+                helper.setCc(emailMessage.getCc().toArray(new String[0]));
+            }
+            if (emailMessage.getBcc() != null && !emailMessage.getBcc().isEmpty()) {
+                // Bcc is not written to the transferred message, it only adds RCPT TO entries.
+                helper.setBcc(emailMessage.getBcc().toArray(new String[0]));
+            }
+            helper.setSubject(emailMessage.getSubject());
+            helper.setFrom(FROM_ADDRESS);
+            helper.setText(emailMessage.isTemplated()
+                    ? templateRenderer.render(emailMessage.getTemplateId(), emailMessage.getTemplateVariables())
+                    : emailMessage.getBody());
+            return message;
+        } catch (MessagingException e) {
+            throw new MailPreparationException("Failed to prepare email for: " + emailMessage.getTo(), e);
+        }
+    }
+
+    /**
+     * Maps a Jakarta Mail exception to the Spring {@link MailException} hierarchy, the same way
+     * {@code JavaMailSenderImpl} does, so callers keep handling a single exception type.
+     */
+    static MailException translate(MessagingException e) {
+        if (e instanceof AuthenticationFailedException) {
+            return new MailAuthenticationException(e);
+        }
+        return new MailSendException("Failed to send email: " + e.getMessage(), e);
     }
-}
\ No newline at end of file
+}
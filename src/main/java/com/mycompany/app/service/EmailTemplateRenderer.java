@@ -0,0 +1,180 @@
+package com.mycompany.app.service;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.Resource;
+import org.springframework.core.io.ResourceLoader;
+import org.springframework.mail.MailPreparationException;
+import org.springframework.stereotype.Service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Renders email bodies from templates with {@code {{name}}} placeholders.
+ * <p>
+ * Templates are loaded from {@code email.templates.location} through the Spring {@link ResourceLoader}, so both
+ * {@code classpath:} locations and {@code gs://bucket/path/} locations (through the Cloud Storage starter) work.
+ * A loaded template is compiled once into literal and placeholder parts and kept in a bounded LRU cache; entries
+ * expire after {@code email.templates.cache.ttl-ms} so that changed templates are picked up.
+ */
+@Service
+public class EmailTemplateRenderer {
+
+    private static final Logger logger = LoggerFactory.getLogger(EmailTemplateRenderer.class);
+
+    // Same rule as EmailMessage.templateId; checked again here because consumed messages are not validated.
+    private static final Pattern TEMPLATE_ID = Pattern.compile("[A-Za-z0-9_-]+(/[A-Za-z0-9_-]+)*");
+
+    private final ResourceLoader resourceLoader;
+    private final String location;
+    private final String suffix;
+    private final long ttlMs;
+    private final Map<String, CompiledTemplate> cache;
+    private final Counter hitCounter;
+    private final Counter missCounter;
+
+    public EmailTemplateRenderer(
+            ResourceLoader resourceLoader,
+            @Value("${email.templates.location:classpath:/templates/email/}") String location,
+            @Value("${email.templates.suffix:.txt}") String suffix,
+            @Value("${email.templates.cache.max-size:256}") int maxSize,
+            @Value("${email.templates.cache.ttl-ms:300000}") long ttlMs,
+            MeterRegistry meterRegistry) {
+        this.resourceLoader = resourceLoader;
+        this.location = location.endsWith("/") ? location : location + "/";
+        this.suffix = suffix;
+        this.ttlMs = ttlMs;
+        this.cache = Collections.synchronizedMap(new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CompiledTemplate> eldest) {
+                return size() > maxSize;
+            }
+        });
+        this.hitCounter = cacheCounter(meterRegistry, "hit");
+        this.missCounter = cacheCounter(meterRegistry, "miss");
+        Gauge.builder("email.templates.cache.size", cache, Map::size)
+                .description("Compiled email templates held in the cache")
+                .register(meterRegistry);
+    }
+
+    private static Counter cacheCounter(MeterRegistry meterRegistry, String result) {
+        return Counter.builder("email.templates.cache")
+                .description("Email template cache lookups")
+                .tag("result", result)
+                .register(meterRegistry);
+    }
+
+    /**
+     * Renders the template with the given variables.
+     *
+     * @throws MailPreparationException if the template does not exist, cannot be loaded or uses a variable that
+     *                                  was not given
+     */
+    public String render(String templateId, Map<String, String> variables) throws MailPreparationException {
+        return template(templateId).render(variables == null ? Map.of() : variables);
+    }
+
+    private CompiledTemplate template(String templateId) {
+        if (templateId == null || !TEMPLATE_ID.matcher(templateId).matches()) {
+            throw new MailPreparationException("Invalid template ID: " + templateId);
+        }
+        long now = System.currentTimeMillis();
+        CompiledTemplate template = cache.get(templateId);
+        if (template != null && (ttlMs <= 0 || now - template.loadedAt < ttlMs)) {
+            hitCounter.increment();
+            return template;
+        }
+        missCounter.increment();
+        // Loaded outside the cache lock; concurrent misses for the same template at worst load it twice.
+        template = CompiledTemplate.compile(templateId, load(templateId), now);
+        cache.put(templateId, template);
+        return template;
+    }
+
+    private String load(String templateId) {
+        Resource resource = resourceLoader.getResource(location + templateId + suffix);
+        try (InputStream input = resource.getInputStream()) {
+            String content = new String(input.readAllBytes(), StandardCharsets.UTF_8);
+            logger.info("Loaded email template {} from {}.", templateId, resource.getDescription());
+            return content;
+        } catch (FileNotFoundException e) {
+            throw new MailPreparationException("Email template not found: " + templateId, e);
+        } catch (IOException e) {
+            throw new MailPreparationException("Failed to load email template: " + templateId, e);
+        }
+    }
+
+    /**
+     * A template split into its parts once, so rendering is a single pass of appends.
+     */
+    static final class CompiledTemplate {
+
+        private static final String OPEN = "{{";
+        private static final String CLOSE = "}}";
+
+        private final String templateId;
+        // Even indexes are literal text, odd indexes are variable names.
+        private final List<String> parts;
+        private final int literalLength;
+        private final long loadedAt;
+
+        private CompiledTemplate(String templateId, List<String> parts, int literalLength, long loadedAt) {
+            this.templateId = templateId;
+            this.parts = parts;
+            this.literalLength = literalLength;
+            this.loadedAt = loadedAt;
+        }
+
+        static CompiledTemplate compile(String templateId, String content, long loadedAt) {
+            List<String> parts = new ArrayList<>();
+            int literalLength = 0;
+            int position = 0;
+            while (true) {
+                int open = content.indexOf(OPEN, position);
+                int close = open < 0 ? -1 : content.indexOf(CLOSE, open + OPEN.length());
+                if (close < 0) {
+                    parts.add(content.substring(position));
+                    literalLength += content.length() - position;
+                    break;
+                }
+                parts.add(content.substring(position, open));
+                parts.add(content.substring(open + OPEN.length(), close).trim());
+                literalLength += open - position;
+                position = close + CLOSE.length();
+            }
+            return new CompiledTemplate(templateId, List.copyOf(parts), literalLength, loadedAt);
+        }
+
+        String render(Map<String, String> variables) {
+            StringBuilder result = new StringBuilder(literalLength + 16 * (parts.size() / 2));
+            for (int i = 0; i < parts.size(); i++) {
+                String part = parts.get(i);
+                if (i % 2 == 0) {
+                    result.append(part);
+                } else {
+                    String value = variables.get(part);
+                    if (value == null) {
+                        throw new MailPreparationException(
+                                "Missing variable '" + part + "' for email template: " + templateId);
+                    }
+                    result.append(value);
+                }
+            }
+            return result.toString();
+        }
+    }
+}
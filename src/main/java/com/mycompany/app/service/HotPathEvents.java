@@ -0,0 +1,113 @@
+package com.mycompany.app.service;
+
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.StringJoiner;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Records the routine per-message events of the publish, consume and send path without logging a line for each.
+ * <p>
+ * In the default {@code aggregated} mode every event only increments a counter: the {@code email.events} meter
+ * and an interval count that is logged as one summary line per {@code summary-interval-ms}. A fraction
+ * ({@code sample-rate}) of the events is still logged individually, so there are examples to follow in the
+ * logs; with DEBUG enabled for this class every event is. The event's subject (message ID or recipient) is only
+ * formatted when the event is logged. The {@code per-message} mode logs every event at INFO, as before.
+ * <p>
+ * Warnings and errors are not events; they are logged where they happen.
+ */
+@Service
+public class HotPathEvents {
+
+    private static final Logger logger = LoggerFactory.getLogger(HotPathEvents.class);
+
+    public enum Event {
+        /** A message was received from Pub/Sub and parsed. */
+        RECEIVED("Received Pub/Sub message {}."),
+        /** A redelivered message whose email was already sent was acked without sending. */
+        DUPLICATE("Email of message {} was already sent. Acknowledging without sending again."),
+        /** A message whose email is being sent by another delivery was nacked. */
+        IN_PROGRESS("Email of message {} is being sent by another delivery. nack message to check again later."),
+        /** A send was delayed to stay within the recipient domain's rate limit. */
+        DELAYED("Delaying message {} to stay within the rate limit of the recipient domain."),
+        /** An email was handed to the SMTP server. */
+        SENT("Sent email to {}."),
+        /** A message was acked after its email was sent. */
+        ACKED("Message {} processed and acknowledged."),
+        /** A message was published to Pub/Sub. */
+        PUBLISHED("Published message with ID {}.");
+
+        private final String pattern;
+
+        Event(String pattern) {
+            this.pattern = pattern;
+        }
+    }
+
+    private final boolean perMessage;
+    private final double sampleRate;
+    private final Map<Event, Counter> counters = new EnumMap<>(Event.class);
+    private final Map<Event, LongAdder> intervalCounts = new EnumMap<>(Event.class);
+    private long intervalStartMs = System.currentTimeMillis();
+
+    public HotPathEvents(
+            @Value("${email.logging.hot-path.mode:aggregated}") String mode,
+            @Value("${email.logging.hot-path.sample-rate:0.001}") double sampleRate,
+            MeterRegistry meterRegistry) {
+        this.perMessage = "per-message".equals(mode);
+        this.sampleRate = sampleRate;
+        for (Event event : Event.values()) {
+            counters.put(event, Counter.builder("email.events")
+                    .description("Routine events of the publish, consume and send path")
+                    .tag("event", event.name().toLowerCase(Locale.ROOT))
+                    .register(meterRegistry));
+            intervalCounts.put(event, new LongAdder());
+        }
+    }
+
+    /**
+     * Records an event about a message ID or recipient.
+     */
+    public void record(Event event, Object subject) {
+        counters.get(event).increment();
+        intervalCounts.get(event).increment();
+        if (perMessage) {
+            logger.info(event.pattern, subject);
+        } else if (logger.isDebugEnabled()) {
+            logger.debug(event.pattern, subject);
+        } else if (sampleRate > 0 && ThreadLocalRandom.current().nextDouble() < sampleRate) {
+            logger.info("[sampled] " + event.pattern, subject);
+        }
+    }
+
+    /**
+     * Logs the events counted since the last summary as one line.
+     */
+    @Scheduled(fixedDelayString = "${email.logging.hot-path.summary-interval-ms:60000}")
+    public void logSummary() {
+        long now = System.currentTimeMillis();
+        StringJoiner counts = new StringJoiner(", ");
+        for (Map.Entry<Event, LongAdder> entry : intervalCounts.entrySet()) {
+            long count = entry.getValue().sumThenReset();
+            if (count > 0) {
+                counts.add(entry.getKey().name().toLowerCase(Locale.ROOT) + "=" + count);
+            }
+        }
+        long intervalMs = now - intervalStartMs;
+        intervalStartMs = now;
+        if (counts.length() > 0) {
+            logger.info("Email events in the last {} s: {}.", intervalMs / 1000, counts);
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package com.mycompany.app.service;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.mail.MailAuthenticationException;
+import org.springframework.mail.MailException;
+import org.springframework.mail.MailSendException;
+import org.springframework.stereotype.Service;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.mail.MessagingException;
+
+/**
+ * Cached UP/DOWN state of the mail server.
+ * <p>
+ * Reading the state is a single volatile read, so it can be checked for every message. The state is refreshed
+ * in the background with the actuator mail health check (which opens its own SMTP connection) and is also
+ * updated passively from real send outcomes: a send that fails because the server cannot be reached marks the
+ * state DOWN right away, and a successful send marks it UP again.
+ * <p>
+ * With further relays configured ({@code email.smtp.relays}), the mail service is UP while any relay can be
+ * reached: sends fail over to the other relays, so only a failure of all of them surfaces here.
+ * <p>
+ * The health check connects to every relay and can take as long as their connection timeouts, so it runs on a
+ * thread of its own rather than on the shared scheduler, where it would hold up the other scheduled tasks.
+ */
+@Service
+public class MailHealthState {
+
+    private static final Logger logger = LoggerFactory.getLogger(MailHealthState.class);
+
+    private final EmailServiceChecker emailChecker;
+    private final SmtpRelayGroup relayGroup;
+    private final long refreshIntervalMs;
+    private ScheduledExecutorService refresher;
+    private volatile boolean up = true;
+    private volatile long lastChangedAt = System.currentTimeMillis();
+
+    public MailHealthState(EmailServiceChecker emailChecker, SmtpRelayGroup relayGroup) {
+        this(emailChecker, relayGroup, 0);
+    }
+
+    /**
+     * @param refreshIntervalMs how often the health check runs in the background, 0 to only run it on
+     *                          {@link #refresh()}
+     */
+    @Autowired
+    public MailHealthState(EmailServiceChecker emailChecker, SmtpRelayGroup relayGroup,
+            @Value("${email.health.refresh-interval-ms:10000}") long refreshIntervalMs) {
+        this.emailChecker = emailChecker;
+        this.relayGroup = relayGroup;
+        this.refreshIntervalMs = refreshIntervalMs;
+    }
+
+    @PostConstruct
+    public void init() {
+        refresh();
+        if (refreshIntervalMs > 0) {
+            refresher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "mail-health-refresh");
+                thread.setDaemon(true);
+                return thread;
+            });
+            refresher.scheduleWithFixedDelay(this::refreshInBackground, refreshIntervalMs, refreshIntervalMs,
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @PreDestroy
+    public void tearDown() {
+        if (refresher != null) {
+            refresher.shutdownNow();
+        }
+    }
+
+    private void refreshInBackground() {
+        try {
+            refresh();
+        } catch (RuntimeException e) {
+            // A task that throws is not run again, so the state would never be refreshed from then on.
+            logger.error("Mail health check failed.", e);
+        }
+    }
+
+    public void refresh() {
+        update(emailChecker.isMailServiceHealthy() || relayGroup.isFallbackRelayReachable(), "health check");
+    }
+
+    public boolean isUp() {
+        return up;
+    }
+
+    public long getLastChangedAt() {
+        return lastChangedAt;
+    }
+
+    public void recordSendSuccess() {
+        if (!up) {
+            update(true, "successful send");
+        }
+    }
+
+    public void recordSendFailure(MailException e) {
+        if (up && indicatesServerDown(e)) {
+            update(false, "failed send: " + e.getMessage());
+        }
+    }
+
+    private synchronized void update(boolean healthy, String source) {
+        if (healthy == up) {
+            return;
+        }
+        up = healthy;
+        lastChangedAt = System.currentTimeMillis();
+        if (healthy) {
+            logger.info("Mail service is UP (detected by {}).", source);
+        } else {
+            logger.warn("Mail service is DOWN (detected by {}).", source);
+        }
+    }
+
+    /**
+     * Recipient rejections and messages that could not be prepared do not say anything about the server,
+     * only authentication failures and connection failures do.
+     */
+    private static boolean indicatesServerDown(MailException e) {
+        if (e instanceof MailAuthenticationException) {
+            return true;
+        }
+        if (e instanceof MailSendException sendException) {
+            if (sendException.getCause() instanceof MessagingException cause) {
+                return SmtpTransportPool.isConnectionFailure(cause);
+            }
+            for (Exception failure : sendException.getFailedMessages().values()) {
+                if (failure instanceof MessagingException messagingException
+                        && SmtpTransportPool.isConnectionFailure(messagingException)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+}
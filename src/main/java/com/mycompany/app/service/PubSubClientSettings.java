@@ -0,0 +1,102 @@
+package com.mycompany.app.service;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import com.google.api.gax.core.NoCredentialsProvider;
+import com.google.api.gax.grpc.GrpcTransportChannel;
+import com.google.api.gax.rpc.FixedTransportChannelProvider;
+import com.google.api.gax.rpc.TransportChannelProvider;
+import com.google.cloud.pubsub.v1.Publisher;
+import com.google.cloud.pubsub.v1.Subscriber;
+import com.google.cloud.pubsub.v1.SubscriptionAdminSettings;
+import com.google.cloud.pubsub.v1.stub.SubscriberStubSettings;
+
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import jakarta.annotation.PreDestroy;
+
+/**
+ * Points the Pub/Sub clients at Google Cloud or, with {@code gcp.pubsub.emulator-host} set, at an emulator.
+ * <p>
+ * Against an emulator (the Pub/Sub emulator, or the in-process fake of the load test) every client shares one
+ * plaintext channel and sends no credentials. Otherwise the builders are left as they are.
+ */
+@Service
+public class PubSubClientSettings {
+
+    private static final Logger logger = LoggerFactory.getLogger(PubSubClientSettings.class);
+
+    private final String emulatorHost;
+    private ManagedChannel emulatorChannel;
+
+    public PubSubClientSettings(@Value("${gcp.pubsub.emulator-host:}") String emulatorHost) {
+        this.emulatorHost = emulatorHost == null ? "" : emulatorHost.trim();
+        if (isEmulator()) {
+            logger.warn("Pub/Sub clients use the emulator at {}.", this.emulatorHost);
+        }
+    }
+
+    public boolean isEmulator() {
+        return !emulatorHost.isEmpty();
+    }
+
+    public Publisher.Builder configure(Publisher.Builder builder) {
+        if (isEmulator()) {
+            builder.setChannelProvider(emulatorChannelProvider()).setCredentialsProvider(NoCredentialsProvider.create());
+        }
+        return builder;
+    }
+
+    public Subscriber.Builder configure(Subscriber.Builder builder) {
+        if (isEmulator()) {
+            builder.setChannelProvider(emulatorChannelProvider()).setCredentialsProvider(NoCredentialsProvider.create());
+        }
+        return builder;
+    }
+
+    public SubscriberStubSettings.Builder configure(SubscriberStubSettings.Builder builder) {
+        if (isEmulator()) {
+            builder.setTransportChannelProvider(emulatorChannelProvider())
+                    .setCredentialsProvider(NoCredentialsProvider.create());
+        }
+        return builder;
+    }
+
+    public SubscriptionAdminSettings subscriptionAdminSettings() throws IOException {
+        SubscriptionAdminSettings.Builder builder = SubscriptionAdminSettings.newBuilder();
+        if (isEmulator()) {
+            builder.setTransportChannelProvider(emulatorChannelProvider())
+                    .setCredentialsProvider(NoCredentialsProvider.create());
+        }
+        return builder.build();
+    }
+
+    /**
+     * The channel is not closed by the clients it is handed to; it is closed on shutdown.
+     */
+    private synchronized TransportChannelProvider emulatorChannelProvider() {
+        if (emulatorChannel == null) {
+            // Large enough for the batches of the batch-pull consumer mode.
+            emulatorChannel = ManagedChannelBuilder.forTarget(emulatorHost)
+                    .usePlaintext()
+                    .maxInboundMessageSize(20 * 1024 * 1024)
+                    .build();
+        }
+        return FixedTransportChannelProvider.create(GrpcTransportChannel.create(emulatorChannel));
+    }
+
+    @PreDestroy
+    public synchronized void tearDown() throws InterruptedException {
+        if (emulatorChannel != null) {
+            emulatorChannel.shutdown();
+            emulatorChannel.awaitTermination(5, TimeUnit.SECONDS);
+            emulatorChannel = null;
+        }
+    }
+}
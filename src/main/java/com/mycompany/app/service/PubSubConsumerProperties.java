@@ -0,0 +1,172 @@
+package com.mycompany.app.service;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+/**
+ * The {@code gcp.pubsub.consumer.*} settings of how the transactional lane pulls and sends messages, and how the
+ * consumer drains. The settings are documented in application.properties.
+ */
+@ConfigurationProperties(prefix = "gcp.pubsub.consumer")
+public class PubSubConsumerProperties {
+
+    private FlowControl flowControl = new FlowControl();
+    // Defaults to the flow control limit, see PubSubConsumerService.resolveMaxConcurrentSends.
+    private Integer maxConcurrentSends;
+    private String sendExecutor = "inline";
+    private String consumerMode = "streaming";
+    private BatchPull batchPull = new BatchPull();
+    private Drain drain = new Drain();
+
+    public FlowControl getFlowControl() {
+        return flowControl;
+    }
+
+    public void setFlowControl(FlowControl flowControl) {
+        this.flowControl = flowControl;
+    }
+
+    public Integer getMaxConcurrentSends() {
+        return maxConcurrentSends;
+    }
+
+    public void setMaxConcurrentSends(Integer maxConcurrentSends) {
+        this.maxConcurrentSends = maxConcurrentSends;
+    }
+
+    public String getSendExecutor() {
+        return sendExecutor;
+    }
+
+    public void setSendExecutor(String sendExecutor) {
+        this.sendExecutor = sendExecutor;
+    }
+
+    public String getConsumerMode() {
+        return consumerMode;
+    }
+
+    public void setConsumerMode(String consumerMode) {
+        this.consumerMode = consumerMode;
+    }
+
+    public boolean isBatchPull() {
+        return "batch-pull".equals(consumerMode);
+    }
+
+    public BatchPull getBatchPull() {
+        return batchPull;
+    }
+
+    public void setBatchPull(BatchPull batchPull) {
+        this.batchPull = batchPull;
+    }
+
+    public Drain getDrain() {
+        return drain;
+    }
+
+    public void setDrain(Drain drain) {
+        this.drain = drain;
+    }
+
+    /**
+     * Flow control of a lane's subscriber: how many messages may be outstanding at a time.
+     */
+    public static class FlowControl {
+
+        // Null leaves the client library's default.
+        private Long maxMessages;
+
+        public FlowControl() {
+        }
+
+        public FlowControl(Long maxMessages) {
+            this.maxMessages = maxMessages;
+        }
+
+        public Long getMaxMessages() {
+            return maxMessages;
+        }
+
+        public void setMaxMessages(Long maxMessages) {
+            this.maxMessages = maxMessages;
+        }
+    }
+
+    /**
+     * The {@code batch-pull} consumer mode.
+     */
+    public static class BatchPull {
+
+        private int maxMessages = 1000;
+        private int ackDeadlineSeconds = 60;
+        private long ackFlushMs = 100;
+        private long idleBackoffMs = 1000;
+
+        public int getMaxMessages() {
+            return maxMessages;
+        }
+
+        public void setMaxMessages(int maxMessages) {
+            this.maxMessages = maxMessages;
+        }
+
+        public int getAckDeadlineSeconds() {
+            return ackDeadlineSeconds;
+        }
+
+        public void setAckDeadlineSeconds(int ackDeadlineSeconds) {
+            this.ackDeadlineSeconds = ackDeadlineSeconds;
+        }
+
+        public long getAckFlushMs() {
+            return ackFlushMs;
+        }
+
+        public void setAckFlushMs(long ackFlushMs) {
+            this.ackFlushMs = ackFlushMs;
+        }
+
+        public long getIdleBackoffMs() {
+            return idleBackoffMs;
+        }
+
+        public void setIdleBackoffMs(long idleBackoffMs) {
+            this.idleBackoffMs = idleBackoffMs;
+        }
+    }
+
+    /**
+     * Draining the consumer, on demand and on shutdown.
+     */
+    public static class Drain {
+
+        private long timeoutMs = 20_000;
+        private long sendReserveMs = 5_000;
+        private long shutdownBudgetMs = 25_000;
+
+        public long getTimeoutMs() {
+            return timeoutMs;
+        }
+
+        public void setTimeoutMs(long timeoutMs) {
+            this.timeoutMs = timeoutMs;
+        }
+
+        public long getSendReserveMs() {
+            return sendReserveMs;
+        }
+
+        public void setSendReserveMs(long sendReserveMs) {
+            this.sendReserveMs = sendReserveMs;
+        }
+
+        public long getShutdownBudgetMs() {
+            return shutdownBudgetMs;
+        }
+
+        public void setShutdownBudgetMs(long shutdownBudgetMs) {
+            this.shutdownBudgetMs = shutdownBudgetMs;
+        }
+    }
+}
@@ -1,29 +1,58 @@
 package com.mycompany.app.service;
 
 import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.ContextClosedEvent;
+import org.springframework.context.event.EventListener;
 import org.springframework.mail.MailException;
+import org.springframework.mail.MailPreparationException;
 import org.springframework.stereotype.Service;
 
+import com.google.api.core.ApiService;
 import com.google.api.gax.batching.FlowControlSettings;
 import com.google.cloud.pubsub.v1.AckReplyConsumer;
 import com.google.cloud.pubsub.v1.MessageReceiver;
 import com.google.cloud.pubsub.v1.Subscriber;
 import com.google.cloud.pubsub.v1.SubscriptionAdminClient;
-import com.google.gson.Gson;
-import com.google.gson.JsonSyntaxException;
 import com.google.protobuf.FieldMask;
 import com.google.pubsub.v1.DeadLetterPolicy;
 import com.google.pubsub.v1.ProjectSubscriptionName;
 import com.google.pubsub.v1.ProjectTopicName;
 import com.google.pubsub.v1.PubsubMessage;
 import com.google.pubsub.v1.Subscription;
+import com.mycompany.app.exception.MalformedMessageException;
+import com.mycompany.app.exception.PartialDeliveryException;
+import com.mycompany.app.exception.UnsupportedPayloadException;
 import com.mycompany.app.model.EmailMessage;
+import com.mycompany.app.model.EmailPriority;
+import com.mycompany.app.service.HotPathEvents.Event;
 
 import jakarta.annotation.PostConstruct;
 import jakarta.annotation.PreDestroy;
@@ -34,34 +63,109 @@ public class PubSubConsumerService {
     private static final Logger logger = LoggerFactory.getLogger(PubSubConsumerService.class);
 
     private final String projectId;
-    private final String subscriptionId;
     private final String dltTopicId;
     private final int maxDeliveryAttempts;
-    private final Long maxOutstandingMessages;
 
     private final boolean autoStart;
     private final EmailService applicationIntegrationService;
-    private final EmailServiceChecker emailChecker;
-    private volatile Subscriber subscriber;
-    private final Gson gson = new Gson();
+    private final MailHealthState mailHealthState;
+    private final EmailBatchSender batchSender;
+    private final EmailCoalescer coalescer;
+    private final ConsumerMetrics consumerMetrics;
+    private final String sendExecutorMode;
+    // The transactional lane reads the original subscription; the bulk lane only exists when it is enabled.
+    private final List<Lane> lanes;
+    private volatile ScheduledExecutorService deferredSendScheduler;
+    private final Set<DeferredSend> deferredSends = ConcurrentHashMap.newKeySet();
+    private final EmailMessageCodec codec;
+    private final DomainRateLimiter rateLimiter;
+    private final DeliveryDedupIndex dedupIndex;
+    private final SmtpRelayGroup relayGroup;
+    private final long drainTimeoutNanos;
+    private final long drainSendReserveNanos;
+    private final long drainShutdownBudgetNanos;
+    // Set once the application context starts closing; the drain on shutdown must end by then.
+    private volatile boolean shuttingDown;
+    private volatile long shutdownDeadlineNanos;
+    // The current or last drain; null if the consumer was never drained.
+    private volatile Drain drain;
+    // While paused, received messages are parked here instead of being sent, until resume() hands them back.
+    private volatile boolean paused;
+    private final Queue<ParkedMessage> parkedMessages = new ConcurrentLinkedQueue<>();
+    // Set by stop() and drain() until the next start(): messages that would be parked from then on are nacked.
+    private volatile boolean stopping;
+    // Subscriptions that already have the dead-letter policy, so restarts do not call the admin API again.
+    private final Set<String> deadLetterPolicyApplied = ConcurrentHashMap.newKeySet();
+    private final boolean batchPull;
+    private final int batchPullMaxMessages;
+    private final int batchPullAckDeadlineSeconds;
+    private final long batchPullAckFlushMs;
+    private final long batchPullIdleBackoffMs;
+    private final HotPathEvents events;
+    private final PubSubClientSettings clientSettings;
+    private final PubSubPublisherService publisherService;
 
     public PubSubConsumerService(
             @Value("${gcp.project-id}") String projectId,
             @Value("${gcp.pubsub.email-subscription-id}") String subscriptionId,
             @Value("${gcp.pubsub.email-dlt-topic-id}") String dltTopicId,
             @Value("${gcp.pubsub.consumer.max-delivery-attempts:5}") int maxDeliveryAttempts,
-            @Value("${gcp.pubsub.consumer.flow-control.max-messages:#{null}}") Long maxOutstandingMessages,
             EmailService applicationIntegrationService,
             @Value("${gcp.pubsub.consumer.auto-start:true}") boolean autoStart,
-            EmailServiceChecker emailChecker) {
+            PubSubConsumerProperties properties,
+            BulkLaneProperties bulkLane,
+            MailHealthState mailHealthState,
+            EmailBatchSender batchSender,
+            EmailCoalescer coalescer,
+            ConsumerMetrics consumerMetrics,
+            EmailMessageCodec codec,
+            DomainRateLimiter rateLimiter,
+            DeliveryDedupIndex dedupIndex,
+            ConcurrencyLimits concurrencyLimits,
+            SmtpRelayGroup relayGroup,
+            HotPathEvents events,
+            PubSubClientSettings clientSettings,
+            PubSubPublisherService publisherService) {
         this.projectId = projectId;
-        this.subscriptionId = subscriptionId;
         this.dltTopicId = dltTopicId;
-        this.maxOutstandingMessages = maxOutstandingMessages;
         this.maxDeliveryAttempts = maxDeliveryAttempts;
         this.applicationIntegrationService = applicationIntegrationService;
         this.autoStart = autoStart;
-        this.emailChecker = emailChecker;
+        this.mailHealthState = mailHealthState;
+        this.batchSender = batchSender;
+        this.coalescer = coalescer;
+        this.consumerMetrics = consumerMetrics;
+        this.codec = codec;
+        this.sendExecutorMode = properties.getSendExecutor();
+        this.rateLimiter = rateLimiter;
+        this.dedupIndex = dedupIndex;
+        this.relayGroup = relayGroup;
+        PubSubConsumerProperties.Drain drainSettings = properties.getDrain();
+        this.drainTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(drainSettings.getTimeoutMs());
+        this.drainSendReserveNanos = TimeUnit.MILLISECONDS.toNanos(drainSettings.getSendReserveMs());
+        this.drainShutdownBudgetNanos = TimeUnit.MILLISECONDS.toNanos(drainSettings.getShutdownBudgetMs());
+        PubSubConsumerProperties.BatchPull batchPullSettings = properties.getBatchPull();
+        this.batchPull = properties.isBatchPull();
+        this.batchPullMaxMessages = batchPullSettings.getMaxMessages();
+        this.batchPullAckDeadlineSeconds = batchPullSettings.getAckDeadlineSeconds();
+        this.batchPullAckFlushMs = batchPullSettings.getAckFlushMs();
+        this.batchPullIdleBackoffMs = batchPullSettings.getIdleBackoffMs();
+        this.events = events;
+        this.clientSettings = clientSettings;
+        this.publisherService = publisherService;
+        List<Lane> configuredLanes = new ArrayList<>();
+        // Batching adds linger latency, so once bulk mail has its own lane only that lane is batched.
+        Long maxOutstandingMessages = properties.getFlowControl().getMaxMessages();
+        configuredLanes.add(new Lane(EmailPriority.TRANSACTIONAL, subscriptionId, maxOutstandingMessages,
+                resolveMaxConcurrentSends(properties.getMaxConcurrentSends(), maxOutstandingMessages),
+                batchSender.isEnabled() && !bulkLane.isEnabled(), concurrencyLimits));
+        if (bulkLane.isEnabled()) {
+            Long bulkMaxOutstandingMessages = bulkLane.getFlowControl().getMaxMessages();
+            configuredLanes.add(new Lane(EmailPriority.BULK, bulkLane.getSubscriptionId(), bulkMaxOutstandingMessages,
+                    resolveMaxConcurrentSends(bulkLane.getMaxConcurrentSends(), bulkMaxOutstandingMessages),
+                    batchSender.isEnabled(), concurrencyLimits));
+        }
+        this.lanes = List.copyOf(configuredLanes);
     }
 
     @PostConstruct
@@ -79,48 +183,33 @@ public class PubSubConsumerService {
             logger.warn(message);
             return message;
         }
+        if (isDraining()) {
+            // The drain still has to shut down the send executors the lanes would be started with.
+            String message = "Consumer is draining. Start it once the drain has finished.";
+            logger.warn(message);
+            return message;
+        }
 
-        ProjectSubscriptionName subscriptionName = ProjectSubscriptionName.of(projectId, subscriptionId);
-        MessageReceiver receiver = (PubsubMessage message, AckReplyConsumer consumer) -> {
-            String jsonMessage = message.getData().toStringUtf8();
-            logger.info("Received Pub/Sub message with ID: {}", message.getMessageId());
-            try {
-                if (emailChecker.isMailServiceHealthy()) {
-                    logger.info("Mail service is UP. Processing email request from Pub/Sub message.");
-                    EmailMessage emailMessage = gson.fromJson(jsonMessage, EmailMessage.class);
-                    logger.info("Successfully parsed email message for: {}", emailMessage.getTo());
-                    applicationIntegrationService.sendEmail(emailMessage);
-                    consumer.ack();
-                    logger.info("Message {} processed and acknowledged.", message.getMessageId());
-                } else {
-                    // Mail service is down.
-                    // Let the message be redelivered by Pub/Sub.
-                    // After maxDeliveryAttempts, it will be sent to the DLT.
-                    logger.warn("Mail service is DOWN. nack message {} to allow redelivery or DLT processing.", message.getMessageId());
-                    consumer.nack();
-     
-                }
+        deferredSendScheduler = rateLimiter.isEnabled() ? Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "email-deferred-send");
+            thread.setDaemon(true);
+            return thread;
+        }) : null;
+        stopping = false;
+        for (Lane lane : lanes) {
+            startLane(lane);
+        }
+        return "Consumer started successfully.";
+    }
 
-            } catch (JsonSyntaxException e) {
-                // This is a non-recoverable error for this message.
-                // Acknowledge the message to prevent it from being redelivered and flooding the DLT.
-                // Log it for manual inspection.
-                // if schema is provided on Pub/Sub topic, this code will not happen as the publisher will reject malformed messages
-                logger.error("Error parsing message {}. The message is malformed and will be acknowledged to prevent retries.", message.getMessageId(), e);
-                consumer.ack();
-            } catch (MailException e) {
-                // A transient error sending email. nack message to allow redelivery up to max retries
-                logger.warn("Failed to send email for message {}. nack message to allow redelivery.", message.getMessageId(), e);
-                consumer.nack();
-            } catch (Exception e) {
-                logger.error("Unexpected error processing message {}. Letting message expire to retry, will be sent to DLT after max retries.", message.getMessageId(), e);
-                consumer.nack();
-            }
-        };
+    private void startLane(Lane lane) {
+        ProjectSubscriptionName subscriptionName = ProjectSubscriptionName.of(projectId, lane.subscriptionId);
+        MessageReceiver receiver = (message, consumer) -> receiveMessage(lane, message, consumer);
 
         try {
-            if (dltTopicId != null && !dltTopicId.isBlank()) {
+            if (dltTopicId != null && !dltTopicId.isBlank() && !deadLetterPolicyApplied.contains(lane.subscriptionId)) {
                 updateSubscriptionWithDeadLetterPolicy(subscriptionName);
+                deadLetterPolicyApplied.add(lane.subscriptionId);
             }
         } catch (IOException e) {
             logger.error("Failed to update subscription with dead-letter policy. The consumer will start without it.", e);
@@ -128,24 +217,383 @@ public class PubSubConsumerService {
             // For now, we'll just log the error and continue.
         }
 
-        Subscriber.Builder subscriberBuilder = Subscriber.newBuilder(subscriptionName, receiver);
+        lane.sendExecutor = createSendExecutor(lane);
+        // Sends delayed for their rate limit slot start on the scheduler thread, not a subscriber thread, so inline
+        // lanes need a pool for them too.
+        lane.deferredSendExecutor = lane.sendExecutor == null && rateLimiter.isEnabled()
+                ? newThreadPool(lane, "email-deferred-send-") : null;
+        lane.subscriber = createSubscriber(subscriptionName, receiver, lane.maxOutstandingMessages);
+        lane.subscriber.startAsync().awaitRunning();
+        logger.info("Pub/Sub consumer started and listening on subscription: {} ({} lane)", subscriptionName, lane.name);
+    }
+
+    /**
+     * The streaming {@link Subscriber}, or a {@link BatchPullSubscriber} in batch-pull mode. Tests replace it with
+     * a subscriber that does not connect to Pub/Sub.
+     */
+    ApiService createSubscriber(ProjectSubscriptionName subscriptionName, MessageReceiver receiver,
+            Long maxOutstandingMessages) {
+        return batchPull ? createBatchPullSubscriber(subscriptionName, receiver, maxOutstandingMessages)
+                : createStreamingSubscriber(subscriptionName, receiver, maxOutstandingMessages);
+    }
+
+    private Subscriber createStreamingSubscriber(ProjectSubscriptionName subscriptionName, MessageReceiver receiver,
+            Long maxOutstandingMessages) {
+        Subscriber.Builder subscriberBuilder = clientSettings.configure(Subscriber.newBuilder(subscriptionName, receiver));
 
         if (maxOutstandingMessages != null && maxOutstandingMessages > 0) {
             FlowControlSettings flowControlSettings = FlowControlSettings.newBuilder()
                     .setMaxOutstandingElementCount(maxOutstandingMessages)
                     .build();
             subscriberBuilder.setFlowControlSettings(flowControlSettings);
-            logger.info("Applying flow control with max outstanding messages: {}", maxOutstandingMessages);
+            logger.info("Applying flow control with max outstanding messages: {} ({})", maxOutstandingMessages, subscriptionName);
         }
+        return subscriberBuilder.build();
+    }
 
-        subscriber = subscriberBuilder.build();
-        subscriber.startAsync().awaitRunning();
-        logger.info("Pub/Sub consumer started and listening on subscription: {}", subscriptionName);
-        return "Consumer started successfully.";
+    /**
+     * In batch-pull mode, flow control bounds the outstanding messages the same way; without it, one pull batch
+     * may be outstanding.
+     */
+    private BatchPullSubscriber createBatchPullSubscriber(ProjectSubscriptionName subscriptionName,
+            MessageReceiver receiver, Long maxOutstandingMessages) {
+        long maxOutstanding = maxOutstandingMessages != null && maxOutstandingMessages > 0
+                ? maxOutstandingMessages : batchPullMaxMessages;
+        return new BatchPullSubscriber(subscriptionName, receiver, batchPullMaxMessages, maxOutstanding,
+                batchPullAckDeadlineSeconds, batchPullAckFlushMs, batchPullIdleBackoffMs, clientSettings);
+    }
+
+    private void receiveMessage(Lane lane, PubsubMessage message, AckReplyConsumer originalConsumer) {
+        AckReplyConsumer consumer = consumerMetrics.track(originalConsumer, lane.name);
+        ExecutorService executor = lane.sendExecutor;
+        if (executor == null) {
+            processMessageWithPermit(lane, message, consumer);
+            return;
+        }
+        // Hand the blocking SMTP work off the subscriber thread. The message stays outstanding until it is acked,
+        // so flow control still bounds how many are queued here.
+        try {
+            executor.execute(new QueuedSend(() -> processMessageWithPermit(lane, message, consumer), consumer));
+        } catch (RejectedExecutionException e) {
+            logger.warn("Send executor is shut down. nack message {} to allow redelivery.", message.getMessageId());
+            consumer.nack();
+        }
+    }
+
+    private void processMessageWithPermit(Lane lane, PubsubMessage message, AckReplyConsumer consumer) {
+        runWithPermit(lane, () -> processMessage(lane, message, consumer), consumer);
+    }
+
+    /**
+     * Runs the task within the lane's share of concurrent sends. Every send holds one SMTP connection, so the
+     * bulk lane can never take the connections the transactional lane needs.
+     */
+    private void runWithPermit(Lane lane, Runnable task, AckReplyConsumer consumer) {
+        if (paused) {
+            park(lane, task, consumer);
+            return;
+        }
+        AdaptiveConcurrencyLimit limit = lane.concurrencyLimit;
+        try {
+            limit.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            consumer.nack();
+            return;
+        }
+        try {
+            if (leavesNoTimeToSend()) {
+                consumer.nack();
+                return;
+            }
+            task.run();
+        } finally {
+            limit.release();
+        }
+    }
+
+    /**
+     * While draining, work that has not started sending yet is only started if it can finish before the drain
+     * deadline. Otherwise its message is nacked right away, so another instance picks it up now instead of after
+     * the ack deadline.
+     */
+    private boolean leavesNoTimeToSend() {
+        Drain current = drain;
+        if (current == null || current.isFinished() || current.remainingNanos() >= drainSendReserveNanos) {
+            return false;
+        }
+        current.fastNacked.incrementAndGet();
+        return true;
+    }
+
+    private void processMessage(Lane lane, PubsubMessage message, AckReplyConsumer originalConsumer) {
+        AckReplyConsumer consumer = originalConsumer;
+        try {
+            if (mailHealthState.isUp()) {
+                EmailMessage emailMessage = codec.fromPubsubMessage(message);
+                events.record(Event.RECEIVED, message.getMessageId());
+                String deliveryKey = DeliveryDedupIndex.keyOf(message.getMessageId(), emailMessage.getIdempotencyKey());
+                switch (dedupIndex.claim(deliveryKey)) {
+                    case SENT:
+                        events.record(Event.DUPLICATE, message.getMessageId());
+                        consumer.ack();
+                        return;
+                    case IN_PROGRESS:
+                        events.record(Event.IN_PROGRESS, message.getMessageId());
+                        consumer.nack();
+                        return;
+                    default:
+                        // From here on, acking records the email as sent and nacking releases the claim.
+                        consumer = dedupIndex.track(deliveryKey, originalConsumer);
+                }
+                sendWithinRateLimit(lane, message, emailMessage, consumer);
+            } else {
+                // Mail service is down.
+                // Let the message be redelivered by Pub/Sub.
+                // After maxDeliveryAttempts, it will be sent to the DLT.
+                logger.warn("Mail service is DOWN. nack message {} to allow redelivery or DLT processing.", message.getMessageId());
+                consumer.nack();
+ 
+            }
+
+        } catch (UnsupportedPayloadException e) {
+            // Probably published by a newer producer: an upgraded consumer can read it, otherwise it goes to the DLT.
+            logger.warn("Message {} cannot be read by this version: {}. nack message to allow redelivery.",
+                    message.getMessageId(), e.getMessage());
+            consumer.nack();
+        } catch (MalformedMessageException e) {
+            // This is a non-recoverable error for this message.
+            // Acknowledge the message to prevent it from being redelivered and flooding the DLT.
+            // Log it for manual inspection.
+            // if schema is provided on Pub/Sub topic, this code will not happen as the publisher will reject malformed messages
+            logger.error("Error parsing message {}. The message is malformed and will be acknowledged to prevent retries.", message.getMessageId(), e);
+            consumerMetrics.recordMalformed();
+            consumer.ack();
+        } catch (Exception e) {
+            logger.error("Unexpected error processing message {}. Letting message expire to retry, will be sent to DLT after max retries.", message.getMessageId(), e);
+            consumer.nack();
+        }
+    }
+
+    /**
+     * Sends now if the domains of all recipients have capacity, otherwise holds the message and sends it once its
+     * reserved slot comes up. A held message stays outstanding, so the subscriber keeps extending its ack deadline
+     * and no delivery attempt is used up; it also counts against flow control, which slows down pulling while
+     * domains are throttled.
+     */
+    private void sendWithinRateLimit(Lane lane, PubsubMessage message, EmailMessage emailMessage, AckReplyConsumer consumer) {
+        long delayNanos = rateLimiter.reserve(recipientsOf(emailMessage));
+        ScheduledExecutorService scheduler = deferredSendScheduler;
+        if (delayNanos == 0 || scheduler == null) {
+            send(lane, message, emailMessage, consumer);
+            return;
+        }
+        if (delayNanos < 0) {
+            logger.warn("Recipient domain of message {} is throttled beyond the maximum delay. nack message to allow redelivery.",
+                    message.getMessageId());
+            consumer.nack();
+            return;
+        }
+        events.record(Event.DELAYED, message.getMessageId());
+        DeferredSend deferredSend = new DeferredSend(lane, message, emailMessage, consumer, System.nanoTime() + delayNanos);
+        deferredSends.add(deferredSend);
+        try {
+            scheduler.schedule(deferredSend, delayNanos, TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException e) {
+            if (deferredSends.remove(deferredSend)) {
+                consumer.nack();
+            }
+        }
+    }
+
+    private void send(Lane lane, PubsubMessage message, EmailMessage emailMessage, AckReplyConsumer consumer) {
+        try {
+            CompletableFuture<Void> coalesced = coalescer.offer(emailMessage);
+            if (coalesced != null) {
+                // The coalescer completes the future once the digest holding this email was sent.
+                coalesced.whenComplete((ignored, failure) -> completeBatchedMessage(message, emailMessage, consumer, failure));
+                return;
+            }
+            if (lane.batched) {
+                // The batch sender completes the future once the batch holding this email was sent.
+                batchSender.submit(emailMessage)
+                        .whenComplete((ignored, failure) -> completeBatchedMessage(message, emailMessage, consumer, failure));
+                return;
+            }
+            long startNanos = System.nanoTime();
+            try {
+                applicationIntegrationService.sendEmail(emailMessage);
+            } catch (MailException e) {
+                lane.concurrencyLimit.recordSend(System.nanoTime() - startNanos, indicatesRelayOverload(e));
+                throw e;
+            }
+            lane.concurrencyLimit.recordSend(System.nanoTime() - startNanos, false);
+            rateLimiter.recordSuccess(recipientsOf(emailMessage));
+            consumer.ack();
+            events.record(Event.ACKED, message.getMessageId());
+        } catch (PartialDeliveryException e) {
+            publishRetry(message, emailMessage, consumer, e);
+        } catch (MailException e) {
+            // A transient error sending email. nack message to allow redelivery up to max retries
+            rateLimiter.recordFailure(recipientsOf(emailMessage), e);
+            logger.warn("Failed to send email for message {}. nack message to allow redelivery.", message.getMessageId(), e);
+            consumer.nack();
+        } catch (Exception e) {
+            logger.error("Unexpected error processing message {}. Letting message expire to retry, will be sent to DLT after max retries.", message.getMessageId(), e);
+            consumer.nack();
+        }
+    }
+
+    /**
+     * Permanent rejections (SMTP 5xx) and emails that could not be built say nothing about the relay's load.
+     */
+    private static boolean indicatesRelayOverload(MailException e) {
+        if (e instanceof MailPreparationException) {
+            return false;
+        }
+        int returnCode = DomainRateLimiter.smtpReturnCode(e);
+        return returnCode < 500 || returnCode >= 600;
+    }
+
+    private void completeBatchedMessage(PubsubMessage message, EmailMessage emailMessage, AckReplyConsumer consumer,
+            Throwable failure) {
+        if (failure == null) {
+            rateLimiter.recordSuccess(recipientsOf(emailMessage));
+            consumer.ack();
+            events.record(Event.ACKED, message.getMessageId());
+        } else if (failure instanceof PartialDeliveryException partialDelivery) {
+            publishRetry(message, emailMessage, consumer, partialDelivery);
+        } else if (failure instanceof MailException) {
+            rateLimiter.recordFailure(recipientsOf(emailMessage), failure);
+            logger.warn("Failed to send email for message {}. nack message to allow redelivery.", message.getMessageId(), failure);
+            consumer.nack();
+        } else {
+            logger.error("Unexpected error processing message {}. Letting message expire to retry, will be sent to DLT after max retries.", message.getMessageId(), failure);
+            consumer.nack();
+        }
+    }
+
+    /**
+     * The recipients the email is delivered to: all of them, or the ones a retry is meant for.
+     */
+    private static List<String> recipientsOf(EmailMessage emailMessage) {
+        return emailMessage.getDeliverTo() != null ? emailMessage.getDeliverTo() : emailMessage.getAllRecipients();
+    }
+
+    /**
+     * Publishes a copy of an email that reached some of its recipients, to be delivered only to the recipients it
+     * may still reach, and acks the message once the copy is published. Nacking the message instead would send
+     * the email again to every recipient it already reached.
+     */
+    private void publishRetry(PubsubMessage message, EmailMessage emailMessage, AckReplyConsumer consumer,
+            PartialDeliveryException partialDelivery) {
+        List<String> retryRecipients = partialDelivery.getRetryRecipients();
+        List<String> reached = new ArrayList<>(recipientsOf(emailMessage));
+        reached.removeAll(retryRecipients);
+        reached.removeAll(partialDelivery.getUndelivered());
+        rateLimiter.recordSuccess(reached);
+        EmailMessage retry = retryCopyOf(message, emailMessage, retryRecipients);
+        publisherService.publishEmailMessageAsync(retry).whenComplete((receipt, failure) -> {
+            if (failure == null) {
+                logger.info("Email of message {} is retried for {} recipients as {}.", message.getMessageId(),
+                        retryRecipients.size(), retry.getIdempotencyKey());
+                consumer.ack();
+                events.record(Event.ACKED, message.getMessageId());
+            } else {
+                logger.error("Failed to publish the retry of message {}. nack message to allow redelivery to all recipients.",
+                        message.getMessageId(), failure);
+                consumer.nack();
+            }
+        });
+    }
+
+    /**
+     * The copy gets an idempotency key of its own, derived from the original delivery and the recipients, so that
+     * it is not taken for a duplicate of the original, but a second copy for the same recipients is.
+     */
+    private static EmailMessage retryCopyOf(PubsubMessage message, EmailMessage emailMessage, List<String> retryRecipients) {
+        EmailMessage retry = new EmailMessage(emailMessage.getTo(), emailMessage.getSubject(), emailMessage.getBody());
+        retry.setCc(emailMessage.getCc());
+        retry.setBcc(emailMessage.getBcc());
+        retry.setTemplateId(emailMessage.getTemplateId());
+        retry.setTemplateVariables(emailMessage.getTemplateVariables());
+        retry.setPriority(emailMessage.getPriority());
+        retry.setDeliverTo(retryRecipients);
+        String deliveryKey = DeliveryDedupIndex.keyOf(message.getMessageId(), emailMessage.getIdempotencyKey());
+        retry.setIdempotencyKey("retry-" + UUID.nameUUIDFromBytes(
+                (deliveryKey + '\n' + String.join(",", retryRecipients)).getBytes(StandardCharsets.UTF_8)));
+        return retry;
+    }
+
+    /**
+     * Creates the executor that runs the SMTP sends of a lane, or returns {@code null} to send on the subscriber's
+     * own threads. Virtual threads need Java 21; on older runtimes a platform thread pool is used instead. The
+     * batch pull subscriber dispatches from a single thread, so in batch-pull mode 'inline' also gets a pool.
+     */
+    private ExecutorService createSendExecutor(Lane lane) {
+        switch (sendExecutorMode) {
+            case "virtual":
+                ExecutorService virtualThreadExecutor = newVirtualThreadPerTaskExecutor();
+                if (virtualThreadExecutor != null) {
+                    logger.info("Sending {} emails on virtual threads with at most {} concurrent sends.", lane.name, lane.maxThreads);
+                    return virtualThreadExecutor;
+                }
+                logger.warn("Virtual threads require Java 21 (running on {}). Falling back to a platform thread pool.",
+                        Runtime.version());
+                return newPlatformThreadPool(lane);
+            case "platform":
+                return newPlatformThreadPool(lane);
+            default:
+                return batchPull ? newPlatformThreadPool(lane) : null;
+        }
+    }
+
+    private ExecutorService newPlatformThreadPool(Lane lane) {
+        logger.info("Sending {} emails on a pool of {} platform threads.", lane.name, lane.maxThreads);
+        return newThreadPool(lane, "email-sender-");
+    }
+
+    /**
+     * A pool with enough threads for the highest concurrency limit of the lane; the lane's permits bound the
+     * sends actually running at a time.
+     */
+    private static ExecutorService newThreadPool(Lane lane, String threadNamePrefix) {
+        AtomicInteger threadCount = new AtomicInteger();
+        ThreadFactory threadFactory = runnable -> {
+            Thread thread = new Thread(runnable, threadNamePrefix + lane.name + "-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+        return Executors.newFixedThreadPool(lane.maxThreads, threadFactory);
+    }
+
+    /**
+     * Looks up {@code Executors.newVirtualThreadPerTaskExecutor()} reflectively, so the code still compiles for
+     * Java 17 while using virtual threads when running on Java 21.
+     */
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * More concurrent sends than outstanding messages would never be used, so the flow control limit caps it.
+     */
+    private static int resolveMaxConcurrentSends(Integer maxConcurrentSends, Long maxOutstandingMessages) {
+        int flowControlLimit = maxOutstandingMessages != null && maxOutstandingMessages > 0
+                ? (int) Math.min(maxOutstandingMessages, Integer.MAX_VALUE) : Integer.MAX_VALUE;
+        if (maxConcurrentSends == null || maxConcurrentSends <= 0) {
+            return flowControlLimit == Integer.MAX_VALUE ? 10 : flowControlLimit;
+        }
+        return Math.min(maxConcurrentSends, flowControlLimit);
     }
 
     private void updateSubscriptionWithDeadLetterPolicy(ProjectSubscriptionName subscriptionName) throws IOException {
-        try (SubscriptionAdminClient subscriptionAdminClient = SubscriptionAdminClient.create()) {
+        try (SubscriptionAdminClient subscriptionAdminClient = SubscriptionAdminClient.create(clientSettings.subscriptionAdminSettings())) {
             ProjectTopicName deadLetterTopicName = ProjectTopicName.of(projectId, dltTopicId);
             DeadLetterPolicy deadLetterPolicy = DeadLetterPolicy.newBuilder().setDeadLetterTopic(deadLetterTopicName.toString()).setMaxDeliveryAttempts(maxDeliveryAttempts).build();
             Subscription subscription = Subscription.newBuilder().setName(subscriptionName.toString()).setDeadLetterPolicy(deadLetterPolicy).build();
@@ -161,24 +609,531 @@ public class PubSubConsumerService {
             logger.warn(message);
             return message;
         }
-        try {
-            subscriber.stopAsync().awaitTerminated(1, TimeUnit.MINUTES);
-            logger.info("Pub/Sub consumer shut down.");
-            return "Consumer stopped successfully.";
-        } catch (TimeoutException e) {
-            logger.warn("Timeout waiting for Pub/Sub consumer to shut down.", e);
+        for (Lane lane : lanes) {
+            if (lane.subscriber != null) {
+                lane.subscriber.stopAsync();
+            }
+        }
+        // The subscribers only terminate once every outstanding message was acked or nacked.
+        coalescer.flushAll();
+        stopping = true;
+        paused = false;
+        int parked = nackParkedMessages();
+        if (parked > 0) {
+            logger.info("Nacked {} messages that were parked while the consumer was paused.", parked);
+        }
+        boolean timedOut = false;
+        for (Lane lane : lanes) {
+            if (lane.subscriber == null) {
+                continue;
+            }
+            try {
+                lane.subscriber.awaitTerminated(1, TimeUnit.MINUTES);
+            } catch (TimeoutException e) {
+                logger.warn("Timeout waiting for Pub/Sub consumer of the {} lane to shut down.", lane.name, e);
+                timedOut = true;
+            }
+        }
+        shutdownDeferredSends();
+        for (Lane lane : lanes) {
+            shutdownSendExecutor(lane, TimeUnit.SECONDS.toNanos(30));
+        }
+        if (timedOut) {
             return "Failed to stop consumer gracefully due to a timeout.";
         }
+        logger.info("Pub/Sub consumer shut down.");
+        return "Consumer stopped successfully.";
+    }
+
+    /**
+     * Shuts the consumer down for a restart without losing or duplicating work.
+     * <p>
+     * The subscribers stop pulling right away, so no new messages are leased. Messages that were already received
+     * are sent if they can finish within the drain timeout, and nacked right away otherwise, so that another
+     * instance can take them over without waiting for their ack deadline. Then the send executors are shut down
+     * and the idle SMTP connections are closed with QUIT instead of being dropped with the process.
+     * <p>
+     * The whole drain takes at most {@code drain.timeout-ms}. It runs in the background: this method returns once
+     * the subscribers were told to stop, and progress is reported by {@link #getDrainStatus()}.
+     */
+    public String drain() {
+        Drain current = startDrain(drainTimeoutNanos);
+        if (current == null) {
+            return isDraining() ? "Consumer is already draining." : "Consumer is not running.";
+        }
+        Thread thread = new Thread(() -> finishDrain(current), "email-consumer-drain");
+        thread.setDaemon(true);
+        thread.start();
+        return "Consumer drain started.";
+    }
+
+    /**
+     * Stops pulling and hands back the messages that were not started yet. Only this part holds the monitor, so
+     * start(), stop(), pause() and resume() are not blocked for the length of the drain.
+     *
+     * @return the drain, or null if the consumer is not running or already draining
+     */
+    private synchronized Drain startDrain(long timeoutNanos) {
+        if (isDraining()) {
+            logger.warn("Consumer is already draining.");
+            return null;
+        }
+        if (!isRunning()) {
+            logger.warn("Consumer is not running.");
+            return null;
+        }
+        Drain current = new Drain(System.nanoTime() + timeoutNanos);
+        drain = current;
+        logger.info("Draining Pub/Sub consumer: {} messages in flight, {} ms to finish them.",
+                consumerMetrics.getInFlight(), TimeUnit.NANOSECONDS.toMillis(timeoutNanos));
+        for (Lane lane : lanes) {
+            if (lane.subscriber != null) {
+                // Stops pulling; the subscriber keeps extending the leases of outstanding messages until they are
+                // acked or nacked.
+                lane.subscriber.stopAsync();
+            }
+        }
+        nackDeferredSendsDueAfter(current.deadlineNanos - drainSendReserveNanos, current);
+        coalescer.flushAll();
+        stopping = true;
+        paused = false;
+        current.fastNacked.addAndGet(nackParkedMessages());
+        return current;
+    }
+
+    /**
+     * Waits for the sends in flight until the drain deadline, then shuts the send executors down.
+     */
+    private void finishDrain(Drain current) {
+        try {
+            while (consumerMetrics.getInFlight() > 0 && current.remainingNanos() > 0) {
+                Thread.sleep(50);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (Lane lane : lanes) {
+            if (lane.subscriber == null) {
+                continue;
+            }
+            try {
+                lane.subscriber.awaitTerminated(Math.max(1, current.remainingNanos()), TimeUnit.NANOSECONDS);
+            } catch (TimeoutException e) {
+                logger.warn("Timeout waiting for Pub/Sub consumer of the {} lane to shut down.", lane.name);
+            }
+        }
+        shutdownDeferredSends();
+        for (Lane lane : lanes) {
+            shutdownSendExecutor(lane, current.remainingNanos());
+        }
+        relayGroup.closeIdleConnections();
+
+        current.finish(consumerMetrics.getInFlight());
+        if (current.abandoned > 0) {
+            logger.warn("Drain timed out after {} ms with {} sends still in flight. Their messages will be redelivered.",
+                    current.elapsedMillis(), current.abandoned);
+            return;
+        }
+        logger.info("Pub/Sub consumer drained in {} ms ({} messages nacked for lack of time).",
+                current.elapsedMillis(), current.fastNacked.get());
+    }
+
+    public boolean isDraining() {
+        Drain current = drain;
+        return current != null && !current.isFinished();
+    }
+
+    /**
+     * Progress of the current drain, or the outcome of the last one.
+     */
+    public Map<String, Object> getDrainStatus() {
+        Map<String, Object> status = new LinkedHashMap<>();
+        Drain current = drain;
+        if (current == null) {
+            status.put("state", "none");
+            return status;
+        }
+        boolean finished = current.isFinished();
+        status.put("state", finished ? "drained" : "draining");
+        status.put("startedAt", current.startedAt.toString());
+        status.put("elapsedMs", current.elapsedMillis());
+        if (finished) {
+            status.put("abandonedInFlight", current.abandoned);
+        } else {
+            status.put("remainingMs", TimeUnit.NANOSECONDS.toMillis(Math.max(0, current.remainingNanos())));
+            status.put("inFlight", consumerMetrics.getInFlight());
+            status.put("waitingForRateLimit", deferredSends.size());
+        }
+        status.put("fastNacked", current.fastNacked.get());
+        return status;
+    }
+
+    /**
+     * Nacks the sends held for their rate limit slot that would only start after the given time.
+     */
+    private void nackDeferredSendsDueAfter(long latestStartNanos, Drain current) {
+        for (DeferredSend deferredSend : new ArrayList<>(deferredSends)) {
+            if (deferredSend.dueNanos - latestStartNanos > 0 && deferredSends.remove(deferredSend)) {
+                deferredSend.consumer.nack();
+                current.fastNacked.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Drops the sends that are still waiting for their rate limit slot and nacks their messages, so they are
+     * redelivered right away instead of after the ack deadline.
+     */
+    private void shutdownDeferredSends() {
+        ScheduledExecutorService scheduler = deferredSendScheduler;
+        if (scheduler == null) {
+            return;
+        }
+        deferredSendScheduler = null;
+        scheduler.shutdownNow();
+        List<DeferredSend> pending = new ArrayList<>(deferredSends);
+        int nacked = 0;
+        for (DeferredSend deferredSend : pending) {
+            if (deferredSends.remove(deferredSend)) {
+                deferredSend.consumer.nack();
+                nacked++;
+            }
+        }
+        if (nacked > 0) {
+            logger.info("Nacked {} messages that were waiting for their rate limit slot.", nacked);
+        }
+    }
+
+    private void shutdownSendExecutor(Lane lane, long timeoutNanos) {
+        long deadline = System.nanoTime() + timeoutNanos;
+        ExecutorService deferredSendExecutor = lane.deferredSendExecutor;
+        lane.deferredSendExecutor = null;
+        awaitSends(deferredSendExecutor, timeoutNanos);
+        ExecutorService sendExecutor = lane.sendExecutor;
+        lane.sendExecutor = null;
+        awaitSends(sendExecutor, deadline - System.nanoTime());
+    }
+
+    private static void awaitSends(ExecutorService executor, long timeoutNanos) {
+        if (executor == null) {
+            return;
+        }
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(Math.max(0, timeoutNanos), TimeUnit.NANOSECONDS)) {
+                int nacked = nackQueuedSends(executor.shutdownNow());
+                logger.warn("Timeout waiting for in-flight email sends to finish. Nacked {} messages that had not started.",
+                        nacked);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            nackQueuedSends(executor.shutdownNow());
+        }
+    }
+
+    /**
+     * Nacks the messages of the sends that shutdownNow() dropped from the queue before they started. Nothing else
+     * would ever ack or nack them, so the subscribers could not terminate until their ack deadline.
+     */
+    private static int nackQueuedSends(List<Runnable> queued) {
+        int nacked = 0;
+        for (Runnable runnable : queued) {
+            if (runnable instanceof QueuedSend queuedSend) {
+                queuedSend.consumer.nack();
+                nacked++;
+            }
+        }
+        return nacked;
+    }
+
+    /**
+     * Stops handing messages to the senders without stopping the subscribers.
+     * <p>
+     * Received messages are parked unacked: the subscribers keep extending their leases (for at most an hour) and
+     * stop pulling once flow control is exhausted, while the streaming-pull connections stay open. Sends that were
+     * already started finish. Unlike {@link #stop()} and {@link #start()}, pausing and resuming neither rebuilds the
+     * subscribers nor calls the admin API, so {@link #resume()} takes effect at once.
+     */
+    public synchronized String pause() {
+        if (!isRunning()) {
+            String message = "Consumer is not running.";
+            logger.warn(message);
+            return message;
+        }
+        if (paused) {
+            String message = "Consumer is already paused.";
+            logger.warn(message);
+            return message;
+        }
+        paused = true;
+        logger.warn("Pub/Sub consumer paused. Received messages are held until it is resumed.");
+        return "Consumer paused successfully.";
+    }
+
+    /**
+     * Hands the messages parked while paused back to the senders and sends new messages right away again.
+     */
+    public synchronized String resume() {
+        if (!paused) {
+            String message = "Consumer is not paused.";
+            logger.warn(message);
+            return message;
+        }
+        paused = false;
+        int resumed = dispatchParkedMessages();
+        logger.info("Pub/Sub consumer resumed with {} parked messages.", resumed);
+        return "Consumer resumed successfully.";
+    }
+
+    public boolean isPaused() {
+        return paused;
+    }
+
+    private void park(Lane lane, Runnable task, AckReplyConsumer consumer) {
+        parkedMessages.add(new ParkedMessage(lane, task, consumer));
+        // stop(), drain() or resume() may have taken the parked messages between the check of the flag and the add.
+        if (stopping) {
+            nackParkedMessages();
+        } else if (!paused) {
+            dispatchParkedMessages();
+        }
+    }
+
+    /**
+     * Number of messages parked while paused. Tests wait on it, since messages reach the parking lot on the send
+     * executor threads.
+     */
+    int getParkedCount() {
+        return parkedMessages.size();
+    }
+
+    /**
+     * Runs the parked messages on their lane's send executor. Lanes without one send on the subscriber threads,
+     * which have moved on by now, so they get a pool that ends once the parked messages are sent.
+     */
+    private int dispatchParkedMessages() {
+        Map<Lane, ExecutorService> resumeExecutors = new HashMap<>();
+        int dispatched = 0;
+        ParkedMessage parked;
+        while ((parked = parkedMessages.poll()) != null) {
+            ParkedMessage message = parked;
+            ExecutorService executor = message.lane.sendExecutor;
+            if (executor == null) {
+                executor = resumeExecutors.computeIfAbsent(message.lane, this::newResumeExecutor);
+            }
+            try {
+                executor.execute(new QueuedSend(() -> runWithPermit(message.lane, message.task, message.consumer),
+                        message.consumer));
+                dispatched++;
+            } catch (RejectedExecutionException e) {
+                message.consumer.nack();
+            }
+        }
+        for (ExecutorService executor : resumeExecutors.values()) {
+            executor.shutdown();
+        }
+        return dispatched;
+    }
+
+    private ExecutorService newResumeExecutor(Lane lane) {
+        return newThreadPool(lane, "email-resume-");
+    }
+
+    private int nackParkedMessages() {
+        int nacked = 0;
+        ParkedMessage parked;
+        while ((parked = parkedMessages.poll()) != null) {
+            parked.consumer.nack();
+            nacked++;
+        }
+        return nacked;
     }
 
     public boolean isRunning() {
-        return subscriber != null && subscriber.isRunning();
+        for (Lane lane : lanes) {
+            ApiService subscriber = lane.subscriber;
+            if (subscriber != null && subscriber.isRunning()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * One subscription with its own flow control, send executor and share of the concurrent SMTP sends.
+     * <p>
+     * The subscriber's flow control cannot be changed without rebuilding it, so with adaptive concurrency the
+     * concurrency limit decides how many of the outstanding messages are sent at the same time. The others wait,
+     * and the subscriber keeps extending their ack deadlines. The limit never exceeds the lane's
+     * {@code max-concurrent-sends}, its share of the SMTP connections, however large the flow control limit is.
+     */
+    private static final class Lane {
+
+        private final String name;
+        private final String subscriptionId;
+        private final Long maxOutstandingMessages;
+        private final boolean batched;
+        private final AdaptiveConcurrencyLimit concurrencyLimit;
+        // Threads of the 'platform' executor: the highest limit the lane can reach.
+        private final int maxThreads;
+        // The streaming Subscriber, or a BatchPullSubscriber in batch-pull mode.
+        private volatile ApiService subscriber;
+        private volatile ExecutorService sendExecutor;
+        // Runs the sends delayed for their rate limit slot when the lane has no send executor.
+        private volatile ExecutorService deferredSendExecutor;
+
+        private Lane(EmailPriority priority, String subscriptionId, Long maxOutstandingMessages, int maxConcurrentSends,
+                boolean batched, ConcurrencyLimits concurrencyLimits) {
+            this.name = priority.name().toLowerCase(Locale.ROOT);
+            this.subscriptionId = subscriptionId;
+            this.maxOutstandingMessages = maxOutstandingMessages;
+            this.batched = batched;
+            this.maxThreads = maxConcurrentSends;
+            this.concurrencyLimit = concurrencyLimits.create(name, maxConcurrentSends, maxThreads);
+        }
+    }
+
+    private static final class ParkedMessage {
+
+        private final Lane lane;
+        private final Runnable task;
+        private final AckReplyConsumer consumer;
+
+        private ParkedMessage(Lane lane, Runnable task, AckReplyConsumer consumer) {
+            this.lane = lane;
+            this.task = task;
+            this.consumer = consumer;
+        }
+    }
+
+    /**
+     * Work handed to a send executor. It keeps the consumer of its message, so that a message whose work is still
+     * queued when the executor is shut down can be nacked.
+     */
+    private static final class QueuedSend implements Runnable {
+
+        private final Runnable task;
+        private final AckReplyConsumer consumer;
+
+        private QueuedSend(Runnable task, AckReplyConsumer consumer) {
+            this.task = task;
+            this.consumer = consumer;
+        }
+
+        @Override
+        public void run() {
+            task.run();
+        }
+    }
+
+    private static final class Drain {
+
+        private final Instant startedAt = Instant.now();
+        private final long startNanos = System.nanoTime();
+        private final long deadlineNanos;
+        private final AtomicInteger fastNacked = new AtomicInteger();
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile boolean finished;
+        private volatile int abandoned;
+        private volatile long finishedNanos;
+
+        private Drain(long deadlineNanos) {
+            this.deadlineNanos = deadlineNanos;
+        }
+
+        private long remainingNanos() {
+            return deadlineNanos - System.nanoTime();
+        }
+
+        private boolean isFinished() {
+            return finished;
+        }
+
+        private void finish(int inFlight) {
+            abandoned = inFlight;
+            finishedNanos = System.nanoTime();
+            finished = true;
+            done.countDown();
+        }
+
+        private void await(long timeoutNanos) throws InterruptedException {
+            done.await(Math.max(0, timeoutNanos), TimeUnit.NANOSECONDS);
+        }
+
+        private long elapsedMillis() {
+            return TimeUnit.NANOSECONDS.toMillis((finished ? finishedNanos : System.nanoTime()) - startNanos);
+        }
+    }
+
+    private final class DeferredSend implements Runnable {
+
+        private final Lane lane;
+        private final PubsubMessage message;
+        private final EmailMessage emailMessage;
+        private final AckReplyConsumer consumer;
+        private final long dueNanos;
+
+        private DeferredSend(Lane lane, PubsubMessage message, EmailMessage emailMessage, AckReplyConsumer consumer,
+                long dueNanos) {
+            this.lane = lane;
+            this.message = message;
+            this.emailMessage = emailMessage;
+            this.consumer = consumer;
+            this.dueNanos = dueNanos;
+        }
+
+        @Override
+        public void run() {
+            if (!deferredSends.remove(this)) {
+                // Already nacked by stop().
+                return;
+            }
+            // The scheduler thread only times the sends. The send itself runs on a pool, within the lane's permits
+            // like any other send, so one slow domain cannot hold up the delayed sends to all the others.
+            ExecutorService executor = lane.sendExecutor != null ? lane.sendExecutor : lane.deferredSendExecutor;
+            if (executor == null) {
+                // The lane is stopping.
+                consumer.nack();
+                return;
+            }
+            try {
+                executor.execute(new QueuedSend(
+                        () -> runWithPermit(lane, () -> send(lane, message, emailMessage, consumer), consumer), consumer));
+            } catch (RejectedExecutionException e) {
+                consumer.nack();
+            }
+        }
+    }
+
+    /**
+     * Starts the shutdown budget. The context is closed in this order: this event, the graceful shutdown of the web
+     * server, then {@link #tearDown()}, so the time the web server takes is no longer available to the drain.
+     */
+    @EventListener(ContextClosedEvent.class)
+    public void onContextClosed() {
+        shutdownDeadlineNanos = System.nanoTime() + drainShutdownBudgetNanos;
+        shuttingDown = true;
     }
 
     @PreDestroy
     public void tearDown() {
-        if (isRunning()) {
-            stop();
+        long timeoutNanos = drainTimeoutNanos;
+        if (shuttingDown) {
+            timeoutNanos = Math.max(0, Math.min(timeoutNanos, shutdownDeadlineNanos - System.nanoTime()));
+        }
+        Drain current = drain;
+        if (current != null && !current.isFinished()) {
+            // A drain started through the API is still running; wait for it within what is left of the budget.
+            try {
+                current.await(timeoutNanos);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        } else if (isRunning()) {
+            current = startDrain(timeoutNanos);
+            if (current != null) {
+                finishDrain(current);
+            }
         }
     }
 }
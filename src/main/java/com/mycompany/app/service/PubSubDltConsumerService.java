@@ -1,11 +1,27 @@
 package com.mycompany.app.service;
 
+import java.io.IOException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 
 import com.google.cloud.pubsub.v1.AckReplyConsumer;
@@ -13,10 +29,26 @@ import com.google.cloud.pubsub.v1.MessageReceiver;
 import com.google.cloud.pubsub.v1.Subscriber;
 import com.google.pubsub.v1.ProjectSubscriptionName;
 import com.google.pubsub.v1.PubsubMessage;
+import com.mycompany.app.exception.MalformedMessageException;
+import com.mycompany.app.model.DeadLetterReplayRequest;
+import com.mycompany.app.service.DeadLetterStore.DeadLetter;
 
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
 import jakarta.annotation.PostConstruct;
 import jakarta.annotation.PreDestroy;
 
+/**
+ * Consumes the dead-letter subscription. Every dead letter is classified and kept in the {@link DeadLetterStore}
+ * before it is acked, and can be published again in bulk with {@link #replay(DeadLetterReplayRequest)}, e.g. once
+ * an SMTP outage is over. Dead letters are logged as one aggregated line per {@code summary-interval-ms}
+ * instead of one line with the full payload per message, unless the store is not durable: then the payload is
+ * logged before the dead letter is acked, as it is the only record left after a restart.
+ * <p>
+ * A dead letter that cannot be stored (the store is full or cannot be written) is held for
+ * {@code store.retry-delay-ms} before it is nacked, so it is not redelivered in a tight loop. Held messages count
+ * against flow control, so the subscriber stops pulling while the store has no room.
+ */
 @Service
 public class PubSubDltConsumerService {
 
@@ -25,15 +57,57 @@ public class PubSubDltConsumerService {
     private final String projectId;
     private final String dltSubscriptionId;
     private final boolean autoStart;
+    private final Counter deadLetterCounter;
+    private final Counter replayedCounter;
+    private final DeadLetterStore store;
+    private final PubSubPublisherService publisherService;
+    private final PubSubClientSettings clientSettings;
+    private final int replayBatchSize;
+    private final double replayRatePerSecond;
+    private final long storeRetryDelayMs;
     private volatile Subscriber subscriber;
+    // Dead letters received since the last summary log line.
+    private final ConcurrentLinkedQueue<DeadLetter> recentDeadLetters = new ConcurrentLinkedQueue<>();
+    private final ExecutorService replayExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "email-dlt-replay");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private volatile ReplayJob replayJob;
+    // Dead letters that could not be stored, waiting for their delayed nack.
+    private final Set<AckReplyConsumer> heldForRetry = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService retryScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "email-dlt-retry");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     public PubSubDltConsumerService(
             @Value("${gcp.project-id}") String projectId,
             @Value("${gcp.pubsub.email-dlt-subscription-id}") String dltSubscriptionId,
-            @Value("${gcp.pubsub.dlt-consumer.auto-start:false}") boolean autoStart) {
+            @Value("${gcp.pubsub.dlt-consumer.auto-start:false}") boolean autoStart,
+            MeterRegistry meterRegistry,
+            DeadLetterStore store,
+            PubSubPublisherService publisherService,
+            @Value("${gcp.pubsub.dlt-consumer.replay.batch-size:500}") int replayBatchSize,
+            @Value("${gcp.pubsub.dlt-consumer.replay.rate-per-second:200}") double replayRatePerSecond,
+            PubSubClientSettings clientSettings,
+            @Value("${gcp.pubsub.dlt-consumer.store.retry-delay-ms:60000}") long storeRetryDelayMs) {
         this.projectId = projectId;
         this.dltSubscriptionId = dltSubscriptionId;
         this.autoStart = autoStart;
+        this.store = store;
+        this.publisherService = publisherService;
+        this.clientSettings = clientSettings;
+        this.replayBatchSize = Math.max(1, replayBatchSize);
+        this.replayRatePerSecond = replayRatePerSecond;
+        this.storeRetryDelayMs = Math.max(0, storeRetryDelayMs);
+        this.deadLetterCounter = Counter.builder("email.dlt.received")
+                .description("Messages received from the dead-letter subscription")
+                .register(meterRegistry);
+        this.replayedCounter = Counter.builder("email.dlt.replayed")
+                .description("Dead letters published again through the replay API")
+                .register(meterRegistry);
     }
 
     @PostConstruct
@@ -53,19 +127,171 @@ public class PubSubDltConsumerService {
         }
 
         ProjectSubscriptionName subscriptionName = ProjectSubscriptionName.of(projectId, dltSubscriptionId);
-        MessageReceiver receiver = (PubsubMessage message, AckReplyConsumer consumer) -> {
-            logger.warn("Received dead-letter message with ID: {}. Content: {}", message.getMessageId(), message.getData().toStringUtf8());
-            // Acknowledge the message to remove it from the DLT subscription.
-            // This prevents it from being redelivered. It is now logged for manual review.
-            consumer.ack();
-        };
+        MessageReceiver receiver = this::receiveDeadLetter;
 
-        subscriber = Subscriber.newBuilder(subscriptionName, receiver).build();
+        subscriber = clientSettings.configure(Subscriber.newBuilder(subscriptionName, receiver)).build();
         subscriber.startAsync().awaitRunning();
         logger.info("DLT Pub/Sub consumer started and listening on subscription: {}", subscriptionName);
         return "DLT Consumer started successfully.";
     }
 
+    void receiveDeadLetter(PubsubMessage message, AckReplyConsumer consumer) {
+        deadLetterCounter.increment();
+        DeadLetter deadLetter;
+        try {
+            deadLetter = store.add(message, System.currentTimeMillis());
+        } catch (IOException e) {
+            logger.error("Failed to store dead-letter message {}. nack message in {} ms to keep it in the DLT subscription.",
+                    message.getMessageId(), storeRetryDelayMs, e);
+            nackLater(consumer);
+            return;
+        }
+        if (deadLetter == null) {
+            // Left in the subscription, where Pub/Sub keeps it until the store has room again.
+            logger.debug("Dead letter store is full. nack dead-letter message {} in {} ms.", message.getMessageId(), storeRetryDelayMs);
+            nackLater(consumer);
+            return;
+        }
+        if (store.isDurable()) {
+            logger.debug("Stored dead-letter message {} as entry {} ({}, domain '{}').",
+                    message.getMessageId(), deadLetter.getId(), deadLetter.getCause(), deadLetter.getDomain());
+        } else {
+            logger.warn("Received dead-letter message with ID: {}. Content: {}", message.getMessageId(), message.getData().toStringUtf8());
+        }
+        recentDeadLetters.add(deadLetter);
+        // Stored, so it can be removed from the DLT subscription.
+        consumer.ack();
+    }
+
+    /**
+     * Nacks the message after the retry delay. Until then it stays leased, which the subscriber keeps extending.
+     */
+    private void nackLater(AckReplyConsumer consumer) {
+        heldForRetry.add(consumer);
+        try {
+            retryScheduler.schedule(() -> {
+                if (heldForRetry.remove(consumer)) {
+                    consumer.nack();
+                }
+            }, storeRetryDelayMs, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            if (heldForRetry.remove(consumer)) {
+                consumer.nack();
+            }
+        }
+    }
+
+    private void nackHeldForRetry() {
+        for (AckReplyConsumer consumer : new ArrayList<>(heldForRetry)) {
+            if (heldForRetry.remove(consumer)) {
+                consumer.nack();
+            }
+        }
+    }
+
+    /**
+     * Logs the dead letters received since the last run as one line, counted by cause and recipient domain.
+     */
+    @Scheduled(fixedDelayString = "${gcp.pubsub.dlt-consumer.summary-interval-ms:60000}")
+    public void logSummary() {
+        List<DeadLetter> received = new ArrayList<>();
+        DeadLetter deadLetter;
+        while ((deadLetter = recentDeadLetters.poll()) != null) {
+            received.add(deadLetter);
+        }
+        if (!received.isEmpty()) {
+            logger.warn("Received {} dead letters: {}. {} dead letters are stored for replay.",
+                    received.size(), DeadLetterStore.describe(received), store.size());
+        }
+    }
+
+    public Map<String, Object> getSummary() {
+        return store.summary();
+    }
+
+    /**
+     * Starts publishing the selected dead letters again, oldest first, in batches of {@code replay.batch-size}
+     * at no more than {@code replay.rate-per-second}. Dead letters that were published are removed from the
+     * store; malformed ones are skipped. Only one replay runs at a time.
+     */
+    public synchronized Map<String, Object> replay(DeadLetterReplayRequest request) {
+        ReplayJob running = replayJob;
+        if (running != null && !running.finished) {
+            Map<String, Object> status = running.status();
+            status.put("message", "A replay is already running.");
+            return status;
+        }
+        int limit = request.getLimit() == null ? Integer.MAX_VALUE : request.getLimit();
+        List<DeadLetter> selected = store.select(blankToNull(request.getCause()), blankToNull(request.getDomain()),
+                blankToNull(request.getSourceSubscription()), limit);
+        ReplayJob job = new ReplayJob(selected.size());
+        replayJob = job;
+        logger.info("Replaying {} dead letters: {}.", selected.size(), DeadLetterStore.describe(selected));
+        replayExecutor.execute(() -> runReplay(job, selected));
+        return job.status();
+    }
+
+    /**
+     * Progress of the running replay, or the outcome of the last one.
+     */
+    public Map<String, Object> getReplayStatus() {
+        ReplayJob job = replayJob;
+        if (job == null) {
+            Map<String, Object> status = new LinkedHashMap<>();
+            status.put("state", "none");
+            return status;
+        }
+        return job.status();
+    }
+
+    private void runReplay(ReplayJob job, List<DeadLetter> selected) {
+        long batchNanos = replayRatePerSecond > 0 ? (long) (TimeUnit.SECONDS.toNanos(replayBatchSize) / replayRatePerSecond) : 0;
+        try {
+            for (int from = 0; from < selected.size(); from += replayBatchSize) {
+                long batchStart = System.nanoTime();
+                List<CompletableFuture<?>> publishes = new ArrayList<>();
+                for (DeadLetter deadLetter : selected.subList(from, Math.min(selected.size(), from + replayBatchSize))) {
+                    publishes.add(replay(job, deadLetter));
+                }
+                CompletableFuture.allOf(publishes.toArray(new CompletableFuture<?>[0])).join();
+                long remainingNanos = batchNanos - (System.nanoTime() - batchStart);
+                if (remainingNanos > 0) {
+                    TimeUnit.NANOSECONDS.sleep(remainingNanos);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            job.finish();
+            logger.info("Replay finished: {} dead letters published, {} failed, {} skipped as malformed.",
+                    job.replayed.get(), job.failed.get(), job.skipped.get());
+        }
+    }
+
+    private CompletableFuture<?> replay(ReplayJob job, DeadLetter deadLetter) {
+        try {
+            return publisherService.publishEmailMessageAsync(store.decode(deadLetter))
+                    .handle((receipt, failure) -> {
+                        if (failure == null) {
+                            store.remove(deadLetter.getId());
+                            replayedCounter.increment();
+                            job.replayed.incrementAndGet();
+                        } else {
+                            logger.warn("Failed to replay dead letter {}.", deadLetter.getId(), failure);
+                            job.failed.incrementAndGet();
+                        }
+                        return null;
+                    });
+        } catch (MalformedMessageException e) {
+            job.skipped.incrementAndGet();
+            return CompletableFuture.completedFuture(null);
+        }
+    }
+
+    private static String blankToNull(String value) {
+        return value == null || value.isBlank() ? null : value;
+    }
+
     public synchronized String stop() {
         if (!isRunning()) {
             String message = "DLT Consumer is not running.";
@@ -73,7 +299,10 @@ public class PubSubDltConsumerService {
             return message;
         }
         try {
-            subscriber.stopAsync().awaitTerminated(1, TimeUnit.MINUTES);
+            subscriber.stopAsync();
+            // The subscriber only terminates once every outstanding message was acked or nacked.
+            nackHeldForRetry();
+            subscriber.awaitTerminated(1, TimeUnit.MINUTES);
             logger.info("DLT Pub/Sub consumer shut down.");
             return "DLT Consumer stopped successfully.";
         } catch (TimeoutException e) {
@@ -91,5 +320,37 @@ public class PubSubDltConsumerService {
         if (isRunning()) {
             stop();
         }
+        replayExecutor.shutdownNow();
+        retryScheduler.shutdownNow();
+        nackHeldForRetry();
+    }
+
+    private static final class ReplayJob {
+
+        private final Instant startedAt = Instant.now();
+        private final int selected;
+        private final AtomicInteger replayed = new AtomicInteger();
+        private final AtomicInteger failed = new AtomicInteger();
+        private final AtomicInteger skipped = new AtomicInteger();
+        private volatile boolean finished;
+
+        private ReplayJob(int selected) {
+            this.selected = selected;
+        }
+
+        private void finish() {
+            finished = true;
+        }
+
+        private Map<String, Object> status() {
+            Map<String, Object> status = new LinkedHashMap<>();
+            status.put("state", finished ? "finished" : "running");
+            status.put("startedAt", startedAt.toString());
+            status.put("selected", selected);
+            status.put("replayed", replayed.get());
+            status.put("failed", failed.get());
+            status.put("skippedMalformed", skipped.get());
+            return status;
+        }
     }
 }
\ No newline at end of file
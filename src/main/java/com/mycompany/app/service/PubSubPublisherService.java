@@ -1,22 +1,38 @@
 package com.mycompany.app.service;
 
 import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
+import org.threeten.bp.Duration;
 
 import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutureCallback;
+import com.google.api.core.ApiFutures;
+import com.google.api.gax.batching.BatchingSettings;
+import com.google.api.gax.batching.FlowControlSettings;
+import com.google.api.gax.batching.FlowController.LimitExceededBehavior;
 import com.google.cloud.pubsub.v1.Publisher;
-import com.google.gson.Gson;
-import com.google.protobuf.ByteString;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.protobuf.InvalidProtocolBufferException;
 import com.google.pubsub.v1.PubsubMessage;
 import com.google.pubsub.v1.TopicName;
 import com.mycompany.app.model.EmailMessage;
+import com.mycompany.app.model.EmailPriority;
+import com.mycompany.app.service.HotPathEvents.Event;
 
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import jakarta.annotation.PostConstruct;
 import jakarta.annotation.PreDestroy;
 
@@ -24,47 +40,337 @@ import jakarta.annotation.PreDestroy;
 public class PubSubPublisherService {
 
     private static final Logger logger = LoggerFactory.getLogger(PubSubPublisherService.class);
+    private static final long OUTBOX_MIN_BACKOFF_MS = 100;
+    private static final long OUTBOX_MAX_BACKOFF_MS = 30_000;
 
     private final String topicId;
+    private final String bulkTopicId;
     private final String projectId;
+    private final long elementCountThreshold;
+    private final long requestByteThreshold;
+    private final long delayThresholdMs;
+    private final long maxOutstandingMessages;
+    private final long maxOutstandingBytes;
+    private final LimitExceededBehavior limitExceededBehavior;
+    private final Timer publishSuccessTimer;
+    private final Timer publishFailureTimer;
+    private final EmailMessageCodec codec;
     private Publisher publisher;
-    private final Gson gson = new Gson();
+    // Publishes BULK emails to their own topic; null when the bulk lane is disabled.
+    private Publisher bulkPublisher;
+    private final PublishOutbox outbox;
+    private final HotPathEvents events;
+    private final PubSubClientSettings clientSettings;
+    private Thread outboxForwarder;
+    private volatile boolean forwarding;
+    // False once the forwarder thread has ended, after which nothing takes emails out of the outbox anymore.
+    private volatile boolean forwarderRunning;
 
     public PubSubPublisherService(
             @Value("${gcp.project-id}") String projectId,
-            @Value("${gcp.pubsub.email-topic-id}") String topicId) {
+            @Value("${gcp.pubsub.email-topic-id}") String topicId,
+            @Value("${gcp.pubsub.publisher.batching.element-count-threshold:100}") long elementCountThreshold,
+            @Value("${gcp.pubsub.publisher.batching.request-byte-threshold:1000}") long requestByteThreshold,
+            @Value("${gcp.pubsub.publisher.batching.delay-threshold-ms:1}") long delayThresholdMs,
+            @Value("${gcp.pubsub.publisher.flow-control.max-outstanding-messages:1000}") long maxOutstandingMessages,
+            @Value("${gcp.pubsub.publisher.flow-control.max-outstanding-bytes:104857600}") long maxOutstandingBytes,
+            @Value("${gcp.pubsub.publisher.flow-control.limit-exceeded-behavior:Block}") LimitExceededBehavior limitExceededBehavior,
+            MeterRegistry meterRegistry,
+            EmailMessageCodec codec,
+            @Value("${gcp.pubsub.bulk-lane.enabled:false}") boolean bulkLaneEnabled,
+            @Value("${gcp.pubsub.bulk-lane.topic-id:app-integration-mails-bulk}") String bulkTopicId,
+            PublishOutbox outbox,
+            HotPathEvents events,
+            PubSubClientSettings clientSettings) {
         this.projectId = projectId;
         this.topicId = topicId;
+        this.bulkTopicId = bulkLaneEnabled ? bulkTopicId : null;
+        this.elementCountThreshold = elementCountThreshold;
+        this.requestByteThreshold = requestByteThreshold;
+        this.delayThresholdMs = delayThresholdMs;
+        this.maxOutstandingMessages = maxOutstandingMessages;
+        this.maxOutstandingBytes = maxOutstandingBytes;
+        this.limitExceededBehavior = limitExceededBehavior;
+        this.publishSuccessTimer = publishTimer(meterRegistry, "success");
+        this.publishFailureTimer = publishTimer(meterRegistry, "failure");
+        this.codec = codec;
+        this.outbox = outbox;
+        this.events = events;
+        this.clientSettings = clientSettings;
+    }
+
+    private static Timer publishTimer(MeterRegistry meterRegistry, String outcome) {
+        return Timer.builder("email.publish")
+                .description("Time from publishing an email to its acknowledgement by Pub/Sub")
+                .tag("outcome", outcome)
+                .publishPercentileHistogram()
+                .register(meterRegistry);
     }
 
     @PostConstruct
     public void init() throws IOException {
-        TopicName topicName = TopicName.of(projectId, topicId);
-        publisher = Publisher.newBuilder(topicName).build();
-        logger.info("Pub/Sub publisher initialized for topic: {}", topicName);
+        publisher = createPublisher(TopicName.of(projectId, topicId));
+        if (bulkTopicId != null) {
+            bulkPublisher = createPublisher(TopicName.of(projectId, bulkTopicId));
+        }
+        if (outbox.isEnabled()) {
+            forwarding = true;
+            forwarderRunning = true;
+            outboxForwarder = new Thread(this::runOutboxForwarder, "email-outbox-forwarder");
+            outboxForwarder.setDaemon(true);
+            outboxForwarder.start();
+        }
+    }
+
+    private Publisher createPublisher(TopicName topicName) throws IOException {
+        FlowControlSettings flowControlSettings = FlowControlSettings.newBuilder()
+                .setMaxOutstandingElementCount(maxOutstandingMessages)
+                .setMaxOutstandingRequestBytes(maxOutstandingBytes)
+                .setLimitExceededBehavior(limitExceededBehavior)
+                .build();
+        BatchingSettings batchingSettings = BatchingSettings.newBuilder()
+                .setElementCountThreshold(elementCountThreshold)
+                .setRequestByteThreshold(requestByteThreshold)
+                .setDelayThreshold(Duration.ofMillis(delayThresholdMs))
+                .setFlowControlSettings(flowControlSettings)
+                .build();
+        Publisher topicPublisher = clientSettings.configure(Publisher.newBuilder(topicName))
+                .setBatchingSettings(batchingSettings)
+                .build();
+        logger.info("Pub/Sub publisher initialized for topic: {} (batching: {} messages / {} bytes / {} ms, max outstanding: {} messages / {} bytes).",
+                topicName, elementCountThreshold, requestByteThreshold, delayThresholdMs, maxOutstandingMessages, maxOutstandingBytes);
+        return topicPublisher;
+    }
+
+    public PublishReceipt publishEmailMessage(EmailMessage emailMessage) throws ExecutionException, InterruptedException {
+        return publishEmailMessageAsync(emailMessage).get();
+    }
+
+    /**
+     * Publishes the email without waiting for Pub/Sub. The returned future completes with the message ID once
+     * the batch holding the message was acknowledged by Pub/Sub.
+     * <p>
+     * With the outbox enabled, the email is written to the local outbox instead and the future completes right
+     * away without a message ID, since it is not known yet, but with the email's idempotency key. An email
+     * without a key is published with a generated one; the caller's email is left as it is. The key also lets
+     * the consumer skip the duplicates a replay of the outbox can cause. Once the outbox is no longer forwarded,
+     * e.g. during shutdown, emails are published directly, as when the outbox is full, rather than accepted into
+     * an outbox nobody empties.
+     */
+    public CompletableFuture<PublishReceipt> publishEmailMessageAsync(EmailMessage emailMessage) {
+        CompletableFuture<PublishReceipt> result = new CompletableFuture<>();
+        long startNanos = System.nanoTime();
+        try {
+            EmailMessage published = emailMessage;
+            if (outbox.isEnabled() && (emailMessage.getIdempotencyKey() == null || emailMessage.getIdempotencyKey().isEmpty())) {
+                published = new EmailMessage(emailMessage);
+                published.setIdempotencyKey(UUID.randomUUID().toString());
+            }
+            String idempotencyKey = published.getIdempotencyKey();
+            PubsubMessage pubsubMessage = codec.toPubsubMessage(published);
+            boolean bulk = bulkPublisher != null && published.getPriority() == EmailPriority.BULK;
+            if (outbox.isEnabled() && forwarderRunning
+                    && outbox.append(bulk ? PublishOutbox.LANE_BULK : PublishOutbox.LANE_DEFAULT, pubsubMessage.toByteArray())) {
+                result.complete(new PublishReceipt(null, idempotencyKey));
+                return result;
+            }
+            // Bulk mail goes to its own topic, so it never queues in front of transactional mail.
+            Publisher target = bulk ? bulkPublisher : publisher;
+
+            ApiFuture<String> messageIdFuture = target.publish(pubsubMessage);
+            ApiFutures.addCallback(messageIdFuture, new ApiFutureCallback<String>() {
+                @Override
+                public void onSuccess(String messageId) {
+                    publishSuccessTimer.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+                    events.record(Event.PUBLISHED, messageId);
+                    result.complete(new PublishReceipt(messageId, idempotencyKey));
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    publishFailureTimer.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+                    result.completeExceptionally(t);
+                }
+            }, MoreExecutors.directExecutor());
+        } catch (RuntimeException e) {
+            publishFailureTimer.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    private void runOutboxForwarder() {
+        try {
+            forwardOutbox();
+        } finally {
+            forwarderRunning = false;
+            if (forwarding) {
+                logger.error("Publish outbox forwarder stopped unexpectedly. Emails are published directly from now on.");
+            }
+        }
+    }
+
+    /**
+     * Publishes the outbox to Pub/Sub in log order, keeping up to {@code outbox.max-in-flight} publishes
+     * outstanding, which the publishers batch as usual. Records are acknowledged in the outbox in order; after a
+     * failure, including one thrown by the publisher itself, the outstanding publishes are waited for and
+     * publishing starts again from the first record that was not acknowledged, with an exponential backoff.
+     * Records that cannot be read are set aside and skipped, so they do not hold up the records behind them.
+     */
+    private void forwardOutbox() {
+        Deque<ForwardedRecord> inFlight = new ArrayDeque<>();
+        long backoffMs = OUTBOX_MIN_BACKOFF_MS;
+        while (forwarding || (!inFlight.isEmpty() && !Thread.currentThread().isInterrupted())) {
+            try {
+                boolean failed = false;
+                while (!inFlight.isEmpty() && inFlight.peekFirst().messageId.isDone()) {
+                    ForwardedRecord head = inFlight.pollFirst();
+                    try {
+                        head.messageId.get();
+                        outbox.acknowledgeThrough(head.record);
+                        backoffMs = OUTBOX_MIN_BACKOFF_MS;
+                    } catch (ExecutionException e) {
+                        logger.warn("Failed to publish email from the outbox. Retrying in {} ms.", backoffMs, e.getCause());
+                        failed = true;
+                        break;
+                    }
+                }
+                if (failed) {
+                    rewindOutbox(inFlight, backoffMs);
+                    backoffMs = Math.min(OUTBOX_MAX_BACKOFF_MS, backoffMs * 2);
+                    continue;
+                }
+                if (!forwarding) {
+                    inFlight.peekFirst().messageId.get(10, TimeUnit.MILLISECONDS);
+                    continue;
+                }
+                List<PublishOutbox.Record> batch = outbox.nextBatch(outbox.getMaxInFlight() - inFlight.size());
+                for (PublishOutbox.Record record : batch) {
+                    inFlight.addLast(new ForwardedRecord(record, forward(record)));
+                }
+                if (batch.isEmpty()) {
+                    if (inFlight.isEmpty()) {
+                        outbox.awaitRecords(100);
+                    } else {
+                        inFlight.peekFirst().messageId.get(10, TimeUnit.MILLISECONDS);
+                    }
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (TimeoutException | ExecutionException ignored) {
+                // Checked again at the top of the loop.
+            } catch (RuntimeException e) {
+                // E.g. the publisher refusing publishes while it is shut down or over its flow control limits.
+                logger.warn("Failed to publish emails from the outbox. Retrying in {} ms.", backoffMs, e);
+                try {
+                    rewindOutbox(inFlight, backoffMs);
+                } catch (InterruptedException interrupted) {
+                    return;
+                }
+                backoffMs = Math.min(OUTBOX_MAX_BACKOFF_MS, backoffMs * 2);
+            }
+        }
     }
 
-    public String publishEmailMessage(EmailMessage emailMessage) throws ExecutionException, InterruptedException {
-        String messageJson = gson.toJson(emailMessage);
-        ByteString data = ByteString.copyFromUtf8(messageJson);
-        PubsubMessage pubsubMessage = PubsubMessage.newBuilder().setData(data).build();
+    /**
+     * Publishes the record, or sets it aside if it cannot be read. A set-aside record is acknowledged in its turn
+     * like a published one.
+     */
+    private ApiFuture<String> forward(PublishOutbox.Record record) {
+        PubsubMessage message;
+        try {
+            message = PubsubMessage.parseFrom(record.getPayload());
+        } catch (InvalidProtocolBufferException e) {
+            // Should not happen for records that passed the CRC check.
+            outbox.quarantine(record, e);
+            return ApiFutures.immediateFuture(null);
+        }
+        Publisher target = record.getLane() == PublishOutbox.LANE_BULK && bulkPublisher != null
+                ? bulkPublisher : publisher;
+        return target.publish(message);
+    }
 
-        ApiFuture<String> messageIdFuture = publisher.publish(pubsubMessage);
-        String messageId = messageIdFuture.get();
-        logger.info("Published message with ID: {}", messageId);
-        return messageId;
+    /**
+     * Waits for the outstanding publishes, then reads the outbox again from the first record that was not
+     * acknowledged once the backoff is over.
+     */
+    private void rewindOutbox(Deque<ForwardedRecord> inFlight, long backoffMs) throws InterruptedException {
+        for (ForwardedRecord pending : inFlight) {
+            try {
+                pending.messageId.get();
+            } catch (ExecutionException ignored) {
+                // Published again after the rewind.
+            }
+        }
+        inFlight.clear();
+        outbox.rewind();
+        Thread.sleep(backoffMs);
     }
 
     @PreDestroy
     public void tearDown() {
-        if (publisher != null) {
+        if (outboxForwarder != null) {
+            // Publishes that are already outstanding are finished; the rest of the outbox is published after restart.
+            forwarding = false;
+            try {
+                outboxForwarder.join(TimeUnit.SECONDS.toMillis(30));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            outboxForwarder.interrupt();
+        }
+        shutdown(publisher);
+        shutdown(bulkPublisher);
+    }
+
+    private static final class ForwardedRecord {
+
+        private final PublishOutbox.Record record;
+        private final ApiFuture<String> messageId;
+
+        private ForwardedRecord(PublishOutbox.Record record, ApiFuture<String> messageId) {
+            this.record = record;
+            this.messageId = messageId;
+        }
+    }
+
+    private static void shutdown(Publisher topicPublisher) {
+        if (topicPublisher != null) {
             try {
-                publisher.shutdown();
-                publisher.awaitTermination(1, TimeUnit.MINUTES);
-                logger.info("Pub/Sub publisher  shut down.");
+                topicPublisher.shutdown();
+                topicPublisher.awaitTermination(1, TimeUnit.MINUTES);
+                logger.info("Pub/Sub publisher for topic {} shut down.", topicPublisher.getTopicNameString());
             } catch (Exception e) {
                 logger.error("Error shutting down Pub/Sub publisher", e);
             }
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * What publishing one email produced.
+     */
+    public static final class PublishReceipt {
+
+        private final String messageId;
+        private final String idempotencyKey;
+
+        public PublishReceipt(String messageId, String idempotencyKey) {
+            this.messageId = messageId;
+            this.idempotencyKey = idempotencyKey;
+        }
+
+        /**
+         * The Pub/Sub message ID, or null for an email accepted into the outbox.
+         */
+        public String getMessageId() {
+            return messageId;
+        }
+
+        /**
+         * The idempotency key the email was published with, or null if it has none.
+         */
+        public String getIdempotencyKey() {
+            return idempotencyKey;
+        }
+    }
+}
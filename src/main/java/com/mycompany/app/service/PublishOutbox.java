@@ -0,0 +1,404 @@
+package com.mycompany.app.service;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+
+/**
+ * A local, append-only log of messages accepted for publishing but not yet acknowledged by Pub/Sub.
+ * <p>
+ * The log is a sequence of fixed-size segment files, each memory-mapped, holding records of the form
+ * {@code [length][crc32][lane][serialized PubsubMessage]}. Appending copies the record into the mapped segment,
+ * so it survives a crash of the application; with {@code fsync} it is also forced to disk before the append
+ * returns. A record's length is written last, so a torn record reads as the end of the log.
+ * <p>
+ * {@link PubSubPublisherService} reads the records in order with {@link #nextBatch(int)} and acknowledges them
+ * in order once Pub/Sub has accepted them. Segments whose records are all acknowledged are deleted. The
+ * acknowledged position is checkpointed every {@code checkpoint-interval-ms}; after a restart, records after
+ * the checkpoint are published again, so delivery is at least once.
+ */
+@Service
+public class PublishOutbox {
+
+    private static final Logger logger = LoggerFactory.getLogger(PublishOutbox.class);
+
+    static final byte LANE_DEFAULT = 0;
+    static final byte LANE_BULK = 1;
+
+    private static final int HEADER_BYTES = 9;
+    private static final String SEGMENT_PREFIX = "outbox-";
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String CHECKPOINT_FILE = "checkpoint";
+    private static final String QUARANTINE_DIRECTORY = "quarantine";
+
+    private final boolean enabled;
+    private final Path directory;
+    private final int segmentBytes;
+    private final int maxSegments;
+    private final boolean fsync;
+    private final int maxInFlight;
+
+    private final TreeMap<Long, MappedByteBuffer> segments = new TreeMap<>();
+    private final AtomicLong pending = new AtomicLong();
+    // Positions are (segment ID, offset) pairs; records are read from `read` and acknowledged up to `acked`.
+    private long writeSegment;
+    private int writeOffset;
+    private long readSegment;
+    private int readOffset;
+    private long ackedSegment;
+    private int ackedOffset;
+    private long checkpointedSegment = -1;
+    private int checkpointedOffset;
+
+    public PublishOutbox(
+            @Value("${gcp.pubsub.publisher.outbox.enabled:false}") boolean enabled,
+            @Value("${gcp.pubsub.publisher.outbox.directory:outbox}") String directory,
+            @Value("${gcp.pubsub.publisher.outbox.segment-bytes:67108864}") int segmentBytes,
+            @Value("${gcp.pubsub.publisher.outbox.max-segments:16}") int maxSegments,
+            @Value("${gcp.pubsub.publisher.outbox.fsync:false}") boolean fsync,
+            @Value("${gcp.pubsub.publisher.outbox.max-in-flight:1000}") int maxInFlight,
+            MeterRegistry meterRegistry) {
+        this.enabled = enabled;
+        this.directory = Path.of(directory);
+        this.segmentBytes = Math.max(4096, segmentBytes);
+        this.maxSegments = Math.max(2, maxSegments);
+        this.fsync = fsync;
+        this.maxInFlight = Math.max(1, maxInFlight);
+        Gauge.builder("email.outbox.pending", pending, AtomicLong::get)
+                .description("Emails in the publish outbox that Pub/Sub has not acknowledged yet")
+                .register(meterRegistry);
+        Gauge.builder("email.outbox.segments", this, PublishOutbox::getSegmentCount)
+                .description("Segment files of the publish outbox")
+                .register(meterRegistry);
+    }
+
+    @PostConstruct
+    public synchronized void init() throws IOException {
+        if (!enabled) {
+            return;
+        }
+        Files.createDirectories(directory);
+        readCheckpoint();
+        List<Long> ids = new ArrayList<>();
+        try (Stream<Path> files = Files.list(directory)) {
+            files.map(file -> file.getFileName().toString())
+                    .filter(name -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX))
+                    .map(name -> Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())))
+                    .sorted()
+                    .forEach(ids::add);
+        }
+        for (long id : ids) {
+            if (id < checkpointedSegment) {
+                Files.deleteIfExists(segmentPath(id));
+            } else {
+                segments.put(id, map(id, false));
+            }
+        }
+        if (segments.isEmpty()) {
+            long id = Math.max(0, checkpointedSegment);
+            segments.put(id, map(id, true));
+        }
+        if (checkpointedSegment >= 0 && segments.containsKey(checkpointedSegment)) {
+            ackedSegment = checkpointedSegment;
+            ackedOffset = checkpointedOffset;
+        } else {
+            // The checkpointed segment was fully acknowledged and deleted; start from the oldest one left.
+            ackedSegment = segments.firstKey();
+            ackedOffset = 0;
+        }
+        recover();
+        logger.info("Publish outbox opened in {} with {} unacknowledged emails in {} segments.",
+                directory.toAbsolutePath(), pending.get(), segments.size());
+    }
+
+    /**
+     * Finds the end of the log and counts the records that still have to be published.
+     */
+    private void recover() {
+        long segment = ackedSegment;
+        int offset = ackedOffset;
+        long count = 0;
+        while (true) {
+            int end = recordEnd(segments.get(segment), offset);
+            if (end >= 0) {
+                count++;
+                offset = end;
+                continue;
+            }
+            Long next = segments.higherKey(segment);
+            if (next == null) {
+                break;
+            }
+            segment = next;
+            offset = 0;
+        }
+        writeSegment = segment;
+        writeOffset = offset;
+        readSegment = ackedSegment;
+        readOffset = ackedOffset;
+        pending.set(count);
+        // Clear a torn record at the end, so that a shorter record written over it cannot leave stale bytes behind.
+        MappedByteBuffer buffer = segments.get(writeSegment);
+        if (writeOffset + 4 <= segmentBytes && buffer.getInt(writeOffset) != 0) {
+            for (int i = writeOffset; i < segmentBytes; i++) {
+                buffer.put(i, (byte) 0);
+            }
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    public long getPending() {
+        return pending.get();
+    }
+
+    /**
+     * Appends a serialized message.
+     *
+     * @return {@code false} if the outbox is full or the message does not fit into a segment; the caller then
+     *         publishes it directly
+     */
+    public synchronized boolean append(byte lane, byte[] payload) {
+        int recordBytes = HEADER_BYTES + payload.length;
+        if (recordBytes > segmentBytes) {
+            return false;
+        }
+        if (writeOffset + recordBytes > segmentBytes) {
+            if (segments.size() >= maxSegments) {
+                return false;
+            }
+            try {
+                long next = writeSegment + 1;
+                segments.put(next, map(next, true));
+                writeSegment = next;
+                writeOffset = 0;
+            } catch (IOException e) {
+                logger.error("Failed to create publish outbox segment {}.", writeSegment + 1, e);
+                return false;
+            }
+        }
+        MappedByteBuffer buffer = segments.get(writeSegment);
+        CRC32 crc = new CRC32();
+        crc.update(lane);
+        crc.update(payload);
+        buffer.putInt(writeOffset + 4, (int) crc.getValue());
+        buffer.put(writeOffset + 8, lane);
+        buffer.put(writeOffset + HEADER_BYTES, payload);
+        buffer.putInt(writeOffset, payload.length);
+        if (fsync) {
+            buffer.force(writeOffset, recordBytes);
+        }
+        writeOffset += recordBytes;
+        pending.incrementAndGet();
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * Returns up to {@code max} records after the ones returned before, in log order.
+     */
+    synchronized List<Record> nextBatch(int max) {
+        List<Record> batch = new ArrayList<>();
+        while (batch.size() < max && (readSegment != writeSegment || readOffset < writeOffset)) {
+            MappedByteBuffer buffer = segments.get(readSegment);
+            int end = recordEnd(buffer, readOffset);
+            if (end < 0) {
+                readSegment = segments.higherKey(readSegment);
+                readOffset = 0;
+                continue;
+            }
+            byte[] payload = new byte[end - readOffset - HEADER_BYTES];
+            buffer.get(readOffset + HEADER_BYTES, payload);
+            batch.add(new Record(readSegment, end, buffer.get(readOffset + 8), payload));
+            readOffset = end;
+        }
+        return batch;
+    }
+
+    /**
+     * Waits up to {@code timeoutMs} for records that were not returned by {@link #nextBatch(int)} yet.
+     */
+    synchronized void awaitRecords(long timeoutMs) throws InterruptedException {
+        if (readSegment == writeSegment && readOffset >= writeOffset) {
+            wait(timeoutMs);
+        }
+    }
+
+    /**
+     * Marks the record and all records before it as published, and deletes segments that are done.
+     */
+    synchronized void acknowledgeThrough(Record record) {
+        ackedSegment = record.segment;
+        ackedOffset = record.endOffset;
+        pending.decrementAndGet();
+        while (segments.firstKey() < ackedSegment) {
+            long done = segments.pollFirstEntry().getKey();
+            try {
+                Files.deleteIfExists(segmentPath(done));
+            } catch (IOException e) {
+                logger.warn("Failed to delete publish outbox segment {}.", done, e);
+            }
+        }
+    }
+
+    /**
+     * Reads again from the first record that was not acknowledged, after publishing failed.
+     */
+    synchronized void rewind() {
+        readSegment = ackedSegment;
+        readOffset = ackedOffset;
+    }
+
+    /**
+     * Copies a record that cannot be published to the {@code quarantine} directory of the outbox for manual
+     * inspection. The record is then acknowledged in its turn like a published one.
+     */
+    void quarantine(Record record, Exception cause) {
+        Path file = directory.resolve(QUARANTINE_DIRECTORY)
+                .resolve(String.format("%s%020d-%010d.bin", SEGMENT_PREFIX, record.segment, record.endOffset));
+        try {
+            Files.createDirectories(file.getParent());
+            Files.write(file, record.payload);
+            logger.error("Unreadable email in the publish outbox. Skipped it and saved it to {}.", file, cause);
+        } catch (IOException e) {
+            logger.error("Unreadable email in the publish outbox. Skipped it, but failed to save it to {}.", file, cause);
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${gcp.pubsub.publisher.outbox.checkpoint-interval-ms:1000}")
+    public synchronized void checkpoint() {
+        if (!enabled || (ackedSegment == checkpointedSegment && ackedOffset == checkpointedOffset)) {
+            return;
+        }
+        Path file = directory.resolve(CHECKPOINT_FILE);
+        Path temp = directory.resolve(CHECKPOINT_FILE + ".tmp");
+        try {
+            Files.writeString(temp, ackedSegment + " " + ackedOffset, StandardCharsets.UTF_8);
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            checkpointedSegment = ackedSegment;
+            checkpointedOffset = ackedOffset;
+        } catch (IOException e) {
+            logger.warn("Failed to write publish outbox checkpoint {}.", file, e);
+        }
+    }
+
+    private void readCheckpoint() throws IOException {
+        Path file = directory.resolve(CHECKPOINT_FILE);
+        if (!Files.exists(file)) {
+            return;
+        }
+        String[] parts = Files.readString(file, StandardCharsets.UTF_8).trim().split(" ");
+        try {
+            checkpointedSegment = Long.parseLong(parts[0]);
+            checkpointedOffset = Integer.parseInt(parts[1]);
+        } catch (RuntimeException e) {
+            logger.warn("Ignoring unreadable publish outbox checkpoint {}. All emails in the outbox are published again.", file);
+            checkpointedSegment = -1;
+        }
+    }
+
+    int getSegmentCount() {
+        synchronized (this) {
+            return segments.size();
+        }
+    }
+
+    private Path segmentPath(long id) {
+        return directory.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX));
+    }
+
+    private MappedByteBuffer map(long id, boolean create) throws IOException {
+        Path path = segmentPath(id);
+        if (create) {
+            Files.deleteIfExists(path);
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            // The mapping stays valid after the channel is closed.
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+        }
+    }
+
+    /**
+     * Returns the offset after the record at {@code offset}, or {@code -1} if there is no complete record there.
+     */
+    private int recordEnd(MappedByteBuffer buffer, int offset) {
+        if (offset + HEADER_BYTES > segmentBytes) {
+            return -1;
+        }
+        int length = buffer.getInt(offset);
+        if (length <= 0 || length > segmentBytes - offset - HEADER_BYTES) {
+            return -1;
+        }
+        byte[] payload = new byte[length];
+        buffer.get(offset + HEADER_BYTES, payload);
+        CRC32 crc = new CRC32();
+        crc.update(buffer.get(offset + 8));
+        crc.update(payload);
+        return (int) crc.getValue() == buffer.getInt(offset + 4) ? offset + HEADER_BYTES + length : -1;
+    }
+
+    @PreDestroy
+    public synchronized void tearDown() {
+        if (!enabled) {
+            return;
+        }
+        checkpoint();
+        for (Map.Entry<Long, MappedByteBuffer> segment : segments.entrySet()) {
+            segment.getValue().force();
+        }
+        logger.info("Publish outbox closed with {} unacknowledged emails.", pending.get());
+    }
+
+    static final class Record {
+
+        private final long segment;
+        private final int endOffset;
+        private final byte lane;
+        private final byte[] payload;
+
+        private Record(long segment, int endOffset, byte lane, byte[] payload) {
+            this.segment = segment;
+            this.endOffset = endOffset;
+            this.lane = lane;
+            this.payload = payload;
+        }
+
+        byte getLane() {
+            return lane;
+        }
+
+        byte[] getPayload() {
+            return payload;
+        }
+    }
+}
@@ -0,0 +1,383 @@
+package com.mycompany.app.service;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.angus.mail.smtp.SMTPSendFailedException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import jakarta.mail.Address;
+import jakarta.mail.MessagingException;
+import jakarta.mail.internet.MimeMessage;
+
+/**
+ * Spreads sends over several SMTP relays: the one of {@code spring.mail.host} and any listed in
+ * {@code email.smtp.relays}, each with its own connection pool.
+ * <p>
+ * Every send goes to one relay, chosen by weight (smooth weighted round robin) or, with {@code least-outstanding}
+ * routing, to the relay with the fewest sends in progress per unit of weight, which steers traffic away from a
+ * relay that slows down. Messages that fail because the relay could not be reached, was too busy or answered
+ * {@code 421} are sent again through another relay; recipient rejections are not retried.
+ * <p>
+ * A relay that fails {@code failure-threshold} sends in a row is ejected for {@code ejection-ms}. After that, one
+ * send probes it: if it succeeds the relay is back, otherwise it is ejected again. The last relay is never ejected,
+ * so with a single relay this behaves like its pool alone.
+ */
+@Service
+public class SmtpRelayGroup {
+
+    private static final Logger logger = LoggerFactory.getLogger(SmtpRelayGroup.class);
+
+    private static final int SMTP_SERVICE_NOT_AVAILABLE = 421;
+
+    private final List<Relay> relays = new ArrayList<>();
+    private final boolean leastOutstanding;
+    private final int failureThreshold;
+    private final long ejectionNanos;
+    private final Counter failovers;
+
+    public SmtpRelayGroup(
+            SmtpTransportPool primaryPool,
+            MeterRegistry meterRegistry,
+            @Value("${email.smtp.relays:}") String additionalRelays,
+            @Value("${email.smtp.relay-weights:}") String weights,
+            @Value("${email.smtp.relay-routing:weighted}") String routing,
+            @Value("${email.smtp.relay-ejection.failure-threshold:3}") int failureThreshold,
+            @Value("${email.smtp.relay-ejection.duration-ms:30000}") long ejectionMs) {
+        this.leastOutstanding = "least-outstanding".equals(routing);
+        this.failureThreshold = Math.max(1, failureThreshold);
+        this.ejectionNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, ejectionMs));
+        this.failovers = Counter.builder("email.smtp.relay.failovers")
+                .description("Sends retried through another relay after a relay failed")
+                .register(meterRegistry);
+
+        List<SmtpTransportPool> pools = new ArrayList<>();
+        pools.add(primaryPool);
+        for (String relay : split(additionalRelays)) {
+            int separator = relay.lastIndexOf(':');
+            if (separator < 0) {
+                throw new IllegalArgumentException("SMTP relay must be given as host:port: " + relay);
+            }
+            pools.add(primaryPool.forRelay(relay.substring(0, separator), Integer.parseInt(relay.substring(separator + 1))));
+        }
+        List<String> relayWeights = split(weights);
+        for (int i = 0; i < pools.size(); i++) {
+            int weight = i < relayWeights.size() ? Math.max(1, Integer.parseInt(relayWeights.get(i))) : 1;
+            Relay relay = new Relay(pools.get(i), weight, i == 0);
+            relays.add(relay);
+            Gauge.builder("email.smtp.relay.available", relay, r -> r.isEjected(System.nanoTime()) ? 0 : 1)
+                    .description("Whether the relay receives sends (1) or is ejected (0)")
+                    .tag("relay", relay.name)
+                    .register(meterRegistry);
+            Gauge.builder("email.smtp.relay.outstanding", relay.outstanding, AtomicInteger::get)
+                    .description("Sends in progress through the relay")
+                    .tag("relay", relay.name)
+                    .register(meterRegistry);
+        }
+        if (relays.size() > 1) {
+            logger.info("Sending through {} SMTP relays with {} routing: {}.", relays.size(),
+                    leastOutstanding ? "least-outstanding" : "weighted", getStatus().keySet());
+        }
+    }
+
+    public boolean isEnabled() {
+        return relays.get(0).pool.isEnabled();
+    }
+
+    /**
+     * Sends the message through one relay, failing over to the others.
+     */
+    public void send(MimeMessage message) throws MessagingException {
+        MessagingException failure = sendBatch(List.of(message)).get(message);
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Sends the messages over one connection of one relay, like {@link SmtpTransportPool#sendBatch}. The messages
+     * that failed because of the relay are sent again, together, through another relay.
+     *
+     * @return the messages that could not be sent, mapped to the failure. Empty when all were sent.
+     */
+    public Map<MimeMessage, MessagingException> sendBatch(List<MimeMessage> messages) {
+        MessagingException[] sendFailures = route(messages.size(), (pool, indexes) -> {
+            List<MimeMessage> subset = select(messages, indexes);
+            Map<MimeMessage, MessagingException> failures = pool.sendBatch(subset);
+            MessagingException[] result = new MessagingException[subset.size()];
+            for (int i = 0; i < subset.size(); i++) {
+                result[i] = failures.get(subset.get(i));
+            }
+            return result;
+        });
+        Map<MimeMessage, MessagingException> failures = new IdentityHashMap<>();
+        for (int i = 0; i < messages.size(); i++) {
+            if (sendFailures[i] != null) {
+                failures.put(messages.get(i), sendFailures[i]);
+            }
+        }
+        return failures;
+    }
+
+    /**
+     * Sends the message to each chunk of recipients, like {@link SmtpTransportPool#sendToRecipients}. Chunks that
+     * failed because of the relay are sent again through another relay.
+     *
+     * @return the failure of each chunk, or {@code null} for the chunks that were sent
+     */
+    public MessagingException[] sendToRecipients(MimeMessage message, List<Address[]> recipientChunks) {
+        return route(recipientChunks.size(), (pool, indexes) -> pool.sendToRecipients(message, select(recipientChunks, indexes)));
+    }
+
+    /**
+     * Whether another relay than the one of {@code spring.mail.host}, whose health the actuator mail health check
+     * reports, is in use and can be connected to.
+     */
+    public boolean isFallbackRelayReachable() {
+        long now = System.nanoTime();
+        for (Relay relay : relays) {
+            if (!relay.primary && !relay.isEjected(now) && relay.pool.testConnection()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * State of every relay, by {@code host:port}.
+     */
+    public synchronized Map<String, Object> getStatus() {
+        long now = System.nanoTime();
+        Map<String, Object> status = new LinkedHashMap<>();
+        for (Relay relay : relays) {
+            Map<String, Object> relayStatus = new LinkedHashMap<>();
+            relayStatus.put("weight", relay.weight);
+            relayStatus.put("state", relay.probing ? "probing" : relay.isEjected(now) ? "ejected" : "available");
+            relayStatus.put("outstanding", relay.outstanding.get());
+            relayStatus.put("consecutiveFailures", relay.consecutiveFailures);
+            status.put(relay.name, relayStatus);
+        }
+        return status;
+    }
+
+    /**
+     * The pool of {@code spring.mail.host} evicts its own idle connections; the pools created here are evicted
+     * along with it.
+     */
+    @Scheduled(fixedDelayString = "${email.smtp.pool.eviction-interval-ms:15000}")
+    public void evictIdleConnections() {
+        for (Relay relay : relays) {
+            if (!relay.primary) {
+                relay.pool.evictIdleConnections();
+            }
+        }
+    }
+
+    public void closeIdleConnections() {
+        relays.forEach(relay -> relay.pool.closeIdleConnections());
+    }
+
+    @PreDestroy
+    public void tearDown() {
+        for (Relay relay : relays) {
+            if (!relay.primary) {
+                relay.pool.tearDown();
+            }
+        }
+    }
+
+    /**
+     * Sends the items (messages or recipient chunks) through one relay after another until every item was sent,
+     * failed for a reason other than the relay, or every relay was tried.
+     */
+    private MessagingException[] route(int count, RelaySend send) {
+        MessagingException[] failures = new MessagingException[count];
+        List<Integer> pending = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            pending.add(i);
+        }
+        List<Relay> tried = new ArrayList<>(relays.size());
+        while (!pending.isEmpty()) {
+            Relay relay = choose(tried);
+            if (relay == null) {
+                if (tried.isEmpty()) {
+                    MessagingException noRelay = new MessagingException("Every SMTP relay is ejected.");
+                    pending.forEach(index -> failures[index] = noRelay);
+                }
+                break;
+            }
+            if (!tried.isEmpty()) {
+                failovers.increment(pending.size());
+                logger.debug("Failing over {} sends to SMTP relay {}.", pending.size(), relay.name);
+            }
+            tried.add(relay);
+            MessagingException[] result;
+            relay.outstanding.incrementAndGet();
+            try {
+                result = send.send(relay.pool, pending);
+            } finally {
+                relay.outstanding.decrementAndGet();
+            }
+            List<Integer> retry = new ArrayList<>();
+            for (int i = 0; i < pending.size(); i++) {
+                int index = pending.get(i);
+                failures[index] = result[i];
+                if (result[i] != null && isRelayFailure(result[i])) {
+                    retry.add(index);
+                }
+            }
+            recordOutcome(relay, retry.isEmpty(), retry.isEmpty() ? null : failures[retry.get(0)]);
+            pending = retry;
+        }
+        return failures;
+    }
+
+    /**
+     * Picks the relay for the next send among those not tried yet. An ejected relay whose ejection has run out is
+     * picked for one probing send.
+     */
+    private synchronized Relay choose(List<Relay> tried) {
+        long now = System.nanoTime();
+        Relay chosen = null;
+        int totalWeight = 0;
+        for (Relay relay : relays) {
+            if (tried.contains(relay) || relay.probing || relay.isEjected(now)) {
+                continue;
+            }
+            if (leastOutstanding) {
+                if (chosen == null || (double) relay.outstanding.get() / relay.weight
+                        < (double) chosen.outstanding.get() / chosen.weight) {
+                    chosen = relay;
+                }
+            } else {
+                relay.currentWeight += relay.weight;
+                totalWeight += relay.weight;
+                if (chosen == null || relay.currentWeight > chosen.currentWeight) {
+                    chosen = relay;
+                }
+            }
+        }
+        if (chosen != null) {
+            chosen.currentWeight -= totalWeight;
+            if (chosen.ejectedUntilNanos != 0) {
+                chosen.probing = true;
+            }
+        }
+        return chosen;
+    }
+
+    private synchronized void recordOutcome(Relay relay, boolean success, MessagingException failure) {
+        boolean probe = relay.probing;
+        relay.probing = false;
+        if (success) {
+            if (relay.ejectedUntilNanos != 0) {
+                logger.info("SMTP relay {} is back after a successful probe.", relay.name);
+            }
+            relay.consecutiveFailures = 0;
+            relay.ejectedUntilNanos = 0;
+            return;
+        }
+        relay.consecutiveFailures++;
+        if ((probe || relay.consecutiveFailures >= failureThreshold) && canEject(relay)) {
+            // Never 0, which marks a relay that is not ejected.
+            relay.ejectedUntilNanos = (System.nanoTime() + ejectionNanos) | 1;
+            logger.warn("Ejecting SMTP relay {} for {} ms after {} failed sends in a row: {}", relay.name,
+                    TimeUnit.NANOSECONDS.toMillis(ejectionNanos), relay.consecutiveFailures, failure.getMessage());
+        }
+    }
+
+    /**
+     * A relay may be ejected as long as another relay still receives sends.
+     */
+    private boolean canEject(Relay relay) {
+        long now = System.nanoTime();
+        for (Relay other : relays) {
+            if (other != relay && !other.isEjected(now)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Failures that say the relay, not the message, is the problem: the relay could not be reached, all of its
+     * connections were busy, or it answered 421 (service not available).
+     */
+    static boolean isRelayFailure(MessagingException e) {
+        if (e instanceof SmtpTransportPool.PoolExhaustedException) {
+            return true;
+        }
+        if (e instanceof SMTPSendFailedException smtpException
+                && smtpException.getReturnCode() == SMTP_SERVICE_NOT_AVAILABLE) {
+            return true;
+        }
+        return SmtpTransportPool.isConnectionFailure(e);
+    }
+
+    private static <T> List<T> select(List<T> items, List<Integer> indexes) {
+        List<T> selected = new ArrayList<>(indexes.size());
+        for (int index : indexes) {
+            selected.add(items.get(index));
+        }
+        return selected;
+    }
+
+    private static List<String> split(String value) {
+        List<String> parts = new ArrayList<>();
+        if (value != null) {
+            for (String part : value.split(",")) {
+                if (!part.isBlank()) {
+                    parts.add(part.trim());
+                }
+            }
+        }
+        return parts;
+    }
+
+    @FunctionalInterface
+    private interface RelaySend {
+        MessagingException[] send(SmtpTransportPool pool, List<Integer> indexes);
+    }
+
+    private static final class Relay {
+
+        private final SmtpTransportPool pool;
+        private final String name;
+        private final int weight;
+        private final boolean primary;
+        private final AtomicInteger outstanding = new AtomicInteger();
+        // Guarded by the group.
+        private int currentWeight;
+        private int consecutiveFailures;
+        private volatile long ejectedUntilNanos;
+        private volatile boolean probing;
+
+        private Relay(SmtpTransportPool pool, int weight, boolean primary) {
+            this.pool = pool;
+            this.name = pool.getRelay();
+            this.weight = weight;
+            this.primary = primary;
+        }
+
+        /**
+         * Ejected and not yet due for a probe.
+         */
+        private boolean isEjected(long now) {
+            long until = ejectedUntilNanos;
+            return until != 0 && now - until < 0;
+        }
+    }
+}
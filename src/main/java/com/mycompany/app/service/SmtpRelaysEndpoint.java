@@ -0,0 +1,27 @@
+package com.mycompany.app.service;
+
+import java.util.Map;
+
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.stereotype.Component;
+
+/**
+ * Actuator endpoint showing the weight, state (available, ejected or probing) and sends in progress of each SMTP
+ * relay.
+ */
+@Component
+@Endpoint(id = "smtprelays")
+public class SmtpRelaysEndpoint {
+
+    private final SmtpRelayGroup relayGroup;
+
+    public SmtpRelaysEndpoint(SmtpRelayGroup relayGroup) {
+        this.relayGroup = relayGroup;
+    }
+
+    @ReadOperation
+    public Map<String, Object> smtpRelays() {
+        return relayGroup.getStatus();
+    }
+}
@@ -0,0 +1,488 @@
+package com.mycompany.app.service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.angus.mail.smtp.SMTPAddressFailedException;
+import org.eclipse.angus.mail.smtp.SMTPSendFailedException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.mail.javamail.JavaMailSenderImpl;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import jakarta.mail.Address;
+import jakarta.mail.MessagingException;
+import jakarta.mail.SendFailedException;
+import jakarta.mail.Transport;
+import jakarta.mail.internet.MimeMessage;
+
+/**
+ * A bounded pool of connected SMTP {@link Transport}s that are reused across sends.
+ * <p>
+ * {@code JavaMailSender.send(...)} opens a new connection (TCP, EHLO, STARTTLS, AUTH) for every call,
+ * which costs more than the message itself. This pool keeps connections open, retires them after a
+ * configurable number of messages or idle time, and transparently reconnects once when the server
+ * has dropped a pooled connection.
+ */
+@Service
+public class SmtpTransportPool {
+
+    private static final Logger logger = LoggerFactory.getLogger(SmtpTransportPool.class);
+    private static final String DEFAULT_PROTOCOL = "smtp";
+
+    private final JavaMailSenderImpl mailSender;
+    private final String relay;
+    private final boolean enabled;
+    private final int maxSize;
+    private final long maxIdleMs;
+    private final int maxMessagesPerConnection;
+    private final long borrowTimeoutMs;
+    private final long validateAfterIdleMs;
+
+    // Idle connections, most recently used first, so that surplus connections age out at the tail.
+    private final BlockingDeque<PooledTransport> idle = new LinkedBlockingDeque<>();
+    // One permit per connection that may be open at the same time.
+    private final Semaphore permits;
+    private final AtomicInteger openConnections = new AtomicInteger();
+    private volatile boolean closed = false;
+
+    private final MeterRegistry meterRegistry;
+    private final Counter connectionsCreated;
+    private final Counter reconnects;
+    private final Counter borrowTimeouts;
+
+    public SmtpTransportPool(
+            JavaMailSenderImpl mailSender,
+            MeterRegistry meterRegistry,
+            @Value("${email.smtp.pool.enabled:true}") boolean enabled,
+            @Value("${email.smtp.pool.max-size:4}") int maxSize,
+            @Value("${email.smtp.pool.max-idle-ms:60000}") long maxIdleMs,
+            @Value("${email.smtp.pool.max-messages-per-connection:100}") int maxMessagesPerConnection,
+            @Value("${email.smtp.pool.borrow-timeout-ms:30000}") long borrowTimeoutMs,
+            @Value("${email.smtp.pool.validate-after-idle-ms:5000}") long validateAfterIdleMs) {
+        this.mailSender = mailSender;
+        this.relay = mailSender.getHost() + ":" + mailSender.getPort();
+        this.enabled = enabled;
+        this.maxSize = Math.max(1, maxSize);
+        this.maxIdleMs = maxIdleMs;
+        this.maxMessagesPerConnection = Math.max(1, maxMessagesPerConnection);
+        this.borrowTimeoutMs = borrowTimeoutMs;
+        this.validateAfterIdleMs = validateAfterIdleMs;
+        this.permits = new Semaphore(this.maxSize, true);
+        this.meterRegistry = meterRegistry;
+
+        Gauge.builder("email.smtp.pool.connections", openConnections, AtomicInteger::get)
+                .description("SMTP connections currently open")
+                .tag("relay", relay)
+                .tag("state", "open")
+                .register(meterRegistry);
+        Gauge.builder("email.smtp.pool.connections", idle, BlockingDeque::size)
+                .description("SMTP connections currently idle in the pool")
+                .tag("relay", relay)
+                .tag("state", "idle")
+                .register(meterRegistry);
+        Gauge.builder("email.smtp.pool.connections", permits, p -> this.maxSize - p.availablePermits())
+                .description("SMTP connections currently borrowed by a send")
+                .tag("relay", relay)
+                .tag("state", "borrowed")
+                .register(meterRegistry);
+        this.connectionsCreated = Counter.builder("email.smtp.pool.connections.created").tag("relay", relay).register(meterRegistry);
+        this.reconnects = Counter.builder("email.smtp.pool.reconnects").tag("relay", relay).register(meterRegistry);
+        this.borrowTimeouts = Counter.builder("email.smtp.pool.borrow.timeouts").tag("relay", relay).register(meterRegistry);
+
+        if (enabled) {
+            logger.info("SMTP transport pool for {} enabled with max size {}, max idle {} ms and {} messages per connection.",
+                    relay, this.maxSize, maxIdleMs, this.maxMessagesPerConnection);
+        }
+    }
+
+    /**
+     * Creates a pool with the same settings for another relay, which is sent to with the same credentials and
+     * mail properties.
+     */
+    SmtpTransportPool forRelay(String host, int port) {
+        JavaMailSenderImpl relaySender = new JavaMailSenderImpl();
+        relaySender.setHost(host);
+        relaySender.setPort(port);
+        relaySender.setProtocol(mailSender.getProtocol());
+        relaySender.setUsername(mailSender.getUsername());
+        relaySender.setPassword(mailSender.getPassword());
+        relaySender.setDefaultEncoding(mailSender.getDefaultEncoding());
+        relaySender.setJavaMailProperties(mailSender.getJavaMailProperties());
+        return new SmtpTransportPool(relaySender, meterRegistry, enabled, maxSize, maxIdleMs, maxMessagesPerConnection,
+                borrowTimeoutMs, validateAfterIdleMs);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * The relay this pool connects to, as {@code host:port}.
+     */
+    public String getRelay() {
+        return relay;
+    }
+
+    /**
+     * Opens and closes a connection to the relay, outside the pool.
+     */
+    boolean testConnection() {
+        try {
+            mailSender.testConnection();
+            return true;
+        } catch (MessagingException e) {
+            logger.debug("SMTP relay {} cannot be reached: {}", relay, e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Sends the message over a pooled connection. If the connection turns out to have been dropped by the
+     * server, it is replaced and the send is retried once on a fresh connection.
+     */
+    public void send(MimeMessage message) throws MessagingException {
+        MessagingException failure = sendBatch(List.of(message)).get(message);
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Sends all messages, in order, over a single pooled connection.
+     * <p>
+     * A message rejected by the server does not affect the others. A dropped connection is replaced once per
+     * message; if the relay cannot be reached again, the remaining messages fail fast with the same cause.
+     *
+     * @return the messages that could not be sent, mapped to the failure. Empty when all were sent.
+     */
+    public Map<MimeMessage, MessagingException> sendBatch(List<MimeMessage> messages) {
+        MessagingException[] sendFailures = send(messages, null);
+        Map<MimeMessage, MessagingException> failures = new IdentityHashMap<>();
+        for (int i = 0; i < messages.size(); i++) {
+            if (sendFailures[i] != null) {
+                failures.put(messages.get(i), sendFailures[i]);
+            }
+        }
+        return failures;
+    }
+
+    /**
+     * Sends one message as several SMTP transactions over a single pooled connection, one per chunk of
+     * recipients, so that no transaction has more {@code RCPT TO} entries than the relay accepts. The message is
+     * saved once, so every transaction carries the same content and Message-ID.
+     * <p>
+     * Failures are handled per chunk like the messages of {@link #sendBatch}.
+     *
+     * @return the failure of each chunk, or {@code null} for the chunks that were sent
+     */
+    public MessagingException[] sendToRecipients(MimeMessage message, List<Address[]> recipientChunks) {
+        try {
+            PooledTransport.prepare(message);
+        } catch (MessagingException e) {
+            MessagingException[] failures = new MessagingException[recipientChunks.size()];
+            Arrays.fill(failures, e);
+            return failures;
+        }
+        return send(Collections.nCopies(recipientChunks.size(), message), recipientChunks);
+    }
+
+    /**
+     * Sends the messages in order, each to the recipients at the same index, or to all of its recipients when
+     * {@code recipients} is {@code null}.
+     */
+    private MessagingException[] send(List<MimeMessage> messages, List<Address[]> recipients) {
+        MessagingException[] failures = new MessagingException[messages.size()];
+        PooledTransport pooled;
+        try {
+            pooled = borrow();
+        } catch (MessagingException e) {
+            Arrays.fill(failures, e);
+            return failures;
+        }
+        boolean reusable = true;
+        try {
+            for (int i = 0; i < messages.size(); i++) {
+                MimeMessage message = messages.get(i);
+                Address[] messageRecipients = recipients == null ? null : recipients.get(i);
+                MessagingException fatal;
+                try {
+                    try {
+                        pooled.send(message, messageRecipients);
+                    } catch (MessagingException e) {
+                        if (!isConnectionFailure(e)) {
+                            throw e;
+                        }
+                        logger.warn("Pooled SMTP connection failed ({}). Reconnecting and retrying once.", e.getMessage());
+                        pooled = reconnect(pooled);
+                        pooled.send(message, messageRecipients);
+                    }
+                    continue;
+                } catch (MessagingException e) {
+                    failures[i] = e;
+                    fatal = e;
+                    if (!isConnectionFailure(e)) {
+                        // The server rejected the message or a recipient, the connection is normally still usable.
+                        if (pooled.isConnected()) {
+                            continue;
+                        }
+                        if (i + 1 == messages.size()) {
+                            reusable = false;
+                            break;
+                        }
+                        try {
+                            pooled = reconnect(pooled);
+                            continue;
+                        } catch (MessagingException reconnectFailure) {
+                            fatal = reconnectFailure;
+                        }
+                    }
+                }
+                reusable = false;
+                Arrays.fill(failures, i + 1, messages.size(), fatal);
+                break;
+            }
+        } finally {
+            release(pooled, reusable);
+        }
+        return failures;
+    }
+
+    /**
+     * Closes idle connections that have not been used for longer than {@code email.smtp.pool.max-idle-ms}.
+     */
+    @Scheduled(fixedDelayString = "${email.smtp.pool.eviction-interval-ms:15000}")
+    public void evictIdleConnections() {
+        long now = System.currentTimeMillis();
+        for (PooledTransport pooled : new ArrayList<>(idle)) {
+            if (now - pooled.lastUsedAt >= maxIdleMs && idle.removeFirstOccurrence(pooled)) {
+                close(pooled, "idle");
+            }
+        }
+    }
+
+    /**
+     * Closes all idle connections. Connections currently borrowed are returned to the pool as usual.
+     */
+    public void closeIdleConnections() {
+        PooledTransport pooled;
+        while ((pooled = idle.pollFirst()) != null) {
+            close(pooled, "flush");
+        }
+    }
+
+    public int getOpenConnections() {
+        return openConnections.get();
+    }
+
+    public int getIdleConnections() {
+        return idle.size();
+    }
+
+    @PreDestroy
+    public void tearDown() {
+        closed = true;
+        closeIdleConnections();
+        logger.info("SMTP transport pool shut down.");
+    }
+
+    private PooledTransport borrow() throws MessagingException {
+        if (closed) {
+            throw new MessagingException("SMTP transport pool is closed.");
+        }
+        try {
+            if (!permits.tryAcquire(borrowTimeoutMs, TimeUnit.MILLISECONDS)) {
+                borrowTimeouts.increment();
+                throw new PoolExhaustedException("Timed out after " + borrowTimeoutMs + " ms waiting for a pooled SMTP connection.");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MessagingException("Interrupted while waiting for a pooled SMTP connection.", e);
+        }
+        try {
+            PooledTransport pooled;
+            while ((pooled = idle.pollFirst()) != null) {
+                String retireReason = retireReason(pooled);
+                if (retireReason == null) {
+                    return pooled;
+                }
+                close(pooled, retireReason);
+            }
+            return open();
+        } catch (MessagingException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    private void release(PooledTransport pooled, boolean reusable) {
+        try {
+            if (!reusable || closed) {
+                close(pooled, closed ? "shutdown" : "broken");
+            } else if (pooled.messagesSent >= maxMessagesPerConnection) {
+                close(pooled, "max-messages");
+            } else {
+                idle.offerFirst(pooled);
+            }
+        } finally {
+            permits.release();
+        }
+    }
+
+    private PooledTransport reconnect(PooledTransport broken) throws MessagingException {
+        close(broken, "broken");
+        reconnects.increment();
+        return open();
+    }
+
+    /**
+     * Returns why an idle connection should not be handed out again, or {@code null} if it can be reused.
+     */
+    private String retireReason(PooledTransport pooled) {
+        long idleFor = System.currentTimeMillis() - pooled.lastUsedAt;
+        if (idleFor >= maxIdleMs) {
+            return "idle";
+        }
+        if (pooled.messagesSent >= maxMessagesPerConnection) {
+            return "max-messages";
+        }
+        // Connections that sat idle for a while may have been dropped by the server; check with a NOOP.
+        if (idleFor >= validateAfterIdleMs && !pooled.isConnected()) {
+            return "stale";
+        }
+        return null;
+    }
+
+    private PooledTransport open() throws MessagingException {
+        String protocol = mailSender.getProtocol();
+        if (protocol == null) {
+            protocol = mailSender.getSession().getProperty("mail.transport.protocol");
+            if (protocol == null) {
+                protocol = DEFAULT_PROTOCOL;
+            }
+        }
+        String username = mailSender.getUsername();
+        String password = mailSender.getPassword();
+        if ("".equals(username)) {
+            // An empty username means no authentication, same as JavaMailSenderImpl.
+            username = null;
+            if ("".equals(password)) {
+                password = null;
+            }
+        }
+        Transport transport = mailSender.getSession().getTransport(protocol);
+        transport.connect(mailSender.getHost(), mailSender.getPort(), username, password);
+        openConnections.incrementAndGet();
+        connectionsCreated.increment();
+        logger.debug("Opened pooled SMTP connection to {}:{}.", mailSender.getHost(), mailSender.getPort());
+        return new PooledTransport(transport);
+    }
+
+    private void close(PooledTransport pooled, String reason) {
+        if (!pooled.closed.compareAndSet(false, true)) {
+            return;
+        }
+        openConnections.decrementAndGet();
+        meterRegistry.counter("email.smtp.pool.connections.closed", "relay", relay, "reason", reason).increment();
+        try {
+            pooled.transport.close();
+        } catch (MessagingException e) {
+            logger.debug("Error closing pooled SMTP connection.", e);
+        }
+        logger.debug("Closed pooled SMTP connection after {} messages ({}).", pooled.messagesSent, reason);
+    }
+
+    /**
+     * A failure is treated as a connection failure, and therefore safe to retry on a new connection, unless
+     * the server actually answered with an SMTP rejection.
+     */
+    static boolean isConnectionFailure(MessagingException e) {
+        if (e instanceof PoolExhaustedException) {
+            // All connections are busy, which says nothing about the relay itself.
+            return false;
+        }
+        if (e instanceof SMTPSendFailedException smtpException) {
+            // A negative return code means the server closed the connection without a reply.
+            return smtpException.getReturnCode() < 0;
+        }
+        if (e instanceof SMTPAddressFailedException addressException) {
+            return addressException.getReturnCode() < 0;
+        }
+        return !(e instanceof SendFailedException);
+    }
+
+    /**
+     * Thrown when no pooled connection became available within {@code email.smtp.pool.borrow-timeout-ms}.
+     */
+    static final class PoolExhaustedException extends MessagingException {
+
+        private static final long serialVersionUID = 1L;
+
+        PoolExhaustedException(String message) {
+            super(message);
+        }
+    }
+
+    private static final class PooledTransport {
+
+        private final Transport transport;
+        private final AtomicBoolean closed = new AtomicBoolean(false);
+        private volatile long lastUsedAt = System.currentTimeMillis();
+        private volatile int messagesSent = 0;
+
+        private PooledTransport(Transport transport) {
+            this.transport = transport;
+        }
+
+        /**
+         * Sends the message to the given recipients, or, if they are {@code null}, prepares it and sends it to all
+         * of its recipients.
+         */
+        private void send(MimeMessage message, Address[] recipients) throws MessagingException {
+            if (recipients == null) {
+                recipients = message.getAllRecipients();
+                prepare(message);
+            }
+            if (recipients == null || recipients.length == 0) {
+                throw new SendFailedException("No recipient addresses.");
+            }
+            try {
+                transport.sendMessage(message, recipients);
+            } finally {
+                messagesSent++;
+                lastUsedAt = System.currentTimeMillis();
+            }
+        }
+
+        /**
+         * Transport#sendMessage, unlike the static Transport#send, does not update the headers itself.
+         */
+        private static void prepare(MimeMessage message) throws MessagingException {
+            if (message.getSentDate() == null) {
+                message.setSentDate(new Date());
+            }
+            message.saveChanges();
+        }
+
+        private boolean isConnected() {
+            return !closed.get() && transport.isConnected();
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package com.mycompany.app.service;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class AdaptiveConcurrencyLimitTest {
+
+	private static final long FAST = TimeUnit.MILLISECONDS.toNanos(20);
+	private static final long SLOW = TimeUnit.MILLISECONDS.toNanos(400);
+
+	@Test
+	public void shouldKeepAFixedLimitWhenNotAdaptive() throws InterruptedException {
+		AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit("test", false, 10, 1, 100, 2.0, 0.2, 1);
+
+		recordWindow(limit, SLOW, true);
+
+		Assertions.assertEquals(10, limit.getLimit());
+	}
+
+	@Test
+	public void shouldGrowWhileLatencyIsStableAndShrinkWhenItRises() throws InterruptedException {
+		AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit("test", true, 10, 1, 100, 2.0, 0.2, 1);
+		// Keep half of the limit in use, so the limit is not held back as unused.
+		for (int i = 0; i < 5; i++) {
+			limit.acquire();
+		}
+
+		recordWindow(limit, FAST, false);
+		recordWindow(limit, FAST, false);
+		int grown = limit.getLimit();
+		Assertions.assertTrue(grown > 10, "limit " + grown);
+
+		recordWindow(limit, SLOW, false);
+		Assertions.assertTrue(limit.getLimit() < grown, "limit " + limit.getLimit());
+		Assertions.assertEquals(5, limit.getInFlight());
+	}
+
+	@Test
+	public void shouldBackOffWhenSendsFail() throws InterruptedException {
+		AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit("test", true, 10, 1, 100, 2.0, 0.2, 1);
+
+		recordWindow(limit, FAST, true);
+
+		Assertions.assertEquals(9, limit.getLimit());
+	}
+
+	private static void recordWindow(AdaptiveConcurrencyLimit limit, long latencyNanos, boolean failed)
+			throws InterruptedException {
+		for (int i = 0; i < 9; i++) {
+			limit.recordSend(latencyNanos, failed);
+		}
+		// The window is evaluated on the first sample after it ended.
+		Thread.sleep(5);
+		limit.recordSend(latencyNanos, failed);
+	}
+}
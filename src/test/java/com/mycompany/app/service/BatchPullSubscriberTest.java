@@ -0,0 +1,220 @@
+package com.mycompany.app.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutures;
+import com.google.api.gax.rpc.ApiCallContext;
+import com.google.api.gax.rpc.UnaryCallable;
+import com.google.cloud.pubsub.v1.AckReplyConsumer;
+import com.google.cloud.pubsub.v1.stub.SubscriberStub;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Empty;
+import com.google.pubsub.v1.AcknowledgeRequest;
+import com.google.pubsub.v1.ModifyAckDeadlineRequest;
+import com.google.pubsub.v1.ProjectSubscriptionName;
+import com.google.pubsub.v1.PubsubMessage;
+import com.google.pubsub.v1.PullRequest;
+import com.google.pubsub.v1.PullResponse;
+import com.google.pubsub.v1.ReceivedMessage;
+
+public class BatchPullSubscriberTest {
+
+	private final FakeSubscriberStub stub = new FakeSubscriberStub();
+	private final BlockingQueue<AckReplyConsumer> received = new LinkedBlockingQueue<>();
+	// The number of ModifyAckDeadline requests sent when each message was handed to the receiver.
+	private final List<Integer> deadlinesAtReceipt = new CopyOnWriteArrayList<>();
+	private BatchPullSubscriber subscriber;
+
+	@AfterEach
+	public void tearDown() throws Exception {
+		if (subscriber != null && subscriber.isRunning()) {
+			AckReplyConsumer consumer;
+			while ((consumer = received.poll()) != null) {
+				consumer.nack();
+			}
+			subscriber.stopAsync().awaitTerminated(10, TimeUnit.SECONDS);
+		}
+	}
+
+	@Test
+	public void shouldSetTheDeadlineOfEveryPulledBatchBeforeDispatchingIt() throws Exception {
+		stub.pulls.add(List.of(message("ack-1"), message("ack-2")));
+		subscriber = start(10, 60_000);
+
+		AckReplyConsumer first = received.poll(5, TimeUnit.SECONDS);
+		AckReplyConsumer second = received.poll(5, TimeUnit.SECONDS);
+
+		Assertions.assertEquals(List.of(1, 1), deadlinesAtReceipt);
+		ModifyAckDeadlineRequest lease = stub.deadlines.get(0);
+		Assertions.assertEquals(List.of("ack-1", "ack-2"), lease.getAckIdsList());
+		Assertions.assertEquals(30, lease.getAckDeadlineSeconds());
+		first.ack();
+		second.ack();
+		await(() -> stub.acked.size() == 2);
+		Assertions.assertEquals(List.of("ack-1", "ack-2"), stub.acked);
+	}
+
+	@Test
+	public void shouldSendNacksAsAZeroDeadline() throws Exception {
+		stub.pulls.add(List.of(message("ack-1")));
+		subscriber = start(10, 60_000);
+
+		received.poll(5, TimeUnit.SECONDS).nack();
+
+		await(() -> stub.deadlines.stream().anyMatch(request -> request.getAckDeadlineSeconds() == 0));
+		ModifyAckDeadlineRequest nack = stub.deadlines.stream()
+				.filter(request -> request.getAckDeadlineSeconds() == 0)
+				.findFirst()
+				.orElseThrow();
+		Assertions.assertEquals(List.of("ack-1"), nack.getAckIdsList());
+		Assertions.assertTrue(stub.acked.isEmpty());
+	}
+
+	@Test
+	public void shouldOnlyPullWhileBelowTheOutstandingLimit() throws Exception {
+		stub.pulls.add(List.of(message("ack-1")));
+		stub.pulls.add(List.of(message("ack-2")));
+		subscriber = start(1, 60_000);
+
+		AckReplyConsumer first = received.poll(5, TimeUnit.SECONDS);
+		Assertions.assertNull(received.poll(300, TimeUnit.MILLISECONDS));
+
+		first.ack();
+		AckReplyConsumer second = received.poll(5, TimeUnit.SECONDS);
+		Assertions.assertNotNull(second);
+		second.ack();
+	}
+
+	@Test
+	public void shouldReleaseMessagesOutstandingBeyondTheMaximumLease() throws Exception {
+		stub.pulls.add(List.of(message("ack-1")));
+		stub.pulls.add(List.of(message("ack-2")));
+		subscriber = start(1, 200);
+
+		// Never acked: once its lease is over it no longer holds the only outstanding slot.
+		Assertions.assertNotNull(received.poll(5, TimeUnit.SECONDS));
+		AckReplyConsumer second = received.poll(5, TimeUnit.SECONDS);
+		Assertions.assertNotNull(second);
+		second.ack();
+
+		// Nor does it keep the subscriber from stopping.
+		subscriber.stopAsync().awaitTerminated(5, TimeUnit.SECONDS);
+	}
+
+	private BatchPullSubscriber start(long maxOutstanding, long maxLeaseMs) {
+		BatchPullSubscriber started = new BatchPullSubscriber(ProjectSubscriptionName.of("project", "subscription"),
+				(message, consumer) -> {
+					deadlinesAtReceipt.add(stub.deadlines.size());
+					received.add(consumer);
+				}, 100, maxOutstanding, 30, 20, 10, maxLeaseMs, new PubSubClientSettings("")) {
+			@Override
+			SubscriberStub createStub() {
+				return stub;
+			}
+		};
+		started.startAsync().awaitRunning();
+		return started;
+	}
+
+	private static ReceivedMessage message(String ackId) {
+		return ReceivedMessage.newBuilder()
+				.setAckId(ackId)
+				.setMessage(PubsubMessage.newBuilder().setMessageId(ackId).setData(ByteString.copyFromUtf8("{}")))
+				.build();
+	}
+
+	private static void await(BooleanSupplier condition) throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (!condition.getAsBoolean()) {
+			Assertions.assertTrue(System.nanoTime() < deadline, "Condition not met within 5 seconds.");
+			Thread.sleep(10);
+		}
+	}
+
+	/**
+	 * Serves the queued batches to Pull calls, one per call, and records acks and deadline changes.
+	 */
+	private static final class FakeSubscriberStub extends SubscriberStub {
+
+		private final BlockingQueue<List<ReceivedMessage>> pulls = new LinkedBlockingQueue<>();
+		private final List<String> acked = new CopyOnWriteArrayList<>();
+		private final List<ModifyAckDeadlineRequest> deadlines = new CopyOnWriteArrayList<>();
+		private volatile boolean shutdown;
+
+		@Override
+		public UnaryCallable<PullRequest, PullResponse> pullCallable() {
+			return new UnaryCallable<>() {
+				@Override
+				public ApiFuture<PullResponse> futureCall(PullRequest request, ApiCallContext context) {
+					List<ReceivedMessage> batch = pulls.poll();
+					return ApiFutures.immediateFuture(PullResponse.newBuilder()
+							.addAllReceivedMessages(batch == null ? new ArrayList<>() : batch)
+							.build());
+				}
+			};
+		}
+
+		@Override
+		public UnaryCallable<AcknowledgeRequest, Empty> acknowledgeCallable() {
+			return new UnaryCallable<>() {
+				@Override
+				public ApiFuture<Empty> futureCall(AcknowledgeRequest request, ApiCallContext context) {
+					acked.addAll(request.getAckIdsList());
+					return ApiFutures.immediateFuture(Empty.getDefaultInstance());
+				}
+			};
+		}
+
+		@Override
+		public UnaryCallable<ModifyAckDeadlineRequest, Empty> modifyAckDeadlineCallable() {
+			return new UnaryCallable<>() {
+				@Override
+				public ApiFuture<Empty> futureCall(ModifyAckDeadlineRequest request, ApiCallContext context) {
+					deadlines.add(request);
+					return ApiFutures.immediateFuture(Empty.getDefaultInstance());
+				}
+			};
+		}
+
+		@Override
+		public void close() {
+			shutdown = true;
+		}
+
+		@Override
+		public void shutdown() {
+			shutdown = true;
+		}
+
+		@Override
+		public boolean isShutdown() {
+			return shutdown;
+		}
+
+		@Override
+		public boolean isTerminated() {
+			return shutdown;
+		}
+
+		@Override
+		public void shutdownNow() {
+			shutdown = true;
+		}
+
+		@Override
+		public boolean awaitTermination(long duration, TimeUnit unit) {
+			return shutdown;
+		}
+	}
+}
@@ -0,0 +1,102 @@
+package com.mycompany.app.service;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.api.gax.batching.FlowController.LimitExceededBehavior;
+import com.mycompany.app.model.BulkPublishResult;
+import com.mycompany.app.model.EmailMessage;
+import com.mycompany.app.service.PubSubPublisherService.PublishReceipt;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import jakarta.validation.Validation;
+
+public class BulkPublishServiceTest {
+
+	private final List<EmailMessage> published = new CopyOnWriteArrayList<>();
+	private BulkPublishService bulkPublishService;
+
+	@BeforeEach
+	public void setUp() {
+		SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+		PubSubPublisherService publisherService = new PubSubPublisherService("project", "topic", 100, 1000, 1, 1000,
+				104857600, LimitExceededBehavior.Block, meterRegistry, new EmailMessageCodec("json", 0), false, "bulk",
+				new PublishOutbox(false, "outbox", 4096, 2, false, 100, meterRegistry),
+				new HotPathEvents("aggregated", 0, meterRegistry), new PubSubClientSettings("")) {
+			@Override
+			public CompletableFuture<PublishReceipt> publishEmailMessageAsync(EmailMessage emailMessage) {
+				if (emailMessage.getSubject().equals("unpublishable")) {
+					return CompletableFuture.failedFuture(new IllegalStateException("Publisher is shut down."));
+				}
+				published.add(emailMessage);
+				return CompletableFuture.completedFuture(new PublishReceipt("message-" + published.size(), null));
+			}
+		};
+		bulkPublishService = new BulkPublishService(publisherService,
+				Validation.buildDefaultValidatorFactory().getValidator(), new ObjectMapper(), 3);
+	}
+
+	@Test
+	public void shouldReportTheOutcomeOfEveryEmailInRequestOrder() throws Exception {
+		BulkPublishResult result = publish("[" + email("a@example.com", "Hello") + ", " + email("not-an-address", "Hello")
+				+ ", " + email("b@example.com", "unpublishable") + "]", false);
+
+		Assertions.assertEquals(3, result.getTotal());
+		Assertions.assertEquals(1, result.getPublished());
+		Assertions.assertEquals(2, result.getFailed());
+		Assertions.assertEquals("message-1", result.getResults().get(0).getMessageId());
+		Assertions.assertTrue(result.getResults().get(1).getError().startsWith("to: "));
+		Assertions.assertEquals("Failed to queue email for sending.", result.getResults().get(2).getError());
+		Assertions.assertNull(result.getError());
+	}
+
+	@Test
+	public void shouldStopReadingAtTheItemLimit() throws Exception {
+		String line = email("a@example.com", "Hello") + "\n";
+
+		BulkPublishResult result = publish(line + "\n" + line + line + line, true);
+
+		Assertions.assertEquals(3, result.getTotal());
+		Assertions.assertTrue(result.isTruncated());
+		Assertions.assertEquals(3, published.size());
+	}
+
+	@Test
+	public void shouldReportTheEmailsPublishedBeforeASyntaxError() throws Exception {
+		BulkPublishResult result = publish("[" + email("a@example.com", "Hello") + ", {\"to\": }]", false);
+
+		Assertions.assertEquals(1, result.getPublished());
+		Assertions.assertEquals("message-1", result.getResults().get(0).getMessageId());
+		Assertions.assertTrue(result.getError().startsWith("Malformed bulk request body after 1 emails: "), result.getError());
+	}
+
+	@Test
+	public void shouldRejectBodiesThatAreMalformedBeforeTheFirstEmail() {
+		Assertions.assertThrows(JsonProcessingException.class, () -> bulkPublishService.publish(body("{\"to\": []}"), false));
+		Assertions.assertThrows(JsonProcessingException.class, () -> bulkPublishService.publish(body("[{\"to\": }]"), false));
+		Assertions.assertTrue(published.isEmpty());
+	}
+
+	private BulkPublishResult publish(String body, boolean ndjson) throws Exception {
+		return bulkPublishService.publish(body(body), ndjson).get(5, TimeUnit.SECONDS);
+	}
+
+	private static InputStream body(String body) {
+		return new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static String email(String to, String subject) {
+		return "{\"to\": \"" + to + "\", \"subject\": \"" + subject + "\", \"body\": \"Body\"}";
+	}
+}
@@ -0,0 +1,79 @@
+package com.mycompany.app.service;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.google.protobuf.ByteString;
+import com.google.pubsub.v1.PubsubMessage;
+import com.mycompany.app.model.EmailMessage;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+public class DeadLetterStoreTest {
+
+	private final EmailMessageCodec codec = new EmailMessageCodec("json", 0);
+
+	@TempDir
+	Path tempDir;
+
+	@Test
+	public void shouldClassifyAndSelectDeadLetters() throws IOException {
+		DeadLetterStore store = createStore("");
+		store.add(deadLetter("a@example.com"), 1L);
+		store.add(deadLetter("b@example.org"), 2L);
+		store.add(PubsubMessage.newBuilder().setData(ByteString.copyFromUtf8("not json")).build(), 3L);
+
+		List<DeadLetterStore.DeadLetter> selected = store.select(DeadLetterStore.CAUSE_UNDELIVERABLE, "EXAMPLE.com", null, 10);
+
+		Assertions.assertEquals(1, selected.size());
+		Assertions.assertEquals("a@example.com", store.decode(selected.get(0)).getTo());
+		Assertions.assertEquals(5, selected.get(0).getDeliveryCount());
+		Assertions.assertEquals(1, store.select(DeadLetterStore.CAUSE_MALFORMED, null, null, 10).size());
+		Assertions.assertEquals(2, store.select(null, null, "app-integration-mails-sub", 10).size());
+		Map<String, Object> summary = store.summary();
+		Assertions.assertEquals(3, summary.get("total"));
+		Assertions.assertFalse(store.isDurable());
+	}
+
+	@Test
+	public void shouldKeepDeadLettersAcrossRestarts() throws IOException {
+		String path = tempDir.resolve("dead-letters.bin").toString();
+		DeadLetterStore store = createStore(path);
+		Assertions.assertTrue(store.isDurable());
+		long first = store.add(deadLetter("a@example.com"), 1L).getId();
+		store.add(deadLetter("b@example.com"), 2L);
+		store.remove(first);
+		store.tearDown();
+
+		DeadLetterStore reopened = createStore(path);
+
+		List<DeadLetterStore.DeadLetter> entries = reopened.select(null, null, null, 10);
+		Assertions.assertEquals(1, entries.size());
+		Assertions.assertEquals("b@example.com", reopened.decode(entries.get(0)).getTo());
+		// New entries do not reuse the IDs of removed ones.
+		Assertions.assertTrue(reopened.add(deadLetter("c@example.com"), 3L).getId() > first + 1);
+	}
+
+	private DeadLetterStore createStore(String path) {
+		DeadLetterStore store = new DeadLetterStore(100, path, codec, new SimpleMeterRegistry());
+		store.init();
+		return store;
+	}
+
+	private PubsubMessage deadLetter(String to) {
+		EmailMessage emailMessage = new EmailMessage();
+		emailMessage.setTo(to);
+		emailMessage.setSubject("Subject");
+		emailMessage.setBody("Body");
+		return codec.toPubsubMessage(emailMessage).toBuilder()
+				.putAttributes(DeadLetterStore.SOURCE_SUBSCRIPTION_ATTRIBUTE, "projects/test/subscriptions/app-integration-mails-sub")
+				.putAttributes(DeadLetterStore.DELIVERY_COUNT_ATTRIBUTE, "5")
+				.build();
+	}
+}
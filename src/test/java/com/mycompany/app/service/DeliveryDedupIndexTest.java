@@ -0,0 +1,125 @@
+package com.mycompany.app.service;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.google.cloud.pubsub.v1.AckReplyConsumer;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+public class DeliveryDedupIndexTest {
+
+	private static final AckReplyConsumer NO_OP_CONSUMER = new AckReplyConsumer() {
+		@Override
+		public void ack() {
+		}
+
+		@Override
+		public void nack() {
+		}
+	};
+
+	@TempDir
+	Path tempDir;
+
+	@Test
+	public void shouldSkipEmailsThatWereAlreadySent() {
+		DeliveryDedupIndex index = createIndex(100, "");
+		String key = DeliveryDedupIndex.keyOf("1001", null);
+
+		Assertions.assertEquals(DeliveryDedupIndex.Claim.CLAIMED, index.claim(key));
+		AckReplyConsumer consumer = index.track(key, NO_OP_CONSUMER);
+		Assertions.assertEquals(DeliveryDedupIndex.Claim.IN_PROGRESS, index.claim(key));
+
+		consumer.ack();
+
+		Assertions.assertEquals(DeliveryDedupIndex.Claim.SENT, index.claim(key));
+		Assertions.assertEquals(DeliveryDedupIndex.Claim.CLAIMED, index.claim(DeliveryDedupIndex.keyOf("1002", null)));
+	}
+
+	@Test
+	public void shouldReleaseClaimOnNack() {
+		DeliveryDedupIndex index = createIndex(100, "");
+		String key = DeliveryDedupIndex.keyOf("1001", "order-42");
+
+		index.claim(key);
+		index.track(key, NO_OP_CONSUMER).nack();
+
+		Assertions.assertEquals(DeliveryDedupIndex.Claim.CLAIMED, index.claim(key));
+	}
+
+	@Test
+	public void shouldForgetOldestKeysBeyondCapacity() {
+		DeliveryDedupIndex index = createIndex(10, "");
+
+		for (int i = 0; i < 25; i++) {
+			index.markSent("m:" + i);
+		}
+
+		Assertions.assertEquals(10, index.size());
+		Assertions.assertFalse(index.isSent("m:0"));
+		Assertions.assertTrue(index.isSent("m:24"));
+	}
+
+	@Test
+	public void shouldNotCountRepeatedKeysTowardsTheFilterCapacity() {
+		DeliveryDedupIndex index = createIndex(10, "");
+
+		index.markSent("m:0");
+		for (int i = 0; i < 30; i++) {
+			index.markSent("m:hot");
+		}
+		for (int i = 1; i < 9; i++) {
+			index.markSent("m:" + i);
+		}
+
+		// Still in the LRU, so its filter generation must not have been dropped.
+		Assertions.assertEquals(10, index.size());
+		Assertions.assertTrue(index.isSent("m:0"));
+	}
+
+	@Test
+	public void shouldWriteSentKeysToTheStoreInTheBackground() throws Exception {
+		Path store = tempDir.resolve("sent-keys.log");
+		DeliveryDedupIndex index = createIndex(100, store.toString());
+
+		index.markSent("m:1");
+
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (!Files.readAllLines(store).contains("m:1")) {
+			Assertions.assertTrue(System.nanoTime() < deadline, "Key not written within 5 seconds.");
+			Thread.sleep(10);
+		}
+		index.tearDown();
+	}
+
+	@Test
+	public void shouldRestoreSentKeysFromStore() throws Exception {
+		Path store = tempDir.resolve("dedup/sent-keys.log");
+		DeliveryDedupIndex index = createIndex(3, store.toString());
+		for (int i = 0; i < 7; i++) {
+			index.markSent("m:" + i);
+		}
+		index.tearDown();
+		// Compacted after 2 x capacity appends.
+		Assertions.assertTrue(Files.readAllLines(store).size() < 7);
+
+		DeliveryDedupIndex restored = createIndex(3, store.toString());
+
+		Assertions.assertTrue(restored.isSent("m:6"));
+		Assertions.assertTrue(restored.isSent("m:4"));
+		Assertions.assertFalse(restored.isSent("m:0"));
+		restored.tearDown();
+	}
+
+	private static DeliveryDedupIndex createIndex(int capacity, String storePath) {
+		DeliveryDedupIndex index = new DeliveryDedupIndex(true, capacity, 0.01, storePath, 10, new SimpleMeterRegistry());
+		index.init();
+		return index;
+	}
+}
@@ -0,0 +1,81 @@
+package com.mycompany.app.service;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.angus.mail.smtp.SMTPAddressFailedException;
+import org.eclipse.angus.mail.smtp.SMTPSendFailedException;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.springframework.mail.MailSendException;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import jakarta.mail.SendFailedException;
+import jakarta.mail.internet.InternetAddress;
+
+public class DomainRateLimiterTest {
+
+	@Test
+	public void shouldDelaySendsBeyondTheBurst() {
+		DomainRateLimiter rateLimiter = createRateLimiter(10, 2, 60_000);
+
+		Assertions.assertEquals(0, rateLimiter.reserve("a@example.com"));
+		Assertions.assertEquals(0, rateLimiter.reserve("b@EXAMPLE.com"));
+		long delayNanos = rateLimiter.reserve("c@example.com");
+		// Other domains have their own bucket.
+		Assertions.assertEquals(0, rateLimiter.reserve("a@example.org"));
+
+		Assertions.assertTrue(delayNanos > TimeUnit.MILLISECONDS.toNanos(50), "delay " + delayNanos);
+		Assertions.assertTrue(delayNanos <= TimeUnit.MILLISECONDS.toNanos(100), "delay " + delayNanos);
+	}
+
+	@Test
+	public void shouldRejectSendsBeyondTheMaximumDelay() {
+		DomainRateLimiter rateLimiter = createRateLimiter(1, 1, 1_500);
+
+		Assertions.assertEquals(0, rateLimiter.reserve("a@example.com"));
+		Assertions.assertTrue(rateLimiter.reserve("a@example.com") > 0);
+		Assertions.assertEquals(-1, rateLimiter.reserve("a@example.com"));
+	}
+
+	@Test
+	public void shouldReserveASlotForEveryRecipientDomain() {
+		DomainRateLimiter rateLimiter = createRateLimiter(1, 1, 1_500);
+
+		Assertions.assertEquals(0, rateLimiter.reserve("a@example.org"));
+		// Cc and Bcc recipients in other domains take a slot of their own domain as well.
+		long delayNanos = rateLimiter.reserve(List.of("a@example.com", "b@example.com", "c@EXAMPLE.org"));
+		Assertions.assertTrue(delayNanos > TimeUnit.MILLISECONDS.toNanos(500), "delay " + delayNanos);
+		Assertions.assertTrue(rateLimiter.reserve("d@example.com") > 0);
+
+		// A domain booked out beyond the maximum delay rejects the email, and the other domains get their slot back.
+		Assertions.assertEquals(-1, rateLimiter.reserve(List.of("e@example.net", "f@example.org")));
+		Assertions.assertEquals(0, rateLimiter.reserve("g@example.net"));
+	}
+
+	@Test
+	public void shouldHalveTheRateOnDeferralsOnly() throws Exception {
+		DomainRateLimiter rateLimiter = createRateLimiter(10, 1, 60_000);
+		InternetAddress recipient = new InternetAddress("a@example.com");
+		SendFailedException rcptDeferred = new SendFailedException("Invalid Addresses",
+				new SMTPAddressFailedException(recipient, "RCPT TO", 451, "4.7.1 Try again later"));
+
+		rateLimiter.recordFailure("a@example.com", new MailSendException("Failed to send email", rcptDeferred));
+		Assertions.assertEquals(5.0, rateLimiter.getRate("a@example.com"), 0.001);
+
+		// At most one decrease per second.
+		rateLimiter.recordFailure("a@example.com", new MailSendException("Failed to send email", rcptDeferred));
+		Assertions.assertEquals(5.0, rateLimiter.getRate("a@example.com"), 0.001);
+
+		SMTPSendFailedException rejected = new SMTPSendFailedException("DATA", 550, "5.7.1 Rejected", null, null, null, null);
+		rateLimiter.recordFailure("b@example.org", new MailSendException("Failed to send email", rejected));
+		Assertions.assertEquals(10.0, rateLimiter.getRate("b@example.org"), 0.001);
+
+		rateLimiter.recordSuccess("b@example.org");
+		Assertions.assertTrue(rateLimiter.getRate("b@example.org") > 10.0);
+	}
+
+	private static DomainRateLimiter createRateLimiter(double rate, int burst, long maxDelayMs) {
+		return new DomainRateLimiter(true, rate, 1, 100, burst, 1, 0.5, maxDelayMs, 600_000, new SimpleMeterRegistry());
+	}
+}
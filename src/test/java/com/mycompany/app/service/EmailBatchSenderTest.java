@@ -0,0 +1,98 @@
+package com.mycompany.app.service;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.io.DefaultResourceLoader;
+import org.springframework.mail.MailException;
+import org.springframework.mail.MailSendException;
+import org.springframework.mail.javamail.JavaMailSenderImpl;
+
+import com.mycompany.app.model.EmailMessage;
+import com.mycompany.app.support.FakeSmtpServer;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+public class EmailBatchSenderTest {
+
+	private FakeSmtpServer smtpServer;
+	private SmtpTransportPool transportPool;
+	private EmailService emailService;
+	private EmailBatchSender batchSender;
+
+	@BeforeEach
+	public void setUp() throws Exception {
+		smtpServer = new FakeSmtpServer();
+		JavaMailSenderImpl mailSender = new JavaMailSenderImpl();
+		mailSender.setHost(smtpServer.getHost());
+		mailSender.setPort(smtpServer.getPort());
+		SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+		transportPool = new SmtpTransportPool(mailSender, meterRegistry, true, 2, 60_000, 100, 5_000, 5_000);
+		SmtpRelayGroup relayGroup = new SmtpRelayGroup(transportPool, meterRegistry, "", "", "weighted", 3, 30_000);
+		EmailTemplateRenderer templateRenderer = new EmailTemplateRenderer(new DefaultResourceLoader(),
+				"classpath:/templates/email/", ".txt", 16, 0, meterRegistry);
+		emailService = new EmailService(mailSender, relayGroup, new MailHealthState(new EmailServiceChecker(null), relayGroup),
+				templateRenderer, meterRegistry, new HotPathEvents("aggregated", 0, meterRegistry), 100);
+	}
+
+	@AfterEach
+	public void tearDown() {
+		if (batchSender != null) {
+			batchSender.tearDown();
+		}
+		transportPool.tearDown();
+		smtpServer.close();
+	}
+
+	@Test
+	public void shouldSendEmailsSubmittedWithinTheLingerOverOneConnection() throws Exception {
+		batchSender = createBatchSender(10, 200);
+
+		CompletableFuture<Void> first = batchSender.submit(new EmailMessage("a@example.com", "Hello", "Body"));
+		CompletableFuture<Void> second = batchSender.submit(new EmailMessage("b@example.com", "Hello", "Body"));
+		CompletableFuture<Void> third = batchSender.submit(new EmailMessage("c@example.com", "Hello", "Body"));
+		CompletableFuture.allOf(first, second, third).get(5, TimeUnit.SECONDS);
+
+		Assertions.assertEquals(3, smtpServer.getMessages().size());
+		Assertions.assertEquals(1, smtpServer.getConnectionCount());
+	}
+
+	@Test
+	public void shouldOnlyFailTheEmailsThatWereNotSent() throws Exception {
+		batchSender = createBatchSender(10, 200);
+
+		CompletableFuture<Void> sent = batchSender.submit(new EmailMessage("a@example.com", "Hello", "Body"));
+		// Two addresses where one is expected, so this email cannot be prepared.
+		CompletableFuture<Void> failed = batchSender.submit(
+				new EmailMessage("b@example.com, c@example.com", "Hello", "Body"));
+
+		sent.get(5, TimeUnit.SECONDS);
+		ExecutionException failure = Assertions.assertThrows(ExecutionException.class,
+				() -> failed.get(5, TimeUnit.SECONDS));
+		Assertions.assertInstanceOf(MailException.class, failure.getCause());
+		Assertions.assertEquals(1, smtpServer.getMessages().size());
+	}
+
+	@Test
+	public void shouldFailEmailsSubmittedAfterShutdown() {
+		batchSender = createBatchSender(10, 200);
+		batchSender.tearDown();
+
+		CompletableFuture<Void> future = batchSender.submit(new EmailMessage("a@example.com", "Hello", "Body"));
+
+		ExecutionException failure = Assertions.assertThrows(ExecutionException.class, future::get);
+		Assertions.assertInstanceOf(MailSendException.class, failure.getCause());
+		Assertions.assertTrue(smtpServer.getMessages().isEmpty());
+	}
+
+	private EmailBatchSender createBatchSender(int maxBatchSize, long lingerMs) {
+		EmailBatchSender created = new EmailBatchSender(emailService, true, maxBatchSize, lingerMs, 1);
+		created.init();
+		return created;
+	}
+}
@@ -0,0 +1,92 @@
+package com.mycompany.app.service;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.io.DefaultResourceLoader;
+import org.springframework.mail.javamail.JavaMailSenderImpl;
+
+import com.mycompany.app.model.EmailMessage;
+import com.mycompany.app.support.FakeSmtpServer;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+public class EmailCoalescerTest {
+
+	private FakeSmtpServer smtpServer;
+	private SimpleMeterRegistry meterRegistry;
+	private EmailService emailService;
+	private EmailTemplateRenderer templateRenderer;
+	private EmailCoalescer coalescer;
+
+	@BeforeEach
+	public void setUp() throws Exception {
+		smtpServer = new FakeSmtpServer();
+		JavaMailSenderImpl mailSender = new JavaMailSenderImpl();
+		mailSender.setHost(smtpServer.getHost());
+		mailSender.setPort(smtpServer.getPort());
+		meterRegistry = new SimpleMeterRegistry();
+		SmtpTransportPool transportPool = new SmtpTransportPool(mailSender, meterRegistry, false, 2, 60_000, 100, 5_000, 5_000);
+		SmtpRelayGroup relayGroup = new SmtpRelayGroup(transportPool, meterRegistry, "", "", "weighted", 3, 30_000);
+		templateRenderer = new EmailTemplateRenderer(new DefaultResourceLoader(), "classpath:/templates/email/", ".txt", 16, 0,
+				meterRegistry);
+		emailService = new EmailService(mailSender, relayGroup, new MailHealthState(new EmailServiceChecker(null), relayGroup),
+				templateRenderer, meterRegistry, new HotPathEvents("aggregated", 0, meterRegistry), 100);
+	}
+
+	@AfterEach
+	public void tearDown() {
+		if (coalescer != null) {
+			coalescer.tearDown();
+		}
+		smtpServer.close();
+	}
+
+	@Test
+	public void shouldSendEmailsWithinTheWindowAsOneDigest() throws Exception {
+		coalescer = createCoalescer(10);
+
+		CompletableFuture<Void> first = coalescer.offer(email("user@example.com", "order-42", "Order confirmed"));
+		CompletableFuture<Void> second = coalescer.offer(email("user@example.com", "order-42", "Order shipped"));
+		CompletableFuture<Void> other = coalescer.offer(email("user@example.com", "order-43", "Order confirmed"));
+		first.get(5, TimeUnit.SECONDS);
+		second.get(5, TimeUnit.SECONDS);
+		other.get(5, TimeUnit.SECONDS);
+
+		Assertions.assertEquals(2, smtpServer.getReceivedCount());
+		String digest = smtpServer.getMessages().stream()
+				.map(FakeSmtpServer.ReceivedMessage::data)
+				.filter(data -> data.contains("Order shipped"))
+				.findFirst()
+				.orElseThrow();
+		Assertions.assertTrue(digest.contains("Order confirmed (and 1 more)"));
+		Assertions.assertEquals(2.0, meterRegistry.get("email.coalesce.digest.size").summary().max());
+	}
+
+	@Test
+	public void shouldSendEmailsBeyondTheOpenDigestLimitOnTheirOwn() {
+		coalescer = createCoalescer(1);
+
+		Assertions.assertNotNull(coalescer.offer(email("jane@example.com", "order-42", "Order confirmed")));
+		Assertions.assertNotNull(coalescer.offer(email("jane@example.com", "order-42", "Order shipped")));
+		Assertions.assertNull(coalescer.offer(email("john@example.com", "order-43", "Order confirmed")));
+		Assertions.assertNull(coalescer.offer(new EmailMessage("john@example.com", "Welcome", "Body")));
+	}
+
+	private EmailCoalescer createCoalescer(int maxOpenDigests) {
+		EmailCoalescer created = new EmailCoalescer(emailService, templateRenderer, meterRegistry, true, 200, 50,
+				maxOpenDigests, 1);
+		created.init();
+		return created;
+	}
+
+	private static EmailMessage email(String to, String coalesceKey, String subject) {
+		EmailMessage emailMessage = new EmailMessage(to, subject, subject + ".");
+		emailMessage.setCoalesceKey(coalesceKey);
+		return emailMessage;
+	}
+}
@@ -0,0 +1,172 @@
+package com.mycompany.app.service;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
+import com.google.pubsub.v1.PubsubMessage;
+import com.mycompany.app.exception.MalformedMessageException;
+import com.mycompany.app.exception.UnsupportedPayloadException;
+import com.mycompany.app.model.EmailMessage;
+import com.mycompany.app.model.EmailPriority;
+
+public class EmailMessageCodecTest {
+
+	@Test
+	public void shouldRoundTripBinaryMessages() {
+		EmailMessageCodec codec = new EmailMessageCodec("binary", 0);
+
+		PubsubMessage message = codec.toPubsubMessage(email("user@example.com", "H\u00e4llo", "Body \u2713"));
+		EmailMessage decoded = codec.fromPubsubMessage(message);
+
+		Assertions.assertEquals(EmailMessageCodec.FORMAT_BINARY, message.getAttributesOrThrow(EmailMessageCodec.FORMAT_ATTRIBUTE));
+		Assertions.assertEquals("user@example.com", decoded.getTo());
+		Assertions.assertEquals("H\u00e4llo", decoded.getSubject());
+		Assertions.assertEquals("Body \u2713", decoded.getBody());
+	}
+
+	@Test
+	public void shouldRoundTripTemplatedBinaryMessages() {
+		EmailMessageCodec codec = new EmailMessageCodec("binary", 0);
+		EmailMessage emailMessage = email("user@example.com", "Shipped", null);
+		emailMessage.setTemplateId("order-shipped");
+		emailMessage.setTemplateVariables(Map.of("name", "Jane", "orderId", "A-42"));
+		emailMessage.setPriority(EmailPriority.BULK);
+		emailMessage.setCoalesceKey("order-42-status");
+
+		EmailMessage decoded = codec.fromPubsubMessage(codec.toPubsubMessage(emailMessage));
+
+		Assertions.assertNull(decoded.getBody());
+		Assertions.assertEquals("order-shipped", decoded.getTemplateId());
+		Assertions.assertEquals(Map.of("name", "Jane", "orderId", "A-42"), decoded.getTemplateVariables());
+		Assertions.assertEquals(EmailPriority.BULK, decoded.getPriority());
+		Assertions.assertEquals("order-42-status", decoded.getCoalesceKey());
+	}
+
+	@Test
+	public void shouldRoundTripRecipientListsInBothFormats() {
+		for (String format : List.of("binary", "json")) {
+			EmailMessageCodec codec = new EmailMessageCodec(format, 0);
+			EmailMessage emailMessage = email("all-staff@example.com", "Announcement", "Body");
+			emailMessage.setCc(List.of("team@example.com"));
+			emailMessage.setBcc(List.of("jane@example.com", "john@example.com"));
+			emailMessage.setDeliverTo(List.of("john@example.com"));
+
+			EmailMessage decoded = codec.fromPubsubMessage(codec.toPubsubMessage(emailMessage));
+
+			Assertions.assertEquals(List.of("team@example.com"), decoded.getCc(), format);
+			Assertions.assertEquals(List.of("jane@example.com", "john@example.com"), decoded.getBcc(), format);
+			Assertions.assertEquals(List.of("john@example.com"), decoded.getDeliverTo(), format);
+			Assertions.assertEquals(List.of("all-staff@example.com", "team@example.com", "jane@example.com", "john@example.com"),
+					decoded.getAllRecipients(), format);
+		}
+	}
+
+	@Test
+	public void shouldCompressLargePayloads() {
+		EmailMessageCodec codec = new EmailMessageCodec("json", 1024);
+		String body = "<p>Newsletter</p>".repeat(1000);
+
+		PubsubMessage small = codec.toPubsubMessage(email("user@example.com", "Hi", "Body"));
+		PubsubMessage large = codec.toPubsubMessage(email("user@example.com", "Hi", body));
+
+		Assertions.assertFalse(small.containsAttributes(EmailMessageCodec.ENCODING_ATTRIBUTE));
+		Assertions.assertEquals(EmailMessageCodec.ENCODING_GZIP, large.getAttributesOrThrow(EmailMessageCodec.ENCODING_ATTRIBUTE));
+		Assertions.assertTrue(large.getData().size() < body.length() / 10);
+		Assertions.assertEquals(body, codec.fromPubsubMessage(large).getBody());
+
+		EmailMessageCodec binaryCodec = new EmailMessageCodec("binary", 1024);
+		PubsubMessage largeBinary = binaryCodec.toPubsubMessage(email("user@example.com", "Hi", body));
+		Assertions.assertEquals(EmailMessageCodec.ENCODING_GZIP, largeBinary.getAttributesOrThrow(EmailMessageCodec.ENCODING_ATTRIBUTE));
+		Assertions.assertEquals(body, binaryCodec.fromPubsubMessage(largeBinary).getBody());
+	}
+
+	@Test
+	public void shouldDecodeJsonMessagesWithoutFormatAttribute() {
+		EmailMessageCodec codec = new EmailMessageCodec("binary", 0);
+		PubsubMessage legacy = PubsubMessage.newBuilder()
+				.setData(ByteString.copyFromUtf8("{\"to\":\"user@example.com\",\"subject\":\"Hi\",\"body\":\"Body\"}"))
+				.build();
+
+		EmailMessage decoded = codec.fromPubsubMessage(legacy);
+
+		Assertions.assertEquals("user@example.com", decoded.getTo());
+		Assertions.assertEquals("Body", decoded.getBody());
+	}
+
+	@Test
+	public void shouldSkipUnknownBinaryFields() throws IOException {
+		EmailMessageCodec codec = new EmailMessageCodec("binary", 0);
+		ByteString.Output data = ByteString.newOutput();
+		CodedOutputStream output = CodedOutputStream.newInstance(data);
+		output.writeString(1, "user@example.com");
+		output.writeInt64(15, 42L);
+		// Known fields with another wire type than this version writes are skipped too.
+		output.writeUInt32(2, 7);
+		output.writeString(7, "HIGH");
+		output.writeString(3, "Body");
+		output.flush();
+
+		EmailMessage decoded = codec.decodeBinary(data.toByteString());
+
+		Assertions.assertEquals("user@example.com", decoded.getTo());
+		Assertions.assertNull(decoded.getSubject());
+		Assertions.assertNull(decoded.getPriority());
+		Assertions.assertEquals("Body", decoded.getBody());
+	}
+
+	@Test
+	public void shouldRejectMalformedPayloads() {
+		EmailMessageCodec codec = new EmailMessageCodec("json", 0);
+
+		Assertions.assertThrows(MalformedMessageException.class,
+				() -> codec.decodeBinary(ByteString.copyFrom(new byte[] { 0x0a, 0x7f })));
+		Assertions.assertThrows(MalformedMessageException.class,
+				() -> codec.decodeJson(ByteString.copyFromUtf8("{\"to\":")));
+		Assertions.assertThrows(MalformedMessageException.class,
+				() -> codec.fromPubsubMessage(PubsubMessage.newBuilder()
+						.setData(ByteString.copyFromUtf8("{}"))
+						.putAttributes(EmailMessageCodec.ENCODING_ATTRIBUTE, EmailMessageCodec.ENCODING_GZIP)
+						.build()));
+	}
+
+	@Test
+	public void shouldRejectUnknownFormatsAndEncodingsAsUnsupported() {
+		EmailMessageCodec codec = new EmailMessageCodec("json", 0);
+		PubsubMessage zstd = PubsubMessage.newBuilder()
+				.setData(ByteString.copyFromUtf8("{}"))
+				.putAttributes(EmailMessageCodec.ENCODING_ATTRIBUTE, "zstd")
+				.build();
+		PubsubMessage binaryV2 = PubsubMessage.newBuilder()
+				.setData(ByteString.copyFromUtf8("{}"))
+				.putAttributes(EmailMessageCodec.FORMAT_ATTRIBUTE, "binary-v2")
+				.build();
+
+		Assertions.assertThrows(UnsupportedPayloadException.class, () -> codec.fromPubsubMessage(zstd));
+		Assertions.assertThrows(UnsupportedPayloadException.class, () -> codec.fromPubsubMessage(binaryV2));
+	}
+
+	@Test
+	public void shouldRejectPayloadsDecompressingBeyondTheLimit() {
+		EmailMessageCodec publisher = new EmailMessageCodec("json", 1024);
+		EmailMessageCodec consumer = new EmailMessageCodec("json", 0, 64 * 1024);
+		PubsubMessage bomb = publisher.toPubsubMessage(email("user@example.com", "Hi", "a".repeat(1024 * 1024)));
+
+		MalformedMessageException e = Assertions.assertThrows(MalformedMessageException.class,
+				() -> consumer.fromPubsubMessage(bomb));
+		Assertions.assertFalse(e instanceof UnsupportedPayloadException);
+	}
+
+	private static EmailMessage email(String to, String subject, String body) {
+		EmailMessage emailMessage = new EmailMessage();
+		emailMessage.setTo(to);
+		emailMessage.setSubject(subject);
+		emailMessage.setBody(body);
+		return emailMessage;
+	}
+}
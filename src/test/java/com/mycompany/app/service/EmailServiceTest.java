@@ -0,0 +1,92 @@
+package com.mycompany.app.service;
+
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.io.DefaultResourceLoader;
+import org.springframework.mail.MailPreparationException;
+import org.springframework.mail.javamail.JavaMailSenderImpl;
+
+import com.mycompany.app.exception.PartialDeliveryException;
+import com.mycompany.app.model.EmailMessage;
+import com.mycompany.app.support.FakeSmtpServer;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+public class EmailServiceTest {
+
+	private FakeSmtpServer smtpServer;
+	private SmtpTransportPool transportPool;
+	private EmailService emailService;
+
+	@BeforeEach
+	public void setUp() throws Exception {
+		smtpServer = new FakeSmtpServer();
+		JavaMailSenderImpl mailSender = new JavaMailSenderImpl();
+		mailSender.setHost(smtpServer.getHost());
+		mailSender.setPort(smtpServer.getPort());
+		mailSender.getJavaMailProperties().setProperty("mail.smtp.sendpartial", "true");
+		SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+		transportPool = new SmtpTransportPool(mailSender, meterRegistry, true, 2, 60_000, 100, 5_000, 5_000);
+		SmtpRelayGroup relayGroup = new SmtpRelayGroup(transportPool, meterRegistry, "", "", "weighted", 3, 30_000);
+		EmailTemplateRenderer templateRenderer = new EmailTemplateRenderer(new DefaultResourceLoader(),
+				"classpath:/templates/email/", ".txt", 16, 0, meterRegistry);
+		emailService = new EmailService(mailSender, relayGroup, new MailHealthState(new EmailServiceChecker(null), relayGroup),
+				templateRenderer, meterRegistry, new HotPathEvents("aggregated", 0, meterRegistry), 2);
+	}
+
+	@AfterEach
+	public void tearDown() {
+		transportPool.tearDown();
+		smtpServer.close();
+	}
+
+	@Test
+	public void shouldNameTheRecipientsThatMayStillBeReached() {
+		smtpServer.rejectRecipient("gone@example.com");
+		smtpServer.deferRecipient("busy@example.org");
+		EmailMessage emailMessage = new EmailMessage("a@example.com", "Announcement", "Body");
+		emailMessage.setCc(List.of("gone@example.com", "busy@example.org"));
+		emailMessage.setBcc(List.of("c@example.com"));
+
+		PartialDeliveryException failure = Assertions.assertThrows(PartialDeliveryException.class,
+				() -> emailService.sendEmail(emailMessage));
+
+		Assertions.assertEquals(List.of("gone@example.com"), failure.getUndelivered());
+		Assertions.assertEquals(List.of("busy@example.org"), failure.getRetryRecipients());
+		Assertions.assertEquals(List.of("a@example.com"), smtpServer.getMessages().get(0).recipients());
+		Assertions.assertEquals(List.of("c@example.com"), smtpServer.getMessages().get(1).recipients());
+	}
+
+	@Test
+	public void shouldOnlyDeliverToTheRecipientsARetryIsFor() {
+		EmailMessage emailMessage = new EmailMessage("a@example.com", "Announcement", "Body");
+		emailMessage.setCc(List.of("b@example.com"));
+		emailMessage.setDeliverTo(List.of("b@example.com"));
+
+		Assertions.assertEquals(List.of(), emailService.sendEmail(emailMessage));
+
+		Assertions.assertEquals(1, smtpServer.getMessages().size());
+		FakeSmtpServer.ReceivedMessage received = smtpServer.getMessages().get(0);
+		Assertions.assertEquals(List.of("b@example.com"), received.recipients());
+		// The headers are those of the original email.
+		Assertions.assertTrue(received.data().contains("To: a@example.com"));
+	}
+
+	@Test
+	public void shouldOnlyDeliverToRecipientsOfTheEmail() {
+		EmailMessage emailMessage = new EmailMessage("a@example.com", "Announcement", "Body");
+		emailMessage.setCc(List.of("B@Example.com"));
+		emailMessage.setDeliverTo(List.of("b@example.com", "eve@example.org"));
+
+		Assertions.assertThrows(MailPreparationException.class, () -> emailService.sendEmail(emailMessage));
+		Assertions.assertTrue(smtpServer.getMessages().isEmpty());
+
+		emailMessage.setDeliverTo(List.of("b@example.com"));
+		emailService.sendEmail(emailMessage);
+		Assertions.assertEquals(List.of("b@example.com"), smtpServer.getMessages().get(0).recipients());
+	}
+}
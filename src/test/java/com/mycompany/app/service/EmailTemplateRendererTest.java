@@ -0,0 +1,49 @@
+package com.mycompany.app.service;
+
+import java.util.Map;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.io.DefaultResourceLoader;
+import org.springframework.mail.MailPreparationException;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+public class EmailTemplateRendererTest {
+
+	private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+	private final EmailTemplateRenderer renderer = new EmailTemplateRenderer(new DefaultResourceLoader(),
+			"classpath:/templates/email", ".txt", 2, 0, meterRegistry);
+
+	@Test
+	public void shouldRenderTemplateFromCache() {
+		Map<String, String> variables = Map.of("name", "Jane", "orderId", "A-42");
+
+		String first = renderer.render("order-shipped", variables);
+		String second = renderer.render("order-shipped", variables);
+
+		Assertions.assertTrue(first.startsWith("Hello Jane,"));
+		Assertions.assertTrue(first.contains("Your order A-42 has shipped"));
+		Assertions.assertEquals(first, second);
+		Assertions.assertEquals(1.0, meterRegistry.get("email.templates.cache").tag("result", "miss").counter().count());
+		Assertions.assertEquals(1.0, meterRegistry.get("email.templates.cache").tag("result", "hit").counter().count());
+	}
+
+	@Test
+	public void shouldRejectMissingVariablesAndTemplates() {
+		Assertions.assertThrows(MailPreparationException.class,
+				() -> renderer.render("order-shipped", Map.of("name", "Jane")));
+		Assertions.assertThrows(MailPreparationException.class,
+				() -> renderer.render("does-not-exist", Map.of()));
+		Assertions.assertThrows(MailPreparationException.class,
+				() -> renderer.render("../application", Map.of()));
+	}
+
+	@Test
+	public void shouldCompileLiteralsAndPlaceholders() {
+		EmailTemplateRenderer.CompiledTemplate template = EmailTemplateRenderer.CompiledTemplate.compile("inline",
+				"{{ greeting }}, {{name}}! {{unterminated", 0);
+
+		Assertions.assertEquals("Hi, Jane! {{unterminated", template.render(Map.of("greeting", "Hi", "name", "Jane")));
+	}
+}
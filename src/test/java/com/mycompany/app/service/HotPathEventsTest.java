@@ -0,0 +1,104 @@
+package com.mycompany.app.service;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.slf4j.LoggerFactory;
+
+import com.mycompany.app.service.HotPathEvents.Event;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.read.ListAppender;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+public class HotPathEventsTest {
+
+	private final Logger logger = (Logger) LoggerFactory.getLogger(HotPathEvents.class);
+	private final ListAppender<ILoggingEvent> appender = new ListAppender<>();
+	private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+	private Level originalLevel;
+
+	@BeforeEach
+	public void setUp() {
+		originalLevel = logger.getLevel();
+		logger.setLevel(Level.INFO);
+		appender.start();
+		logger.addAppender(appender);
+	}
+
+	@AfterEach
+	public void tearDown() {
+		logger.detachAppender(appender);
+		logger.setLevel(originalLevel);
+	}
+
+	@Test
+	public void shouldCountEventsWithoutLoggingThemOneByOne() {
+		HotPathEvents events = new HotPathEvents("aggregated", 0, meterRegistry);
+		AtomicInteger formatted = new AtomicInteger();
+		Object subject = new Object() {
+			@Override
+			public String toString() {
+				formatted.incrementAndGet();
+				return "message-1";
+			}
+		};
+
+		events.record(Event.RECEIVED, subject);
+		events.record(Event.RECEIVED, subject);
+		events.record(Event.ACKED, subject);
+
+		Assertions.assertTrue(appender.list.isEmpty());
+		Assertions.assertEquals(0, formatted.get());
+		Assertions.assertEquals(2.0, meterRegistry.get("email.events").tag("event", "received").counter().count());
+		Assertions.assertEquals(1.0, meterRegistry.get("email.events").tag("event", "acked").counter().count());
+	}
+
+	@Test
+	public void shouldLogTheEventsOfAnIntervalAsOneSummaryLine() {
+		HotPathEvents events = new HotPathEvents("aggregated", 0, meterRegistry);
+		events.record(Event.RECEIVED, "message-1");
+		events.record(Event.SENT, "user@example.com");
+		events.record(Event.RECEIVED, "message-2");
+
+		events.logSummary();
+		// Nothing happened since the last summary.
+		events.logSummary();
+
+		List<String> lines = messages();
+		Assertions.assertEquals(1, lines.size());
+		Assertions.assertTrue(lines.get(0).endsWith(": received=2, sent=1."), lines.get(0));
+		// The meter keeps counting across summaries.
+		Assertions.assertEquals(2.0, meterRegistry.get("email.events").tag("event", "received").counter().count());
+	}
+
+	@Test
+	public void shouldLogEveryEventInPerMessageMode() {
+		HotPathEvents events = new HotPathEvents("per-message", 0, meterRegistry);
+
+		events.record(Event.PUBLISHED, "message-1");
+		events.record(Event.ACKED, "message-2");
+
+		Assertions.assertEquals(List.of("Published message with ID message-1.", "Message message-2 processed and acknowledged."),
+				messages());
+	}
+
+	@Test
+	public void shouldLogSampledEventsAtTheSampleRate() {
+		HotPathEvents events = new HotPathEvents("aggregated", 1.0, meterRegistry);
+
+		events.record(Event.SENT, "user@example.com");
+
+		Assertions.assertEquals(List.of("[sampled] Sent email to user@example.com."), messages());
+	}
+
+	private List<String> messages() {
+		return appender.list.stream().map(ILoggingEvent::getFormattedMessage).toList();
+	}
+}
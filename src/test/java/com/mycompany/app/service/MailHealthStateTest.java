@@ -0,0 +1,110 @@
+package com.mycompany.app.service;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.mail.MailAuthenticationException;
+import org.springframework.mail.MailSendException;
+import org.springframework.mail.javamail.JavaMailSenderImpl;
+
+import com.mycompany.app.support.FakeSmtpServer;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import jakarta.mail.MessagingException;
+import jakarta.mail.SendFailedException;
+
+public class MailHealthStateTest {
+
+	private FakeSmtpServer smtpServer;
+	private FakeSmtpServer fallbackServer;
+	private SmtpTransportPool transportPool;
+	private SmtpRelayGroup relayGroup;
+	private volatile boolean mailServiceHealthy = true;
+
+	@BeforeEach
+	public void setUp() throws Exception {
+		smtpServer = new FakeSmtpServer();
+		fallbackServer = new FakeSmtpServer();
+	}
+
+	@AfterEach
+	public void tearDown() {
+		if (relayGroup != null) {
+			relayGroup.tearDown();
+			transportPool.tearDown();
+		}
+		smtpServer.close();
+		fallbackServer.close();
+	}
+
+	@Test
+	public void shouldFollowTheHealthCheck() {
+		MailHealthState state = createState("");
+
+		mailServiceHealthy = false;
+		state.refresh();
+		Assertions.assertFalse(state.isUp());
+
+		mailServiceHealthy = true;
+		state.refresh();
+		Assertions.assertTrue(state.isUp());
+	}
+
+	@Test
+	public void shouldStayUpWhileAFallbackRelayCanBeReached() {
+		MailHealthState state = createState(fallbackServer.getHost() + ":" + fallbackServer.getPort());
+
+		mailServiceHealthy = false;
+		state.refresh();
+
+		Assertions.assertTrue(state.isUp());
+	}
+
+	@Test
+	public void shouldGoDownOnlyOnSendFailuresThatConcernTheServer() {
+		MailHealthState state = createState("");
+
+		state.recordSendFailure(new MailSendException("Recipient rejected.", new SendFailedException("550 No such user")));
+		Assertions.assertTrue(state.isUp());
+
+		state.recordSendFailure(new MailSendException("Connection refused.", new MessagingException("Could not connect")));
+		Assertions.assertFalse(state.isUp());
+
+		state.recordSendSuccess();
+		Assertions.assertTrue(state.isUp());
+
+		state.recordSendFailure(new MailAuthenticationException("535 Authentication failed"));
+		Assertions.assertFalse(state.isUp());
+	}
+
+	@Test
+	public void shouldOnlyChangeTheTimestampWhenTheStateChanges() throws Exception {
+		MailHealthState state = createState("");
+		long initial = state.getLastChangedAt();
+		Thread.sleep(5);
+
+		state.recordSendSuccess();
+		Assertions.assertEquals(initial, state.getLastChangedAt());
+
+		mailServiceHealthy = false;
+		state.refresh();
+		Assertions.assertTrue(state.getLastChangedAt() > initial);
+	}
+
+	private MailHealthState createState(String additionalRelays) {
+		JavaMailSenderImpl mailSender = new JavaMailSenderImpl();
+		mailSender.setHost(smtpServer.getHost());
+		mailSender.setPort(smtpServer.getPort());
+		SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+		transportPool = new SmtpTransportPool(mailSender, meterRegistry, true, 2, 60_000, 100, 5_000, 5_000);
+		relayGroup = new SmtpRelayGroup(transportPool, meterRegistry, additionalRelays, "", "weighted", 3,
+				30_000);
+		return new MailHealthState(new EmailServiceChecker(null) {
+			@Override
+			public boolean isMailServiceHealthy() {
+				return mailServiceHealthy;
+			}
+		}, relayGroup);
+	}
+}
@@ -0,0 +1,277 @@
+package com.mycompany.app.service;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.io.DefaultResourceLoader;
+import org.springframework.mail.javamail.JavaMailSenderImpl;
+
+import com.google.api.core.AbstractApiService;
+import com.google.api.core.ApiService;
+import com.google.api.gax.batching.FlowController.LimitExceededBehavior;
+import com.google.cloud.pubsub.v1.AckReplyConsumer;
+import com.google.cloud.pubsub.v1.MessageReceiver;
+import com.google.pubsub.v1.ProjectSubscriptionName;
+import com.google.pubsub.v1.PubsubMessage;
+import com.mycompany.app.model.EmailMessage;
+import com.mycompany.app.support.FakeSmtpServer;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+public class PubSubConsumerServiceTest {
+
+	// What happened to the subscribers and the messages, in order: "stopped", "ack <id>" or "nack <id>".
+	private final List<String> outcomes = new CopyOnWriteArrayList<>();
+	private final List<FakeSubscriber> subscribers = new CopyOnWriteArrayList<>();
+	private FakeSmtpServer smtpServer;
+	private SmtpTransportPool transportPool;
+	private volatile boolean mailServiceHealthy = true;
+	private MailHealthState mailHealthState;
+	private PubSubConsumerService consumerService;
+
+	@BeforeEach
+	public void setUp() throws Exception {
+		smtpServer = new FakeSmtpServer();
+	}
+
+	@AfterEach
+	public void tearDown() {
+		if (consumerService != null && consumerService.isRunning()) {
+			consumerService.stop();
+		}
+		if (transportPool != null) {
+			transportPool.tearDown();
+		}
+		smtpServer.close();
+	}
+
+	@Test
+	public void shouldStopPullingFinishTheSendsInFlightAndNackTheRest() throws Exception {
+		smtpServer.setResponseDelayMs(500);
+		consumerService = createConsumer(2_000, 1_800, 25_000);
+		consumerService.start();
+		FakeSubscriber subscriber = subscribers.get(0);
+		// One send at a time: the second message waits for the first, which leaves it too little time to be sent.
+		subscriber.deliver("first");
+		subscriber.deliver("second");
+
+		Assertions.assertEquals("Consumer drain started.", consumerService.drain());
+		Assertions.assertEquals("draining", consumerService.getDrainStatus().get("state"));
+		Assertions.assertEquals("Consumer is already draining.", consumerService.drain());
+		await(() -> "drained".equals(consumerService.getDrainStatus().get("state")));
+
+		Assertions.assertEquals(List.of("stopped", "ack first", "nack second"), outcomes);
+		Assertions.assertEquals(1, smtpServer.getReceivedCount());
+		Assertions.assertEquals(0, consumerService.getDrainStatus().get("abandonedInFlight"));
+		Assertions.assertEquals(1, consumerService.getDrainStatus().get("fastNacked"));
+		Assertions.assertFalse(consumerService.isRunning());
+	}
+
+	@Test
+	public void shouldNackTheMessagesStillQueuedWhenTheDrainTimesOut() throws Exception {
+		smtpServer.setResponseDelayMs(1_000);
+		consumerService = createConsumer(200, 0, 25_000);
+		consumerService.start();
+		FakeSubscriber subscriber = subscribers.get(0);
+		// One send at a time: the second message is still queued on the send executor when the drain times out.
+		subscriber.deliver("first");
+		subscriber.deliver("second");
+
+		Assertions.assertEquals("Consumer drain started.", consumerService.drain());
+		await(() -> "drained".equals(consumerService.getDrainStatus().get("state")));
+
+		Assertions.assertEquals(1, consumerService.getDrainStatus().get("abandonedInFlight"));
+		Assertions.assertEquals(List.of("stopped", "nack second"), outcomes);
+		await(() -> outcomes.equals(List.of("stopped", "nack second", "ack first")));
+	}
+
+	@Test
+	public void shouldOnlyDrainForWhatIsLeftOfTheShutdownBudget() throws Exception {
+		consumerService = createConsumer(20_000, 1_000, 0);
+		consumerService.start();
+		consumerService.pause();
+		subscribers.get(0).deliver("parked");
+		await(() -> consumerService.getParkedCount() == 1);
+
+		// The web server's graceful shutdown has used up the budget by the time the consumer is torn down.
+		consumerService.onContextClosed();
+		long startNanos = System.nanoTime();
+		consumerService.tearDown();
+
+		Assertions.assertTrue(System.nanoTime() - startNanos < TimeUnit.SECONDS.toNanos(5));
+		Assertions.assertEquals(List.of("stopped", "nack parked"), outcomes);
+		Assertions.assertEquals(0, smtpServer.getReceivedCount());
+	}
+
+	@Test
+	public void shouldHoldMessagesWhilePausedAndSendThemOnResume() throws Exception {
+		consumerService = createConsumer(20_000, 5_000, 25_000);
+		consumerService.start();
+		FakeSubscriber subscriber = subscribers.get(0);
+
+		consumerService.pause();
+		subscriber.deliver("held");
+		Thread.sleep(300);
+
+		Assertions.assertTrue(outcomes.isEmpty());
+		Assertions.assertEquals(0, smtpServer.getReceivedCount());
+		Assertions.assertTrue(subscriber.isRunning());
+
+		Assertions.assertEquals("Consumer resumed successfully.", consumerService.resume());
+		await(() -> outcomes.equals(List.of("ack held")));
+		subscriber.deliver("next");
+		await(() -> outcomes.equals(List.of("ack held", "ack next")));
+
+		// Resuming neither stopped nor rebuilt the subscriber.
+		Assertions.assertEquals(List.of(subscriber), subscribers);
+		Assertions.assertTrue(subscriber.isRunning());
+		Assertions.assertEquals(2, smtpServer.getReceivedCount());
+	}
+
+	@Test
+	public void shouldPauseWhileTheMailServiceIsDownAndResumeOnceItIsBack() throws Exception {
+		consumerService = createConsumer(20_000, 5_000, 25_000);
+		consumerService.start();
+		FakeSubscriber subscriber = subscribers.get(0);
+		ConsumerHealthMonitor monitor = new ConsumerHealthMonitor(consumerService, mailHealthState);
+
+		mailServiceHealthy = false;
+		mailHealthState.refresh();
+		monitor.checkMailServiceAndControlConsumer();
+		subscriber.deliver("held");
+		Thread.sleep(300);
+
+		Assertions.assertTrue(consumerService.isPaused());
+		Assertions.assertTrue(outcomes.isEmpty());
+
+		mailServiceHealthy = true;
+		mailHealthState.refresh();
+		monitor.checkMailServiceAndControlConsumer();
+
+		Assertions.assertFalse(consumerService.isPaused());
+		await(() -> outcomes.equals(List.of("ack held")));
+		Assertions.assertEquals(List.of(subscriber), subscribers);
+		Assertions.assertTrue(subscriber.isRunning());
+	}
+
+	@Test
+	public void shouldNotResumeAConsumerThatWasPausedByHand() {
+		consumerService = createConsumer(20_000, 5_000, 25_000);
+		consumerService.start();
+		ConsumerHealthMonitor monitor = new ConsumerHealthMonitor(consumerService, mailHealthState);
+
+		consumerService.pause();
+		mailServiceHealthy = false;
+		mailHealthState.refresh();
+		monitor.checkMailServiceAndControlConsumer();
+		mailServiceHealthy = true;
+		mailHealthState.refresh();
+		monitor.checkMailServiceAndControlConsumer();
+
+		Assertions.assertTrue(consumerService.isPaused());
+	}
+
+	private PubSubConsumerService createConsumer(long drainTimeoutMs, long drainSendReserveMs, long drainShutdownBudgetMs) {
+		JavaMailSenderImpl mailSender = new JavaMailSenderImpl();
+		mailSender.setHost(smtpServer.getHost());
+		mailSender.setPort(smtpServer.getPort());
+		SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+		transportPool = new SmtpTransportPool(mailSender, meterRegistry, false, 2, 60_000, 100, 5_000, 5_000);
+		SmtpRelayGroup relayGroup = new SmtpRelayGroup(transportPool, meterRegistry, "", "", "weighted", 3, 30_000);
+		EmailTemplateRenderer templateRenderer = new EmailTemplateRenderer(new DefaultResourceLoader(),
+				"classpath:/templates/email/", ".txt", 16, 0, meterRegistry);
+		mailHealthState = new MailHealthState(new EmailServiceChecker(null) {
+			@Override
+			public boolean isMailServiceHealthy() {
+				return mailServiceHealthy;
+			}
+		}, relayGroup);
+		HotPathEvents events = new HotPathEvents("aggregated", 0, meterRegistry);
+		EmailService emailService = new EmailService(mailSender, relayGroup, mailHealthState, templateRenderer,
+				meterRegistry, events, 100);
+		EmailMessageCodec codec = new EmailMessageCodec("json", 0);
+		PubSubClientSettings clientSettings = new PubSubClientSettings("");
+		PubSubPublisherService publisherService = new PubSubPublisherService("project", "topic", 100, 1000, 1, 1000,
+				104857600, LimitExceededBehavior.Block, meterRegistry, codec, false, "bulk",
+				new PublishOutbox(false, "outbox", 4096, 2, false, 100, meterRegistry), events, clientSettings);
+		PubSubConsumerProperties properties = new PubSubConsumerProperties();
+		properties.setSendExecutor("platform");
+		properties.setMaxConcurrentSends(1);
+		properties.getDrain().setTimeoutMs(drainTimeoutMs);
+		properties.getDrain().setSendReserveMs(drainSendReserveMs);
+		properties.getDrain().setShutdownBudgetMs(drainShutdownBudgetMs);
+		return new PubSubConsumerService("project", "subscription", "", 5, emailService, false, properties,
+				new BulkLaneProperties(), mailHealthState, new EmailBatchSender(emailService, false, 20, 50, 2),
+				new EmailCoalescer(emailService, templateRenderer, meterRegistry, false, 200, 50, 1, 1),
+				new ConsumerMetrics(meterRegistry), codec,
+				new DomainRateLimiter(false, 20, 1, 200, 10, 2, 0.5, 30_000, 600_000, meterRegistry),
+				new DeliveryDedupIndex(false, 1000, 0.01, "", 100, meterRegistry),
+				new ConcurrencyLimits(false, 1, 2.0, 0.2, 1000, meterRegistry), relayGroup, events, clientSettings,
+				publisherService) {
+			@Override
+			ApiService createSubscriber(ProjectSubscriptionName subscriptionName, MessageReceiver receiver,
+					Long maxOutstandingMessages) {
+				FakeSubscriber subscriber = new FakeSubscriber(receiver, codec);
+				subscribers.add(subscriber);
+				return subscriber;
+			}
+		};
+	}
+
+	private static void await(BooleanSupplier condition) throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (!condition.getAsBoolean()) {
+			Assertions.assertTrue(System.nanoTime() < deadline, "Condition not met within 5 seconds.");
+			Thread.sleep(10);
+		}
+	}
+
+	/**
+	 * Hands the messages the test delivers to the consumer and records how they end.
+	 */
+	private final class FakeSubscriber extends AbstractApiService {
+
+		private final MessageReceiver receiver;
+		private final EmailMessageCodec codec;
+
+		private FakeSubscriber(MessageReceiver receiver, EmailMessageCodec codec) {
+			this.receiver = receiver;
+			this.codec = codec;
+		}
+
+		private void deliver(String messageId) {
+			PubsubMessage message = codec.toPubsubMessage(new EmailMessage("user@example.com", "Hello", "Body"))
+					.toBuilder()
+					.setMessageId(messageId)
+					.build();
+			receiver.receiveMessage(message, new AckReplyConsumer() {
+				@Override
+				public void ack() {
+					outcomes.add("ack " + messageId);
+				}
+
+				@Override
+				public void nack() {
+					outcomes.add("nack " + messageId);
+				}
+			});
+		}
+
+		@Override
+		protected void doStart() {
+			notifyStarted();
+		}
+
+		@Override
+		protected void doStop() {
+			outcomes.add("stopped");
+			notifyStopped();
+		}
+	}
+}
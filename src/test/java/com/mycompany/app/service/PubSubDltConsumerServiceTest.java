@@ -0,0 +1,58 @@
+package com.mycompany.app.service;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import com.google.cloud.pubsub.v1.AckReplyConsumer;
+import com.google.protobuf.ByteString;
+import com.google.pubsub.v1.PubsubMessage;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+public class PubSubDltConsumerServiceTest {
+
+	@Test
+	public void shouldDelayTheNackOfDeadLettersTheStoreHasNoRoomFor() throws Exception {
+		SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+		DeadLetterStore store = new DeadLetterStore(1, "", new EmailMessageCodec("json", 0), meterRegistry);
+		PubSubDltConsumerService service = new PubSubDltConsumerService("project", "dlt-sub", false, meterRegistry, store,
+				null, 500, 200, new PubSubClientSettings(""), 200);
+		RecordingConsumer stored = new RecordingConsumer();
+		RecordingConsumer full = new RecordingConsumer();
+
+		service.receiveDeadLetter(deadLetter("a@example.com"), stored);
+		long start = System.nanoTime();
+		service.receiveDeadLetter(deadLetter("b@example.com"), full);
+
+		Assertions.assertTrue(stored.acked);
+		Assertions.assertTrue(full.nacked.await(5, TimeUnit.SECONDS));
+		Assertions.assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(200));
+		Assertions.assertFalse(full.acked);
+		service.tearDown();
+	}
+
+	private static PubsubMessage deadLetter(String to) {
+		return PubsubMessage.newBuilder()
+				.setData(ByteString.copyFromUtf8("{\"to\":\"" + to + "\",\"subject\":\"Hi\",\"body\":\"Body\"}"))
+				.build();
+	}
+
+	private static final class RecordingConsumer implements AckReplyConsumer {
+
+		private volatile boolean acked;
+		private final CountDownLatch nacked = new CountDownLatch(1);
+
+		@Override
+		public void ack() {
+			acked = true;
+		}
+
+		@Override
+		public void nack() {
+			nacked.countDown();
+		}
+	}
+}
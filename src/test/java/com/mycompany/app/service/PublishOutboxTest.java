@@ -0,0 +1,112 @@
+package com.mycompany.app.service;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+public class PublishOutboxTest {
+
+	@TempDir
+	Path tempDir;
+
+	@Test
+	public void shouldReplayUnacknowledgedRecordsAfterRestart() throws IOException {
+		PublishOutbox outbox = createOutbox(4096, 4);
+		Assertions.assertTrue(outbox.append(PublishOutbox.LANE_DEFAULT, bytes("first")));
+		Assertions.assertTrue(outbox.append(PublishOutbox.LANE_BULK, bytes("second")));
+		Assertions.assertTrue(outbox.append(PublishOutbox.LANE_DEFAULT, bytes("third")));
+
+		List<PublishOutbox.Record> batch = outbox.nextBatch(10);
+		Assertions.assertEquals(3, batch.size());
+		Assertions.assertEquals("second", text(batch.get(1)));
+		Assertions.assertEquals(PublishOutbox.LANE_BULK, batch.get(1).getLane());
+		outbox.acknowledgeThrough(batch.get(0));
+		outbox.acknowledgeThrough(batch.get(1));
+		outbox.tearDown();
+
+		PublishOutbox reopened = createOutbox(4096, 4);
+		Assertions.assertEquals(1, reopened.getPending());
+		List<PublishOutbox.Record> replayed = reopened.nextBatch(10);
+		Assertions.assertEquals(1, replayed.size());
+		Assertions.assertEquals("third", text(replayed.get(0)));
+		// New records continue after the recovered ones.
+		Assertions.assertTrue(reopened.append(PublishOutbox.LANE_DEFAULT, bytes("fourth")));
+		Assertions.assertEquals("fourth", text(reopened.nextBatch(10).get(0)));
+	}
+
+	@Test
+	public void shouldRollSegmentsAndDeleteAcknowledgedOnes() throws IOException {
+		PublishOutbox outbox = createOutbox(4096, 2);
+		byte[] payload = new byte[1500];
+
+		Assertions.assertTrue(outbox.append(PublishOutbox.LANE_DEFAULT, payload));
+		Assertions.assertTrue(outbox.append(PublishOutbox.LANE_DEFAULT, payload));
+		Assertions.assertTrue(outbox.append(PublishOutbox.LANE_DEFAULT, payload));
+		Assertions.assertEquals(2, outbox.getSegmentCount());
+		// Both segments are in use, so the outbox is full.
+		Assertions.assertFalse(outbox.append(PublishOutbox.LANE_DEFAULT, new byte[3000]));
+
+		List<PublishOutbox.Record> batch = outbox.nextBatch(10);
+		Assertions.assertEquals(3, batch.size());
+		for (PublishOutbox.Record record : batch) {
+			outbox.acknowledgeThrough(record);
+		}
+
+		Assertions.assertEquals(1, outbox.getSegmentCount());
+		Assertions.assertEquals(0, outbox.getPending());
+	}
+
+	@Test
+	public void shouldRereadFromTheFirstUnacknowledgedRecordAfterRewind() throws IOException {
+		PublishOutbox outbox = createOutbox(4096, 4);
+		outbox.append(PublishOutbox.LANE_DEFAULT, bytes("first"));
+		outbox.append(PublishOutbox.LANE_DEFAULT, bytes("second"));
+		List<PublishOutbox.Record> batch = outbox.nextBatch(10);
+		outbox.acknowledgeThrough(batch.get(0));
+
+		outbox.rewind();
+
+		List<PublishOutbox.Record> again = outbox.nextBatch(10);
+		Assertions.assertEquals(1, again.size());
+		Assertions.assertEquals("second", text(again.get(0)));
+	}
+
+	@Test
+	public void shouldSaveQuarantinedRecordsForInspection() throws IOException {
+		PublishOutbox outbox = createOutbox(4096, 4);
+		outbox.append(PublishOutbox.LANE_DEFAULT, bytes("unreadable"));
+		PublishOutbox.Record record = outbox.nextBatch(10).get(0);
+
+		outbox.quarantine(record, new IOException("Protocol message was invalid."));
+
+		try (Stream<Path> files = Files.list(tempDir.resolve("quarantine"))) {
+			List<Path> quarantined = files.toList();
+			Assertions.assertEquals(1, quarantined.size());
+			Assertions.assertEquals("unreadable", Files.readString(quarantined.get(0), StandardCharsets.UTF_8));
+		}
+	}
+
+	private PublishOutbox createOutbox(int segmentBytes, int maxSegments) throws IOException {
+		PublishOutbox outbox = new PublishOutbox(true, tempDir.toString(), segmentBytes, maxSegments, false, 100,
+				new SimpleMeterRegistry());
+		outbox.init();
+		return outbox;
+	}
+
+	private static byte[] bytes(String text) {
+		return text.getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static String text(PublishOutbox.Record record) {
+		return new String(record.getPayload(), StandardCharsets.UTF_8);
+	}
+}
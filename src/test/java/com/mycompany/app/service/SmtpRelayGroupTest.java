@@ -0,0 +1,86 @@
+package com.mycompany.app.service;
+
+import java.util.Map;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.mail.javamail.JavaMailSenderImpl;
+import org.springframework.mail.javamail.MimeMessageHelper;
+
+import com.mycompany.app.support.FakeSmtpServer;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import jakarta.mail.MessagingException;
+import jakarta.mail.internet.MimeMessage;
+
+public class SmtpRelayGroupTest {
+
+	private FakeSmtpServer primary;
+	private FakeSmtpServer secondary;
+	private JavaMailSenderImpl mailSender;
+	private SimpleMeterRegistry meterRegistry;
+
+	@BeforeEach
+	public void setUp() throws Exception {
+		primary = new FakeSmtpServer();
+		secondary = new FakeSmtpServer();
+		mailSender = new JavaMailSenderImpl();
+		mailSender.setHost(primary.getHost());
+		mailSender.setPort(primary.getPort());
+		meterRegistry = new SimpleMeterRegistry();
+	}
+
+	@AfterEach
+	public void tearDown() {
+		primary.close();
+		secondary.close();
+	}
+
+	@Test
+	public void shouldSpreadSendsByWeight() throws Exception {
+		SmtpRelayGroup group = createGroup("3,1", 3);
+
+		for (int i = 0; i < 8; i++) {
+			group.send(message("user" + i + "@example.com"));
+		}
+
+		Assertions.assertEquals(6, primary.getReceivedCount());
+		Assertions.assertEquals(2, secondary.getReceivedCount());
+		group.tearDown();
+	}
+
+	@Test
+	public void shouldFailOverAndEjectAnUnreachableRelay() throws Exception {
+		String secondaryRelay = secondary.getHost() + ":" + secondary.getPort();
+		secondary.close();
+		SmtpRelayGroup group = createGroup("1,1", 2);
+
+		for (int i = 0; i < 6; i++) {
+			group.send(message("user" + i + "@example.com"));
+		}
+
+		Assertions.assertEquals(6, primary.getReceivedCount());
+		Assertions.assertEquals(2.0, meterRegistry.get("email.smtp.relay.failovers").counter().count());
+		Map<?, ?> status = (Map<?, ?>) group.getStatus().get(secondaryRelay);
+		Assertions.assertEquals("ejected", status.get("state"));
+		group.tearDown();
+	}
+
+	private SmtpRelayGroup createGroup(String weights, int failureThreshold) {
+		SmtpTransportPool pool = new SmtpTransportPool(mailSender, meterRegistry, true, 2, 60_000, 100, 5_000, 5_000);
+		return new SmtpRelayGroup(pool, meterRegistry, secondary.getHost() + ":" + secondary.getPort(), weights,
+				"weighted", failureThreshold, 60_000);
+	}
+
+	private MimeMessage message(String to) throws MessagingException {
+		MimeMessage message = mailSender.createMimeMessage();
+		MimeMessageHelper helper = new MimeMessageHelper(message, "UTF-8");
+		helper.setTo(to);
+		helper.setFrom("notification@mycompany.com");
+		helper.setSubject("Test");
+		helper.setText("Hello");
+		return message;
+	}
+}
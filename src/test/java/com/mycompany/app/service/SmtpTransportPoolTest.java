@@ -0,0 +1,144 @@
+package com.mycompany.app.service;
+
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.mail.javamail.JavaMailSenderImpl;
+import org.springframework.mail.javamail.MimeMessageHelper;
+
+import com.mycompany.app.support.FakeSmtpServer;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import jakarta.mail.Address;
+import jakarta.mail.MessagingException;
+import jakarta.mail.SendFailedException;
+import jakarta.mail.internet.InternetAddress;
+import jakarta.mail.internet.MimeMessage;
+
+public class SmtpTransportPoolTest {
+
+	private FakeSmtpServer smtpServer;
+	private JavaMailSenderImpl mailSender;
+
+	@BeforeEach
+	public void setUp() throws Exception {
+		smtpServer = new FakeSmtpServer();
+		mailSender = new JavaMailSenderImpl();
+		mailSender.setHost(smtpServer.getHost());
+		mailSender.setPort(smtpServer.getPort());
+	}
+
+	@AfterEach
+	public void tearDown() {
+		smtpServer.close();
+	}
+
+	@Test
+	public void shouldReuseOneConnectionForSequentialSends() throws Exception {
+		SmtpTransportPool pool = createPool(2, 100, 60_000);
+
+		for (int i = 0; i < 5; i++) {
+			pool.send(message("user" + i + "@example.com"));
+		}
+
+		Assertions.assertEquals(5, smtpServer.getMessages().size());
+		Assertions.assertEquals(1, smtpServer.getConnectionCount());
+		Assertions.assertEquals(1, pool.getIdleConnections());
+		pool.tearDown();
+	}
+
+	@Test
+	public void shouldRetireConnectionAfterMaxMessages() throws Exception {
+		SmtpTransportPool pool = createPool(2, 2, 60_000);
+
+		for (int i = 0; i < 5; i++) {
+			pool.send(message("user" + i + "@example.com"));
+		}
+
+		Assertions.assertEquals(5, smtpServer.getMessages().size());
+		Assertions.assertEquals(3, smtpServer.getConnectionCount());
+		Assertions.assertEquals(1, pool.getOpenConnections());
+		pool.tearDown();
+	}
+
+	@Test
+	public void shouldReconnectWhenServerDropsConnection() throws Exception {
+		SmtpTransportPool pool = createPool(2, 100, 60_000);
+		pool.send(message("first@example.com"));
+
+		smtpServer.dropConnections();
+		pool.send(message("second@example.com"));
+
+		Assertions.assertEquals(2, smtpServer.getMessages().size());
+		Assertions.assertEquals("second@example.com", smtpServer.getMessages().get(1).recipients().get(0));
+		Assertions.assertEquals(2, smtpServer.getConnectionCount());
+		Assertions.assertEquals(1, pool.getOpenConnections());
+		pool.tearDown();
+	}
+
+	@Test
+	public void shouldEvictIdleConnections() throws Exception {
+		SmtpTransportPool pool = createPool(2, 100, 0);
+		pool.send(message("user@example.com"));
+
+		pool.evictIdleConnections();
+
+		Assertions.assertEquals(0, pool.getIdleConnections());
+		Assertions.assertEquals(0, pool.getOpenConnections());
+		pool.tearDown();
+	}
+
+	@Test
+	public void shouldSendOneTransactionPerRecipientChunk() throws Exception {
+		SmtpTransportPool pool = createPool(2, 100, 60_000);
+		MimeMessage message = message("all-staff@example.com");
+
+		MessagingException[] failures = pool.sendToRecipients(message, List.of(
+				InternetAddress.parse("a@example.com, b@example.com"),
+				InternetAddress.parse("c@example.com, d@example.com"),
+				InternetAddress.parse("e@example.com")));
+
+		Assertions.assertArrayEquals(new MessagingException[3], failures);
+		Assertions.assertEquals(3, smtpServer.getMessages().size());
+		Assertions.assertEquals(List.of("c@example.com", "d@example.com"), smtpServer.getMessages().get(1).recipients());
+		Assertions.assertEquals(1, smtpServer.getConnectionCount());
+		// Saved once, so every transaction carries the same Message-ID.
+		String messageId = message.getMessageID();
+		smtpServer.getMessages().forEach(received -> Assertions.assertTrue(received.data().contains(messageId)));
+		pool.tearDown();
+	}
+
+	@Test
+	public void shouldReportRefusedRecipientsOfAPartiallySentChunk() throws Exception {
+		mailSender.getJavaMailProperties().setProperty("mail.smtp.sendpartial", "true");
+		smtpServer.rejectRecipient("gone@example.com");
+		SmtpTransportPool pool = createPool(2, 100, 60_000);
+
+		MessagingException[] failures = pool.sendToRecipients(message("all-staff@example.com"),
+				List.<Address[]>of(InternetAddress.parse("a@example.com, gone@example.com")));
+
+		SendFailedException failure = Assertions.assertInstanceOf(SendFailedException.class, failures[0]);
+		Assertions.assertEquals("gone@example.com", failure.getInvalidAddresses()[0].toString());
+		Assertions.assertEquals("a@example.com", failure.getValidSentAddresses()[0].toString());
+		Assertions.assertEquals(List.of("a@example.com"), smtpServer.getMessages().get(0).recipients());
+		pool.tearDown();
+	}
+
+	private SmtpTransportPool createPool(int maxSize, int maxMessagesPerConnection, long maxIdleMs) {
+		return new SmtpTransportPool(mailSender, new SimpleMeterRegistry(), true, maxSize, maxIdleMs,
+				maxMessagesPerConnection, 5_000, 5_000);
+	}
+
+	private MimeMessage message(String to) throws MessagingException {
+		MimeMessage message = mailSender.createMimeMessage();
+		MimeMessageHelper helper = new MimeMessageHelper(message, "UTF-8");
+		helper.setTo(to);
+		helper.setFrom("notification@mycompany.com");
+		helper.setSubject("Test");
+		helper.setText("Hello");
+		return message;
+	}
+}
@@ -0,0 +1,259 @@
+package com.mycompany.app.support;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * A minimal in-process SMTP server for tests. It accepts every message and records the envelope and data,
+ * and counts the connections that were opened so that connection reuse can be asserted.
+ * <p>
+ * For load tests it can answer {@code DATA} slowly ({@link #setResponseDelayMs}) and reject a fraction of the
+ * messages with a transient {@code 451} ({@link #setErrorRate}), the way a busy relay does. Single recipients
+ * can be refused with {@link #rejectRecipient}.
+ */
+public class FakeSmtpServer implements Closeable {
+
+    private final ServerSocket serverSocket;
+    private final ExecutorService executor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "fake-smtp");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final List<Socket> openSockets = new CopyOnWriteArrayList<>();
+    private final List<ReceivedMessage> messages = new CopyOnWriteArrayList<>();
+    private final Set<String> rejectedRecipients = ConcurrentHashMap.newKeySet();
+    private final Set<String> deferredRecipients = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger connectionCount = new AtomicInteger();
+    private final AtomicLong receivedCount = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+    private volatile boolean recordMessages = true;
+    private volatile long responseDelayMs;
+    private volatile double errorRate;
+    private volatile Consumer<ReceivedMessage> listener;
+    private volatile boolean closed = false;
+
+    public FakeSmtpServer() throws IOException {
+        this.serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        executor.execute(this::acceptLoop);
+    }
+
+    public String getHost() {
+        return serverSocket.getInetAddress().getHostAddress();
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    public List<ReceivedMessage> getMessages() {
+        return messages;
+    }
+
+    public long getReceivedCount() {
+        return receivedCount.get();
+    }
+
+    /**
+     * Whether the content of received messages is kept for {@link #getMessages()}. Long-running benchmarks turn
+     * this off and only use {@link #getReceivedCount()}.
+     */
+    public void setRecordMessages(boolean recordMessages) {
+        this.recordMessages = recordMessages;
+    }
+
+    /**
+     * How long the server waits before it answers the end of a message's data.
+     */
+    public void setResponseDelayMs(long responseDelayMs) {
+        this.responseDelayMs = responseDelayMs;
+    }
+
+    /**
+     * The fraction of messages, between 0 and 1, that are rejected with {@code 451} instead of accepted.
+     */
+    public void setErrorRate(double errorRate) {
+        this.errorRate = errorRate;
+    }
+
+    /**
+     * Called for every accepted message, whether or not messages are recorded.
+     */
+    public void setListener(Consumer<ReceivedMessage> listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Refuses {@code RCPT TO} for the address with {@code 550}.
+     */
+    public void rejectRecipient(String address) {
+        rejectedRecipients.add(address);
+    }
+
+    /**
+     * Defers {@code RCPT TO} for the address with {@code 450}, the way a busy mailbox asks to try again later.
+     */
+    public void deferRecipient(String address) {
+        deferredRecipients.add(address);
+    }
+
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    public int getConnectionCount() {
+        return connectionCount.get();
+    }
+
+    /**
+     * Closes every open client connection without a reply, the way a relay does when it times out idle sessions.
+     */
+    public void dropConnections() {
+        for (Socket socket : openSockets) {
+            closeQuietly(socket);
+        }
+        openSockets.clear();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        closeQuietly(serverSocket);
+        dropConnections();
+        executor.shutdownNow();
+    }
+
+    private void acceptLoop() {
+        while (!closed) {
+            try {
+                Socket socket = serverSocket.accept();
+                openSockets.add(socket);
+                connectionCount.incrementAndGet();
+                executor.execute(() -> handle(socket));
+            } catch (IOException e) {
+                // Server socket closed.
+            }
+        }
+    }
+
+    private void handle(Socket socket) {
+        try (socket;
+             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.ISO_8859_1));
+             Writer out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.ISO_8859_1)) {
+            reply(out, "220 localhost FakeSmtpServer ready");
+            String from = null;
+            List<String> recipients = new ArrayList<>();
+            String line;
+            while ((line = in.readLine()) != null) {
+                String command = line.toUpperCase(Locale.ROOT);
+                if (command.startsWith("EHLO")) {
+                    reply(out, "250-localhost\r\n250 8BITMIME");
+                } else if (command.startsWith("HELO")) {
+                    reply(out, "250 localhost");
+                } else if (command.startsWith("MAIL FROM:")) {
+                    from = address(line);
+                    recipients = new ArrayList<>();
+                    reply(out, "250 OK");
+                } else if (command.startsWith("RCPT TO:")) {
+                    String recipient = address(line);
+                    if (rejectedRecipients.contains(recipient)) {
+                        reply(out, "550 5.1.1 No such user");
+                        continue;
+                    }
+                    if (deferredRecipients.contains(recipient)) {
+                        reply(out, "450 4.2.1 Mailbox busy, try again later");
+                        continue;
+                    }
+                    recipients.add(recipient);
+                    reply(out, "250 OK");
+                } else if (command.equals("DATA")) {
+                    reply(out, "354 End data with <CR><LF>.<CR><LF>");
+                    StringBuilder data = new StringBuilder();
+                    String dataLine;
+                    while ((dataLine = in.readLine()) != null && !dataLine.equals(".")) {
+                        data.append(dataLine.startsWith("..") ? dataLine.substring(1) : dataLine).append("\r\n");
+                    }
+                    if (responseDelayMs > 0) {
+                        Thread.sleep(responseDelayMs);
+                    }
+                    if (errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate) {
+                        rejectedCount.incrementAndGet();
+                        reply(out, "451 4.3.0 Temporary failure, try again later");
+                        continue;
+                    }
+                    receivedCount.incrementAndGet();
+                    Consumer<ReceivedMessage> currentListener = listener;
+                    if (recordMessages || currentListener != null) {
+                        ReceivedMessage message = new ReceivedMessage(from, List.copyOf(recipients), data.toString());
+                        if (recordMessages) {
+                            messages.add(message);
+                        }
+                        if (currentListener != null) {
+                            currentListener.accept(message);
+                        }
+                    }
+                    reply(out, "250 OK queued");
+                } else if (command.equals("RSET")) {
+                    from = null;
+                    recipients = new ArrayList<>();
+                    reply(out, "250 OK");
+                } else if (command.equals("NOOP")) {
+                    reply(out, "250 OK");
+                } else if (command.equals("QUIT")) {
+                    reply(out, "221 Bye");
+                    break;
+                } else {
+                    reply(out, "502 Command not implemented");
+                }
+            }
+        } catch (IOException e) {
+            // Connection dropped.
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            openSockets.remove(socket);
+        }
+    }
+
+    private static void reply(Writer out, String response) throws IOException {
+        out.write(response);
+        out.write("\r\n");
+        out.flush();
+    }
+
+    private static String address(String line) {
+        int start = line.indexOf('<');
+        int end = line.indexOf('>', start + 1);
+        return start >= 0 && end > start ? line.substring(start + 1, end) : line.substring(line.indexOf(':') + 1).trim();
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // Ignore.
+        }
+    }
+
+    public record ReceivedMessage(String from, List<String> recipients, String data) {
+    }
+}